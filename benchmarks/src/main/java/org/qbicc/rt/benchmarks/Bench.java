@@ -0,0 +1,155 @@
+package org.qbicc.rt.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The shared harness of the benchmarks and stress tests in this package.
+ * Each benchmark is a class with a {@code main} method, so that it can be built into an image by qbicc and run
+ * against this class library and against an earlier one to compare the two.
+ * Arguments are given positionally, and each has a default.
+ */
+final class Bench {
+    private Bench() {}
+
+    /**
+     * A task which is run by each of a number of threads.
+     */
+    interface Task {
+        /**
+         * Run the task.
+         *
+         * @param index the index of the thread running it, from zero
+         * @return the number of operations performed
+         * @throws Exception if the task failed
+         */
+        long run(int index) throws Exception;
+    }
+
+    /**
+     * Get an integer argument.
+     *
+     * @param args the program arguments
+     * @param index the index of the argument
+     * @param defaultValue the value to use if the argument is not given
+     * @return the value of the argument
+     */
+    static int intArg(String[] args, int index, int defaultValue) {
+        return index < args.length ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    /**
+     * Get a long integer argument.
+     *
+     * @param args the program arguments
+     * @param index the index of the argument
+     * @param defaultValue the value to use if the argument is not given
+     * @return the value of the argument
+     */
+    static long longArg(String[] args, int index, long defaultValue) {
+        return index < args.length ? Long.parseLong(args[index]) : defaultValue;
+    }
+
+    /**
+     * Run a task on a number of threads at once.
+     * The time is measured from when all threads have started until the last one has finished.
+     *
+     * @param threads the number of threads
+     * @param task the task to run
+     * @return the results, whose operation count is the total of all threads
+     * @throws Exception if a task failed
+     */
+    static Result run(int threads, Task task) throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final long[] ops = new long[threads];
+        final Throwable[] problems = new Throwable[threads];
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i ++) {
+            final int index = i;
+            workers[i] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    ops[index] = task.run(index);
+                } catch (Throwable t) {
+                    problems[index] = t;
+                }
+            }, "bench-" + i);
+            workers[i].start();
+        }
+        ready.await();
+        final long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        final long elapsed = System.nanoTime() - start;
+        long total = 0;
+        for (int i = 0; i < threads; i ++) {
+            if (problems[i] != null) {
+                Exception e = new Exception("Benchmark thread " + i + " failed", problems[i]);
+                for (int j = i + 1; j < threads; j ++) {
+                    if (problems[j] != null) {
+                        e.addSuppressed(problems[j]);
+                    }
+                }
+                throw e;
+            }
+            total += ops[i];
+        }
+        return new Result(total, elapsed);
+    }
+
+    /**
+     * The result of a timed run.
+     */
+    static final class Result {
+        final long ops;
+        final long nanos;
+
+        Result(long ops, long nanos) {
+            this.ops = ops;
+            this.nanos = nanos;
+        }
+
+        /**
+         * Get the number of operations per second.
+         *
+         * @return the rate
+         */
+        double perSecond() {
+            return ops * 1e9 / Math.max(1, nanos);
+        }
+
+        /**
+         * Get the mean time of one operation.
+         *
+         * @return the time in nanoseconds
+         */
+        double nanosPerOp() {
+            return (double) nanos / Math.max(1, ops);
+        }
+    }
+
+    /**
+     * Print one line of results, in a form which is easy to compare between runs.
+     *
+     * @param name the name of the measurement, including its parameters
+     * @param result the result
+     * @param unit the name of one operation, such as {@code allocs}
+     */
+    static void report(String name, Result result, String unit) {
+        System.out.printf("%-40s %,16.0f %s/s %12.1f ns/op (%,d %s in %.3f s)%n",
+            name, result.perSecond(), unit, result.nanosPerOp(), result.ops, unit, result.nanos / 1e9);
+    }
+
+    /**
+     * Fail a stress test.
+     *
+     * @param message the reason
+     */
+    static void fail(String message) {
+        System.err.println("FAILED: " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,52 @@
+package org.qbicc.rt.benchmarks;
+
+/**
+ * Measure contended monitor acquisition with short critical sections.
+ * A number of threads repeatedly enter one monitor and do a few nanoseconds of work inside it, which is the case in
+ * which spinning for the owner to leave is much cheaper than blocking. The mean time per acquisition is reported for
+ * each thread count, along with a check that the monitor excluded every other thread.
+ * <p>
+ * Arguments: the smallest thread count (default 2), the largest (default 64), and the acquisitions per thread (default
+ * 1 million). The thread count is doubled from the smallest up to the largest.
+ */
+public final class ContendedMonitor {
+    private ContendedMonitor() {}
+
+    private static final Object lock = new Object();
+    private static long counter;
+
+    public static void main(String[] args) throws Exception {
+        final int minThreads = Bench.intArg(args, 0, 2);
+        final int maxThreads = Bench.intArg(args, 1, 64);
+        final int perThread = Bench.intArg(args, 2, 1_000_000);
+        // warm up the monitor and its spin history
+        contend(minThreads, perThread / 10);
+        for (int threads = minThreads; threads <= maxThreads; threads <<= 1) {
+            Bench.report("synchronized threads=" + threads, contend(threads, perThread), "acquires");
+        }
+    }
+
+    private static Bench.Result contend(int threads, int perThread) throws Exception {
+        synchronized (lock) {
+            counter = 0;
+        }
+        final Bench.Result result = Bench.run(threads, index -> {
+            for (int i = 0; i < perThread; i ++) {
+                synchronized (lock) {
+                    counter ++;
+                }
+                // a little work outside of the lock, as real code would have
+                for (int j = 0; j < 16; j ++) {
+                    Thread.onSpinWait();
+                }
+            }
+            return perThread;
+        });
+        synchronized (lock) {
+            if (counter != (long) threads * perThread) {
+                Bench.fail("counter is " + counter + " instead of " + (long) threads * perThread);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+package org.qbicc.rt.benchmarks;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import jdk.internal.sys.linux.CpuLimits;
+
+/**
+ * Check the CPU limits which {@link CpuLimits#compute} derives from control group version 1 and 2 hierarchies.
+ * Each case builds a fake membership file and file system root in a temporary directory. The affinity mask of the
+ * process still applies, so each expected limit is capped at the count computed with no control groups at all.
+ */
+public final class CpuLimitsTest {
+    private CpuLimitsTest() {}
+
+    private static final int CONFIGURED = 4096;
+
+    private static Path dir;
+    private static int unlimited;
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        if (! System.getProperty("os.name").startsWith("Linux")) {
+            System.out.println("SKIPPED: control groups are only supported on Linux");
+            return;
+        }
+        dir = Files.createTempDirectory("cpulimits");
+        try {
+            unlimited = compute(dir.resolve("missing").toString(), dir.toString());
+            System.out.println("without control groups: " + unlimited + " CPUs");
+
+            check("v2 quota", 2,
+                "0::/app\n",
+                "app/cpu.max", "150000 100000\n");
+            check("v2 no quota, default weight", -1,
+                "0::/app\n",
+                "app/cpu.max", "max 100000\n",
+                "app/cpu.weight", "100\n");
+            check("v2 weight", 6,
+                "0::/app\n",
+                "app/cpu.max", "max 100000\n",
+                "app/cpu.weight", "200\n");
+            check("v2 container, files at the mount point", 1,
+                "0::/kubepods/pod1/container\n",
+                "cpu.max", "100000 100000\n");
+            check("v1 quota", 1,
+                "12:memory:/docker/abc\n4:cpu,cpuacct:/docker/abc\n",
+                "cpu,cpuacct/docker/abc/cpu.cfs_quota_us", "50000\n",
+                "cpu,cpuacct/docker/abc/cpu.cfs_period_us", "100000\n");
+            check("v1 shares", 2,
+                "4:cpuacct,cpu:/docker/abc\n",
+                "cpuacct,cpu/docker/abc/cpu.cfs_quota_us", "-1\n",
+                "cpuacct,cpu/docker/abc/cpu.cfs_period_us", "100000\n",
+                "cpuacct,cpu/docker/abc/cpu.shares", "2048\n");
+            check("v1 default shares", -1,
+                "4:cpu:/docker/abc\n",
+                "cpu/docker/abc/cpu.cfs_quota_us", "-1\n",
+                "cpu/docker/abc/cpu.cfs_period_us", "100000\n",
+                "cpu/docker/abc/cpu.shares", "1024\n");
+            check("v1 without a cpu controller", -1,
+                "5:cpuset:/docker/abc\n",
+                "cpuset/docker/abc/cpu.shares", "2048\n");
+            check("hybrid, lowest limit wins", 2,
+                "4:cpu,cpuacct:/app\n0::/app\n",
+                "cpu,cpuacct/app/cpu.cfs_quota_us", "300000\n",
+                "cpu,cpuacct/app/cpu.cfs_period_us", "100000\n",
+                "app/cpu.max", "200000 100000\n");
+            check("malformed lines are skipped", 1,
+                "garbage\n4:cpu\n0::/app\n",
+                "app/cpu.max", "50000 100000\n");
+        } finally {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        if (failures > 0) {
+            Bench.fail(failures + " cases failed");
+        }
+        System.out.println("PASSED");
+    }
+
+    /**
+     * Check one case.
+     *
+     * @param name the name of the case
+     * @param limit the expected control group limit, or -1 if there is none
+     * @param cgroup the contents of the membership file
+     * @param files pairs of file names, relative to the root, and their contents
+     */
+    private static void check(String name, int limit, String cgroup, String... files) throws IOException {
+        final Path root = Files.createTempDirectory(dir, "root");
+        final Path cgroupFile = root.resolve("cgroup");
+        Files.writeString(cgroupFile, cgroup);
+        for (int i = 0; i < files.length; i += 2) {
+            final Path file = root.resolve(files[i]);
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, files[i + 1]);
+        }
+        final int expected = limit == -1 ? unlimited : Math.min(limit, unlimited);
+        final int actual = compute(cgroupFile.toString(), root.toString());
+        if (actual == expected) {
+            System.out.println("ok: " + name + ": " + actual);
+        } else {
+            System.out.println("FAILED: " + name + ": expected " + expected + " but got " + actual);
+            failures ++;
+        }
+    }
+
+    private static int compute(String cgroupFile, String root) {
+        final ptr<c_char> cgroupFilePtr = cString(cgroupFile);
+        final ptr<c_char> rootPtr = cString(root);
+        try {
+            return CpuLimits.compute(cgroupFilePtr.cast(), rootPtr.cast(), CONFIGURED);
+        } finally {
+            free(cgroupFilePtr);
+            free(rootPtr);
+        }
+    }
+
+    private static ptr<c_char> cString(String str) {
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        final ptr<c_char> ptr = malloc(word(bytes.length + 1));
+        if (ptr.isNull()) {
+            throw new OutOfMemoryError("malloc");
+        }
+        copy(ptr.cast(), bytes, 0, bytes.length);
+        ptr.asArray()[bytes.length] = zero();
+        return ptr;
+    }
+}
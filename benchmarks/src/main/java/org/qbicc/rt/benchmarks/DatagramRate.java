@@ -0,0 +1,151 @@
+package org.qbicc.rt.benchmarks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import jdk.net.DatagramBatch;
+
+/**
+ * Measure the rate at which small datagrams can be sent and received over loopback by one sending and one receiving
+ * thread, moving one datagram per call with {@link DatagramChannel} and many per call with {@link DatagramBatch}.
+ * Both channels are non-blocking and both threads poll them, so the system calls, rather than wake-ups, are measured.
+ * Loopback drops datagrams when the receiver falls behind, so the send and receive rates are reported separately.
+ * <p>
+ * Arguments: the datagram size in bytes (default 64), the seconds which each run lasts (default 5), and the batch
+ * sizes to measure (default 1 to {@link DatagramBatch#maxBatchSize()}, doubling).
+ */
+public final class DatagramRate {
+    private DatagramRate() {}
+
+    private static volatile boolean sending;
+
+    public static void main(String[] args) throws Exception {
+        final int size = Bench.intArg(args, 0, 64);
+        final int seconds = Bench.intArg(args, 1, 5);
+        Bench.Result[] results = run(size, seconds, 0);
+        Bench.report("DatagramChannel send size=" + size, results[0], "pkts");
+        Bench.report("DatagramChannel receive size=" + size, results[1], "pkts");
+        if (! DatagramBatch.isSupported()) {
+            System.out.println("SKIPPED: batched datagram I/O is not supported on this platform");
+            return;
+        }
+        for (int batch = 1; batch <= DatagramBatch.maxBatchSize(); batch <<= 1) {
+            results = run(size, seconds, batch);
+            Bench.report("DatagramBatch send size=" + size + " batch=" + batch, results[0], "pkts");
+            Bench.report("DatagramBatch receive size=" + size + " batch=" + batch, results[1], "pkts");
+        }
+    }
+
+    /**
+     * Send and receive for a while.
+     *
+     * @param size the datagram size
+     * @param seconds how long to send for
+     * @param batch the batch size, or zero to use the channel methods
+     * @return the send and receive results
+     */
+    private static Bench.Result[] run(int size, int seconds, int batch) throws Exception {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramChannel receiver = DatagramChannel.open(); DatagramChannel sender = DatagramChannel.open()) {
+            receiver.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+            receiver.bind(new InetSocketAddress(loopback, 0));
+            receiver.configureBlocking(false);
+            sender.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+            sender.bind(new InetSocketAddress(loopback, 0));
+            sender.connect(receiver.getLocalAddress());
+            sender.configureBlocking(false);
+            final long[] received = new long[1];
+            final Throwable[] problem = new Throwable[1];
+            final Thread receiverThread = new Thread(() -> {
+                try {
+                    received[0] = receive(receiver, size, batch);
+                } catch (Throwable t) {
+                    problem[0] = t;
+                }
+            }, "receiver");
+            sending = true;
+            receiverThread.start();
+            final long start = System.nanoTime();
+            final long sent = send(sender, size, batch, start + seconds * 1_000_000_000L);
+            final long elapsed = System.nanoTime() - start;
+            sending = false;
+            receiverThread.join();
+            if (problem[0] != null) {
+                problem[0].printStackTrace();
+                Bench.fail("receiving failed");
+            }
+            if (received[0] > sent) {
+                Bench.fail("received " + received[0] + " datagrams, but only " + sent + " were sent");
+            }
+            return new Bench.Result[] { new Bench.Result(sent, elapsed), new Bench.Result(received[0], elapsed) };
+        }
+    }
+
+    private static long send(DatagramChannel channel, int size, int batch, long deadline) throws Exception {
+        final ByteBuffer[] buffers = buffers(Math.max(1, batch), size);
+        long sent = 0;
+        while (System.nanoTime() - deadline < 0) {
+            // check the clock once per thousand calls or so
+            for (int i = 0; i < 1024; i ++) {
+                final int count;
+                if (batch == 0) {
+                    buffers[0].clear();
+                    count = channel.write(buffers[0]) > 0 ? 1 : 0;
+                } else {
+                    for (ByteBuffer buffer : buffers) {
+                        buffer.clear();
+                    }
+                    count = DatagramBatch.send(channel, buffers, null);
+                }
+                if (count == 0) {
+                    Thread.onSpinWait();
+                }
+                sent += count;
+            }
+        }
+        return sent;
+    }
+
+    private static long receive(DatagramChannel channel, int size, int batch) throws Exception {
+        final ByteBuffer[] buffers = buffers(Math.max(1, batch), size);
+        long received = 0;
+        // keep going until the sender has stopped and the socket is drained
+        long idle = 0;
+        while (sending || idle < 1000) {
+            final int count;
+            if (batch == 0) {
+                buffers[0].clear();
+                count = channel.receive(buffers[0]) != null ? 1 : 0;
+            } else {
+                for (ByteBuffer buffer : buffers) {
+                    buffer.clear();
+                }
+                count = DatagramBatch.receive(channel, buffers, null);
+            }
+            for (int i = 0; i < count; i ++) {
+                if (buffers[i].position() != size) {
+                    Bench.fail("received a datagram of " + buffers[i].position() + " bytes instead of " + size);
+                }
+            }
+            if (count == 0) {
+                idle ++;
+                Thread.onSpinWait();
+            } else {
+                idle = 0;
+                received += count;
+            }
+        }
+        return received;
+    }
+
+    private static ByteBuffer[] buffers(int count, int size) {
+        final ByteBuffer[] buffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i ++) {
+            buffers[i] = ByteBuffer.allocateDirect(size);
+        }
+        return buffers;
+    }
+}
@@ -0,0 +1,74 @@
+package org.qbicc.rt.benchmarks;
+
+/**
+ * Stress the marking of very deep and very wide object graphs.
+ * A singly-linked list of millions of nodes is as deep as a graph can be, which overflows the stack of a recursive
+ * marker, and a large reference array tests that one array does not dominate the mark stack. Both are kept live across
+ * a number of collections, and checked after each one to make sure that every node survived and was updated.
+ * <p>
+ * Arguments: the number of list nodes (default 5 million), the array length (default 1 million), and the number of
+ * collections (default 10).
+ */
+public final class DeepMarkStress {
+    private DeepMarkStress() {}
+
+    static final class Node {
+        final int value;
+        Node next;
+
+        Node(int value) {
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) {
+        final int length = Bench.intArg(args, 0, 5_000_000);
+        final int width = Bench.intArg(args, 1, 1_000_000);
+        final int collections = Bench.intArg(args, 2, 10);
+        // build the list from the tail, so that the head is the newest node and the tail is the deepest
+        Node head = null;
+        for (int i = length - 1; i >= 0; i --) {
+            Node node = new Node(i);
+            node.next = head;
+            head = node;
+        }
+        final Object[] array = new Object[width];
+        for (int i = 0; i < width; i ++) {
+            array[i] = new Node(i);
+        }
+        for (int round = 0; round < collections; round ++) {
+            // some garbage between collections, so that live objects move
+            for (int i = 0; i < 100_000; i ++) {
+                new Node(i).next = null;
+            }
+            final long start = System.nanoTime();
+            System.gc();
+            final long elapsed = System.nanoTime() - start;
+            checkList(head, length);
+            checkArray(array);
+            System.out.printf("collection %d: %.3f ms, %,d list nodes and %,d array elements intact%n", round, elapsed / 1e6, length, width);
+        }
+        System.out.println("PASSED");
+    }
+
+    private static void checkList(Node head, int length) {
+        int count = 0;
+        for (Node node = head; node != null; node = node.next) {
+            if (node.value != count) {
+                Bench.fail("list node " + count + " has value " + node.value);
+            }
+            count ++;
+        }
+        if (count != length) {
+            Bench.fail("list has " + count + " nodes instead of " + length);
+        }
+    }
+
+    private static void checkArray(Object[] array) {
+        for (int i = 0; i < array.length; i ++) {
+            if (! (array[i] instanceof Node node) || node.value != i) {
+                Bench.fail("array element " + i + " is " + array[i]);
+            }
+        }
+    }
+}
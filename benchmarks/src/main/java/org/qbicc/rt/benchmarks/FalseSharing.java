@@ -0,0 +1,80 @@
+package org.qbicc.rt.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measure the cost of false sharing between threads which update their own counters.
+ * Counters in adjacent array slots share cache lines, while those sixteen slots apart do not, which gives the worst
+ * and best cases; {@link LongAdder}, whose cells are spread apart, and {@link ThreadLocalRandom}, whose state is kept
+ * per thread, should both scale like the latter.
+ * <p>
+ * Arguments: the largest thread count (default the number of available processors), and the updates per thread in
+ * each run (default 20 million). The thread count is doubled from one up to the largest.
+ */
+public final class FalseSharing {
+    private FalseSharing() {}
+
+    /**
+     * The distance in {@code long}s between counters which do not share a cache line, even with adjacent-line
+     * prefetching.
+     */
+    private static final int PADDED_STRIDE = 16;
+
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = Bench.intArg(args, 0, Runtime.getRuntime().availableProcessors());
+        final int perThread = Bench.intArg(args, 1, 20_000_000);
+        for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+            Bench.report("adjacent counters threads=" + threads, counters(threads, perThread, 1), "incs");
+            Bench.report("padded counters threads=" + threads, counters(threads, perThread, PADDED_STRIDE), "incs");
+            Bench.report("LongAdder threads=" + threads, adder(threads, perThread), "incs");
+            Bench.report("ThreadLocalRandom threads=" + threads, random(threads, perThread), "ints");
+        }
+    }
+
+    private static Bench.Result counters(int threads, int perThread, int stride) throws Exception {
+        final AtomicLongArray counters = new AtomicLongArray(threads * stride);
+        final Bench.Result result = Bench.run(threads, index -> {
+            final int slot = index * stride;
+            for (int i = 0; i < perThread; i ++) {
+                counters.getAndIncrement(slot);
+            }
+            return perThread;
+        });
+        for (int i = 0; i < threads; i ++) {
+            if (counters.get(i * stride) != perThread) {
+                Bench.fail("counter " + i + " is " + counters.get(i * stride));
+            }
+        }
+        return result;
+    }
+
+    private static Bench.Result adder(int threads, int perThread) throws Exception {
+        final LongAdder adder = new LongAdder();
+        final Bench.Result result = Bench.run(threads, index -> {
+            for (int i = 0; i < perThread; i ++) {
+                adder.increment();
+            }
+            return perThread;
+        });
+        if (adder.sum() != (long) threads * perThread) {
+            Bench.fail("adder sum is " + adder.sum());
+        }
+        return result;
+    }
+
+    private static Bench.Result random(int threads, int perThread) throws Exception {
+        // keep the results, so that the loops are not removed
+        final int[] results = new int[threads];
+        return Bench.run(threads, index -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            int bits = 0;
+            for (int i = 0; i < perThread; i ++) {
+                bits ^= random.nextInt();
+            }
+            results[index] = bits;
+            return perThread;
+        });
+    }
+}
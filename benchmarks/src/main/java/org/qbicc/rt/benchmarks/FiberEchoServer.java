@@ -0,0 +1,160 @@
+package org.qbicc.rt.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jdk.internal.thread.Fiber;
+
+/**
+ * Run an echo server with a fiber for each connection, and as many concurrent clients, each also a fiber, which all
+ * use plain blocking sockets.
+ * Every client connects, waits until all of the others have connected, and then sends a number of messages and reads
+ * each one back, so that every connection is open at once.
+ * <p>
+ * The clients bind to a range of loopback addresses, since one address only has about 28000 ephemeral ports. Each
+ * connection needs two file descriptors, so the limit on open files must be raised ({@code ulimit -n}) to more than
+ * twice the number of clients.
+ * <p>
+ * Arguments: the number of clients (default 100000), and the messages which each one sends (default 10).
+ */
+public final class FiberEchoServer {
+    private FiberEchoServer() {}
+
+    private static final int MESSAGE_SIZE = 64;
+    /**
+     * The number of loopback addresses which the clients are spread over, from {@code 127.0.0.1} up.
+     */
+    private static final int CLIENT_ADDRESSES = 64;
+
+    public static void main(String[] args) throws Exception {
+        if (! Fiber.isSupported()) {
+            System.out.println("SKIPPED: fibers are not supported on this platform");
+            return;
+        }
+        final int clients = Bench.intArg(args, 0, 100_000);
+        final int messages = Bench.intArg(args, 1, 10);
+        final AtomicReference<Throwable> problem = new AtomicReference<>();
+        try (ServerSocket server = new ServerSocket(0, 65536, InetAddress.getLoopbackAddress())) {
+            final int port = server.getLocalPort();
+            Fiber.start(() -> acceptAll(server, problem));
+            final CountDownLatch connected = new CountDownLatch(clients);
+            final CountDownLatch go = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(clients);
+            final AtomicInteger failures = new AtomicInteger();
+            final long start = System.nanoTime();
+            for (int i = 0; i < clients; i ++) {
+                final int index = i;
+                Fiber.start(() -> {
+                    Socket socket = null;
+                    try {
+                        socket = connect(index, port);
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        problem.compareAndSet(null, t);
+                    } finally {
+                        connected.countDown();
+                    }
+                    if (socket == null) {
+                        done.countDown();
+                        return;
+                    }
+                    try (Socket s = socket) {
+                        go.await();
+                        exchange(s, index, messages);
+                    } catch (Throwable t) {
+                        failures.incrementAndGet();
+                        problem.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            connected.await();
+            final long connectTime = System.nanoTime() - start;
+            System.out.printf("%,d clients connected in %.3f s%n", clients, connectTime / 1e9);
+            final long echoStart = System.nanoTime();
+            go.countDown();
+            done.await();
+            final long echoTime = System.nanoTime() - echoStart;
+            Bench.report("echo clients=" + clients, new Bench.Result((long) clients * messages, echoTime), "msgs");
+            if (failures.get() > 0) {
+                problem.get().printStackTrace();
+                Bench.fail(failures.get() + " of " + clients + " clients failed");
+            }
+        }
+        System.out.println("PASSED");
+    }
+
+    private static void acceptAll(ServerSocket server, AtomicReference<Throwable> problem) {
+        for (;;) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (! server.isClosed()) {
+                    problem.compareAndSet(null, e);
+                }
+                return;
+            }
+            Fiber.start(() -> echo(socket, problem));
+        }
+    }
+
+    private static void echo(Socket socket, AtomicReference<Throwable> problem) {
+        try (socket) {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            final byte[] buffer = new byte[MESSAGE_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            problem.compareAndSet(null, e);
+        }
+    }
+
+    private static Socket connect(int index, int port) throws IOException {
+        final InetAddress local = InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (1 + index % CLIENT_ADDRESSES) });
+        final Socket socket = new Socket();
+        try {
+            socket.bind(new InetSocketAddress(local, 0));
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return socket;
+        } catch (Throwable t) {
+            socket.close();
+            throw t;
+        }
+    }
+
+    private static void exchange(Socket socket, int index, int messages) throws IOException {
+        final InputStream in = socket.getInputStream();
+        final OutputStream out = socket.getOutputStream();
+        final byte[] message = new byte[MESSAGE_SIZE];
+        final byte[] reply = new byte[MESSAGE_SIZE];
+        for (int i = 0; i < messages; i ++) {
+            Arrays.fill(message, (byte) (index + i));
+            out.write(message);
+            int received = 0;
+            while (received < MESSAGE_SIZE) {
+                final int count = in.read(reply, received, MESSAGE_SIZE - received);
+                if (count == -1) {
+                    throw new IOException("Connection closed after " + i + " messages");
+                }
+                received += count;
+            }
+            if (! Arrays.equals(message, reply)) {
+                throw new IOException("Message " + i + " came back changed");
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.qbicc.rt.benchmarks;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measure the latency of handing control back and forth between two threads with {@link LockSupport}.
+ * Each round trip is two unparks of a parked thread, which is the wake-up path of every lock and queue in
+ * {@code java.util.concurrent}.
+ * <p>
+ * Arguments: the number of round trips in each run (default 1 million), and the number of runs (default 5).
+ */
+public final class ParkPingPong {
+    private ParkPingPong() {}
+
+    /**
+     * The thread whose turn it is; only that thread may run.
+     */
+    private static volatile Thread turn;
+
+    public static void main(String[] args) throws Exception {
+        final int trips = Bench.intArg(args, 0, 1_000_000);
+        final int runs = Bench.intArg(args, 1, 5);
+        for (int run = 0; run < runs; run ++) {
+            Bench.report("park/unpark round trip run=" + run, pingPong(trips), "trips");
+        }
+    }
+
+    private static Bench.Result pingPong(int trips) throws InterruptedException {
+        final Thread ping = Thread.currentThread();
+        final Thread pong = new Thread(() -> {
+            final Thread self = Thread.currentThread();
+            for (int i = 0; i < trips; i ++) {
+                awaitTurn(self);
+                turn = ping;
+                LockSupport.unpark(ping);
+            }
+        }, "pong");
+        turn = ping;
+        pong.start();
+        final long start = System.nanoTime();
+        for (int i = 0; i < trips; i ++) {
+            awaitTurn(ping);
+            turn = pong;
+            LockSupport.unpark(pong);
+        }
+        awaitTurn(ping);
+        final long elapsed = System.nanoTime() - start;
+        pong.join();
+        return new Bench.Result(trips, elapsed);
+    }
+
+    private static void awaitTurn(Thread self) {
+        while (turn != self) {
+            // spurious wake-ups are allowed, so check again
+            LockSupport.park(ParkPingPong.class);
+        }
+    }
+}
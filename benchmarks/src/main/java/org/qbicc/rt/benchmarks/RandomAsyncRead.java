@@ -0,0 +1,129 @@
+package org.qbicc.rt.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measure random 4 KiB reads through an {@link AsynchronousFileChannel}, keeping from 1 to 128 reads in flight.
+ * Each completed read starts the next one at a random block, so the queue depth stays constant until the last reads.
+ * Run it with {@code -Dsun.nio.ch.disableIoUring=true} as well to compare io_uring with the thread pool.
+ * <p>
+ * The file is not read through beforehand, so the first run reads mostly from the disk, and later runs mostly from
+ * the page cache unless the file is larger than memory.
+ * <p>
+ * Arguments: the size of the file in MiB (default 1024), the reads at each queue depth (default 200000), and the
+ * directory to create the file in (default the temporary directory).
+ */
+public final class RandomAsyncRead {
+    private RandomAsyncRead() {}
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_DEPTH = 128;
+
+    public static void main(String[] args) throws Exception {
+        final long blocks = (Bench.longArg(args, 0, 1024) << 20) / BLOCK_SIZE;
+        final long reads = Bench.longArg(args, 1, 200_000);
+        final File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+        final File file = File.createTempFile("asyncread", ".dat", dir);
+        try {
+            write(file, blocks);
+            try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                for (int depth = 1; depth <= MAX_DEPTH; depth <<= 1) {
+                    Bench.report("random 4K reads depth=" + depth, read(channel, blocks, reads, depth), "reads");
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Write the file, with the index of each block at its start so that the reads can be checked.
+     */
+    private static void write(File file, long blocks) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * BLOCK_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            for (long block = 0; block < blocks; ) {
+                buffer.clear();
+                while (buffer.hasRemaining() && block < blocks) {
+                    buffer.putLong(buffer.position(), block ++);
+                    buffer.position(buffer.position() + BLOCK_SIZE);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    private static Bench.Result read(AsynchronousFileChannel channel, long blocks, long reads, int depth) throws Exception {
+        final AtomicLong started = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(depth);
+        final AtomicReference<Throwable> problem = new AtomicReference<>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < depth; i ++) {
+            new Reader(channel, blocks, reads, started, done, problem).next();
+        }
+        done.await();
+        final long elapsed = System.nanoTime() - start;
+        if (problem.get() != null) {
+            problem.get().printStackTrace();
+            Bench.fail("a read failed");
+        }
+        return new Bench.Result(reads, elapsed);
+    }
+
+    /**
+     * One slot of the queue, which keeps one read in flight until all of the reads have been started.
+     */
+    static final class Reader implements CompletionHandler<Integer, Long> {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        private final AsynchronousFileChannel channel;
+        private final long blocks;
+        private final long reads;
+        private final AtomicLong started;
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> problem;
+
+        Reader(AsynchronousFileChannel channel, long blocks, long reads, AtomicLong started, CountDownLatch done, AtomicReference<Throwable> problem) {
+            this.channel = channel;
+            this.blocks = blocks;
+            this.reads = reads;
+            this.started = started;
+            this.done = done;
+            this.problem = problem;
+        }
+
+        void next() {
+            if (problem.get() != null || started.getAndIncrement() >= reads) {
+                done.countDown();
+                return;
+            }
+            final long block = ThreadLocalRandom.current().nextLong(blocks);
+            buffer.clear();
+            channel.read(buffer, block * BLOCK_SIZE, Long.valueOf(block), this);
+        }
+
+        public void completed(Integer count, Long block) {
+            if (count.intValue() != BLOCK_SIZE || buffer.getLong(0) != block.longValue()) {
+                problem.compareAndSet(null, new IOException("Read " + count + " bytes of block " + block + ", starting with " + buffer.getLong(0)));
+            }
+            next();
+        }
+
+        public void failed(Throwable t, Long block) {
+            problem.compareAndSet(null, t);
+            next();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.qbicc.rt.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Measure the throughput of sequential file reads into a Java array, with buffer sizes from 4 KiB to 4 MiB, through
+ * both {@link FileInputStream} and {@link RandomAccessFile}.
+ * The file is read once before the measurements so that it is in the page cache, which makes the copies made by the
+ * read path, rather than the disk, the cost being measured.
+ * <p>
+ * Arguments: the size of the file in MiB (default 1024), and the directory to create it in (default the temporary
+ * directory).
+ */
+public final class SequentialRead {
+    private SequentialRead() {}
+
+    private static final int MIN_BUFFER = 4 << 10;
+    private static final int MAX_BUFFER = 4 << 20;
+
+    public static void main(String[] args) throws Exception {
+        final long size = Bench.longArg(args, 0, 1024) << 20;
+        final File dir = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        final File file = File.createTempFile("seqread", ".dat", dir);
+        try {
+            write(file, size);
+            readStream(file, MAX_BUFFER);
+            for (int bufferSize = MIN_BUFFER; bufferSize <= MAX_BUFFER; bufferSize <<= 2) {
+                Bench.report("FileInputStream buffer=" + (bufferSize >> 10) + "K", readStream(file, bufferSize), "MiB");
+                Bench.report("RandomAccessFile buffer=" + (bufferSize >> 10) + "K", readRandomAccess(file, bufferSize), "MiB");
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(File file, long size) throws IOException {
+        final byte[] buffer = new byte[MAX_BUFFER];
+        for (int i = 0; i < buffer.length; i ++) {
+            buffer[i] = (byte) i;
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+
+    private static Bench.Result readStream(File file, int bufferSize) throws IOException {
+        final byte[] buffer = new byte[bufferSize];
+        final long start = System.nanoTime();
+        long total = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int count;
+            while ((count = in.read(buffer, 0, bufferSize)) != -1) {
+                check(buffer, total, count);
+                total += count;
+            }
+        }
+        return result(file, total, System.nanoTime() - start);
+    }
+
+    private static Bench.Result readRandomAccess(File file, int bufferSize) throws IOException {
+        final byte[] buffer = new byte[bufferSize];
+        final long start = System.nanoTime();
+        long total = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            int count;
+            while ((count = in.read(buffer, 0, bufferSize)) != -1) {
+                check(buffer, total, count);
+                total += count;
+            }
+        }
+        return result(file, total, System.nanoTime() - start);
+    }
+
+    /**
+     * Spot-check the data which was read, so that a read path which returns the wrong bytes is caught.
+     */
+    private static void check(byte[] buffer, long position, int count) {
+        if (buffer[0] != (byte) position || buffer[count - 1] != (byte) (position + count - 1)) {
+            Bench.fail("wrong data read at position " + position);
+        }
+    }
+
+    private static Bench.Result result(File file, long total, long nanos) {
+        if (total != file.length()) {
+            Bench.fail("read " + total + " bytes of " + file.length());
+        }
+        return new Bench.Result(total >> 20, nanos);
+    }
+}
@@ -0,0 +1,56 @@
+package org.qbicc.rt.benchmarks;
+
+/**
+ * Measure the rate at which small objects are allocated from a number of threads at once.
+ * Without thread-local allocation buffers, every allocation updates the shared position of the heap region, so the
+ * rate falls as threads are added; with them, it should grow with the thread count until the collector dominates.
+ * <p>
+ * Arguments: the largest thread count (default 32), and the allocations per thread in each run (default 20 million).
+ * The thread count is doubled from one up to the largest.
+ */
+public final class TlabAllocation {
+    private TlabAllocation() {}
+
+    /**
+     * A small object, with a header and two fields.
+     */
+    static final class Node {
+        final long value;
+        Node next;
+
+        Node(long value) {
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = Bench.intArg(args, 0, 32);
+        final long perThread = Bench.longArg(args, 1, 20_000_000L);
+        // warm up, and let the heap grow to its working size
+        allocate(1, perThread);
+        for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+            Bench.report("allocate threads=" + threads, allocate(threads, perThread), "allocs");
+        }
+    }
+
+    private static Bench.Result allocate(int threads, long perThread) throws Exception {
+        // keep the results, so that the loops are not removed
+        final long[] results = new long[threads];
+        return Bench.run(threads, index -> {
+            // keep a short chain live, so that the allocations cannot be removed and survivors are copied
+            Node head = null;
+            long sum = 0;
+            for (long i = 0; i < perThread; i ++) {
+                Node node = new Node(i);
+                if ((i & 63) == 0) {
+                    head = null;
+                }
+                node.next = head;
+                head = node;
+                sum += node.value;
+            }
+            results[index] = sum;
+            return perThread;
+        });
+    }
+}
@@ -46,6 +46,8 @@ import org.qbicc.runtime.host.HostIO;
 public class FileDescriptor$_native {
     int fd;
     boolean append;
+    byte fileType;
+    int fileTypeFd;
 
     private static long getHandle(int fd) {
         if (Build.Target.isPosix()) {
@@ -65,6 +65,14 @@ public class FileDescriptor$_patch {
     @SerializeBooleanAs(true)
     private boolean closed;
 
+    // The type of file which fileTypeFd was found to be by IO_Util, so that it is not checked on every read
+    @Add
+    @SerializeIntegralAs(0)
+    byte fileType;
+
+    @Add
+    int fileTypeFd;
+
     // For use of JDK "native" code that doesn't use the shared secrets mechanism
     @Add
     public int getFD() {
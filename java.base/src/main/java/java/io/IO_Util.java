@@ -32,10 +32,12 @@
 package java.io;
 
 import static org.qbicc.runtime.CNative.*;
+import static jdk.internal.sys.linux.SysUio.*;
 import static jdk.internal.sys.posix.Errno.*;
 import static jdk.internal.sys.posix.Fcntl.*;
 import static jdk.internal.sys.posix.SysStat.*;
 import static jdk.internal.sys.posix.SysTypes.*;
+import static jdk.internal.sys.posix.SysUio.*;
 import static jdk.internal.sys.posix.Unistd.*;
 import static org.qbicc.runtime.stdc.Errno.*;
 import static org.qbicc.runtime.stdc.Stdint.*;
@@ -47,6 +49,8 @@ import java.util.Objects;
 
 import org.qbicc.rt.annotation.Tracking;
 import org.qbicc.runtime.Build;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
 import org.qbicc.runtime.host.HostIO;
 import jdk.internal.sys.posix.Fcntl;
 
@@ -58,6 +62,15 @@ import jdk.internal.sys.posix.Fcntl;
 final class IO_Util {
     // this is what OpenJDK presently defines in io_util.c
     private static final int BUF_SIZE = 8192;
+    // the most bytes which are read straight into an array without a safepoint
+    private static final int DIRECT_CHUNK_SIZE = 1 << 20;
+    // readBytesDirect could not read anything without waiting
+    private static final int READ_WOULD_BLOCK = -2;
+
+    // the values of FileDescriptor.fileType
+    private static final byte TYPE_UNKNOWN = 0;
+    private static final byte TYPE_DIRECT = 1;
+    private static final byte TYPE_OTHER = 2;
 
     static int readSingle(final FileDescriptor fd) throws IOException {
         if (! fd.valid()) {
@@ -231,6 +244,12 @@ final class IO_Util {
         if (Build.isHost()) {
             return HostIO.read(((FileDescriptor$_native)(Object)fd).fd, b, off, len);
         }
+        if (Build.Target.isLinux() && len > BUF_SIZE && isDirectReadable(fd)) {
+            int nread = readBytesDirect(fd, b, off, len);
+            if (nread != READ_WOULD_BLOCK) {
+                return nread;
+            }
+        }
         int nread;
         //todo: <T, P extends ptr<T>> P alloca(Class<T> type, int count); // and variations
         //then, ptr<c_char> stackBuf = alloca(c_char.class, BUF_SIZE);
@@ -266,6 +285,77 @@ final class IO_Util {
         }
     }
 
+    /**
+     * Read from a regular file straight into the array, instead of into a buffer which is then copied.
+     * The GC may move the array at any safepoint, so each chunk is read without one; the chunks are read with
+     * {@code RWF_NOWAIT}, which only takes bytes which are already in the page cache, so that the GC is never held up
+     * by a read which waits for a slow (e.g. network) file system.
+     *
+     * @return the number of bytes read, -1 at the end of the file, or {@link #READ_WOULD_BLOCK} if nothing could be
+     *      read without waiting, in which case the caller should do a read which may block at a safepoint
+     */
+    private static int readBytesDirect(final FileDescriptor fd, final byte[] b, final int off, final int len) throws IOException {
+        final FileDescriptor$_native fdn = (FileDescriptor$_native) (Object) fd;
+        final int fdes = fdn.fd;
+        int total = 0;
+        while (total < len) {
+            final int chunk = Math.min(len - total, DIRECT_CHUNK_SIZE);
+            final int nread = readChunk(fdes, b, off + total, chunk);
+            if (nread < 0) {
+                if (nread == - EOPNOTSUPP.intValue() || nread == - ENOSYS.intValue()) {
+                    // the kernel or the file system does not support RWF_NOWAIT; stop trying it on this file
+                    fdn.fileType = TYPE_OTHER;
+                } else if (nread != - EAGAIN.intValue() && total == 0) {
+                    // todo: JNU_ThrowIOExceptionWithLastError
+                    throw new IOException("Read error");
+                }
+                // report what was read; anything else is left to a read which may block, or happens again on the next read
+                return total == 0 ? READ_WOULD_BLOCK : total;
+            }
+            total += nread;
+            if (nread < chunk) {
+                // end of file, or not all of the bytes are cached yet
+                break;
+            }
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * Read one chunk at the current position of the file, without waiting for the device.
+     *
+     * @return the number of bytes read, or the negated error number
+     */
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    private static int readChunk(final int fdes, final byte[] b, final int off, final int len) {
+        struct_iovec iov = auto();
+        iov.iov_base = addr_of(b[off]).cast();
+        iov.iov_len = word(len);
+        ssize_t result;
+        do {
+            // an offset of -1 reads at, and advances, the current position
+            result = preadv2_sp(word(fdes), addr_of(iov), word(1), word(-1L), RWF_NOWAIT);
+        } while (result.longValue() == -1 && errno == EINTR.intValue());
+        return result.longValue() == -1 ? - errno : result.intValue();
+    }
+
+    private static boolean isDirectReadable(final FileDescriptor fd) {
+        final FileDescriptor$_native fdn = (FileDescriptor$_native) (Object) fd;
+        final int fdes = fdn.fd;
+        if (fdn.fileType == TYPE_UNKNOWN || fdn.fileTypeFd != fdes) {
+            // the descriptor may have been replaced since the file was checked
+            struct_stat buf = auto();
+            int res;
+            do {
+                res = fstat(word(fdes), addr_of(buf)).intValue();
+            } while (res == -1 && errno == EINTR.intValue());
+            final boolean regular = res == 0 && (buf.st_mode.intValue() & S_IFMT.intValue()) == S_IFREG.intValue();
+            fdn.fileTypeFd = fdes;
+            fdn.fileType = regular ? TYPE_DIRECT : TYPE_OTHER;
+        }
+        return fdn.fileType == TYPE_DIRECT;
+    }
+
     static void writeBytes(final FileDescriptor fd, byte[] b, int off, int len, boolean append) throws IOException {
         Objects.requireNonNull(b, "b");
         if (off < 0 || len < 0 || b.length - off < len) {
@@ -37,6 +37,7 @@ import static org.qbicc.runtime.CNative.*;
 import java.lang.reflect.Array;
 
 import jdk.internal.vm.annotation.Stable;
+import jdk.internal.thread.ThinLocks;
 import org.qbicc.rt.annotation.Tracking;
 import org.qbicc.runtime.AutoQueued;
 import org.qbicc.runtime.Hidden;
@@ -44,7 +45,6 @@ import org.qbicc.runtime.NoReflect;
 import org.qbicc.runtime.SafePoint;
 import org.qbicc.runtime.SafePointBehavior;
 import org.qbicc.runtime.main.CompilerIntrinsics;
-import org.qbicc.runtime.main.Monitor;
 import org.qbicc.runtime.main.VMHelpers;
 
 @Tracking("src/java.base/share/classes/java/lang/Object.java")
@@ -59,9 +59,6 @@ public class Object {
     @Stable
     type_id typeId;
 
-    @NoReflect
-    private Monitor monitor;
-
     @NoReflect
     int defaultHashCode;
 
@@ -81,11 +78,11 @@ public class Object {
     }
 
     public final void notify() {
-        getMonitor().signal();
+        ThinLocks.signal(this, false);
     }
 
     public final void notifyAll() {
-        getMonitor().signalAll();
+        ThinLocks.signal(this, true);
     }
 
     public String toString() {
@@ -93,49 +90,35 @@ public class Object {
     }
 
     public final void wait() throws InterruptedException {
-        getMonitor().await();
+        ThinLocks.await(this);
     }
 
     public final void wait(long millis) throws InterruptedException {
-        getMonitor().await(millis);
+        ThinLocks.await(this, millis, 0);
     }
 
     public final void wait(long millis, int nanos) throws InterruptedException {
-        getMonitor().await(millis, nanos);
+        ThinLocks.await(this, millis, nanos);
     }
 
     @NoReflect
     @Hidden
     @AutoQueued
     private void monitorEnter() {
-        getMonitor().enter();
+        ThinLocks.enter(this);
     }
 
     @NoReflect
     @Hidden
     @AutoQueued
     private void monitorExit() {
-        getMonitor().exit();
+        ThinLocks.exit(this);
     }
 
     @NoReflect
     @Hidden
     private boolean holdsLock() {
-        Monitor monitor = addr_of(refToPtr(this).sel().monitor).loadSingleAcquire();
-        return monitor != null && monitor.isHeldByCurrentThread();
-    }
-
-    @NoReflect
-    private Monitor getMonitor() {
-        Monitor monitor = addr_of(refToPtr(this).sel().monitor).loadSingleAcquire();
-        if (monitor == null) {
-            monitor = new Monitor();
-            Monitor appearing = addr_of(refToPtr(this).sel().monitor).compareAndSwapRelease(null, monitor);
-            if (appearing != null) {
-                monitor = appearing;
-            }
-        }
-        return monitor;
+        return ThinLocks.holdsLock(this);
     }
 
     protected Object clone() throws CloneNotSupportedException {
@@ -152,7 +135,9 @@ public class Object {
             }
             Object cloned = CompilerIntrinsics.emitNew(clazz);
             CompilerIntrinsics.copyInstanceFields(clazz, this, cloned);
-            cloned.monitor = null;
+            // the copy is neither locked nor hashed
+            ThinLocks.reset(cloned);
+            cloned.defaultHashCode = 0;
             return cloned;
         }
     }
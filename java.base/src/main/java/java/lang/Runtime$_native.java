@@ -33,6 +33,7 @@
 package java.lang;
 
 import jdk.internal.gc.Gc;
+import jdk.internal.sys.linux.CpuLimits;
 import org.qbicc.rt.annotation.Tracking;
 import org.qbicc.runtime.Build;
 
@@ -49,11 +50,14 @@ class Runtime$_native {
     }
 
     public void gc() {
-        // do nothing
+        Gc.explicitCollection();
     }
 
     public int availableProcessors() {
-        // todo: containers
+        if (Build.Target.isLinux() && ! Build.isHost()) {
+            // honor the affinity mask and container limits, which may change at any time
+            return CpuLimits.availableProcessors(Runtime$_runtime.CONFIGURED_CPUS);
+        }
         return Runtime$_runtime.CONFIGURED_CPUS;
     }
 }
@@ -67,7 +67,7 @@ class Runtime$_runtime {
             size_t len = auto(sizeof(cpu_val));
             c_int result = sysctl(addr_of(mib).cast(), word(2), addr_of(cpu_val).cast(), addr_of(len), zero(), zero());
             if (result.isGe(zero()) && cpu_val.isGt(word(1))) {
-                configuredCpus = result.intValue();
+                configuredCpus = cpu_val.intValue();
             } else {
                 configuredCpus = 1;
             }
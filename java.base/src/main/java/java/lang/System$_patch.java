@@ -126,7 +126,11 @@ public final class System$_patch {
             oldseed = seed.get();
             nextseed = (oldseed * 0x5DEECE66DL + 0xBL) & ((1L << 48) - 1);
         } while (!seed.compareAndSet(oldseed, nextseed));
+        // zero means "none"
         int proposed = (int)(nextseed >>> 16);
+        if (proposed == 0) {
+            proposed = 1;
+        }
 
         if (Build.isHost()) {
             synchronized (System.class) { // ugh.  This is a hack.
@@ -147,8 +151,7 @@ public final class System$_patch {
         // Sigh.  This should be inline, but the scheduler allows the addr_of operation
         //        to float outside of the else block, and that breaks the interpreter.
         ptr<int32_t> ptr = addr_of(refToPtr(x).sel().defaultHashCode).cast();
-        int oldVal = ptr.loadAcquire().intValue();
-        int witness = ptr.compareAndSwapRelease(word(oldVal), word(proposed)).intValue();
+        int witness = ptr.compareAndSwapRelease(word(0), word(proposed)).intValue();
         return witness == 0 ? proposed : witness;
     }
 
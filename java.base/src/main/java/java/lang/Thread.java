@@ -13,7 +13,6 @@ import static org.qbicc.runtime.stdc.Stdio.*;
 import static org.qbicc.runtime.stdc.Stdlib.*;
 
 import java.lang.module.ModuleDescriptor;
-import java.lang.ref.Reference;
 import java.security.AccessControlContext;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,6 +21,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
+import jdk.internal.gc.Gc;
 import jdk.internal.misc.TerminatingThreadLocal;
 import jdk.internal.ref.CleanerFactory;
 import jdk.internal.thread.ThreadNative;
@@ -109,8 +109,11 @@ public class Thread implements Runnable {
     // null unless explicitly set
     private static volatile UncaughtExceptionHandler defaultUncaughtExceptionHandler;
 
-    // todo: these three TLR fields need to be isolated from the possibility of false sharing
+    // The ThreadLocalRandom state is written often by this thread, so it is kept apart from every other field, in a
+    // padded array which is allocated on first use (see java.util.concurrent.ThreadLocalRandom$_patch); the three TLR
+    // fields are unused, and are only kept for the field offsets which ThreadLocalRandom and Striped64 look up
     // @see java.util.concurrent.ThreadLocalRandom
+    long[] threadLocalRandomState;
     long threadLocalRandomSeed;
     int threadLocalRandomProbe;
     int threadLocalRandomSecondarySeed;
@@ -161,7 +164,7 @@ public class Thread implements Runnable {
 
     @SafePoint(setBits = STATE_WAITING | STATE_SLEEPING, clearBits = STATE_RUNNABLE)
     private static void sleep0(final long seconds, final int nanos) {
-        ThreadNative.awaitThreadInboundTimed(seconds, nanos, STATE_INTERRUPTED);
+        ThreadNative.awaitStateTimed(seconds, nanos, STATE_INTERRUPTED);
     }
 
     @NoThrow
@@ -300,18 +303,11 @@ public class Thread implements Runnable {
             throw new IllegalThreadStateException();
         }
 
-        // now, the tricky part: we have to add this thread to the big linked list
-        // acquire lock
-        ThreadNative.lockThreadList();
-        try {
-            // we hold the big list lock; do ye olde linked list insertion
-            deref(thread_list_terminus.prev).next = threadNativePtr;
-            deref(threadNativePtr).prev = thread_list_terminus.prev;
-            thread_list_terminus.prev = threadNativePtr;
-            deref(threadNativePtr).next = addr_of(thread_list_terminus);
-        } finally {
-            // release lock
-            ThreadNative.unlockThreadList();
+        // now add this thread to the registry; this never waits for the GC
+        if (! register(threadNativePtr)) {
+            // free native structure once it is unreachable
+            CleanerFactory.cleaner().register(this, new CleanupAction(threadNativePtr));
+            throw new OutOfMemoryError("Too many threads");
         }
 
         // now the thread is registered, so we can try to start it up
@@ -371,6 +367,8 @@ public class Thread implements Runnable {
                 throw new UnsupportedOperationException();
             }
         } catch (Throwable t) {
+            // the GC must not wait for a thread which never runs
+            ThreadNative.unregisterThread(threadNativePtr);
             // terminated - clear ALIVE and set TERMINATED+EXITED in one swap
             statePtr.getAndBitwiseXor(word(STATE_ALIVE | STATE_TERMINATED | STATE_EXITED));
             // we also must notify any waiters (waiting on GC etc.)
@@ -389,6 +387,13 @@ public class Thread implements Runnable {
         // started!
     }
 
+    // ensure that the GC cannot start and finish looking for new threads while we register this one
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    private static boolean register(final ptr<thread_native> threadNativePtr) {
+        return ThreadNative.registerThread(threadNativePtr);
+    }
+
     @SafePoint(SafePointBehavior.NONE)
     private boolean startPosix() {
         // assert Build.Target.isPosix();
@@ -397,15 +402,17 @@ public class Thread implements Runnable {
         if (result != 0) {
             return false;
         }
-        final long stackSize = this.stackSize;
-        if (stackSize != 0) {
+        final long stackSize = this.stackSize != 0 ? this.stackSize : ThreadNative.getDefaultStackSize();
+        if (stackSize > 0) {
             long configStackSize;
-            // todo: configure our minimum stack size; just going with 64KB for now
             if (defined(PTHREAD_STACK_MIN)) {
-                configStackSize = Math.max(65536, Math.max(PTHREAD_STACK_MIN.longValue(), this.stackSize));
+                configStackSize = Math.max(ThreadNative.MIN_STACK_SIZE, Math.max(PTHREAD_STACK_MIN.longValue(), stackSize));
             } else {
-                configStackSize = Math.max(65536, this.stackSize);
+                configStackSize = Math.max(ThreadNative.MIN_STACK_SIZE, stackSize);
             }
+            // some platforms reject stack sizes which are not a whole number of pages
+            final long pageSize = Gc.getPageSize();
+            configStackSize = configStackSize + pageSize - 1 & ~(pageSize - 1);
             result = pthread_attr_setstacksize(addr_of(thread_attr), word(configStackSize)).intValue();
             if (result != 0) {
                 pthread_attr_destroy(addr_of(thread_attr));
@@ -457,6 +464,8 @@ public class Thread implements Runnable {
                         }
                     }
                     notifyThreadOutbound();
+                    // wake it up if it is parked or sleeping
+                    ThreadNative.notifyState(threadNativePtr, oldVal);
                 }
                 return;
             }
@@ -703,28 +712,21 @@ public class Thread implements Runnable {
     @SafePoint(SafePointBehavior.NONE)
     private static Thread[] getAllThreads() {
         Thread[] array = new Thread[getSystemThreadGroup().activeCount() + 64];
-        ThreadNative.lockThreadList();
-        int cnt;
-        try {
-            cnt = getAllThreadsInternal(array);
-        } finally {
-            ThreadNative.unlockThreadList();
-        }
+        int cnt = getAllThreadsInternal(array);
         return Arrays.copyOf(array, cnt);
     }
 
-    // ensure that no safepoints are possible while lock is held
+    // ensure that no safepoints are possible while reading the registry, so that no thread structure can be freed
     @SafePoint(SafePointBehavior.FORBIDDEN)
     @NoThrow
     private static int getAllThreadsInternal(final Thread[] array) {
         int i = 0;
-        ptr<thread_native> current = deref(addr_of(thread_list_terminus)).next;
-        while (current != addr_of(thread_list_terminus)) {
-            array[i++] = deref(current).ref.toObject();
-            if (i == array.length) {
-                break;
+        final int limit = ThreadNative.registeredThreadLimit();
+        for (int slot = 1; slot < limit && i < array.length; slot ++) {
+            final ptr<thread_native> current = ThreadNative.registeredThread(slot);
+            if (current.isNonNull()) {
+                array[i++] = deref(current).ref.toObject();
             }
-            current = deref(current).next;
         }
         return i;
     }
@@ -780,29 +782,23 @@ public class Thread implements Runnable {
         final ptr<thread_native> threadNativePtr = this.threadNativePtr;
         // allocate this early
         CleanupAction action = new CleanupAction(threadNativePtr);
+        if (ThreadNative.isStackLogging()) {
+            ThreadNative.logStackUsage(threadNativePtr);
+        }
         // terminated - clear ALIVE and RUNNABLE and set TERMINATED in one swap
-        // remove this thread from the thread list (and set termination flag)
         end2(threadNativePtr, action, self);
     }
 
     @NoReturn
     @SafePoint(setBits = STATE_TERMINATED, clearBits = STATE_ALIVE | STATE_RUNNABLE)
     private void end2(final ptr<thread_native> threadNativePtr, final CleanupAction action, final Thread self) {
-        ThreadNative.lockThreadList_sp();
-        try {
-            deref(deref(threadNativePtr).prev).next = deref(threadNativePtr).next;
-            deref(deref(threadNativePtr).next).prev = deref(threadNativePtr).prev;
-            deref(threadNativePtr).next = zero();
-            deref(threadNativePtr).prev = zero();
-        } finally {
-            ThreadNative.unlockThreadList();
-        }
         end3(threadNativePtr, action, self);
     }
 
     @NoReturn
     @SafePoint(SafePointBehavior.EXIT)
     private void end3(final ptr<thread_native> threadNativePtr, final CleanupAction action, final Thread self) {
+        // this thread stays registered (and keeps its allocation buffer) until the last of this code, which may allocate
         // clean out fields for better GC behavior
         if (threadLocals != null && TerminatingThreadLocal.REGISTRY.isPresent()) {
             TerminatingThreadLocal.threadTerminated();
@@ -823,9 +819,8 @@ public class Thread implements Runnable {
         inheritableThreadLocals = null;
         blocker = null;
         uncaughtExceptionHandler = null;
-        addr_of(deref(threadNativePtr).state).getAndBitwiseOr(word(STATE_EXITED));
-        // prevent free before bits update
-        Reference.reachabilityFence(this);
+        // remove this thread from the registry; no Java code may run after this
+        end1(threadNativePtr);
         if (Build.Target.isPosix()) {
             // exit the thread so it does not kill the whole process
             pthread_exit(zero());
@@ -834,6 +829,19 @@ public class Thread implements Runnable {
         }
     }
 
+    // ensure that the GC cannot run while we leave the registry
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    private static void end1(final ptr<thread_native> threadNativePtr) {
+        // the GC cannot run until we reach a safepoint, so it is safe to give back our allocation buffer here
+        Gc.tlab_retire(threadNativePtr);
+        // the thread object is still reachable from our stack until we leave the registry, so the structure cannot be
+        // freed before the bits are updated
+        addr_of(deref(threadNativePtr).state).getAndBitwiseOr(word(STATE_EXITED));
+        // any monitor taken from now on is inflated
+        ThreadNative.unregisterThread(threadNativePtr);
+    }
+
     @SuppressWarnings("unused") // called by `bind`
     @Hidden
     @NoThrow
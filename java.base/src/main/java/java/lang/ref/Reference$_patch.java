@@ -33,10 +33,10 @@ package java.lang.ref;
 
 import jdk.internal.access.JavaLangRefAccess;
 import jdk.internal.access.SharedSecrets;
+import jdk.internal.gc.Gc;
 import jdk.internal.main.Main;
 
 import org.qbicc.rt.annotation.Tracking;
-import org.qbicc.runtime.patcher.Add;
 import org.qbicc.runtime.patcher.PatchClass;
 import org.qbicc.runtime.patcher.Replace;
 import org.qbicc.runtime.patcher.ReplaceInit;
@@ -50,11 +50,6 @@ public abstract class Reference$_patch<T> {
     // Alias & preserve orginal <clinit>
     private static boolean processPendingActive = false;
 
-    @Add
-    private static Object pendingReferenceListLock = new Object();
-    @Add
-    private static Reference pendingReferenceList = null;
-
     // Alias
     private static native boolean waitForReferenceProcessing() throws InterruptedException;
 
@@ -88,30 +83,20 @@ public abstract class Reference$_patch<T> {
     // Alias -- make accessible to ReferenceDeferredInitAction.ReferenceHandler
     static native void processPendingReferences();
 
+    // the pending list is kept by the GC, which adds the references that it clears during each collection
+
     @Replace
     private static Reference<?> getAndClearReferencePendingList() {
-        Reference<?> prior = null;
-        synchronized(pendingReferenceListLock) {
-            prior = pendingReferenceList;
-            pendingReferenceList = null;
-        }
-        return prior;
+        return Gc.takePendingReferences();
     }
 
     @Replace
     private static boolean hasReferencePendingList() {
-        synchronized(pendingReferenceListLock) {
-            return pendingReferenceList != null;
-        }
+        return Gc.hasPendingReferences();
     }
 
     @Replace
     private static void waitForReferencePendingList() {
-        synchronized (pendingReferenceListLock) {
-            try {
-                pendingReferenceListLock.wait();
-            } catch (InterruptedException e) {
-            }
-        }
+        Gc.awaitPendingReferences();
     }
 }
@@ -39,6 +39,10 @@ import org.qbicc.rt.annotation.Tracking;
 import org.qbicc.runtime.patcher.PatchClass;
 import org.qbicc.runtime.patcher.ReplaceInit;
 
+// todo: Exchanger.Node is @Contended upstream, which needs support in the compiler's object layout: a node has several
+//  fields which are written by different threads, so padding fields, which the compiler may place anywhere in the
+//  object, cannot keep them apart from those of a neighbouring node. The arena slots, which hold the nodes, are kept
+//  1 << ASHIFT elements apart, which does not depend on object layout.
 @PatchClass(Exchanger.class)
 @Tracking("src/java.base/share/classes/java/util/concurrent/Exchanger.java")
 @ReplaceInit
@@ -0,0 +1,9 @@
+package java.util.concurrent;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(Thread.class)
+class Thread$_aliases {
+    // alias
+    long[] threadLocalRandomState;
+}
@@ -0,0 +1,165 @@
+/*
+ * This code is based on OpenJDK source file(s) which contain the following copyright notice:
+ *
+ * ------
+ * Copyright (c) 2001, 2021, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ * ------
+ *
+ * This file may contain additional modifications which are Copyright (c) Red Hat and other
+ * contributors.
+ */
+
+package java.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.qbicc.rt.annotation.Tracking;
+import org.qbicc.runtime.patcher.Add;
+import org.qbicc.runtime.patcher.PatchClass;
+import org.qbicc.runtime.patcher.Replace;
+
+/**
+ * The per-thread state of {@code ThreadLocalRandom} (the seed, the probe and the secondary seed) is written often by
+ * its own thread. Upstream keeps it in {@code @Contended("tlr")} fields of {@code Thread}, which qbicc does not honor in
+ * object layout, so instead it is kept in an array of its own, which each thread allocates on first use. The elements
+ * of an array are laid out in order, so the padding elements on each side of the state keep it at least 128 bytes
+ * away from every other object, whatever the field layout of {@code Thread}.
+ */
+@PatchClass(ThreadLocalRandom.class)
+@Tracking("src/java.base/share/classes/java/util/concurrent/ThreadLocalRandom.java")
+class ThreadLocalRandom$_patch {
+    // the layout of the state array (the probe index is also used by Striped64$_patch)
+    @Add
+    private static final int STATE_PAD = 16;
+    @Add
+    private static final int STATE_SEED = STATE_PAD;
+    @Add
+    private static final int STATE_PROBE = STATE_PAD + 1;
+    @Add
+    private static final int STATE_SECONDARY = STATE_PAD + 2;
+    @Add
+    private static final int STATE_LENGTH = STATE_SECONDARY + 1 + STATE_PAD;
+
+    @Add
+    private static final long STATE_GAMMA = 0x9e3779b97f4a7c15L;
+    @Add
+    private static final int STATE_PROBE_INCREMENT = 0x9e3779b9;
+    @Add
+    private static final long STATE_SEEDER_INCREMENT = 0xbb67ae8584caa73bL;
+
+    // aliases
+    private static AtomicInteger probeGenerator;
+    private static AtomicLong seeder;
+    static ThreadLocalRandom instance;
+
+    @Add
+    private static long[] state() {
+        final Thread$_aliases t = (Thread$_aliases) (Object) Thread.currentThread();
+        long[] state = t.threadLocalRandomState;
+        if (state == null) {
+            // only ever used by this thread
+            state = new long[STATE_LENGTH];
+            t.threadLocalRandomState = state;
+        }
+        return state;
+    }
+
+    @Add
+    private static long stateMix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    @Add
+    private static int stateMix32(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        return (int) (((z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L) >>> 32);
+    }
+
+    @Replace
+    static final void localInit() {
+        int p = probeGenerator.addAndGet(STATE_PROBE_INCREMENT);
+        int probe = (p == 0) ? 1 : p; // skip 0
+        long seed = stateMix64(seeder.getAndAdd(STATE_SEEDER_INCREMENT));
+        final long[] state = state();
+        state[STATE_SEED] = seed;
+        state[STATE_PROBE] = probe;
+    }
+
+    @Replace
+    public static ThreadLocalRandom current() {
+        if (getProbe() == 0)
+            localInit();
+        return instance;
+    }
+
+    @Replace
+    final long nextSeed() {
+        final long[] state = state();
+        long r;
+        state[STATE_SEED] = r = state[STATE_SEED] + (Thread.currentThread().getId() << 1) + STATE_GAMMA;
+        return r;
+    }
+
+    @Replace
+    static final int getProbe() {
+        return (int) state()[STATE_PROBE];
+    }
+
+    @Replace
+    static final int advanceProbe(int probe) {
+        probe ^= probe << 13;   // xorshift
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        state()[STATE_PROBE] = probe;
+        return probe;
+    }
+
+    @Replace
+    static final int nextSecondarySeed() {
+        int r;
+        final long[] state = state();
+        if ((r = (int) state[STATE_SECONDARY]) != 0) {
+            r ^= r << 13;   // xorshift
+            r ^= r >>> 17;
+            r ^= r << 5;
+        }
+        else if ((r = stateMix32(seeder.getAndAdd(STATE_SEEDER_INCREMENT))) == 0)
+            r = 1; // avoid zero
+        state[STATE_SECONDARY] = r;
+        return r;
+    }
+
+    @Replace
+    private void writeObject(java.io.ObjectOutputStream s)
+        throws java.io.IOException {
+
+        java.io.ObjectOutputStream.PutField fields = s.putFields();
+        fields.put("rnd", state()[STATE_SEED]);
+        fields.put("initialized", true);
+        s.writeFields();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This code is based on OpenJDK source file(s) which contain the following copyright notice:
+ *
+ * ------
+ * Copyright (c) 2001, 2021, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ * ------
+ *
+ * This file may contain additional modifications which are Copyright (c) Red Hat and other
+ * contributors.
+ */
+
+package java.util.concurrent.atomic;
+
+import org.qbicc.rt.annotation.Tracking;
+import org.qbicc.runtime.patcher.Add;
+import org.qbicc.runtime.patcher.Patch;
+
+/**
+ * Padding for the cells of {@code LongAdder} and the other striped accumulators, which are updated by different threads.
+ * The class is annotated {@code @Contended}, which qbicc does not honor in object layout, so it is padded
+ * instead. The padding makes each cell 128 bytes larger than its one field, so the values of any two cells are at
+ * least 128 bytes apart, which keeps them on separate cache lines (and separate adjacent-line prefetch pairs)
+ * wherever the compiler places the field within the object. Unlike {@code @Contended}, this does not keep a cell
+ * apart from a neighbouring object of another class.
+ */
+@Patch("java/util/concurrent/atomic/Striped64$Cell")
+@Tracking("src/java.base/share/classes/java/util/concurrent/atomic/Striped64.java")
+final class Striped64$Cell$_patch {
+    @Add
+    @SuppressWarnings("unused")
+    private long p00, p01, p02, p03, p04, p05, p06, p07, p08, p09, p10, p11, p12, p13, p14, p15;
+}
@@ -0,0 +1,68 @@
+/*
+ * This code is based on OpenJDK source file(s) which contain the following copyright notice:
+ *
+ * ------
+ * Copyright (c) 2001, 2021, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ * ------
+ *
+ * This file may contain additional modifications which are Copyright (c) Red Hat and other
+ * contributors.
+ */
+
+package java.util.concurrent.atomic;
+
+import org.qbicc.rt.annotation.Tracking;
+import org.qbicc.runtime.patcher.Add;
+import org.qbicc.runtime.patcher.PatchClass;
+import org.qbicc.runtime.patcher.Replace;
+
+/**
+ * The thread probe lives in the padded per-thread state array of {@code ThreadLocalRandom}, rather than in a field of
+ * {@code Thread} (see {@code ThreadLocalRandom$_patch}).
+ */
+@PatchClass(Striped64.class)
+@Tracking("src/java.base/share/classes/java/util/concurrent/atomic/Striped64.java")
+class Striped64$_patch {
+    /**
+     * The index of the probe in the state array, which is the same as in {@code ThreadLocalRandom$_patch}.
+     */
+    @Add
+    private static final int STATE_PROBE = 17;
+
+    @Replace
+    static final int getProbe() {
+        final long[] state = ((Thread$_aliases) (Object) Thread.currentThread()).threadLocalRandomState;
+        // the state is allocated by ThreadLocalRandom.current(), which is called while the probe is zero
+        return state == null ? 0 : (int) state[STATE_PROBE];
+    }
+
+    @Replace
+    static final int advanceProbe(int probe) {
+        probe ^= probe << 13;   // xorshift
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        ((Thread$_aliases) (Object) Thread.currentThread()).threadLocalRandomState[STATE_PROBE] = probe;
+        return probe;
+    }
+}
@@ -0,0 +1,9 @@
+package java.util.concurrent.atomic;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(Thread.class)
+class Thread$_aliases {
+    // alias
+    long[] threadLocalRandomState;
+}
@@ -1,8 +1,10 @@
 package jdk.internal.gc;
 
 import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.PThread.*;
 
 import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.sys.posix.Time.*;
 import static jdk.internal.sys.posix.Unistd.*;
 import static jdk.internal.thread.ThreadNative.*;
 import static org.qbicc.runtime.CNative.*;
@@ -13,8 +15,13 @@ import static org.qbicc.runtime.stdc.Stdint.*;
 import static org.qbicc.runtime.stdc.Stdio.*;
 import static org.qbicc.runtime.stdc.Stdlib.*;
 import static org.qbicc.runtime.stdc.String.*;
+import static org.qbicc.runtime.stdc.Time.*;
 import static org.qbicc.runtime.unwind.LibUnwind.*;
 
+import java.lang.ref.Reference;
+
+import jdk.internal.thread.CpuAffinity;
+import jdk.internal.thread.ThinLocks;
 import jdk.internal.thread.ThreadNative;
 import org.qbicc.runtime.AutoQueued;
 import org.qbicc.runtime.Build;
@@ -29,6 +36,10 @@ import org.qbicc.runtime.stackwalk.StackWalker;
 
 public final class Gc {
     private static final boolean DEBUG = false;
+    /**
+     * How long the GC thread waits for a collection request before it calls the {@link struct_gc#idle} function.
+     */
+    static final long IDLE_CHECK_SECONDS = 1;
 
     private Gc() {}
 
@@ -42,6 +53,8 @@ public final class Gc {
         final String gcAlgorithmName = getGcAlgorithmName();
         gc = switch (gcAlgorithmName) {
             case "semi" -> addr_of(SemiSpaceGc.gc);
+            case "gen" -> addr_of(GenerationalGc.gc);
+            case "compact" -> addr_of(MarkCompactGc.gc);
             default -> throw new IllegalArgumentException("Unknown GC \"" + gcAlgorithmName + "\"");
         };
     }
@@ -64,6 +77,7 @@ public final class Gc {
         @SafePoint
         private static void run0() {
             ptr<thread_native> threadNativePtr = currentThreadNativePtr();
+            CpuAffinity.applyGcCpus();
             // now wait for a GC request
             for (;;) {
                 // TODO: CAS status word atomically with await...?
@@ -71,50 +85,102 @@ public final class Gc {
                 final ptr<uint32_t> statusPtr = addr_of(deref(threadNativePtr).state);
                 // TODO: Switch to GC command word/queue
                 int state = statusPtr.loadVolatile().intValue();
+                final ptr<function<IdleCheck>> idle = deref(gc).idle;
                 while ((state & STATE_SAFEPOINT_REQUEST_GC) == 0) {
                     // double-checked pattern, but using pthread_mutex
                     ThreadNative.lockThread_sp();
                     state = statusPtr.loadVolatile().intValue();
+                    boolean timedOut = false;
                     while ((state & STATE_SAFEPOINT_REQUEST_GC) != STATE_SAFEPOINT_REQUEST_GC) {
-                        ThreadNative.awaitThreadInbound();
+                        if (idle.isNull()) {
+                            ThreadNative.awaitThreadInbound();
+                        } else if (! ThreadNative.awaitThreadInboundTimed(IDLE_CHECK_SECONDS, 0, STATE_SAFEPOINT_REQUEST_GC)) {
+                            timedOut = true;
+                            break;
+                        }
                         state = statusPtr.loadVolatile().intValue();
                     }
                     ThreadNative.unlockThread();
+                    if (timedOut && deref(idle).asInvokable().shouldCollect()) {
+                        // the GC wants to collect on its own, e.g. to give back memory which an idle heap does not need
+                        break;
+                    }
                 }
                 addr_of(deref(threadNativePtr).state).getAndBitwiseAnd(word(~STATE_SAFEPOINT_REQUEST_GC));
-                // a GC was requested; carry it out
+                // a GC was requested; carry it out (any request made from now on needs another collection)
+                collectionsStarted ++;
+                final long requested = nanoTime();
                 ThreadNative.lockThreadList_sp();
                 try {
-                    // request safepoints of all threads
-                    for (ptr<thread_native> current = thread_list_terminus.next; current != addr_of(thread_list_terminus); current = deref(current).next) {
-                        // (don't request our own; we're already there)
-                        if (current != threadNativePtr) {
-                            requestSafePoint(current, STATE_SAFEPOINT_REQUEST_GC);
+                    // stop every registered thread, noting which one we wait for the longest
+                    final long reportTime = GcStats.safepoint_report_time();
+                    ptr<thread_native> straggler = zero();
+                    int stragglerState = 0;
+                    long stragglerWait = 0;
+                    final int epoch = ++ stopEpoch;
+                    stoppedThreadCount = 0;
+                    int awaited = 0;
+                    for (;;) {
+                        // request safepoints of all threads which were not found before
+                        final int limit = registeredThreadLimit();
+                        for (int i = 1; i < limit; i ++) {
+                            final ptr<thread_native> current = registeredThread(i);
+                            if (current.isNonNull() && deref(current).gc_epoch != epoch) {
+                                deref(current).gc_epoch = epoch;
+                                add_stopped_thread(current);
+                                // (don't request our own; we're already there)
+                                if (current != threadNativePtr) {
+                                    requestSafePoint(current, STATE_SAFEPOINT_REQUEST_GC);
+                                }
+                            }
                         }
-                    }
-                    // await safepoints of all threads
-                    for (ptr<thread_native> current = thread_list_terminus.next; current != addr_of(thread_list_terminus); current = deref(current).next) {
-                        // (don't await ourselves)
-                        if (current != threadNativePtr) {
-                            awaitSafePoint(current);
+                        if (awaited == stoppedThreadCount) {
+                            // no new threads; only running threads start threads, so none can appear from now on
+                            break;
+                        }
+                        // await their safepoints; threads which are started meanwhile are found by the next pass
+                        while (awaited < stoppedThreadCount) {
+                            final ptr<thread_native> current = stoppedThreads.plus(awaited ++).loadPlain();
+                            // (don't await ourselves)
+                            if (current != threadNativePtr) {
+                                final int state = addr_of(deref(current).state).loadVolatile().intValue();
+                                final long start = nanoTime();
+                                awaitSafePoint(current, reportTime);
+                                final long wait = nanoTime() - start;
+                                if (wait > stragglerWait) {
+                                    straggler = current;
+                                    stragglerState = state;
+                                    stragglerWait = wait;
+                                }
+                            }
                         }
                     }
                     // now we are paused and free to manipulate the heap
+                    final long paused = nanoTime();
+                    GcStats.safepoint_reached(requested, paused, straggler, stragglerState, stragglerWait);
+                    GcStats.collection_start();
 
                     deref(deref(gc).collect).asInvokable().run();
 
                     // release safepoint of all threads
-                    for (ptr<thread_native> current = thread_list_terminus.next; current != addr_of(thread_list_terminus); current = deref(current).next) {
+                    for (int i = 0; i < stoppedThreadCount; i ++) {
+                        final ptr<thread_native> current = stoppedThreads.plus(i).loadPlain();
                         // (don't release our own)
                         if (current != threadNativePtr) {
                             releaseSafePoint(current, STATE_SAFEPOINT_REQUEST_GC);
                         }
                     }
+                    GcStats.collection_end(requested, paused, nanoTime());
                 } finally {
                     ThreadNative.unlockThreadList();
                 }
 
-                // todo: reference queues
+                // now that everything is running again, wake anyone waiting for this collection, and the
+                // reference handler if there is work for it
+                pthread_mutex_lock(addr_of(collection_mutex));
+                collectionsCompleted = collectionsStarted;
+                pthread_cond_broadcast(addr_of(collection_cond));
+                pthread_mutex_unlock(addr_of(collection_mutex));
             }
         }
     };
@@ -160,6 +226,19 @@ public final class Gc {
         OOME = error;
     }
 
+    /**
+     * The threads which were stopped for the current collection, including the GC thread itself.
+     * Some of them may have been removed from the thread registry since; they are stopped all the same.
+     * Only valid on the GC thread during a collection.
+     */
+    static ptr<ptr<thread_native>> stoppedThreads;
+    static int stoppedThreadCount;
+    private static int stoppedThreadCapacity;
+    /**
+     * The number of the current collection, which marks the threads that it has stopped.
+     */
+    private static int stopEpoch;
+
     private static final int HEAP_BYTE_PER_HEAP_INDEX = Gc.getConfiguredObjectAlignment();
     private static final int HEAP_BYTE_PER_HEAP_INDEX_SHIFT = Integer.numberOfTrailingZeros(HEAP_BYTE_PER_HEAP_INDEX);
 
@@ -200,8 +279,115 @@ public final class Gc {
         return maxHeapSize;
     }
 
+    /**
+     * Get the current value of the monotonic clock.
+     *
+     * @return the clock value in nanoseconds
+     */
+    @NoThrow
+    @SafePoint(SafePointBehavior.ALLOWED)
+    static long nanoTime() {
+        struct_timespec ts = auto();
+        clock_gettime(CLOCK_MONOTONIC, addr_of(ts));
+        return ts.tv_sec.longValue() * 1_000_000_000L + ts.tv_nsec.longValue();
+    }
+
+    @constructor
+    @export
+    public static void init_collection_mutex() {
+        // initialize the mutex and condition at early run time
+        pthread_mutex_init(addr_of(collection_mutex), zero());
+        pthread_cond_init(addr_of(collection_cond), zero());
+    }
+
     public static void start() {
         gc_thread.start();
+        GcWorkers.start();
+    }
+
+    /**
+     * Set the number of threads which take part in parallel collection phases, including the GC thread.
+     * A value of zero selects a count based on the number of available processors.
+     * Must be called before {@link #start()}.
+     *
+     * @param count the number of GC worker threads
+     */
+    public static void setWorkerCount(int count) {
+        GcWorkers.configuredCount = count;
+    }
+
+    /**
+     * Set how explicit collection requests (such as {@link Runtime#gc()}) are handled.
+     * Must be called before {@link #start()}.
+     *
+     * @param disabled {@code true} to ignore explicit requests entirely
+     * @param concurrent {@code true} to request a collection without waiting for it to complete
+     */
+    public static void setExplicitGcPolicy(boolean disabled, boolean concurrent) {
+        explicitGcDisabled = disabled;
+        explicitGcConcurrent = concurrent;
+    }
+
+    private static boolean explicitGcDisabled;
+    private static boolean explicitGcConcurrent;
+
+    /**
+     * The number of collections which have been started, written only by the GC thread.
+     */
+    private static volatile long collectionsStarted;
+    /**
+     * The number of collections which have been completed, written only by the GC thread while holding
+     * {@link #collection_mutex}.
+     */
+    private static volatile long collectionsCompleted;
+
+    /**
+     * Handle an explicit request for a collection, according to the configured policy.
+     *
+     * @see Runtime#gc()
+     */
+    public static void explicitCollection() {
+        if (! explicitGcDisabled) {
+            requestCollection(! explicitGcConcurrent);
+        }
+    }
+
+    /**
+     * Request a garbage collection.
+     *
+     * @param wait {@code true} to block until a collection which started after this call has completed,
+     *      or {@code false} to return as soon as the collection has been requested
+     */
+    public static void requestCollection(boolean wait) {
+        if (Build.isHost() || Thread.currentThread() == gc_thread) {
+            return;
+        }
+        final long started = collectionsStarted;
+        requestCollection0(getThreadNativePtr(gc_thread));
+        if (wait) {
+            awaitCollection(started);
+        }
+    }
+
+    /**
+     * Wait until more than the given number of collections have completed.
+     * The thread waits in a safepoint on a native condition, so the GC thread never touches a Java monitor.
+     *
+     * @param started the number of collections which had started before the request
+     */
+    @SafePoint(SafePointBehavior.ENTER)
+    @NoThrow
+    private static void awaitCollection(long started) {
+        pthread_mutex_lock(addr_of(collection_mutex));
+        while (collectionsCompleted <= started) {
+            pthread_cond_wait(addr_of(collection_cond), addr_of(collection_mutex));
+        }
+        pthread_mutex_unlock(addr_of(collection_mutex));
+    }
+
+    @SafePoint(SafePointBehavior.ENTER)
+    private static void requestCollection0(ptr<thread_native> gcThread) {
+        requestSafePoint(gcThread, STATE_SAFEPOINT_REQUEST_GC);
     }
 
     /**
@@ -227,6 +413,12 @@ public final class Gc {
          * The allocated memory must be zeroed.
          */
         public ptr<function<Allocator>> allocate;
+        /**
+         * A pointer to a function which is called from the GC thread, outside of any safepoint, each time no
+         * collection has been requested for {@link Gc#IDLE_CHECK_SECONDS}, or {@code null} if the GC does not need it.
+         * A collection is carried out if the function returns {@code true}.
+         */
+        public ptr<function<IdleCheck>> idle;
     }
 
     /**
@@ -254,6 +446,11 @@ public final class Gc {
         reference<?> allocate(long size);
     }
 
+    @FunctionalInterface
+    public interface IdleCheck {
+        boolean shouldCollect();
+    }
+
     /**
      * The special region for the root class set.
      * These objects are not copied.
@@ -277,6 +474,49 @@ public final class Gc {
      */
     static ptr<uint8_t> heapBase;
 
+    /**
+     * The bounds of the GC-managed heap, as established by the GC algorithm.
+     */
+    static ptr<c_char> heapStart;
+    static ptr<c_char> heapEnd;
+
+    /**
+     * The amount of heap which was free after the most recent collection, as reported by the GC algorithm.
+     * Softly reachable objects are kept for longer when more of the heap is free.
+     */
+    static long heapFree;
+    /**
+     * Set when an allocation still fails after a collection, so that the next collection clears every soft reference
+     * before the allocation gives up.
+     */
+    static volatile boolean clearSoftReferences;
+    /**
+     * The references which were cleared by collections and not yet taken by the reference handler thread, linked
+     * through their {@code discovered} field. The GC adds to the list during collections; the handler takes the whole
+     * list in {@link #takePendingReferences()}, which no collection can interrupt. No Java code runs on the GC thread
+     * to hand the references over.
+     */
+    private static Reference<?> pendingReferences;
+    /**
+     * Set while {@link #pendingReferences} is not empty, so that the reference handler can wait for it without
+     * touching the heap.
+     */
+    private static volatile boolean referencesPending;
+
+    /**
+     * Protects the waits for the end of a collection and for pending references. The GC thread broadcasts
+     * {@link #collection_cond} with it held after each collection.
+     */
+    @SuppressWarnings("unused")
+    private static final pthread_mutex_t collection_mutex = zero();
+    @SuppressWarnings("unused")
+    private static final pthread_cond_t collection_cond = zero();
+
+    /**
+     * The size of the smallest possible filler object (an empty {@code byte} array), rounded up to the object alignment.
+     */
+    static long fillerMinSize;
+
     /**
      * The allocate method.
      * This method is used to implement {@code new} and other related operations.
@@ -379,6 +619,13 @@ public final class Gc {
     public static void qbicc_initialize_heap(long min_heap, long max_heap) {
         minHeapSize = min_heap;
         maxHeapSize = max_heap;
+        GcStats.init();
+
+        // the lock shares the header with the GC bits
+        if (((headerMovedBit().longValue() | headerStackAllocatedBit().longValue()) & ThinLocks.HEADER_BITS) != 0) {
+            fprintf(stderr, utf8z("The object header has no room for thin locks\n"));
+            abort();
+        }
 
         struct_gc_attr gc_attr = auto(zero());
 
@@ -392,8 +639,16 @@ public final class Gc {
         strings.start = getInitialHeapStringsRegionStart();
         strings.limit = strings.position = getInitialHeapStringsRegionSize();
 
+        // compute the filler size before the GC sizes anything which depends on it
+        ClassAccess fillerClass = cast(CompilerIntrinsics.getClassFromTypeIdSimple(CompilerIntrinsics.getTypeIdFromClass(byte[].class)));
+        final int mask = Gc.getConfiguredObjectAlignment() - 1;
+        fillerMinSize = (fillerClass.instanceSize + mask) & ~mask;
+
         // now, call GC-specific heap init routine
         deref(deref(gc).initialize_heap).asInvokable().initialize(addr_of(gc_attr));
+        heapStart = gc_attr.lowest_heap_addr;
+        heapEnd = gc_attr.highest_heap_addr;
+        heapFree = max_heap;
 
         // find the lowest possible heap address
         ptr<c_char> lowest = word(
@@ -598,6 +853,33 @@ public final class Gc {
         return (observed.longValue() & bitVal.longValue()) != 0;
     }
 
+    /**
+     * Find the next marked object within the given range of the heap.
+     *
+     * @param start the start of the range, aligned to the object alignment (must not be {@code null})
+     * @param end the end of the range (exclusive)
+     * @return a pointer to the first marked object in the range, or {@code null} if there is none
+     * @param <P> the pointer type to return
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    @Hidden
+    static <P extends ptr<?>> P bitmap_next(ptr<?> start, ptr<?> end) {
+        long index = start.minus(heapBase.cast()).longValue() >>> HEAP_BYTE_PER_HEAP_INDEX_SHIFT;
+        final long endIndex = end.minus(heapBase.cast()).longValue() + HEAP_BYTE_PER_HEAP_INDEX - 1 >>> HEAP_BYTE_PER_HEAP_INDEX_SHIFT;
+        while (index < endIndex) {
+            long bits = bitmap.plus(index >>> HEAP_INDEX_PER_BITMAP_WORD_SHIFT).loadOpaque().longValue();
+            // ignore the bits below the current index
+            bits &= -1L << (index & HEAP_INDEX_PER_BITMAP_WORD_MASK);
+            if (bits != 0) {
+                final long found = (index & ~HEAP_INDEX_PER_BITMAP_WORD_MASK) + Long.numberOfTrailingZeros(bits);
+                return found < endIndex ? heapBase.plus(found << HEAP_BYTE_PER_HEAP_INDEX_SHIFT).cast() : null;
+            }
+            index = (index | HEAP_INDEX_PER_BITMAP_WORD_MASK) + 1;
+        }
+        return null;
+    }
+
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
     @Hidden
@@ -634,145 +916,224 @@ public final class Gc {
     @NoThrow
     static native header_type headerStackAllocatedBit();
 
+    /**
+     * Determine whether the given object was allocated on the stack.
+     *
+     * @param ref the object reference (must not be {@code null})
+     * @return {@code true} if the object is on the stack, or {@code false} if it is not
+     */
     @SafePoint(SafePointBehavior.ALLOWED)
     @NoThrow
     @Hidden
-    static boolean isStackAllocated(reference<?> ref) {
+    public static boolean isStackAllocated(reference<?> ref) {
         final ptr<header_type> headerPtr = addr_of(deref(refToPtr((ObjectAccess)ref.toObject())).header);
         return (headerPtr.loadUnshared().longValue() & headerStackAllocatedBit().longValue()) != 0;
     }
 
     /**
-     * A basic recursive mark routine for objects.
+     * Add a thread to the stopped threads of the current collection.
      *
-     * @param object the object to mark (must not be {@code null})
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
      */
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
-    @export
-    static void mark(Object object) {
-        if (! setMark(reference.of(object))) {
-            return;
+    private static void add_stopped_thread(ptr<thread_native> threadNativePtr) {
+        if (stoppedThreadCount == stoppedThreadCapacity) {
+            final int newCapacity = Math.max(16, stoppedThreadCapacity << 1);
+            ptr<ptr<thread_native>> newThreads = realloc(stoppedThreads, word(newCapacity * sizeof(ptr.class).longValue()));
+            if (newThreads.isNull()) {
+                fprintf(stderr, utf8z("Failed to allocate GC thread list\n"));
+                abort();
+            }
+            stoppedThreads = newThreads;
+            stoppedThreadCapacity = newCapacity;
         }
-        markBasic0(reference.of(object));
+        stoppedThreads.plus(stoppedThreadCount ++).storePlain(threadNativePtr);
     }
 
     /**
-     * Mark all the objects which are currently reachable by the stack of this thread.
+     * Retire the allocation buffers of all threads.
+     * Must be called from the GC thread while all other threads are in a safepoint.
      */
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
-    @export
-    static void markCurrentStack() {
-        StackWalker sw = new StackWalker();
-        lvi_iterator lviIter = auto();
-        unw_cursor_t cursor = auto();
-        ptr<struct_call_site> call_site_ptr;
-        reference<?> ref;
-        while (sw.next()) {
-            call_site_ptr = sw.getCallSite();
-            if (call_site_ptr != null) {
-                lvi_iterator_init(addr_of(lviIter), call_site_ptr);
-                sw.getCursor(addr_of(cursor));
-                while ((ref = lvi_iterator_next(addr_of(lviIter), addr_of(cursor))) != null) {
-                    if (setMark(ref)) {
-                        markBasic0(ref);
-                    }
+    static void tlab_retire_all() {
+        for (int i = 0; i < stoppedThreadCount; i ++) {
+            final ptr<thread_native> current = stoppedThreads.plus(i).loadPlain();
+            tlab_retire(current);
+        }
+    }
+
+    /**
+     * Mark all objects which are reachable from the GC roots: thread stacks, thread objects,
+     * the permanent regions, and the reference-typed static variables.
+     * Must be called from the GC thread while all other threads are in a safepoint.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void mark_roots() {
+        GcWorkers.parallel_mark();
+    }
+
+    /**
+     * Update all the references held by the GC roots (see {@link #mark_roots()}) whose targets have been relocated.
+     * Must be called from the GC thread while all other threads are in a safepoint.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void update_roots() {
+        // update all permanent objects
+        update_region(addr_of(classes));
+     // update_region(addr_of(strings)); // this region only contains interior pointers!
+        update_region(addr_of(initial));
+
+        for (int i = 0; i < getReferenceTypedVariablesCount(); i ++) {
+            update_reference(getReferenceTypedVariablesStart().plus(i));
+        }
+        update_monitors();
+
+        // update threads and thread stacks
+        for (int i = 0; i < stoppedThreadCount; i ++) {
+            final ptr<thread_native> current = stoppedThreads.plus(i).loadPlain();
+            update_thread(current);
+        }
+        await_stack_fixups();
+    }
+
+    /**
+     * Free the inflated monitors whose objects were not marked.
+     * Must be called from the GC thread while all other threads are in a safepoint, once marking is complete.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void sweep_monitors() {
+        ThinLocks.lock_monitor_table();
+        try {
+            final ptr<reference<?>> objects = ThinLocks.monitor_objects();
+            final int count = ThinLocks.monitor_capacity();
+            for (int i = 0; i < count; i ++) {
+                final reference<?> ref = objects.plus(i).loadPlain();
+                if (ref != null && ! isMarked(ref)) {
+                    ThinLocks.free_monitor(i);
                 }
             }
+        } finally {
+            ThinLocks.unlock_monitor_table();
         }
     }
 
     /**
-     * Mark all the objects which are currently reachable by the stack of the given safepointed thread.
-     *
-     * @param threadNativePtr the safepointed thread native pointer (must not be {@code null})
+     * Update the object references of the inflated monitors whose objects have been relocated.
+     * Must be called from the GC thread while all other threads are in a safepoint.
      */
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
-    @export
-    static void markStack(ptr<thread_native> threadNativePtr) {
+    static void update_monitors() {
+        ThinLocks.lock_monitor_table();
+        try {
+            final ptr<reference<?>> objects = ThinLocks.monitor_objects();
+            final int count = ThinLocks.monitor_capacity();
+            for (int i = 0; i < count; i ++) {
+                update_reference(objects.plus(i));
+            }
+        } finally {
+            ThinLocks.unlock_monitor_table();
+        }
+    }
+
+    /**
+     * Record the references on the given thread's stack, so that the GC does not need to walk it.
+     * Called by the thread itself as it enters a safepoint on behalf of the GC, after its context is saved.
+     * If the roots cannot be recorded, the GC walks the stack as usual.
+     *
+     * @param threadNativePtr the current thread's native pointer (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static void capture_roots(ptr<thread_native> threadNativePtr) {
+        deref(threadNativePtr).gc_roots_captured = 0;
         StackWalker sw = new StackWalker(addr_of(deref(threadNativePtr).saved_context));
         lvi_iterator lviIter = auto();
         unw_cursor_t cursor = auto();
         ptr<struct_call_site> call_site_ptr;
         reference<?> ref;
+        int count = 0;
         while (sw.next()) {
             call_site_ptr = sw.getCallSite();
             if (call_site_ptr != null) {
                 lvi_iterator_init(addr_of(lviIter), call_site_ptr);
                 sw.getCursor(addr_of(cursor));
                 while ((ref = lvi_iterator_next(addr_of(lviIter), addr_of(cursor))) != null) {
-                    if (isStackAllocated(ref) || setMark(ref)) {
-                        markBasic0(ref);
+                    if (count == deref(threadNativePtr).gc_root_capacity) {
+                        int newCapacity = Math.max(64, count << 1);
+                        ptr<reference<?>> newRoots = realloc(deref(threadNativePtr).gc_roots, word(newCapacity * sizeof(reference.class).longValue()));
+                        if (newRoots.isNull()) {
+                            // the GC will have to do it
+                            return;
+                        }
+                        deref(threadNativePtr).gc_roots = newRoots;
+                        deref(threadNativePtr).gc_root_capacity = newCapacity;
                     }
+                    deref(threadNativePtr).gc_roots.plus(count ++).storePlain(ref);
                 }
             }
         }
+        deref(threadNativePtr).gc_root_count = count;
+        deref(threadNativePtr).gc_roots_captured = 1;
     }
 
     /**
-     * Mark all the allocates objects within the given region.
+     * Update the thread object reference and the stack references of the given safepointed thread.
+     * If the thread is waiting to exit its safepoint, it is asked to fix up its own stack;
+     * see {@link #await_stack_fixups()}.
      *
-     * @param regionPtr the region pointer (must not be {@code null})
+     * @param threadNativePtr the safepointed thread native pointer (must not be {@code null})
      */
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
-    static void markRegion(ptr<struct_region> regionPtr) {
-        struct_region_iter iter = auto();
-        region_iter_init(addr_of(iter), regionPtr);
-        for (ptr<?> next = region_iter_next(addr_of(iter)); next != null; next = region_iter_next(addr_of(iter))) {
-            mark(ptrToRef(next));
+    static void update_thread(ptr<thread_native> threadNativePtr) {
+        update_reference(addr_of(deref(threadNativePtr).ref));
+        // the fibers of a carrier thread, and the stacks of those of its continuations which are not running
+        for (ptr<fiber_native> fiberNativePtr = deref(threadNativePtr).fibers; fiberNativePtr.isNonNull(); fiberNativePtr = deref(fiberNativePtr).next) {
+            update_reference(addr_of(deref(fiberNativePtr).ref));
+            if (deref(fiberNativePtr).suspended != 0) {
+                update_stack_frames(addr_of(deref(fiberNativePtr).saved_context));
+            }
+        }
+        if (deref(threadNativePtr).gc_roots_captured != 0) {
+            // keep the captured roots valid in case the thread is still here for the next collection
+            final int count = deref(threadNativePtr).gc_root_count;
+            for (int i = 0; i < count; i ++) {
+                update_reference(deref(threadNativePtr).gc_roots.plus(i));
+            }
+        }
+        boolean delegated = false;
+        lockThread_sp(threadNativePtr);
+        if (deref(threadNativePtr).gc_fixup == GC_FIXUP_WAITING) {
+            deref(threadNativePtr).gc_fixup = GC_FIXUP_REQUESTED;
+            notifyThreadInbound(threadNativePtr);
+            delegated = true;
+        }
+        unlockThread(threadNativePtr);
+        if (! delegated) {
+            update_stack(threadNativePtr);
         }
     }
 
+    /**
+     * Wait for all the threads which were asked to fix up their own stacks to finish doing so.
+     * Must be called from the GC thread while all other threads are in a safepoint.
+     */
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
-    @export
-    private static void markBasic0(final reference<?> ref) {
-        if (ref.longValue() < 0x10000) {
-            // invalid ref!
-            abort();
-        }
-        // TODO TEMPORARY
-        final ptr<header_type> headerPtr = addr_of(deref(refToPtr((ObjectAccess)ref.toObject())).header);
-        if ((headerPtr.loadPlain().longValue() & ~3L) != 0) {
-            // invalid object!
-            abort();
-        }
-        if (DEBUG) printf(utf8z("Mark %p\n"), ref);
-        clv_iterator iter = auto();
-        clv_iterator_init(addr_of(iter), ref.toObject());
-        reference<?> cur = clv_iterator_next(addr_of(iter));
-        reference<?> next;
-        while (cur != null) {
-            next = clv_iterator_next(addr_of(iter));
-            if (isStackAllocated(cur) || setMark(cur)) {
-                if (next == null) {
-                    // we have nothing else to mark, so mark `cur` now
-                    clv_iterator_init(addr_of(iter), cur.toObject());
-                    if (DEBUG) printf(utf8z("Mark (chained) %p\n"), cur);
-                    next = clv_iterator_next(addr_of(iter));
-                } else {
-                    markBasic0(cur);
-                }
-            }
-            cur = next;
-        }
-        // special case: arrays
-        // todo: eventually generalize this using a second bitmap, to support future arrays of user primitive types
-        ObjectAccess oa = cast(ref);
-        if (oa.typeId == CompilerIntrinsics.getReferenceArrayTypeId()) {
-            ArrayAccess aa = cast(ref);
-            ObjectArrayAccess oaa = cast(ref);
-            int length = aa.length;
-            for (int i = 0; i < length; i ++) {
-                reference<?> item = oaa.content[i];
-                if (item != null && (isStackAllocated(item) || setMark(item))) {
-                    if (DEBUG) printf(utf8z("Mark array %p element %i of %p\n"), ref, word(i), item);
-                    markBasic0(item);
-                }
+    static void await_stack_fixups() {
+        for (int i = 0; i < stoppedThreadCount; i ++) {
+            final ptr<thread_native> current = stoppedThreads.plus(i).loadPlain();
+            lockThread_sp(current);
+            while (deref(current).gc_fixup == GC_FIXUP_REQUESTED) {
+                awaitThreadOutbound(current);
             }
+            unlockThread(current);
         }
     }
 
@@ -896,6 +1257,103 @@ public final class Gc {
         addr_of(deref(region_ptr).position).storeRelease(zero());
     }
 
+    /**
+     * Format the given unused heap memory as a filler object, so that region iteration can skip over it.
+     * The filler object is a {@code byte} array which spans the whole of the given memory.
+     *
+     * @param start the start of the memory to fill (must not be {@code null})
+     * @param size the size of the memory to fill (must be aligned and at least {@link #fillerMinSize})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static void fill(ptr<?> start, long size) {
+        type_id fillerTypeId = CompilerIntrinsics.getTypeIdFromClass(byte[].class);
+        ClassAccess ca = cast(CompilerIntrinsics.getClassFromTypeIdSimple(fillerTypeId));
+        ObjectAccess oa = cast(ptrToRef(start));
+        oa.typeId = fillerTypeId;
+        ArrayAccess aa = cast(ptrToRef(start));
+        aa.length = (int) (size - ca.instanceSize);
+    }
+
+    /**
+     * Allocate from the given thread's allocation buffer, if possible.
+     * The caller must be the given thread, or the given thread must be in a safepoint.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     * @param size the number of bytes to allocate
+     * @return a pointer to the allocated item, or {@code null} if the buffer does not have enough space
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    @Inline(InlineCondition.ALWAYS)
+    public static <P extends ptr<?>> P tlab_allocate(ptr<thread_native> threadNativePtr, long size) {
+        // round up the size so the next allocation is aligned
+        final int mask = Gc.getConfiguredObjectAlignment() - 1;
+        size = (size + mask) & ~mask;
+        final ptr<c_char> top = deref(threadNativePtr).tlab_top;
+        if (deref(threadNativePtr).tlab_end.minus(top).longValue() < size) {
+            return null;
+        }
+        // no atomics needed: nobody else touches the buffer while we are running
+        deref(threadNativePtr).tlab_top = top.plus(size);
+        return top.cast();
+    }
+
+    /**
+     * Get the number of bytes which are still available in the given thread's allocation buffer.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     * @return the number of available bytes
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static long tlab_free(ptr<thread_native> threadNativePtr) {
+        return deref(threadNativePtr).tlab_end.minus(deref(threadNativePtr).tlab_top).longValue();
+    }
+
+    /**
+     * Retire the given thread's current allocation buffer (if any), and establish a new one of the given size
+     * allocated from the given region.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     * @param region_ptr the region to allocate the buffer from (must not be {@code null})
+     * @param size the total size of the new buffer (must be aligned and greater than {@link #fillerMinSize})
+     * @return {@code true} if a new buffer was established, or {@code false} if the region has insufficient space
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static boolean tlab_refill(ptr<thread_native> threadNativePtr, ptr<struct_region> region_ptr, long size) {
+        tlab_retire(threadNativePtr);
+        final ptr<c_char> start = region_allocate(region_ptr, size);
+        if (start == null) {
+            return false;
+        }
+        deref(threadNativePtr).tlab_top = start;
+        deref(threadNativePtr).tlab_end = start.plus(size - fillerMinSize);
+        return true;
+    }
+
+    /**
+     * Retire the given thread's allocation buffer, if any.
+     * The unused remainder of the buffer is formatted as a filler object.
+     * This must be done for every thread before the containing region is iterated,
+     * and by every thread before it exits.
+     * The caller must be the given thread, or the given thread must be in a safepoint.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static void tlab_retire(ptr<thread_native> threadNativePtr) {
+        final ptr<c_char> top = deref(threadNativePtr).tlab_top;
+        if (top.isNonNull()) {
+            // the reserve beyond the end guarantees that there is always room for a filler
+            fill(top, deref(threadNativePtr).tlab_end.plus(fillerMinSize).minus(top).longValue());
+            deref(threadNativePtr).tlab_top = zero();
+            deref(threadNativePtr).tlab_end = zero();
+        }
+    }
+
     /**
      * An object iterator for a region.
      */
@@ -1032,6 +1490,184 @@ public final class Gc {
         deref(oldPtr, struct_relocated.class).relocation = reference.of(ptrToRef(newPtr));
     }
 
+    /**
+     * Get the current location of an object which may have been relocated by this collection.
+     * Relocated objects are found either by the forwarding pointer left behind by {@link #move_object}, or,
+     * during sliding compaction, by computing the new location using the compaction block table.
+     *
+     * @param ref the object reference (must not be {@code null})
+     * @return the reference to the new location, or {@code ref} if the object has not been relocated
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static reference<?> forward(reference<?> ref) {
+        if (getHeaderMovedBit(ref)) {
+            return deref(refToPtr(ref.toObject()), struct_relocated.class).relocation;
+        }
+        if (compactRegion.isNonNull() && region_contains(compactRegion, refToPtr(ref.toObject()))) {
+            return compact_forward(ref);
+        }
+        return ref;
+    }
+
+    /**
+     * The region which is being compacted in place, or {@code null} if no sliding compaction is in progress.
+     */
+    static ptr<struct_region> compactRegion;
+    /**
+     * The compaction block table: for each block of the compacted region which is covered by a single bitmap word,
+     * the offset that the first live object which starts in the block will be moved to.
+     */
+    static ptr<int64_t> compactBlockDest;
+
+    /**
+     * Get the number of bytes covered by each entry of the compaction block table, as a shift.
+     *
+     * @return the block size shift
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static int compact_block_shift() {
+        return HEAP_BYTE_PER_BITMAP_WORD_SHIFT;
+    }
+
+    /**
+     * Fill in the compaction block table for the given region from the mark bitmap.
+     * The region start must be aligned to a block.
+     *
+     * @param region_ptr the region to compact (must not be {@code null})
+     * @param table the block table, with one entry for each block of the region (must not be {@code null})
+     * @return the total size of the live objects in the region, which is the region position after compaction
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static long compact_prepare(ptr<struct_region> region_ptr, ptr<int64_t> table) {
+        final ptr<c_char> base = deref(region_ptr).start.cast();
+        final ptr<c_char> end = base.plus(deref(region_ptr).position);
+        final int mask = getConfiguredObjectAlignment() - 1;
+        long dest = 0;
+        long block = 0;
+        for (ptr<c_char> ptr = bitmap_next(base, end); ptr != null; ptr = bitmap_next(ptr.plus(mask + 1), end)) {
+            final long objBlock = ptr.minus(base).longValue() >>> HEAP_BYTE_PER_BITMAP_WORD_SHIFT;
+            while (block <= objBlock) {
+                table.plus(block ++).storePlain(word(dest));
+            }
+            dest += instance_size(ptrToRef(ptr)) + mask & ~mask;
+        }
+        return dest;
+    }
+
+    /**
+     * Compute the location that the given live object will be moved to by sliding compaction.
+     * Only valid before the objects are moved, because the sizes of the preceding objects in the block are needed.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static reference<?> compact_forward(reference<?> ref) {
+        final ptr<c_char> base = deref(compactRegion).start.cast();
+        final ptr<c_char> objPtr = refToPtr(ref.toObject()).cast();
+        final long block = objPtr.minus(base).longValue() >>> HEAP_BYTE_PER_BITMAP_WORD_SHIFT;
+        final int mask = getConfiguredObjectAlignment() - 1;
+        long dest = compactBlockDest.plus(block).loadPlain().longValue();
+        // add up the live objects which precede this one within its block
+        for (ptr<c_char> ptr = bitmap_next(base.plus(block << HEAP_BYTE_PER_BITMAP_WORD_SHIFT), objPtr); ptr != null; ptr = bitmap_next(ptr.plus(mask + 1), objPtr)) {
+            dest += instance_size(ptrToRef(ptr)) + mask & ~mask;
+        }
+        return reference.of(ptrToRef(base.plus(dest)));
+    }
+
+    /**
+     * The number of milliseconds for which an unused soft reference is kept for each megabyte of free heap.
+     */
+    private static final long SOFT_REF_MS_PER_MB = 1000;
+
+    /**
+     * Determine whether the referent of a soft reference, which is otherwise unreachable, should be kept.
+     * Referents are kept if their reference was used recently enough, relative to how much of the heap was free
+     * after the previous collection.
+     *
+     * @param ref the soft reference (must not be {@code null})
+     * @return {@code true} to keep the referent, or {@code false} to clear the reference
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static boolean keep_soft_referent(reference<?> ref) {
+        if (clearSoftReferences) {
+            return false;
+        }
+        SoftReferenceAccess sra = cast(ref);
+        return SoftReferenceAccess.clock - sra.timestamp <= (heapFree >>> 20) * SOFT_REF_MS_PER_MB;
+    }
+
+    /**
+     * Clear a reference whose referent is unreachable, and add it to the list of references to hand over to the
+     * reference handler thread after the collection.
+     *
+     * @param ref the reference (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void clear_reference(reference<?> ref) {
+        ReferenceAccess ra = cast(ref);
+        ra.referent = null;
+        ra.discovered = pendingReferences == null ? null : reference.of(pendingReferences);
+        pendingReferences = (Reference<?>) ref.toObject();
+        referencesPending = true;
+    }
+
+    /**
+     * Take all of the references which were cleared by the GC.
+     * No collection can start while this runs, so the GC never sees the list half taken.
+     *
+     * @return the references, linked through their {@code discovered} field, or {@code null} if there are none
+     */
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    public static Reference<?> takePendingReferences() {
+        final Reference<?> list = pendingReferences;
+        pendingReferences = null;
+        referencesPending = false;
+        return list;
+    }
+
+    /**
+     * Determine whether the GC has cleared references which were not yet taken.
+     *
+     * @return {@code true} if there are references to take
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static boolean hasPendingReferences() {
+        return referencesPending;
+    }
+
+    /**
+     * Wait until the GC has cleared references which were not yet taken.
+     * The thread waits in a safepoint, so collections can run meanwhile.
+     */
+    @SafePoint(SafePointBehavior.ENTER)
+    @NoThrow
+    public static void awaitPendingReferences() {
+        pthread_mutex_lock(addr_of(collection_mutex));
+        while (! referencesPending) {
+            pthread_cond_wait(addr_of(collection_cond), addr_of(collection_mutex));
+        }
+        pthread_mutex_unlock(addr_of(collection_mutex));
+    }
+
+    /**
+     * Finish reference processing for this collection.
+     * Soft reference timestamps are measured against a clock which only advances at each collection.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void references_processed() {
+        clearSoftReferences = false;
+        struct_timespec ts = auto();
+        clock_gettime(CLOCK_REALTIME, addr_of(ts));
+        SoftReferenceAccess.clock = ts.tv_sec.longValue() * 1_000L + ts.tv_nsec.longValue() / 1_000_000L;
+    }
+
     /**
      * Update a single reference if the target has been relocated.
      */
@@ -1040,8 +1676,11 @@ public final class Gc {
     @export
     public static void update_reference(ptr<reference<?>> ref_ptr) {
         reference<?> ref = ref_ptr.loadPlain();
-        if (ref != null && getHeaderMovedBit(ref)) {
-            ref_ptr.storePlain(deref(refToPtr(ref.toObject()), struct_relocated.class).relocation);
+        if (ref != null) {
+            reference<?> forwarded = forward(ref);
+            if (forwarded != ref) {
+                ref_ptr.storePlain(forwarded);
+            }
         }
     }
 
@@ -1053,29 +1692,45 @@ public final class Gc {
     @NoThrow
     @export
     public static void update_region(ptr<struct_region> region_ptr) {
-        clv_iterator iter = auto();
         struct_region_iter region_iter = auto();
         region_iter_init(addr_of(region_iter), region_ptr);
         ptr<?> objPtr;
         while ((objPtr = region_iter_next(addr_of(region_iter))) != null) {
-            clv_iterator_init(addr_of(iter), ptrToRef(objPtr));
-            reference<?> ref;
-            while ((ref = clv_iterator_next(addr_of(iter))) != null) {
-                if (getHeaderMovedBit(ref)) {
-                    clv_iterator_set(addr_of(iter), deref(refToPtr(ref.toObject()), struct_relocated.class).relocation);
-                }
+            update_object(objPtr);
+        }
+    }
+
+    /**
+     * Update all the reference-typed fields of the given object with relocated references
+     * if their target object has been relocated.
+     *
+     * @param objPtr the object pointer (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void update_object(ptr<?> objPtr) {
+        clv_iterator iter = auto();
+        clv_iterator_init(addr_of(iter), ptrToRef(objPtr));
+        reference<?> ref;
+        while ((ref = clv_iterator_next(addr_of(iter))) != null) {
+            reference<?> forwarded = forward(ref);
+            if (forwarded != ref) {
+                clv_iterator_set(addr_of(iter), forwarded);
             }
-            // special case: arrays
-            // todo: eventually generalize this using a second bitmap, to support future arrays of user primitive types
-            ObjectAccess oa = cast(ptrToRef(objPtr));
-            if (oa.typeId == CompilerIntrinsics.getReferenceArrayTypeId()) {
-                ArrayAccess aa = cast(ptrToRef(objPtr));
-                ObjectArrayAccess oaa = cast(ptrToRef(objPtr));
-                int length = aa.length;
-                for (int i = 0; i < length; i ++) {
-                    reference<?> item = oaa.content[i];
-                    if (item != null && getHeaderMovedBit(item)) {
-                        oaa.content[i] = deref(refToPtr(item.toObject()), struct_relocated.class).relocation;
+        }
+        // special case: arrays
+        // todo: eventually generalize this using a second bitmap, to support future arrays of user primitive types
+        ObjectAccess oa = cast(ptrToRef(objPtr));
+        if (oa.typeId == CompilerIntrinsics.getReferenceArrayTypeId()) {
+            ArrayAccess aa = cast(ptrToRef(objPtr));
+            ObjectArrayAccess oaa = cast(ptrToRef(objPtr));
+            int length = aa.length;
+            for (int i = 0; i < length; i ++) {
+                reference<?> item = oaa.content[i];
+                if (item != null) {
+                    reference<?> forwarded = forward(item);
+                    if (forwarded != item) {
+                        oaa.content[i] = forwarded;
                     }
                 }
             }
@@ -1089,7 +1744,16 @@ public final class Gc {
     @SafePoint(SafePointBehavior.REQUIRED)
     @NoThrow
     public static void update_stack(ptr<thread_native> threadNativePtr) {
-        StackWalker sw = new StackWalker(addr_of(deref(threadNativePtr).saved_context));
+        update_stack_frames(addr_of(deref(threadNativePtr).saved_context));
+    }
+
+    /**
+     * Update the references on the stack which is walked from the given context.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void update_stack_frames(ptr<unw_context_t> contextPtr) {
+        StackWalker sw = new StackWalker(contextPtr);
         lvi_iterator lvi_iter = auto();
         unw_cursor_t cursor = auto();
         ptr<struct_call_site> call_site_ptr;
@@ -1100,10 +1764,13 @@ public final class Gc {
                 lvi_iterator_init(addr_of(lvi_iter), call_site_ptr);
                 sw.getCursor(addr_of(cursor));
                 while ((ref = lvi_iterator_next(addr_of(lvi_iter), addr_of(cursor))) != null) {
-                    if (getHeaderMovedBit(ref)) {
-                        lvi_iterator_set(addr_of(lvi_iter), addr_of(cursor), deref(refToPtr(ref.toObject()), struct_relocated.class).relocation);
-                    } else if (isStackAllocated(ref)) {
+                    if (isStackAllocated(ref)) {
                         update_stack_allocated(ref);
+                    } else {
+                        reference<?> forwarded = forward(ref);
+                        if (forwarded != ref) {
+                            lvi_iterator_set(addr_of(lvi_iter), addr_of(cursor), forwarded);
+                        }
                     }
                 }
             }
@@ -1124,25 +1791,29 @@ public final class Gc {
             for (int i = 0; i < length; i ++) {
                 reference<?> item = oaa.content[i];
                 if (item != null) {
-                    if (getHeaderMovedBit(item)) {
-                        oaa.content[i] = deref(refToPtr(ref.toObject()), struct_relocated.class).relocation;
-                    } else if (isStackAllocated(item)) {
+                    if (isStackAllocated(item)) {
                         // TODO: cyclic refs are a problem; visited bit
                         update_stack_allocated(item);
+                    } else {
+                        reference<?> forwarded = forward(item);
+                        if (forwarded != item) {
+                            oaa.content[i] = forwarded;
+                        }
                     }
-                    if (DEBUG) printf(utf8z("Mark array %p element %i of %p\n"), ref, word(i), item);
-                    markBasic0(item);
                 }
             }
         }
         // iterate the fields of the object and update them
         clv_iterator_init(addr_of(clv_iter), ref);
         while ((ref = clv_iterator_next(addr_of(clv_iter))) != null) {
-            if (getHeaderMovedBit(ref)) {
-                clv_iterator_set(addr_of(clv_iter), deref(refToPtr(ref.toObject()), struct_relocated.class).relocation);
-            } else if (isStackAllocated(ref)) {
+            if (isStackAllocated(ref)) {
                 // TODO: cyclic refs are a problem; visited bit
                 update_stack_allocated(ref);
+            } else {
+                reference<?> forwarded = forward(ref);
+                if (forwarded != ref) {
+                    clv_iterator_set(addr_of(clv_iter), forwarded);
+                }
             }
         }
     }
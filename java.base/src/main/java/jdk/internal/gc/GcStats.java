@@ -0,0 +1,475 @@
+package jdk.internal.gc;
+
+import static jdk.internal.gc.Gc.*;
+import static jdk.internal.thread.ThreadNative.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdio.*;
+
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * Collection statistics and memory pool usage, for monitoring and logging.
+ * <p>
+ * Counters are only written by the GC thread, once per collection, so recording them costs almost nothing.
+ * Each GC algorithm registers the regions that it allocates from as memory pools when it initializes the heap.
+ * Pool usage is read from the regions without synchronization, so it is only ever approximate while
+ * threads are allocating.
+ */
+public final class GcStats {
+    private GcStats() {}
+
+    private static final int MAX_POOLS = 4;
+    /**
+     * The number of time-to-safepoint histogram buckets. Bucket {@code n} counts the safepoints which took
+     * from 2<sup>n</sup> to 2<sup>n+1</sup> microseconds to reach, except that the first and last buckets are open-ended.
+     */
+    public static final int SAFEPOINT_BUCKETS = 24;
+
+    @internal
+    static final class struct_pool extends struct {
+        ptr<@c_const c_char> name;
+        /**
+         * The region which holds the objects of the pool; GC algorithms which swap spaces keep this pointing
+         * at the space in use.
+         */
+        ptr<struct_region> region;
+        /**
+         * The largest size that the region can grow to.
+         */
+        long max;
+        long peak;
+        long used_after_gc;
+        long committed_after_gc;
+    }
+
+    @SuppressWarnings("unused")
+    private static struct_pool @array_size(MAX_POOLS) [] pools;
+    private static int poolCount;
+
+    private static boolean log;
+    private static long startTime;
+
+    // written only by the GC thread
+    private static volatile long collectionCount;
+    private static volatile long collectionTime;
+    private static volatile long lastPauseTime;
+    private static volatile long maxPauseTime;
+    private static volatile long lastSafePointTime;
+    private static volatile long bytesRelocated;
+    private static volatile long totalBytesRelocated;
+    private static long usedBefore;
+
+    // safepoint statistics, written only by the GC thread
+    @SuppressWarnings("unused")
+    private static int64_t @array_size(SAFEPOINT_BUCKETS) [] safePointHistogram;
+    private static volatile long totalSafePointTime;
+    private static volatile long maxSafePointTime;
+    private static volatile Thread lastStraggler;
+    private static volatile int lastStragglerState;
+    private static volatile long lastStragglerWait;
+    /**
+     * The time after which a thread which has not reached a safepoint is reported, in nanoseconds, or zero for never.
+     */
+    private static long safePointReportTime;
+
+    /**
+     * Register a region as a memory pool. Must be called by the GC algorithm while initializing the heap.
+     *
+     * @param name the pool name (must not be {@code null})
+     * @param region_ptr the region (must not be {@code null})
+     * @param max the largest size that the region can grow to
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static void register_pool(ptr<@c_const c_char> name, ptr<struct_region> region_ptr, long max) {
+        if (poolCount == MAX_POOLS) {
+            return;
+        }
+        final ptr<struct_pool> pool = addr_of(pools[poolCount ++]);
+        deref(pool).name = name;
+        deref(pool).region = region_ptr;
+        deref(pool).max = max;
+    }
+
+    /**
+     * Enable the per-collection log line on {@code stderr}.
+     *
+     * @param enabled {@code true} to log each collection
+     */
+    public static void setLogging(boolean enabled) {
+        log = enabled;
+    }
+
+    /**
+     * Determine whether the per-collection log line is enabled.
+     *
+     * @return {@code true} if each collection is logged
+     */
+    public static boolean isLogging() {
+        return log;
+    }
+
+    /**
+     * Record the start of the process, from which log timestamps are measured.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static void init() {
+        startTime = nanoTime();
+    }
+
+    /**
+     * Record the number of bytes which were moved by the current collection.
+     * Must be called from the GC thread during a collection.
+     *
+     * @param bytes the number of bytes moved
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static void relocated(long bytes) {
+        bytesRelocated += bytes;
+    }
+
+    /**
+     * Record the time taken for all threads to reach a safepoint.
+     * Must be called from the GC thread once all threads have reached their safepoints.
+     *
+     * @param requested the time that the safepoint was requested, from {@link Gc#nanoTime()}
+     * @param paused the time that all threads had reached their safepoints
+     * @param straggler the thread which was waited for the longest, or {@code null} if no thread was waited for
+     * @param stragglerState the state of the straggler when the GC started to wait for it
+     * @param stragglerWait the time that the GC waited for the straggler, in nanoseconds
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void safepoint_reached(long requested, long paused, ptr<thread_native> straggler, int stragglerState, long stragglerWait) {
+        final long time = paused - requested;
+        lastSafePointTime = time;
+        totalSafePointTime += time;
+        if (time > maxSafePointTime) {
+            maxSafePointTime = time;
+        }
+        final int bucket = Math.max(0, Math.min(SAFEPOINT_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(time / 1_000)));
+        safePointHistogram[bucket] = word(safePointHistogram[bucket].longValue() + 1);
+        // the thread reference is updated by the collection which follows
+        lastStraggler = straggler.isNull() ? null : deref(straggler).ref.toObject();
+        lastStragglerState = stragglerState;
+        lastStragglerWait = stragglerWait;
+    }
+
+    /**
+     * Get the time after which a thread which has not reached a safepoint is reported.
+     *
+     * @return the time in nanoseconds, or zero if threads are never reported
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static long safepoint_report_time() {
+        return safePointReportTime;
+    }
+
+    /**
+     * Record the state of the heap before a collection.
+     * Must be called from the GC thread once all threads have reached their safepoints.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void collection_start() {
+        bytesRelocated = 0;
+        long used = 0;
+        for (int i = 0; i < poolCount; i ++) {
+            used += pool_used(i);
+        }
+        usedBefore = used;
+    }
+
+    /**
+     * Record a completed collection.
+     * Must be called from the GC thread once the collection is complete.
+     *
+     * @param requested the time that the collection began, from {@link Gc#nanoTime()}
+     * @param paused the time that all threads had reached their safepoints
+     * @param end the time that the threads were released
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    static void collection_end(long requested, long paused, long end) {
+        final long pause = end - requested;
+        long used = 0;
+        long committed = 0;
+        for (int i = 0; i < poolCount; i ++) {
+            final ptr<struct_pool> pool = addr_of(pools[i]);
+            deref(pool).used_after_gc = deref(deref(pool).region).position;
+            deref(pool).committed_after_gc = deref(deref(pool).region).limit;
+            used += deref(pool).used_after_gc;
+            committed += deref(pool).committed_after_gc;
+        }
+        lastPauseTime = pause;
+        if (pause > maxPauseTime) {
+            maxPauseTime = pause;
+        }
+        totalBytesRelocated += bytesRelocated;
+        collectionTime += pause;
+        final long count = collectionCount;
+        collectionCount = count + 1;
+        if (log) {
+            fprintf(stderr, utf8z("[%.3fs][info][gc] GC(%ld) Pause %s %ldM->%ldM(%ldM) %.3fms (safepoint %.3fms, relocated %ldK)\n"),
+                (end - startTime) / 1e9, count, deref(gc).name, usedBefore >> 20, used >> 20, committed >> 20,
+                pause / 1e6, (paused - requested) / 1e6, bytesRelocated >> 10);
+        }
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static long pool_used(int index) {
+        final ptr<struct_pool> pool = addr_of(pools[index]);
+        final long used = deref(deref(pool).region).position;
+        if (used > deref(pool).peak) {
+            deref(pool).peak = used;
+        }
+        return used;
+    }
+
+    // public API
+
+    /**
+     * Get the name of the garbage collector.
+     *
+     * @return the name of the garbage collector
+     */
+    public static String getCollectorName() {
+        return getGcAlgorithmName();
+    }
+
+    /**
+     * Get the number of collections which have completed.
+     *
+     * @return the number of collections which have completed
+     */
+    public static long getCollectionCount() {
+        return collectionCount;
+    }
+
+    /**
+     * Get the total time that threads were paused for collections, in nanoseconds.
+     *
+     * @return the total time that threads were paused for collections, in nanoseconds
+     */
+    public static long getCollectionTime() {
+        return collectionTime;
+    }
+
+    /**
+     * Get the time that threads were paused for the most recent collection, in nanoseconds.
+     *
+     * @return the time that threads were paused for the most recent collection, in nanoseconds
+     */
+    public static long getLastPauseTime() {
+        return lastPauseTime;
+    }
+
+    /**
+     * Get the longest time that threads were paused for a collection, in nanoseconds.
+     *
+     * @return the longest time that threads were paused for a collection, in nanoseconds
+     */
+    public static long getMaxPauseTime() {
+        return maxPauseTime;
+    }
+
+    /**
+     * Get the time that the most recent collection waited for all threads to reach a safepoint, in nanoseconds.
+     *
+     * @return the time that the most recent collection waited for all threads to reach a safepoint, in nanoseconds
+     */
+    public static long getLastSafePointTime() {
+        return lastSafePointTime;
+    }
+
+    /**
+     * Get the total time that collections waited for all threads to reach a safepoint, in nanoseconds.
+     *
+     * @return the total time that collections waited for all threads to reach a safepoint, in nanoseconds
+     */
+    public static long getTotalSafePointTime() {
+        return totalSafePointTime;
+    }
+
+    /**
+     * Get the longest time that a collection waited for all threads to reach a safepoint, in nanoseconds.
+     *
+     * @return the longest time that a collection waited for all threads to reach a safepoint, in nanoseconds
+     */
+    public static long getMaxSafePointTime() {
+        return maxSafePointTime;
+    }
+
+    /**
+     * Get the time-to-safepoint histogram. See {@link #SAFEPOINT_BUCKETS} for the bucket boundaries.
+     *
+     * @return a copy of the histogram counts (not {@code null})
+     */
+    public static long[] getSafePointHistogram() {
+        final long[] histogram = new long[SAFEPOINT_BUCKETS];
+        for (int i = 0; i < SAFEPOINT_BUCKETS; i ++) {
+            histogram[i] = safePointHistogram[i].longValue();
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the thread which the most recent collection waited for the longest to reach a safepoint.
+     *
+     * @return the thread, or {@code null} if the collection did not wait for any thread
+     */
+    public static Thread getLastSafePointStraggler() {
+        return lastStraggler;
+    }
+
+    /**
+     * Get the state bits of the thread which the most recent collection waited for the longest to reach a safepoint,
+     * as they were when the collection started waiting for it.
+     *
+     * @return the thread state bits (see {@link jdk.internal.thread.ThreadNative})
+     */
+    public static int getLastSafePointStragglerState() {
+        return lastStragglerState;
+    }
+
+    /**
+     * Get the time that the most recent collection waited for the slowest thread to reach a safepoint, in nanoseconds.
+     *
+     * @return the time that the most recent collection waited for the slowest thread, in nanoseconds
+     */
+    public static long getLastSafePointStragglerWait() {
+        return lastStragglerWait;
+    }
+
+    /**
+     * Report each thread which takes longer than the given time to reach a safepoint on {@code stderr}.
+     *
+     * @param millis the time in milliseconds, or zero to never report threads
+     */
+    public static void setSafePointReportTime(long millis) {
+        safePointReportTime = millis * 1_000_000;
+    }
+
+    /**
+     * Get the number of bytes moved by the most recent collection.
+     *
+     * @return the number of bytes moved by the most recent collection
+     */
+    public static long getLastBytesRelocated() {
+        return bytesRelocated;
+    }
+
+    /**
+     * Get the total number of bytes moved by all collections.
+     *
+     * @return the total number of bytes moved by all collections
+     */
+    public static long getTotalBytesRelocated() {
+        return totalBytesRelocated;
+    }
+
+    /**
+     * Get the number of memory pools.
+     *
+     * @param index the pool index
+     * @return the number of memory pools
+     */
+    public static int getPoolCount() {
+        return poolCount;
+    }
+
+    /**
+     * Get the name of a memory pool.
+     *
+     * @param index the pool index
+     * @return the pool name
+     */
+    public static String getPoolName(int index) {
+        return utf8zToJavaString(pools[checkIndex(index)].name.cast());
+    }
+
+    /**
+     * Get the number of bytes in use in the given memory pool.
+     *
+     * @param index the pool index
+     * @return the number of bytes in use in the given memory pool
+     */
+    public static long getPoolUsed(int index) {
+        return pool_used(checkIndex(index));
+    }
+
+    /**
+     * Get the number of bytes available to the given memory pool without growing it.
+     *
+     * @param index the pool index
+     * @return the number of bytes available to the given memory pool without growing it
+     */
+    public static long getPoolCommitted(int index) {
+        return deref(pools[checkIndex(index)].region).limit;
+    }
+
+    /**
+     * Get the largest number of bytes that the given memory pool can grow to.
+     *
+     * @param index the pool index
+     * @return the largest number of bytes that the given memory pool can grow to
+     */
+    public static long getPoolMax(int index) {
+        return pools[checkIndex(index)].max;
+    }
+
+    /**
+     * Get the largest number of bytes that have been observed in use in the given memory pool.
+     *
+     * @param index the pool index
+     * @return the largest number of bytes that have been observed in use in the given memory pool
+     */
+    public static long getPoolPeakUsed(int index) {
+        pool_used(checkIndex(index));
+        return pools[index].peak;
+    }
+
+    /**
+     * Get the number of bytes which were in use in the given memory pool after the most recent collection.
+     *
+     * @param index the pool index
+     * @return the number of bytes which were in use in the given memory pool after the most recent collection
+     */
+    public static long getPoolUsedAfterGc(int index) {
+        return pools[checkIndex(index)].used_after_gc;
+    }
+
+    /**
+     * Get the number of bytes which were available to the given memory pool after the most recent collection.
+     *
+     * @param index the pool index
+     * @return the number of bytes which were available to the given memory pool after the most recent collection
+     */
+    public static long getPoolCommittedAfterGc(int index) {
+        return pools[checkIndex(index)].committed_after_gc;
+    }
+
+    /**
+     * Reset the peak usage of the given memory pool to its current usage.
+     *
+     * @param index the pool index
+     */
+    public static void resetPoolPeakUsed(int index) {
+        pools[checkIndex(index)].peak = 0;
+        pool_used(index);
+    }
+
+    private static int checkIndex(int index) {
+        if (index < 0 || index >= poolCount) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,964 @@
+package jdk.internal.gc;
+
+import static jdk.internal.gc.Gc.*;
+import static jdk.internal.sys.posix.PThread.*;
+import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.thread.ThreadNative.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stackwalk.CallSiteTable.*;
+import static org.qbicc.runtime.stdc.Stdio.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.String.*;
+import static org.qbicc.runtime.unwind.LibUnwind.*;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+
+import jdk.internal.thread.CpuAffinity;
+import jdk.internal.thread.ThreadNative;
+import org.qbicc.runtime.Build;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+import org.qbicc.runtime.main.CompilerIntrinsics;
+import org.qbicc.runtime.stackwalk.StackWalker;
+
+/**
+ * The pool of GC worker threads, and the parallel collection phases which run on it.
+ * <p>
+ * The GC thread is always worker zero, and takes part in every phase alongside the worker threads.
+ * Worker threads enter a safepoint as soon as they start, and never leave it, so they never need to be
+ * paused by the GC thread. Marking is done using a work-stealing deque per worker; relocation and updating
+ * divide the heap into chunks which are claimed by the workers, using the mark bitmap to find the objects
+ * within each chunk.
+ * <p>
+ * Marking never recurses. If a deque fills up, the object being pushed (which is already marked) is dropped
+ * and its address is recorded, and once marking is otherwise complete, the marked objects in the recorded address
+ * range are found using the bitmap and scanned again.
+ * <p>
+ * The referent of a reference object is not marked when the reference object is scanned. Instead, the reference
+ * object is recorded on its worker's discovered list, and once marking is complete, references whose referents were
+ * not otherwise marked are cleared (apart from soft references which are kept by the soft reference policy,
+ * whose referents are marked in one more round).
+ */
+public final class GcWorkers {
+    private GcWorkers() {}
+
+    private static final int TASK_MARK = 1;
+    private static final int TASK_RELOCATE = 2;
+    private static final int TASK_UPDATE = 3;
+    private static final int TASK_RESCAN = 4;
+    private static final int TASK_TRACE = 5;
+    private static final int TASK_CARDS = 6;
+
+    /**
+     * The maximum number of entries in each marking deque (must be a power of two).
+     * The deque memory is reserved up front but only committed as it is used.
+     */
+    private static final long DEQUE_SIZE = 1L << 22;
+    private static final long DEQUE_MASK = DEQUE_SIZE - 1;
+    /**
+     * The number of deque entries whose memory is kept between collections; deeper deques are released afterwards.
+     */
+    private static final long DEQUE_RETAIN = 1L << 12;
+    /**
+     * The number of reference array elements which are scanned at once; the rest of the array is pushed back
+     * onto the deque so that it can be stolen.
+     */
+    private static final int ARRAY_CHUNK = 1024;
+    /**
+     * The size of a relocation or update chunk.
+     */
+    private static final long CHUNK_SIZE = 1L << 20;
+    /**
+     * The size of a promotion-local allocation buffer (PLAB) used by a worker during relocation.
+     */
+    private static final long PLAB_SIZE = 64L << 10;
+    /**
+     * The most free space in a PLAB which may be discarded in order to refill it. If more is free, then an object which
+     * does not fit is allocated exactly from the destination instead, which bounds the space that PLABs waste.
+     */
+    private static final long PLAB_WASTE_LIMIT = PLAB_SIZE >>> 6;
+    /**
+     * The number of reference-typed static variables in a single root task.
+     */
+    private static final int STATICS_PER_TASK = 1024;
+
+    /**
+     * An entry on a marking deque.
+     */
+    @internal
+    static final class struct_mark_entry extends struct {
+        /**
+         * The marked object whose referents must be marked.
+         */
+        reference<?> ref;
+        /**
+         * The index of the first reference array element to scan, or zero to scan the whole object.
+         */
+        long start;
+    }
+
+    /**
+     * A work-stealing deque of gray objects.
+     * The owning worker pushes and pops at the bottom; other workers steal from the top.
+     */
+    @internal
+    static final class struct_mark_deque extends struct {
+        ptr<struct_mark_entry> items;
+        long top;
+        long bottom;
+        /**
+         * The deepest that the deque has been since it was last released.
+         */
+        long peak;
+    }
+
+    /**
+     * The number of workers to use, including the GC thread, or zero to choose automatically.
+     */
+    static int configuredCount;
+    /**
+     * The marking deques, one per worker.
+     */
+    private static ptr<struct_mark_deque> deques;
+    private static int dequeCount;
+
+    /**
+     * A list of reference objects found during marking.
+     * A reference object may appear more than once if it is scanned again after an overflow.
+     */
+    @internal
+    static final class struct_ref_list extends struct {
+        ptr<reference<?>> items;
+        long count;
+        long capacity;
+    }
+
+    /**
+     * The discovered reference lists, one per worker.
+     */
+    private static ptr<struct_ref_list> discovered;
+
+    @SuppressWarnings("unused")
+    private static final pthread_mutex_t work_mutex = zero();
+    @SuppressWarnings("unused")
+    private static final pthread_cond_t work_cond = zero();
+    @SuppressWarnings("unused")
+    private static final pthread_cond_t done_cond = zero();
+
+    // protected by work_mutex
+    private static long generation;
+    private static int task;
+    private static int registered;
+    private static int active;
+
+    // shared state of the current phase
+    private static int participants;
+    private static volatile int claimed;
+    private static volatile int idle;
+    private static ptr<struct_region> from_ptr;
+    private static ptr<struct_region> to_ptr;
+    private static boolean relocateExact;
+
+    // the range of heap addresses containing marked objects which could not be pushed for lack of space
+    private static volatile boolean overflowed;
+    private static ptr<c_char> overflowLow;
+    private static ptr<c_char> overflowHigh;
+
+    /**
+     * Start the worker threads.
+     * Must be called after the GC thread is started.
+     */
+    static void start() {
+        int count = configuredCount;
+        if (count <= 0) {
+            count = defaultCount();
+        }
+        deques = calloc(word(count), sizeof(struct_mark_deque.class));
+        discovered = calloc(word(count), sizeof(struct_ref_list.class));
+        if (deques.isNull() || discovered.isNull()) {
+            fprintf(stderr, utf8z("Failed to allocate GC worker state\n"));
+            abort();
+        }
+        for (int i = 0; i < count; i ++) {
+            ptr<struct_mark_entry> items = mmap(zero(), word(DEQUE_SIZE * sizeof(struct_mark_entry.class).longValue()), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_PRIVATE.intValue() | MAP_ANON.intValue() | MAP_NORESERVE.intValue()), word(- 1), zero());
+            if (items == MAP_FAILED) {
+                fprintf(stderr, utf8z("Failed to allocate GC worker state\n"));
+                abort();
+            }
+            deref(deques.plus(i)).items = items;
+        }
+        dequeCount = count;
+        if (Build.Target.isPosix()) {
+            pthread_mutex_init(addr_of(work_mutex), zero());
+            pthread_cond_init(addr_of(work_cond), zero());
+            pthread_cond_init(addr_of(done_cond), zero());
+            for (int i = 1; i < count; i ++) {
+                Thread worker = new Worker("GC worker " + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    private static int defaultCount() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        // one per CPU for small machines, then proportionally fewer
+        return cpus <= 8 ? cpus : 8 + (cpus - 8) * 5 / 8;
+    }
+
+    static final class Worker extends Thread {
+        Worker(String name) {
+            super(ThreadNative.getSystemThreadGroup(), name);
+        }
+
+        @SafePoint(SafePointBehavior.NONE) // virtual method
+        public void run() {
+            run0();
+        }
+
+        @SafePoint
+        private static void run0() {
+            // we are in a safepoint from here on out
+            CpuAffinity.applyGcCpus();
+            pthread_mutex_lock(addr_of(work_mutex));
+            final int index = ++registered;
+            if (index >= dequeCount) {
+                // more workers than were configured (should be impossible)
+                abort();
+            }
+            long seen = generation;
+            for (;;) {
+                while (generation == seen) {
+                    pthread_cond_wait(addr_of(work_cond), addr_of(work_mutex));
+                }
+                seen = generation;
+                final int current = task;
+                pthread_mutex_unlock(addr_of(work_mutex));
+                run_task(current, index);
+                pthread_mutex_lock(addr_of(work_mutex));
+                if (--active == 0) {
+                    pthread_cond_broadcast(addr_of(done_cond));
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the given task on every registered worker and on the calling (GC) thread, returning when all are done.
+     *
+     * @param newTask the task to run
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void run_parallel(int newTask) {
+        claimed = 0;
+        idle = 0;
+        if (Build.Target.isPosix()) {
+            pthread_mutex_lock(addr_of(work_mutex));
+            // workers which register after this point will not take part in this phase
+            participants = registered + 1;
+            if (registered > 0) {
+                task = newTask;
+                active = registered;
+                generation ++;
+                pthread_cond_broadcast(addr_of(work_cond));
+            }
+            pthread_mutex_unlock(addr_of(work_mutex));
+        } else {
+            participants = 1;
+        }
+        run_task(newTask, 0);
+        if (Build.Target.isPosix()) {
+            pthread_mutex_lock(addr_of(work_mutex));
+            while (active != 0) {
+                pthread_cond_wait(addr_of(done_cond), addr_of(work_mutex));
+            }
+            pthread_mutex_unlock(addr_of(work_mutex));
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void run_task(int task, int index) {
+        switch (task) {
+            case TASK_MARK -> task_mark(index);
+            case TASK_RELOCATE -> task_relocate();
+            case TASK_UPDATE -> task_update();
+            case TASK_RESCAN -> task_rescan(index);
+            case TASK_TRACE -> help(index);
+            case TASK_CARDS -> GenerationalGc.task_check_cards();
+            default -> abort();
+        }
+    }
+
+    /**
+     * Mark all reachable objects in parallel, and clear the references whose referents are not reachable.
+     * Must be called from the GC thread while all other threads are in a safepoint.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void parallel_mark() {
+        overflowed = false;
+        overflowLow = word(Long.MAX_VALUE);
+        overflowHigh = zero();
+        run_parallel(TASK_MARK);
+        rescan_overflow();
+        if (retain_soft_referents()) {
+            // the kept referents are pushed onto the GC thread's deque, to be shared out
+            run_parallel(TASK_TRACE);
+            rescan_overflow();
+        }
+        clear_references();
+        sweep_monitors();
+        release_deques();
+    }
+
+    /**
+     * Scan the marked objects which could not be pushed, until there are none left.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void rescan_overflow() {
+        while (overflowed) {
+            // some marked objects were never scanned; find them again using the bitmap
+            overflowed = false;
+            rescanLow = overflowLow;
+            rescanHigh = overflowHigh;
+            overflowLow = word(Long.MAX_VALUE);
+            overflowHigh = zero();
+            run_parallel(TASK_RESCAN);
+        }
+    }
+
+    /**
+     * Move all marked objects in the given region to the destination region in parallel.
+     * The mark bit is set on each moved copy.
+     * Must be called from the GC thread while all other threads are in a safepoint.
+     *
+     * @param source the region to move objects from (must not be {@code null})
+     * @param destination the region to move objects to (must not be {@code null}, must have free space for at least
+     *      the whole of the source region)
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void parallel_relocate(ptr<struct_region> source, ptr<struct_region> destination) {
+        from_ptr = source;
+        to_ptr = destination;
+        // each retired PLAB wastes at most the waste limit and a filler, and each worker's last PLAB may be unused
+        final long live = deref(source).position;
+        final long worstWaste = (live >>> 4) + Math.max(1, dequeCount) * PLAB_SIZE;
+        // without room for that, allocate every object exactly, which wastes nothing and so always fits
+        relocateExact = deref(destination).limit - deref(destination).position - live < worstWaste;
+        run_parallel(TASK_RELOCATE);
+    }
+
+    /**
+     * Update the references held by the roots, and by the marked objects in the given region, in parallel.
+     * Must be called from the GC thread while all other threads are in a safepoint, after {@link #parallel_mark()}.
+     *
+     * @param region_ptr the region containing the relocated objects (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void parallel_update(ptr<struct_region> region_ptr) {
+        to_ptr = region_ptr;
+        run_parallel(TASK_UPDATE);
+        update_monitors();
+        await_stack_fixups();
+    }
+
+    /**
+     * Check the dirty cards of a card area of the generational GC for references to young objects in parallel.
+     * Must be called from the GC thread while all other threads are in a safepoint.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void parallel_check_cards() {
+        run_parallel(TASK_CARDS);
+    }
+
+    /**
+     * Get the number of root tasks: one per thread, one per permanent region, and one per block of static variables.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static int root_task_count() {
+        return stoppedThreadCount + 3 + (getReferenceTypedVariablesCount() + STATICS_PER_TASK - 1) / STATICS_PER_TASK;
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static int claim() {
+        return addr_of(claimed).getAndAdd(word(1)).intValue();
+    }
+
+    // marking
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void task_mark(int index) {
+        final int rootTasks = root_task_count();
+        int n;
+        while ((n = claim()) < rootTasks) {
+            mark_root_task(index, n);
+            drain(index);
+        }
+        help(index);
+    }
+
+    /**
+     * Process the calling worker's deque and steal from the others until all the deques are empty.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void help(int index) {
+        struct_mark_entry entry = auto();
+        for (;;) {
+            drain(index);
+            if (steal(index, addr_of(entry))) {
+                scan(index, entry.ref, entry.start);
+                continue;
+            }
+            addr_of(idle).getAndAdd(word(1));
+            for (;;) {
+                if (addr_of(idle).loadVolatile().intValue() == participants) {
+                    // nobody has any work, so nobody can make any more
+                    return;
+                }
+                if (has_work()) {
+                    addr_of(idle).getAndAdd(word(- 1));
+                    break;
+                }
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void mark_root_task(int index, int n) {
+        if (n < stoppedThreadCount) {
+            ptr<thread_native> threadNativePtr = stoppedThreads.plus(n).loadPlain();
+            if (deref(threadNativePtr).gc_roots_captured != 0) {
+                // the thread already found its own roots
+                final int count = deref(threadNativePtr).gc_root_count;
+                for (int i = 0; i < count; i ++) {
+                    reference<?> ref = deref(threadNativePtr).gc_roots.plus(i).loadPlain();
+                    if (isStackAllocated(ref) || setMark(ref)) {
+                        push(index, ref, 0);
+                    }
+                }
+            } else {
+                mark_stack(index, addr_of(deref(threadNativePtr).saved_context));
+            }
+            reference<?> ref = deref(threadNativePtr).ref;
+            if (setMark(ref)) {
+                push(index, ref, 0);
+            }
+            mark_fibers(index, threadNativePtr);
+            return;
+        }
+        n -= stoppedThreadCount;
+        switch (n) {
+            case 0 -> mark_region(index, addr_of(classes));
+            // todo: these will eventually be on the regular heap
+            case 1 -> mark_region(index, addr_of(strings));
+            case 2 -> mark_region(index, addr_of(initial));
+            default -> {
+                final int start = (n - 3) * STATICS_PER_TASK;
+                final int end = Math.min(start + STATICS_PER_TASK, getReferenceTypedVariablesCount());
+                for (int i = start; i < end; i ++) {
+                    reference<?> ref = getReferenceTypedVariablesStart().plus(i).loadPlain();
+                    if (ref != null && setMark(ref)) {
+                        push(index, ref, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the fibers of a carrier thread, and the stacks of those of its continuations which are not running.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void mark_fibers(int index, ptr<thread_native> threadNativePtr) {
+        for (ptr<fiber_native> fiberNativePtr = deref(threadNativePtr).fibers; fiberNativePtr.isNonNull(); fiberNativePtr = deref(fiberNativePtr).next) {
+            if (deref(fiberNativePtr).suspended != 0) {
+                mark_stack(index, addr_of(deref(fiberNativePtr).saved_context));
+            }
+            reference<?> ref = deref(fiberNativePtr).ref;
+            if (ref != null && setMark(ref)) {
+                push(index, ref, 0);
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void mark_stack(int index, ptr<unw_context_t> contextPtr) {
+        StackWalker sw = new StackWalker(contextPtr);
+        lvi_iterator lviIter = auto();
+        unw_cursor_t cursor = auto();
+        ptr<struct_call_site> call_site_ptr;
+        reference<?> ref;
+        while (sw.next()) {
+            call_site_ptr = sw.getCallSite();
+            if (call_site_ptr != null) {
+                lvi_iterator_init(addr_of(lviIter), call_site_ptr);
+                sw.getCursor(addr_of(cursor));
+                while ((ref = lvi_iterator_next(addr_of(lviIter), addr_of(cursor))) != null) {
+                    if (isStackAllocated(ref) || setMark(ref)) {
+                        push(index, ref, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void mark_region(int index, ptr<struct_region> regionPtr) {
+        struct_region_iter iter = auto();
+        region_iter_init(addr_of(iter), regionPtr);
+        for (ptr<?> next = region_iter_next(addr_of(iter)); next != null; next = region_iter_next(addr_of(iter))) {
+            reference<?> ref = reference.of(ptrToRef(next));
+            if (setMark(ref)) {
+                push(index, ref, 0);
+            }
+        }
+    }
+
+    /**
+     * Mark the objects directly reachable from the given (already marked) object, and push them for scanning.
+     * Reference arrays are scanned {@link #ARRAY_CHUNK} elements at a time.
+     *
+     * @param index the worker index
+     * @param ref the object to scan (must not be {@code null})
+     * @param start the index of the first array element to scan, or zero to scan the whole object
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void scan(int index, reference<?> ref, long start) {
+        if (start == 0) {
+            final ptr<reference<?>> referentPtr = discover(index, ref);
+            clv_iterator iter = auto();
+            clv_iterator_init(addr_of(iter), ref.toObject());
+            reference<?> cur;
+            while ((cur = clv_iterator_next(addr_of(iter))) != null) {
+                if (iter.current == referentPtr) {
+                    // marked later, if at all
+                    continue;
+                }
+                if (isStackAllocated(cur) || setMark(cur)) {
+                    push(index, cur, 0);
+                }
+            }
+        }
+        // special case: arrays
+        // todo: eventually generalize this using a second bitmap, to support future arrays of user primitive types
+        ObjectAccess oa = cast(ref);
+        if (oa.typeId == CompilerIntrinsics.getReferenceArrayTypeId()) {
+            ArrayAccess aa = cast(ref);
+            ObjectArrayAccess oaa = cast(ref);
+            int length = aa.length;
+            int end = (int) Math.min(length, start + ARRAY_CHUNK);
+            if (end < length) {
+                // push the remainder first, so that another worker may pick it up
+                push(index, ref, end);
+            }
+            for (int i = (int) start; i < end; i ++) {
+                reference<?> item = oaa.content[i];
+                if (item != null && (isStackAllocated(item) || setMark(item))) {
+                    push(index, item, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the given object on the worker's discovered list if it is a reference object whose referent is not
+     * yet marked.
+     *
+     * @return the address of the referent field, which must not be marked through, or {@code null} if the object
+     *      should be scanned normally
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static ptr<reference<?>> discover(int index, reference<?> ref) {
+        if (! (ref.toObject() instanceof Reference<?>) || isStackAllocated(ref)) {
+            return zero();
+        }
+        final ptr<reference<?>> referentPtr = addr_of(deref(refToPtr((ReferenceAccess) ref.toObject())).referent);
+        final reference<?> referent = referentPtr.loadPlain();
+        if (referent == null || isMarked(referent)) {
+            // nothing to clear
+            return referentPtr;
+        }
+        if (isStackAllocated(referent)) {
+            // it can never be cleared
+            return zero();
+        }
+        final ptr<struct_ref_list> list = discovered.plus(index);
+        final long count = deref(list).count;
+        if (count == deref(list).capacity) {
+            final long newCapacity = Math.max(64, count << 1);
+            ptr<reference<?>> newItems = realloc(deref(list).items, word(newCapacity * sizeof(reference.class).longValue()));
+            if (newItems.isNull()) {
+                // no room to remember it, so treat it as a strong reference instead
+                return zero();
+            }
+            deref(list).items = newItems;
+            deref(list).capacity = newCapacity;
+        }
+        deref(list).items.plus(count).storePlain(ref);
+        deref(list).count = count + 1;
+        return referentPtr;
+    }
+
+    /**
+     * Mark the referents of the discovered soft references which the soft reference policy keeps.
+     * Must be called from the GC thread once marking is complete.
+     *
+     * @return {@code true} if any referents were newly marked and must be scanned, or {@code false} if none were
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static boolean retain_soft_referents() {
+        boolean marked = false;
+        for (int i = 0; i < dequeCount; i ++) {
+            final ptr<struct_ref_list> list = discovered.plus(i);
+            for (long j = 0; j < deref(list).count; j ++) {
+                final reference<?> ref = deref(list).items.plus(j).loadPlain();
+                if (ref.toObject() instanceof SoftReference<?>) {
+                    final ReferenceAccess ra = cast(ref);
+                    final reference<?> referent = ra.referent;
+                    if (referent != null && ! isMarked(referent) && keep_soft_referent(ref) && setMark(referent)) {
+                        push(0, referent, 0);
+                        marked = true;
+                    }
+                }
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Clear the discovered references whose referents were not marked, and empty the discovered lists.
+     * Must be called from the GC thread once marking is complete.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void clear_references() {
+        for (int i = 0; i < dequeCount; i ++) {
+            final ptr<struct_ref_list> list = discovered.plus(i);
+            for (long j = 0; j < deref(list).count; j ++) {
+                final reference<?> ref = deref(list).items.plus(j).loadPlain();
+                final ReferenceAccess ra = cast(ref);
+                final reference<?> referent = ra.referent;
+                // (a reference which was discovered more than once is already cleared)
+                if (referent != null && ! isMarked(referent)) {
+                    clear_reference(ref);
+                }
+            }
+            deref(list).count = 0;
+        }
+        references_processed();
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void drain(int index) {
+        struct_mark_entry entry = auto();
+        while (pop(index, addr_of(entry))) {
+            scan(index, entry.ref, entry.start);
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void push(int index, reference<?> ref, long start) {
+        final ptr<struct_mark_deque> deque = deques.plus(index);
+        final long bottom = addr_of(deref(deque).bottom).loadPlain().longValue();
+        final long top = addr_of(deref(deque).top).loadAcquire().longValue();
+        if (bottom - top >= DEQUE_SIZE) {
+            if (isStackAllocated(ref)) {
+                // not in the bitmap, so it cannot be found again later; it should be small, so do it now
+                scan(index, ref, start);
+            } else {
+                // it is already marked; remember to look for it later
+                record_overflow(refToPtr(ref.toObject()).cast());
+            }
+            return;
+        }
+        final ptr<struct_mark_entry> item = deref(deque).items.plus(bottom & DEQUE_MASK);
+        deref(item).ref = ref;
+        deref(item).start = start;
+        addr_of(deref(deque).bottom).storeRelease(word(bottom + 1));
+        if (bottom >= deref(deque).peak) {
+            deref(deque).peak = bottom + 1;
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static boolean pop(int index, ptr<struct_mark_entry> entry) {
+        final ptr<struct_mark_deque> deque = deques.plus(index);
+        final long bottom = addr_of(deref(deque).bottom).loadPlain().longValue() - 1;
+        addr_of(deref(deque).bottom).storeVolatile(word(bottom));
+        final long top = addr_of(deref(deque).top).loadVolatile().longValue();
+        if (top > bottom) {
+            // empty
+            addr_of(deref(deque).bottom).storeVolatile(word(bottom + 1));
+            return false;
+        }
+        entry.storePlain(deref(deque).items.plus(bottom & DEQUE_MASK).loadPlain());
+        if (top == bottom) {
+            // last item; race against thieves for it
+            final boolean won = addr_of(deref(deque).top).compareAndSwap(word(top), word(top + 1)).longValue() == top;
+            addr_of(deref(deque).bottom).storeVolatile(word(bottom + 1));
+            return won;
+        }
+        return true;
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static boolean steal(int index, ptr<struct_mark_entry> entry) {
+        for (int i = 1; i < participants; i ++) {
+            final ptr<struct_mark_deque> deque = deques.plus((index + i) % participants);
+            final long top = addr_of(deref(deque).top).loadVolatile().longValue();
+            final long bottom = addr_of(deref(deque).bottom).loadVolatile().longValue();
+            if (top < bottom) {
+                entry.storePlain(deref(deque).items.plus(top & DEQUE_MASK).loadPlain());
+                if (addr_of(deref(deque).top).compareAndSwap(word(top), word(top + 1)).longValue() == top) {
+                    return true;
+                }
+                // lost the race; the others will keep trying as long as there is work
+            }
+        }
+        return false;
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static boolean has_work() {
+        for (int i = 0; i < participants; i ++) {
+            final ptr<struct_mark_deque> deque = deques.plus(i);
+            if (addr_of(deref(deque).top).loadVolatile().longValue() < addr_of(deref(deque).bottom).loadVolatile().longValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Empty all the deques, and give back the memory used by any which grew deep during marking.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void release_deques() {
+        final long entrySize = sizeof(struct_mark_entry.class).longValue();
+        final long pageMask = getPageSize() - 1;
+        for (int i = 0; i < dequeCount; i ++) {
+            final ptr<struct_mark_deque> deque = deques.plus(i);
+            deref(deque).top = 0;
+            deref(deque).bottom = 0;
+            if (deref(deque).peak > DEQUE_RETAIN) {
+                final ptr<c_char> start = deref(deque).items.plus(DEQUE_RETAIN).cast();
+                final long size = (Math.min(deref(deque).peak, DEQUE_SIZE) - DEQUE_RETAIN) * entrySize + pageMask & ~pageMask;
+                final ptr<?> res = mmap(start, word(size), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_FIXED.intValue() | MAP_PRIVATE.intValue() | MAP_ANON.intValue() | MAP_NORESERVE.intValue()), word(- 1), zero());
+                if (res == MAP_FAILED) {
+                    // should generally be impossible, because we have the memory already
+                    abort();
+                }
+            }
+            deref(deque).peak = 0;
+        }
+    }
+
+    // overflow
+
+    private static ptr<c_char> rescanLow;
+    private static ptr<c_char> rescanHigh;
+
+    /**
+     * Record that the given marked object was not pushed, so that it is found again and scanned later.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void record_overflow(ptr<c_char> objPtr) {
+        ptr<ptr<c_char>> lowPtr = addr_of(overflowLow);
+        ptr<c_char> low = lowPtr.loadVolatile();
+        while (objPtr.longValue() < low.longValue()) {
+            ptr<c_char> witness = lowPtr.compareAndSwap(low, objPtr);
+            if (witness == low) {
+                break;
+            }
+            low = witness;
+        }
+        ptr<ptr<c_char>> highPtr = addr_of(overflowHigh);
+        ptr<c_char> high = highPtr.loadVolatile();
+        while (objPtr.longValue() > high.longValue()) {
+            ptr<c_char> witness = highPtr.compareAndSwap(high, objPtr);
+            if (witness == high) {
+                break;
+            }
+            high = witness;
+        }
+        overflowed = true;
+    }
+
+    /**
+     * Scan every marked object in the overflow range, chunk by chunk, within each of the areas covered by the bitmap.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void task_rescan(int index) {
+        int n;
+        while ((n = claim()) >= 0) {
+            ptr<c_char> start = zero();
+            ptr<c_char> end = zero();
+            int area;
+            for (area = 0; area < 4; area ++) {
+                ptr<c_char> areaStart = switch (area) {
+                    case 0 -> classes.start.cast();
+                    case 1 -> strings.start.cast();
+                    case 2 -> initial.start.cast();
+                    default -> heapStart;
+                };
+                ptr<c_char> areaEnd = switch (area) {
+                    case 0 -> classes.start.plus(classes.position).cast();
+                    case 1 -> strings.start.plus(strings.position).cast();
+                    case 2 -> initial.start.plus(initial.position).cast();
+                    default -> heapEnd;
+                };
+                // clip to the overflow range
+                if (areaStart.longValue() < rescanLow.longValue()) {
+                    areaStart = rescanLow;
+                }
+                if (areaEnd.longValue() > rescanHigh.longValue()) {
+                    areaEnd = rescanHigh.plus(1);
+                }
+                if (areaStart.longValue() >= areaEnd.longValue()) {
+                    continue;
+                }
+                final long chunks = (areaEnd.minus(areaStart).longValue() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+                if (n < chunks) {
+                    start = areaStart.plus(n * CHUNK_SIZE);
+                    end = areaEnd.minus(start).longValue() < CHUNK_SIZE ? areaEnd : start.plus(CHUNK_SIZE);
+                    break;
+                }
+                n -= (int) chunks;
+            }
+            if (area == 4) {
+                // no more chunks
+                break;
+            }
+            for (ptr<c_char> ptr = bitmap_next(start, end); ptr != null; ptr = bitmap_next(ptr.plus(getConfiguredObjectAlignment()), end)) {
+                scan(index, reference.of(ptrToRef(ptr)), 0);
+                drain(index);
+            }
+        }
+        help(index);
+    }
+
+    // relocation
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void task_relocate() {
+        final ptr<thread_native> self = currentThreadNativePtr();
+        final ptr<c_char> base = deref(from_ptr).start.cast();
+        final long end = deref(from_ptr).position;
+        final int chunks = (int) ((end + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int n;
+        while ((n = claim()) < chunks) {
+            final ptr<c_char> chunkEnd = base.plus(Math.min(end, (n + 1) * CHUNK_SIZE));
+            for (ptr<c_char> ptr = bitmap_next(base.plus(n * CHUNK_SIZE), chunkEnd); ptr != null; ptr = bitmap_next(ptr.plus(getConfiguredObjectAlignment()), chunkEnd)) {
+                move_object_local(self, reference.of(ptrToRef(ptr)));
+            }
+        }
+        // make the destination iterable again
+        tlab_retire(self);
+    }
+
+    /**
+     * Move an object into the calling worker's PLAB and set the relocation pointer on the original object.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void move_object_local(ptr<thread_native> self, reference<?> original) {
+        final ptr<Object> oldPtr = refToPtr(original.toObject());
+        final long size = instance_size(original.toObject());
+        ptr<?> newPtr = relocateExact ? null : tlab_allocate(self, size);
+        if (newPtr == null) {
+            if (! relocateExact && size <= PLAB_SIZE >>> 2 && tlab_free(self) <= PLAB_WASTE_LIMIT && tlab_refill(self, to_ptr, PLAB_SIZE)) {
+                newPtr = tlab_allocate(self, size);
+            } else {
+                // too big for a PLAB, too much of the PLAB would be wasted, or the destination is nearly full
+                newPtr = region_allocate(to_ptr, size);
+            }
+            if (newPtr == null) {
+                // parallel_relocate leaves room for the worst-case waste, so this means the heap is corrupt
+                fprintf(stderr, utf8z("Failed to allocate during GC move\n"));
+                abort();
+            }
+        }
+        memcpy(newPtr, oldPtr, word(size));
+        setHeaderMovedBit(original);
+        final reference<?> moved = reference.of(ptrToRef(newPtr));
+        deref(oldPtr, struct_relocated.class).relocation = moved;
+        // so that the update phase can find it
+        setMark(moved);
+    }
+
+    // updating
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void task_update() {
+        final int rootTasks = root_task_count();
+        final ptr<c_char> base = deref(to_ptr).start.cast();
+        final long end = deref(to_ptr).position;
+        final int chunks = (int) ((end + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int n;
+        while ((n = claim()) < rootTasks + chunks) {
+            if (n < rootTasks) {
+                update_root_task(n);
+            } else {
+                n -= rootTasks;
+                final ptr<c_char> chunkEnd = base.plus(Math.min(end, (n + 1) * CHUNK_SIZE));
+                for (ptr<c_char> ptr = bitmap_next(base.plus(n * CHUNK_SIZE), chunkEnd); ptr != null; ptr = bitmap_next(ptr.plus(getConfiguredObjectAlignment()), chunkEnd)) {
+                    update_object(ptr);
+                }
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void update_root_task(int n) {
+        if (n < stoppedThreadCount) {
+            update_thread(stoppedThreads.plus(n).loadPlain());
+            return;
+        }
+        n -= stoppedThreadCount;
+        switch (n) {
+            case 0 -> update_region(addr_of(classes));
+            case 1 -> {
+                // the strings region only contains interior pointers!
+            }
+            case 2 -> update_region(addr_of(initial));
+            default -> {
+                final int start = (n - 3) * STATICS_PER_TASK;
+                final int end = Math.min(start + STATICS_PER_TASK, getReferenceTypedVariablesCount());
+                for (int i = start; i < end; i ++) {
+                    update_reference(getReferenceTypedVariablesStart().plus(i));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1061 @@
+package jdk.internal.gc;
+
+import static jdk.internal.gc.Gc.*;
+import static jdk.internal.sys.linux.SysPrctl.prctl_set_vma_anon_name;
+import static jdk.internal.sys.linux.Userfaultfd.*;
+import static jdk.internal.sys.posix.Fcntl.*;
+import static jdk.internal.sys.posix.SysIoctl.*;
+import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.sys.posix.Unistd.*;
+import static jdk.internal.thread.ThreadNative.*;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stackwalk.CallSiteTable.*;
+import static org.qbicc.runtime.stdc.Errno.errno;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdio.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.String.*;
+import static org.qbicc.runtime.unwind.LibUnwind.*;
+
+import jdk.internal.thread.ThinLocks;
+import org.qbicc.runtime.Build;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+import org.qbicc.runtime.main.CompilerIntrinsics;
+import org.qbicc.runtime.stackwalk.StackWalker;
+
+/**
+ * A generational garbage collector with a copying nursery.
+ * <p>
+ * New objects are allocated in the nursery ("eden"). A minor collection copies every live nursery object into the
+ * old generation, so its cost is proportional to the surviving young objects (plus the dirty part of the old
+ * generation) rather than to the total heap size. The old generation is itself a pair of semispaces, which are
+ * collected together with the nursery by a full collection whenever the old generation can no longer be
+ * guaranteed to absorb a minor collection.
+ * <p>
+ * A full collection copies everything which survives into the other old space, so the old generation and the
+ * nursery together are never allowed to grow beyond the capacity of one old space. After each collection, the free
+ * part of that capacity is divided between them (see {@link #set_limits()}); when the old generation fills up, the
+ * nursery shrinks, and collections become more frequent until allocation fails with an {@link OutOfMemoryError}.
+ * <p>
+ * References into the nursery from the old generation, and from the build-time regions (the classes and the initial
+ * heap, which the application may write at any time), are found using page-granular card tables (see
+ * {@link struct_card_area}). These are not card tables which are marked by a store barrier: the compiler does not
+ * emit one, so the cards are dirtied by the kernel's page tracking instead, which is the first of these which works:
+ * <ul>
+ *     <li>asynchronous userfaultfd write protection (Linux 6.7 and later), which is reset for the pages of the card
+ *     areas which are in use, and nothing else;</li>
+ *     <li>soft-dirty tracking, whose bits can only be cleared for the whole process at once, so each collection walks
+ *     the page tables of the whole process (not only the heap);</li>
+ *     <li>none, in which case every card in use is treated as dirty, so a minor collection reads the whole old
+ *     generation and the whole of the build-time regions.</li>
+ * </ul>
+ * Either way, a card is dirtied by any write to its page, not only by reference stores, which a barrier would avoid.
+ * To keep the cost of reading dirty cards down, the GC workers first check the dirty cards in parallel for
+ * references into the nursery, and only the cards which have any are then scanned by the (serial) evacuation.
+ */
+public final class GenerationalGc {
+
+    @export(withScope = ExportScope.LOCAL)
+    private static void collect() {
+        // release all allocation buffers so that the nursery can be iterated
+        tlab_retire_all();
+
+        // a minor collection promotes everything that survives, so it must fit in the old generation;
+        // references are only processed by a full collection
+        if (old.limit - old.position >= eden.position && ! clearSoftReferences) {
+            minor();
+        } else {
+            full();
+        }
+        set_limits();
+        heapFree = old.limit - old.position + eden.limit - eden.position;
+
+        // start tracking writes into the card areas from scratch
+        reset_tracking();
+    }
+
+    static {
+        gc_thread.setDaemon(true);
+    }
+
+    /**
+     * The nursery, where new objects are allocated.
+     */
+    private static struct_region eden;
+    /**
+     * The old generation, where surviving objects are promoted to.
+     */
+    private static struct_region old;
+    /**
+     * The space where the old generation will move to during a full GC.
+     */
+    private static struct_region oldTo;
+
+    /**
+     * The largest size of the nursery.
+     */
+    private static long edenSize;
+    /**
+     * The size of each old space, which bounds the combined size of the old generation and the nursery.
+     */
+    private static long oldCapacity;
+
+    /**
+     * The largest thread-local allocation buffer size.
+     */
+    private static final long TLAB_MAX_SIZE = 256L << 10;
+
+    /**
+     * The size of each thread-local allocation buffer, computed from the nursery size.
+     */
+    private static long tlabSize;
+    /**
+     * The amount of free space in an allocation buffer which may be discarded in order to refill it.
+     */
+    private static long tlabWasteLimit;
+
+    /**
+     * The card shift; cards are the size of a page.
+     */
+    private static int cardShift;
+    /**
+     * The card start table of the old generation.
+     */
+    private static ptr<int64_t> cardStarts;
+    /**
+     * The card flags table of the old generation.
+     */
+    private static ptr<uint8_t> cardFlags;
+    /**
+     * The cards of the old generation, whose base is updated for each minor collection.
+     */
+    private static struct_card_area oldCards;
+    /**
+     * The cards of the build-time regions, which are set up by the first minor collection.
+     */
+    private static struct_card_area classesCards;
+    private static struct_card_area initialCards;
+    /**
+     * The card has not been written to since the previous collection.
+     */
+    private static final int CARD_CLEAN = 0;
+    /**
+     * The card has been written to since the previous collection.
+     */
+    private static final int CARD_DIRTY = 1;
+    /**
+     * An object which overlaps the card refers to a young object.
+     */
+    private static final int CARD_YOUNG = 2;
+    /**
+     * The number of cards which a GC worker claims at once.
+     */
+    private static final int CARDS_PER_TASK = 64;
+    // shared state of the parallel card check
+    private static ptr<struct_card_area> cardArea;
+    private static long cardCount;
+    private static long cardLimit;
+    private static volatile long cardsClaimed;
+
+    /**
+     * The number of {@code /proc/self/pagemap} entries which are read at once.
+     */
+    private static final int PAGEMAP_BATCH = 512;
+    /**
+     * The soft-dirty bit of a {@code /proc/self/pagemap} entry.
+     */
+    private static final long PM_SOFT_DIRTY = 1L << 55;
+    /**
+     * The bit of a {@code /proc/self/pagemap} entry which is set while the page is write-protected by userfaultfd.
+     */
+    private static final long PM_UFFD_WP = 1L << 57;
+
+    /**
+     * Writes are not tracked, so every card is dirty.
+     */
+    private static final int TRACK_NONE = 0;
+    /**
+     * Writes are tracked by soft-dirty bits.
+     */
+    private static final int TRACK_SOFT_DIRTY = 1;
+    /**
+     * Writes are tracked by asynchronous userfaultfd write protection.
+     */
+    private static final int TRACK_WRITE_PROTECT = 2;
+
+    /**
+     * The kind of page tracking which is used, which is one of the {@code TRACK_*} values.
+     */
+    private static int tracking;
+    private static int pagemapFd;
+    private static int clearRefsFd;
+    private static int uffd;
+    private static ptr<uint64_t> pagemapBuf;
+
+    /**
+     * An area whose pages are tracked as cards: the old generation, or one of the build-time regions.
+     */
+    @internal
+    public static final class struct_card_area extends struct {
+        /**
+         * The page-aligned address of the first card.
+         */
+        public ptr<c_char> base;
+        /**
+         * The card start table, or {@code null} if the area has no cards and is scanned in full.
+         * For each card, this holds one plus the offset (from {@link #base}) of an object from which the card can be
+         * walked, or zero if no object overlaps the card.
+         */
+        public ptr<int64_t> starts;
+        /**
+         * The card flags table, which holds one of the {@code CARD_*} values for each card.
+         * Only valid during a minor collection.
+         */
+        public ptr<uint8_t> flags;
+        /**
+         * Nonzero if the writes to the pages of the area have been tracked since the previous collection, or zero if
+         * every card must be treated as dirty.
+         */
+        public int tracked;
+    }
+
+    public static final struct_gc gc = zero();
+
+    static {
+        // set up the structure during build time
+        gc.name = utf8z("gen");
+        gc.initialize_heap = addr_of(function.of(GenerationalGc::initialize_heap));
+        gc.collect = addr_of(function.of(GenerationalGc::collect));
+        gc.allocate = addr_of(function.of(GenerationalGc::allocate));
+    }
+
+    @export
+    private static void initialize_heap(ptr<struct_gc_attr> attr_ptr) {
+        long heapSize = Gc.getMaxHeapSize();
+        long pageSize = Gc.getPageSize();
+        long pageMask = pageSize - 1;
+        // everything which is live must fit in one old space, so the other one is only used during a full collection;
+        // the nursery is at most a quarter of the heap, and takes its space out of the old space capacity
+        final long oldSize = Math.max(pageSize << 1, heapSize >>> 1 & ~pageMask);
+        final long edenSize = oldSize >>> 1 & ~pageMask;
+        // the nursery and both old spaces are reserved in full, but no more than the maximum heap size is ever used
+        heapSize = edenSize + (oldSize << 1);
+        ptr<?> start;
+        if (! Build.Target.isWasm()) {
+            start = mmap(zero(), word(heapSize), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero()).cast();
+        } else {
+            // TODO: WASI load region
+            start = zero();
+        }
+        if (start == MAP_FAILED) {
+            fprintf(stderr, utf8z("Failed to map initial heap (%s)\n"), strerror(word(errno)));
+            exit(word(1));
+            return; // not reached
+        }
+        deref(attr_ptr).lowest_heap_addr = start.cast();
+        deref(attr_ptr).highest_heap_addr = start.plus(heapSize).cast();
+        if (! region_init(addr_of(eden), start, edenSize)
+            || ! region_init(addr_of(old), start.plus(edenSize), oldSize)
+            || ! region_init(addr_of(oldTo), start.plus(edenSize + oldSize), oldSize)) {
+            fprintf(stderr, utf8z("Heap is too small for generational GC\n"));
+            exit(word(1));
+            return; // not reached
+        }
+        GenerationalGc.edenSize = edenSize;
+        oldCapacity = oldSize;
+        set_limits();
+        GcStats.register_pool(utf8z("Eden"), addr_of(eden), edenSize);
+        GcStats.register_pool(utf8z("Old"), addr_of(old), oldSize);
+        cardShift = Long.numberOfTrailingZeros(pageSize);
+        cardStarts = calloc(word(oldSize >>> cardShift), sizeof(int64_t.class));
+        cardFlags = calloc(word(oldSize >>> cardShift), sizeof(uint8_t.class));
+        if (cardStarts.isNull() || cardFlags.isNull()) {
+            fprintf(stderr, utf8z("Failed to allocate GC card table\n"));
+            exit(word(1));
+            return; // not reached
+        }
+        oldCards.starts = cardStarts;
+        oldCards.flags = cardFlags;
+        tlabSize = Math.max(pageSize, Math.min(TLAB_MAX_SIZE, edenSize >>> 6 & ~pageMask));
+        tlabWasteLimit = tlabSize >>> 6;
+        if (Build.Target.isLinux()) {
+            // label the heap area (ignore errors, best-effort only)
+            prctl_set_vma_anon_name(start, word(edenSize), utf8z("GC nursery"));
+            prctl_set_vma_anon_name(start.plus(edenSize), word(oldSize << 1), utf8z("GC old generation"));
+            initTracking(start.plus(edenSize), oldSize << 1);
+        }
+        // other regions are initialized by common code
+    }
+
+    /**
+     * Divide the free part of the old space capacity between the nursery and the old generation.
+     * The nursery gets at most half of it, so that a minor collection can always promote the whole nursery; and
+     * together they never exceed the capacity of the other old space, so that a full collection can always copy
+     * everything which survives.
+     * Must be called while no other thread is allocating.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void set_limits() {
+        final long pageMask = Gc.getPageSize() - 1;
+        final long edenLimit = Math.min(edenSize, (oldCapacity - old.position) >>> 1 & ~pageMask);
+        eden.limit = edenLimit;
+        old.limit = oldCapacity - edenLimit;
+        oldTo.limit = oldCapacity;
+    }
+
+    /**
+     * Set up page tracking, if the kernel supports it.
+     *
+     * @param oldStart the start of both old spaces
+     * @param oldSize the size of both old spaces
+     */
+    private static void initTracking(ptr<?> oldStart, long oldSize) {
+        int pfd = open(utf8z("/proc/self/pagemap"), O_RDONLY).intValue();
+        if (pfd == -1) {
+            return;
+        }
+        pagemapBuf = malloc(word(PAGEMAP_BATCH * sizeof(uint64_t.class).longValue()));
+        if (pagemapBuf.isNull()) {
+            close(word(pfd));
+            return;
+        }
+        pagemapFd = pfd;
+        // write protection can be reset for the heap alone, so it is preferred
+        final int ufd = userfaultfd(word(O_CLOEXEC.intValue() | O_NONBLOCK.intValue() | UFFD_USER_MODE_ONLY.intValue())).intValue();
+        if (ufd != -1) {
+            struct_uffdio_api api = auto();
+            api.api = UFFD_API;
+            api.features = word(UFFD_FEATURE_WP_ASYNC.longValue() | UFFD_FEATURE_WP_UNPOPULATED.longValue());
+            api.ioctls = zero();
+            uffd = ufd;
+            if (ioctl(word(ufd), UFFDIO_API, addr_of(api)).intValue() == 0 && register_write_protect(oldStart, oldSize)) {
+                tracking = TRACK_WRITE_PROTECT;
+                return;
+            }
+            close(word(ufd));
+        }
+        int cfd = open(utf8z("/proc/self/clear_refs"), O_WRONLY).intValue();
+        if (cfd != -1) {
+            clearRefsFd = cfd;
+            // the soft-dirty bit reads as zero if the kernel does not track it, so verify it with a scratch page
+            ptr<c_char> probe = mmap(zero(), word(Gc.getPageSize()), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_PRIVATE.longValue() | MAP_ANON.longValue()), word(-1), zero());
+            if (probe != MAP_FAILED) {
+                tracking = TRACK_SOFT_DIRTY;
+                reset_tracking();
+                probe.storeVolatile(word(1));
+                if (! readPagemap(probe, 1) || (pagemapBuf.loadPlain().longValue() & PM_SOFT_DIRTY) == 0) {
+                    tracking = TRACK_NONE;
+                }
+                munmap(probe, word(Gc.getPageSize()));
+            }
+        }
+        if (tracking == TRACK_NONE) {
+            free(pagemapBuf);
+            pagemapBuf = zero();
+            if (cfd != -1) {
+                close(word(cfd));
+            }
+            close(word(pfd));
+        }
+    }
+
+    /**
+     * Register a range for asynchronous write protection.
+     *
+     * @param start the start of the range, which must be page-aligned
+     * @param size the size of the range, which must be a multiple of the page size
+     * @return {@code true} if the range was registered, or {@code false} if it was not
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean register_write_protect(ptr<?> start, long size) {
+        struct_uffdio_register reg = auto();
+        reg.range.start = word(start.longValue());
+        reg.range.len = word(size);
+        reg.mode = UFFDIO_REGISTER_MODE_WP;
+        reg.ioctls = zero();
+        return ioctl(word(uffd), UFFDIO_REGISTER, addr_of(reg)).intValue() == 0;
+    }
+
+    /**
+     * Write-protect a registered range, so that the writes to its pages from now on are tracked.
+     *
+     * @param start the start of the range, which must be page-aligned
+     * @param size the size of the range, which must be a multiple of the page size
+     * @return {@code true} if the range was protected, or {@code false} if it was not
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean write_protect(ptr<?> start, long size) {
+        if (size == 0) {
+            return true;
+        }
+        struct_uffdio_writeprotect wp = auto();
+        wp.range.start = word(start.longValue());
+        wp.range.len = word(size);
+        wp.mode = UFFDIO_WRITEPROTECT_MODE_WP;
+        return ioctl(word(uffd), UFFDIO_WRITEPROTECT, addr_of(wp)).intValue() == 0;
+    }
+
+    /**
+     * Start tracking the writes to the pages of the card areas from scratch.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void reset_tracking() {
+        if (tracking == TRACK_SOFT_DIRTY) {
+            final boolean ok = write_sp(word(clearRefsFd), utf8z("4"), word(1)).longValue() == 1;
+            if (! ok) {
+                // we can no longer trust the bits
+                tracking = TRACK_NONE;
+            }
+            oldCards.tracked = ok ? 1 : 0;
+            classesCards.tracked = ok ? 1 : 0;
+            initialCards.tracked = ok ? 1 : 0;
+        } else if (tracking == TRACK_WRITE_PROTECT) {
+            // only the pages which are in use are protected; the pages above them are treated as dirty once they are
+            oldCards.tracked = write_protect(old.start, card_area_size(old.position)) ? 1 : 0;
+            reset_region_tracking(addr_of(classesCards), addr_of(classes));
+            reset_region_tracking(addr_of(initialCards), addr_of(initial));
+        }
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void reset_region_tracking(ptr<struct_card_area> area, ptr<struct_region> region_ptr) {
+        if (deref(area).starts.isNonNull()) {
+            final long end = region_end(area, region_ptr);
+            deref(area).tracked = write_protect(deref(area).base, card_area_size(end)) ? 1 : 0;
+        }
+    }
+
+    /**
+     * Get the size of the cards which cover the given offset.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static long card_area_size(long end) {
+        final long pageMask = Gc.getPageSize() - 1;
+        return end + pageMask & ~pageMask;
+    }
+
+    /**
+     * Get the offset of the end of the objects of a build-time region from the base of its cards.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static long region_end(ptr<struct_card_area> area, ptr<struct_region> region_ptr) {
+        final ptr<c_char> start = deref(region_ptr).start.cast();
+        return start.minus(deref(area).base).longValue() + deref(region_ptr).position;
+    }
+
+    /**
+     * Set up the cards of a build-time region. Its objects never move, so its card start table is only built once.
+     * If the cards cannot be set up, the region is scanned in full by each minor collection instead.
+     *
+     * @param area the card area of the region (must not be {@code null})
+     * @param region_ptr the region (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void init_region_cards(ptr<struct_card_area> area, ptr<struct_region> region_ptr) {
+        final ptr<c_char> start = deref(region_ptr).start.cast();
+        final long first = start.longValue() & Gc.getPageSize() - 1;
+        final ptr<c_char> base = start.plus(- first);
+        final long end = first + deref(region_ptr).position;
+        final long cards = card_area_size(end) >>> cardShift;
+        if (tracking == TRACK_NONE || cards == 0) {
+            return;
+        }
+        if (tracking == TRACK_WRITE_PROTECT && ! register_write_protect(base, cards << cardShift)) {
+            return;
+        }
+        final ptr<int64_t> starts = calloc(word(cards), sizeof(int64_t.class));
+        final ptr<uint8_t> flags = calloc(word(cards), sizeof(uint8_t.class));
+        if (starts.isNull() || flags.isNull()) {
+            free(starts);
+            free(flags);
+            return;
+        }
+        final int mask = Gc.getConfiguredObjectAlignment() - 1;
+        long pos = first;
+        while (pos < end) {
+            final long objEnd = pos + (instance_size(ptrToRef(base.plus(pos))) + mask & ~mask);
+            long card = pos >>> cardShift;
+            if (starts.plus(card).loadPlain().longValue() == 0) {
+                starts.plus(card).storePlain(word(pos + 1));
+            }
+            // every subsequent card begins inside of this object
+            for (card ++; card << cardShift < objEnd; card ++) {
+                starts.plus(card).storePlain(word(pos + 1));
+            }
+            pos = objEnd;
+        }
+        deref(area).base = base;
+        deref(area).starts = starts;
+        deref(area).flags = flags;
+        // soft-dirty bits have been tracked for the whole process all along, but write protection starts now
+        deref(area).tracked = tracking == TRACK_SOFT_DIRTY ? 1 : 0;
+    }
+
+    /**
+     * Read the pagemap entries of consecutive pages into {@link #pagemapBuf}.
+     *
+     * @param addr the address of the first page
+     * @param cnt the number of pages (at most {@link #PAGEMAP_BATCH})
+     * @return {@code true} if all the entries were read, or {@code false} if they were not
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean readPagemap(ptr<?> addr, long cnt) {
+        final long entrySize = sizeof(uint64_t.class).longValue();
+        final long offset = (addr.longValue() >>> cardShift) * entrySize;
+        return pread(word(pagemapFd), pagemapBuf, word(cnt * entrySize), word(offset)).longValue() == cnt * entrySize;
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void minor() {
+        // everything above this point in the old generation is promoted during this collection
+        final long oldLimit = old.position;
+
+        // the permanent regions may be written by the application at any time
+        if (classesCards.base.isNull()) {
+            init_region_cards(addr_of(classesCards), addr_of(classes));
+            init_region_cards(addr_of(initialCards), addr_of(initial));
+        }
+        scan_region_cards(addr_of(classesCards), addr_of(classes));
+        // scan_region(addr_of(strings)); // this region only contains interior pointers!
+        scan_region_cards(addr_of(initialCards), addr_of(initial));
+
+        for (int i = 0; i < getReferenceTypedVariablesCount(); i ++) {
+            evacuate_reference(getReferenceTypedVariablesStart().plus(i));
+        }
+
+        // threads and thread stacks
+        for (int t = 0; t < stoppedThreadCount; t ++) {
+            final ptr<thread_native> current = stoppedThreads.plus(t).loadPlain();
+            evacuate_reference(addr_of(deref(current).ref));
+            evacuate_stack(addr_of(deref(current).saved_context));
+            // the fibers of a carrier thread, and the stacks of those of its continuations which are not running
+            for (ptr<fiber_native> fiberNativePtr = deref(current).fibers; fiberNativePtr.isNonNull(); fiberNativePtr = deref(fiberNativePtr).next) {
+                evacuate_reference(addr_of(deref(fiberNativePtr).ref));
+                if (deref(fiberNativePtr).suspended != 0) {
+                    evacuate_stack(addr_of(deref(fiberNativePtr).saved_context));
+                }
+            }
+            if (deref(current).gc_roots_captured != 0) {
+                // keep the captured roots valid for the next full collection
+                final int count = deref(current).gc_root_count;
+                for (int i = 0; i < count; i ++) {
+                    evacuate_reference(deref(current).gc_roots.plus(i));
+                }
+            }
+        }
+
+        // the remembered set
+        oldCards.base = old.start.cast();
+        find_young_cards(addr_of(oldCards), oldLimit);
+        scan_young_cards(addr_of(oldCards), oldLimit);
+
+        // now transitively evacuate everything reachable from the promoted objects
+        struct_region_iter iter = auto();
+        region_iter_init(addr_of(iter), addr_of(old));
+        iter.position = oldLimit;
+        ptr<?> next;
+        while ((next = region_iter_next(addr_of(iter))) != null) {
+            scan_object(ptrToRef(next));
+        }
+        GcStats.relocated(old.position - oldLimit);
+
+        // the inflated monitors of young objects live or die with them
+        ThinLocks.lock_monitor_table();
+        try {
+            final ptr<reference<?>> monitorObjects = ThinLocks.monitor_objects();
+            final int monitorCount = ThinLocks.monitor_capacity();
+            for (int i = 0; i < monitorCount; i ++) {
+                final reference<?> ref = monitorObjects.plus(i).loadPlain();
+                if (ref != null && isYoung(ref)) {
+                    if (getHeaderMovedBit(ref)) {
+                        monitorObjects.plus(i).storePlain(forward(ref));
+                    } else {
+                        ThinLocks.free_monitor(i);
+                    }
+                }
+            }
+        } finally {
+            ThinLocks.unlock_monitor_table();
+        }
+
+        // the nursery is now empty
+        release(addr_of(eden));
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void full() {
+        mark_roots();
+
+        // the card start table is rebuilt as objects are moved
+        memset(cardStarts, word(0), word((oldCapacity >>> cardShift) * sizeof(int64_t.class).longValue()));
+
+        // move live objects into the other old space, oldest first
+        relocate_region(addr_of(old));
+        relocate_region(addr_of(eden));
+        GcStats.relocated(oldTo.position);
+
+        // update all objects in the new old space
+        update_region(addr_of(oldTo));
+
+        // update everything outside the heap
+        update_roots();
+
+        // swap the old spaces and clear the nursery
+        @SuppressWarnings("UnusedAssignment")
+        struct_region tmp = auto();
+        tmp = oldTo;
+        oldTo = old;
+        old = tmp;
+        release(addr_of(oldTo));
+        release(addr_of(eden));
+        if (tracking == TRACK_WRITE_PROTECT && ! register_write_protect(oldTo.start, oldCapacity)) {
+            // the old space was mapped again, which dropped its registration
+            tracking = TRACK_NONE;
+        }
+
+        clearBitmap();
+    }
+
+    /**
+     * Reset a region and give its memory back to the OS.
+     *
+     * @param region_ptr the region pointer (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void release(ptr<struct_region> region_ptr) {
+        region_reset(region_ptr);
+        if (! Build.Target.isWasm()) {
+            final ptr<?> start = deref(region_ptr).start;
+            final ptr<?> res = mmap(start, word(deref(region_ptr).limit), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_FIXED.longValue() | MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), zero(), zero());
+            if (res == MAP_FAILED || res != start) {
+                abort();
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void relocate_region(ptr<struct_region> region_ptr) {
+        struct_region_iter iter = auto();
+        region_iter_init(addr_of(iter), region_ptr);
+        ptr<?> ptr;
+        while ((ptr = region_iter_next(addr_of(iter))) != null) {
+            final reference<?> ref = reference.of(ptrToRef(ptr));
+            if (isMarked(ref)) {
+                promote(ref, addr_of(oldTo));
+            }
+        }
+    }
+
+    /**
+     * Determine whether the given reference refers to an object in the nursery.
+     *
+     * @param ref the reference (must not be {@code null})
+     * @return {@code true} if the object is young, or {@code false} if it is not
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean isYoung(reference<?> ref) {
+        return region_contains(addr_of(eden), refToPtr(ref.toObject()));
+    }
+
+    /**
+     * Allocate memory in the given old space, keeping the card start table up to date.
+     *
+     * @param region_ptr the old space region (must not be {@code null})
+     * @param size the number of bytes to allocate
+     * @return a pointer to the allocated item, or {@code null} if allocation did not succeed
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static <P extends ptr<?>> P old_allocate(ptr<struct_region> region_ptr, long size) {
+        final ptr<c_char> ptr = region_allocate(region_ptr, size);
+        if (ptr != null) {
+            final int mask = Gc.getConfiguredObjectAlignment() - 1;
+            final long offset = ptr.minus(deref(region_ptr).start.cast()).longValue();
+            final long end = offset + ((size + mask) & ~mask);
+            long card = offset >>> cardShift;
+            // the first card may be shared with other objects (possibly allocated concurrently); keep the lowest start
+            final ptr<int64_t> firstPtr = cardStarts.plus(card);
+            long oldVal = firstPtr.loadSingleAcquire().longValue();
+            long witness;
+            while (oldVal == 0 || oldVal > offset + 1) {
+                witness = firstPtr.compareAndSwap(word(oldVal), word(offset + 1)).longValue();
+                if (witness == oldVal) {
+                    break;
+                }
+                oldVal = witness;
+            }
+            // every subsequent card begins inside of this object
+            for (card ++; card << cardShift < end; card ++) {
+                cardStarts.plus(card).storePlain(word(offset + 1));
+            }
+        }
+        return ptr.cast();
+    }
+
+    /**
+     * Copy an object into the given old space and set the relocation pointer on the original object.
+     *
+     * @param original the original object reference (must not be {@code null})
+     * @param destination the old space to move the object to (must not be {@code null}, must have sufficient space)
+     * @return the relocated reference
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static reference<?> promote(reference<?> original, ptr<struct_region> destination) {
+        final ptr<Object> oldPtr = refToPtr(original.toObject());
+        final long size = instance_size(original.toObject());
+        final ptr<?> newPtr = old_allocate(destination, size);
+        if (newPtr == null) {
+            // the heap limits guarantee that this cannot happen; if it does, there is nothing else we can do
+            fprintf(stderr, utf8z("Failed to allocate during GC promotion\n"));
+            abort();
+        }
+        memcpy(newPtr, oldPtr, word(size));
+        setHeaderMovedBit(original);
+        final reference<?> relocated = reference.of(ptrToRef(newPtr));
+        deref(oldPtr, struct_relocated.class).relocation = relocated;
+        return relocated;
+    }
+
+    /**
+     * Promote a young object if it has not already been promoted.
+     *
+     * @param ref the young object reference (must not be {@code null})
+     * @return the promoted reference
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static reference<?> evacuate(reference<?> ref) {
+        if (getHeaderMovedBit(ref)) {
+            return deref(refToPtr(ref.toObject()), struct_relocated.class).relocation;
+        }
+        return promote(ref, addr_of(old));
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void evacuate_reference(ptr<reference<?>> ref_ptr) {
+        reference<?> ref = ref_ptr.loadPlain();
+        if (ref != null && isYoung(ref)) {
+            ref_ptr.storePlain(evacuate(ref));
+        }
+    }
+
+    /**
+     * Evacuate all the young objects which are directly referenced by the given object.
+     *
+     * @param obj the object to scan (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void scan_object(Object obj) {
+        clv_iterator iter = auto();
+        clv_iterator_init(addr_of(iter), obj);
+        reference<?> ref;
+        while ((ref = clv_iterator_next(addr_of(iter))) != null) {
+            if (isYoung(ref)) {
+                clv_iterator_set(addr_of(iter), evacuate(ref));
+            }
+        }
+        // special case: arrays
+        // todo: eventually generalize this using a second bitmap, to support future arrays of user primitive types
+        ObjectAccess oa = cast(obj);
+        if (oa.typeId == CompilerIntrinsics.getReferenceArrayTypeId()) {
+            ArrayAccess aa = cast(obj);
+            ObjectArrayAccess oaa = cast(obj);
+            int length = aa.length;
+            for (int i = 0; i < length; i ++) {
+                reference<?> item = oaa.content[i];
+                if (item != null && isYoung(item)) {
+                    oaa.content[i] = evacuate(item);
+                }
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void scan_region(ptr<struct_region> region_ptr) {
+        struct_region_iter iter = auto();
+        region_iter_init(addr_of(iter), region_ptr);
+        ptr<?> next;
+        while ((next = region_iter_next(addr_of(iter))) != null) {
+            scan_object(ptrToRef(next));
+        }
+    }
+
+    /**
+     * Scan the cards of a build-time region which refer to young objects, or the whole region if it has no cards.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void scan_region_cards(ptr<struct_card_area> area, ptr<struct_region> region_ptr) {
+        if (deref(area).starts.isNull()) {
+            scan_region(region_ptr);
+        } else {
+            final long end = region_end(area, region_ptr);
+            find_young_cards(area, end);
+            scan_young_cards(area, end);
+        }
+    }
+
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void evacuate_stack(ptr<unw_context_t> contextPtr) {
+        StackWalker sw = new StackWalker(contextPtr);
+        lvi_iterator lvi_iter = auto();
+        unw_cursor_t cursor = auto();
+        ptr<struct_call_site> call_site_ptr;
+        reference<?> ref;
+        while (sw.next()) {
+            call_site_ptr = sw.getCallSite();
+            if (call_site_ptr != null) {
+                lvi_iterator_init(addr_of(lvi_iter), call_site_ptr);
+                sw.getCursor(addr_of(cursor));
+                while ((ref = lvi_iterator_next(addr_of(lvi_iter), addr_of(cursor))) != null) {
+                    if (isYoung(ref)) {
+                        lvi_iterator_set(addr_of(lvi_iter), addr_of(cursor), evacuate(ref));
+                    } else if (isStackAllocated(ref)) {
+                        // TODO: stack-allocated objects which are only reachable from other stack-allocated objects
+                        scan_object(ref.toObject());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the dirty cards of a card area whose objects refer to young objects. The dirty cards are found first, and
+     * then checked by the GC workers in parallel.
+     *
+     * @param area the card area (must not be {@code null})
+     * @param limit the offset of the end of the part of the area to check
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void find_young_cards(ptr<struct_card_area> area, long limit) {
+        final long cards = card_area_size(limit) >>> cardShift;
+        final ptr<uint8_t> flags = deref(area).flags;
+        final boolean tracked = tracking != TRACK_NONE && deref(area).tracked != 0;
+        long card = 0;
+        while (card < cards) {
+            final long cnt = Math.min(PAGEMAP_BATCH, cards - card);
+            final boolean haveBits = tracked && readPagemap(deref(area).base.plus(card << cardShift), cnt);
+            for (long i = 0; i < cnt; i ++) {
+                final boolean dirty = ! haveBits || is_dirty(pagemapBuf.plus(i).loadPlain().longValue());
+                flags.plus(card + i).storePlain(word(dirty ? CARD_DIRTY : CARD_CLEAN));
+            }
+            card += cnt;
+        }
+        cardArea = area;
+        cardCount = cards;
+        cardLimit = limit;
+        cardsClaimed = 0;
+        GcWorkers.parallel_check_cards();
+    }
+
+    /**
+     * Determine whether the page of a {@code /proc/self/pagemap} entry has been written since tracking was reset.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean is_dirty(long entry) {
+        return tracking == TRACK_SOFT_DIRTY ? (entry & PM_SOFT_DIRTY) != 0 : (entry & PM_UFFD_WP) == 0;
+    }
+
+    /**
+     * Check dirty cards for references to young objects until there are none left to claim.
+     * Called by every GC worker during a minor collection. Nothing is modified apart from the card flags.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    static void task_check_cards() {
+        final long cards = cardCount;
+        long first;
+        while ((first = addr_of(cardsClaimed).getAndAdd(word(CARDS_PER_TASK)).longValue()) < cards) {
+            final long end = Math.min(cards, first + CARDS_PER_TASK);
+            for (long card = first; card < end; card ++) {
+                final ptr<uint8_t> flagPtr = deref(cardArea).flags.plus(card);
+                if (flagPtr.loadPlain().intValue() == CARD_DIRTY) {
+                    flagPtr.storePlain(word(card_refers_young(card) ? CARD_YOUNG : CARD_CLEAN));
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine whether any object which overlaps a card of the card area which is being checked refers to a young
+     * object.
+     * Only the elements of a reference array which lie within the card are checked, so that a large array is
+     * not read again for each of its cards.
+     *
+     * @param card the card index
+     * @return {@code true} if the card refers to a young object, or {@code false} if it does not
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static boolean card_refers_young(long card) {
+        final ptr<c_char> base = deref(cardArea).base;
+        final long start = deref(cardArea).starts.plus(card).loadPlain().longValue() - 1;
+        if (start < 0) {
+            // no objects
+            return false;
+        }
+        final long cardStart = card << cardShift;
+        final long cardEnd = Math.min((card + 1) << cardShift, cardLimit);
+        final int mask = Gc.getConfiguredObjectAlignment() - 1;
+        final long refSize = sizeof(reference.class).longValue();
+        long pos = start;
+        while (pos < cardEnd) {
+            final Object obj = ptrToRef(base.plus(pos));
+            clv_iterator iter = auto();
+            clv_iterator_init(addr_of(iter), obj);
+            reference<?> ref;
+            while ((ref = clv_iterator_next(addr_of(iter))) != null) {
+                if (isYoung(ref)) {
+                    return true;
+                }
+            }
+            ObjectAccess oa = cast(obj);
+            if (oa.typeId == CompilerIntrinsics.getReferenceArrayTypeId()) {
+                ArrayAccess aa = cast(obj);
+                ObjectArrayAccess oaa = cast(obj);
+                // the offset of the first element from the base of the area
+                final ptr<c_char> contentPtr = addr_of(oaa.content[0]).cast();
+                final long content = contentPtr.minus(base).longValue();
+                final long from = Math.max(0, (cardStart - content) / refSize);
+                final long to = Math.min(aa.length, (cardEnd - content + refSize - 1) / refSize);
+                for (long i = from; i < to; i ++) {
+                    reference<?> item = oaa.content[(int) i];
+                    if (item != null && isYoung(item)) {
+                        return true;
+                    }
+                }
+            }
+            pos += (instance_size(obj) + mask) & ~mask;
+        }
+        return false;
+    }
+
+    /**
+     * Scan every object which overlaps a card of a card area which refers to young objects.
+     *
+     * @param area the card area (must not be {@code null})
+     * @param limit the offset of the end of the part of the area to scan
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void scan_young_cards(ptr<struct_card_area> area, long limit) {
+        final long cards = card_area_size(limit) >>> cardShift;
+        // objects below this offset have been scanned already
+        long scanned = 0;
+        for (long card = 0; card < cards; card ++) {
+            if (deref(area).flags.plus(card).loadPlain().intValue() == CARD_YOUNG) {
+                scanned = scan_card(area, card, limit, scanned);
+            }
+        }
+    }
+
+    /**
+     * Scan the objects which overlap a card of a card area.
+     *
+     * @param area the card area (must not be {@code null})
+     * @param card the card index
+     * @param limit the offset of the end of the part of the area to scan
+     * @param scanned the offset below which all objects have been scanned already
+     * @return the new offset below which all objects have been scanned
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static long scan_card(ptr<struct_card_area> area, long card, long limit, long scanned) {
+        final long start = deref(area).starts.plus(card).loadPlain().longValue() - 1;
+        if (start < 0) {
+            // no objects
+            return scanned;
+        }
+        final long cardEnd = Math.min((card + 1) << cardShift, limit);
+        final int mask = Gc.getConfiguredObjectAlignment() - 1;
+        long pos = Math.max(start, scanned);
+        while (pos < cardEnd) {
+            final Object obj = ptrToRef(deref(area).base.plus(pos));
+            scan_object(obj);
+            pos += (instance_size(obj) + mask) & ~mask;
+        }
+        return pos;
+    }
+
+    @SafePoint(SafePointBehavior.NONE)
+    @export
+    private static reference<?> allocate(long size) {
+        final ptr<thread_native> threadNativePtr = currentThreadNativePtr();
+        // fast path: bump the pointer in our own buffer
+        ptr<?> ptr = tlab_allocate(threadNativePtr, size);
+        if (ptr == null) {
+            ptr = allocateSlow(threadNativePtr, size);
+            if (ptr == null) {
+                // will it *ever* fit?
+                if (size > oldCapacity) {
+                    // throw OOME
+                    return null;
+                }
+                // we need to trigger a collection manually
+                allocateFailed(getThreadNativePtr(Gc.gc_thread));
+                // retry the allocation (our buffer was retired by the collection)
+                ptr = allocateSlow(threadNativePtr, size);
+                if (ptr == null) {
+                    // last resort: collect again, this time clearing every soft reference
+                    clearSoftReferences = true;
+                    allocateFailed(getThreadNativePtr(Gc.gc_thread));
+                    ptr = allocateSlow(threadNativePtr, size);
+                }
+                // now if it's null, we've done all we can
+                if (ptr == null) {
+                    // throw OOME
+                    return null;
+                }
+            }
+        }
+        return reference.of(ptrToRef(ptr));
+    }
+
+    @SafePoint(SafePointBehavior.NONE)
+    @NoThrow
+    private static <P extends ptr<?>> P allocateSlow(ptr<thread_native> threadNativePtr, long size) {
+        if (size > eden.limit >>> 1) {
+            // huge objects are allocated directly in the old generation
+            return old_allocate(addr_of(old), size);
+        }
+        if (size > tlabSize >>> 1 || tlab_free(threadNativePtr) > tlabWasteLimit) {
+            // large objects, and objects which do not fit in a mostly-free buffer, go directly to the nursery
+            return region_allocate(addr_of(eden), size);
+        }
+        if (tlab_refill(threadNativePtr, addr_of(eden), tlabSize)) {
+            return tlab_allocate(threadNativePtr, size);
+        }
+        // not enough space for a whole buffer; maybe there is enough for the object
+        return region_allocate(addr_of(eden), size);
+    }
+
+    @SafePoint(value = SafePointBehavior.ENTER, setBits = STATE_SAFEPOINT_REQUEST_GC | STATE_SAFEPOINT_REQUEST)
+    private static void allocateFailed(ptr<thread_native> gcThread) {
+        // signal to the GC thread that we want a GC
+        requestSafePoint(gcThread, STATE_SAFEPOINT_REQUEST_GC);
+    }
+}
@@ -0,0 +1,240 @@
+package jdk.internal.gc;
+
+import static jdk.internal.gc.Gc.*;
+import static jdk.internal.sys.linux.SysPrctl.prctl_set_vma_anon_name;
+import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.thread.ThreadNative.*;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.errno;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdio.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import org.qbicc.runtime.Build;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * A garbage collector which compacts live objects in place by sliding them towards the start of a single space.
+ * <p>
+ * Unlike the semispace collector, the whole heap is usable for allocation, at the cost of longer pauses.
+ * The objects cannot hold their own forwarding pointers before they are moved, because the later passes need
+ * their types to find their sizes, so the new location of each object is computed from the mark bitmap using
+ * a table which holds the destination of the first live object in each block of the heap.
+ */
+public final class MarkCompactGc {
+
+    @export(withScope = ExportScope.LOCAL)
+    private static void collect() {
+        // release all allocation buffers so that the space can be iterated
+        tlab_retire_all();
+
+        // mark everything reachable
+        GcWorkers.parallel_mark();
+
+        // compute where everything will go
+        final long newPosition = compact_prepare(addr_of(space), compactBlockDest);
+
+        // update everything to point to the new locations, while the objects are still where they were
+        compactRegion = addr_of(space);
+        GcWorkers.parallel_update(addr_of(space));
+        compactRegion = zero();
+
+        // now slide the live objects down
+        GcStats.relocated(slide());
+
+        // allocated memory must be zeroed
+        release(newPosition);
+
+        clearBitmap();
+
+        heapFree = space.limit - newPosition;
+    }
+
+    static {
+        gc_thread.setDaemon(true);
+    }
+
+    /**
+     * The single allocation space.
+     */
+    private static struct_region space;
+
+    /**
+     * The largest thread-local allocation buffer size.
+     */
+    private static final long TLAB_MAX_SIZE = 256L << 10;
+
+    /**
+     * The size of each thread-local allocation buffer, computed from the heap size.
+     */
+    private static long tlabSize;
+    /**
+     * The amount of free space in an allocation buffer which may be discarded in order to refill it.
+     * If more space than this is free, then allocations which do not fit are made from the shared region instead.
+     */
+    private static long tlabWasteLimit;
+
+    public static final struct_gc gc = zero();
+
+    static {
+        // set up the structure during build time
+        gc.name = utf8z("compact");
+        gc.initialize_heap = addr_of(function.of(MarkCompactGc::initialize_heap));
+        gc.collect = addr_of(function.of(MarkCompactGc::collect));
+        gc.allocate = addr_of(function.of(MarkCompactGc::allocate));
+    }
+
+    @export
+    private static void initialize_heap(ptr<struct_gc_attr> attr_ptr) {
+        long heapSize = Gc.getMaxHeapSize();
+        long pageSize = Gc.getPageSize();
+        heapSize &= ~(pageSize - 1);
+        ptr<?> start;
+        if (! Build.Target.isWasm()) {
+            start = mmap(zero(), word(heapSize), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero()).cast();
+        } else {
+            // TODO: WASI load region
+            start = zero();
+        }
+        if (start == MAP_FAILED) {
+            fprintf(stderr, utf8z("Failed to map initial heap (%s)\n"), strerror(word(errno)));
+            exit(word(1));
+            return; // not reached
+        }
+        deref(attr_ptr).lowest_heap_addr = start.cast();
+        deref(attr_ptr).highest_heap_addr = start.plus(heapSize).cast();
+        if (! region_init(addr_of(space), start, heapSize)) {
+            // heap failure (should be impossible)
+            abort();
+        }
+        GcStats.register_pool(utf8z("Heap"), addr_of(space), heapSize);
+        // one entry per block; like the bitmap, only the parts which are used are ever touched
+        long tableSize = ((heapSize >>> compact_block_shift()) + 1) * sizeof(int64_t.class).longValue();
+        compactBlockDest = mmap(zero(), word(tableSize), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero());
+        if (compactBlockDest == MAP_FAILED) {
+            fprintf(stderr, utf8z("Failed to map compaction table (%s)\n"), strerror(word(errno)));
+            exit(word(1));
+            return; // not reached
+        }
+        // allow a reasonable number of buffers without letting tiny heaps waste too much
+        tlabSize = Math.max(pageSize, Math.min(TLAB_MAX_SIZE, heapSize >>> 8 & ~(pageSize - 1)));
+        tlabWasteLimit = tlabSize >>> 6;
+        if (Build.Target.isLinux()) {
+            // label the heap area (ignore errors, best-effort only)
+            prctl_set_vma_anon_name(start, word(heapSize), utf8z("GC heap"));
+        }
+        // other regions are initialized by common code
+    }
+
+    /**
+     * Move every marked object to the location computed by {@link Gc#compact_prepare}.
+     * Objects only ever move down, and they are moved in address order, so no object is overwritten before it moves.
+     *
+     * @return the number of bytes moved
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static long slide() {
+        final ptr<c_char> base = space.start.cast();
+        final ptr<c_char> end = base.plus(space.position);
+        final int mask = Gc.getConfiguredObjectAlignment() - 1;
+        long dest = 0;
+        long moved = 0;
+        for (ptr<c_char> ptr = bitmap_next(base, end); ptr != null; ptr = bitmap_next(ptr.plus(mask + 1), end)) {
+            final long size = instance_size(ptrToRef(ptr)) + mask & ~mask;
+            if (dest != ptr.minus(base).longValue()) {
+                memmove(base.plus(dest), ptr, word(size));
+                moved += size;
+            }
+            dest += size;
+        }
+        return moved;
+    }
+
+    /**
+     * Clear the part of the space above the new position, and make it available for allocation again.
+     *
+     * @param newPosition the position after compaction
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void release(long newPosition) {
+        final long pageMask = Gc.getPageSize() - 1;
+        final long oldPosition = space.position;
+        final long pageStart = newPosition + pageMask & ~pageMask;
+        final long pageEnd = oldPosition + pageMask & ~pageMask;
+        // clear the partial page by hand
+        memset(space.start.plus(newPosition), word(0), word(Math.min(pageStart, oldPosition) - newPosition));
+        if (pageEnd > pageStart) {
+            if (! Build.Target.isWasm()) {
+                // give the whole pages back to the OS while clearing
+                final ptr<?> start = space.start.plus(pageStart);
+                final ptr<?> res = mmap(start, word(pageEnd - pageStart), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_FIXED.longValue() | MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero());
+                if (res == MAP_FAILED || res != start) {
+                    abort();
+                }
+            } else {
+                memset(space.start.plus(pageStart), word(0), word(pageEnd - pageStart));
+            }
+        }
+        addr_of(space.position).storeRelease(word(newPosition));
+    }
+
+    @SafePoint(SafePointBehavior.NONE)
+    @export
+    private static reference<?> allocate(long size) {
+        final ptr<thread_native> threadNativePtr = currentThreadNativePtr();
+        // fast path: bump the pointer in our own buffer
+        ptr<?> ptr = tlab_allocate(threadNativePtr, size);
+        if (ptr == null) {
+            ptr = allocateSlow(threadNativePtr, size);
+            if (ptr == null) {
+                // will it *ever* fit?
+                if (size > space.limit) {
+                    // throw OOME
+                    return null;
+                }
+                // we need to trigger a collection manually
+                allocateFailed(getThreadNativePtr(Gc.gc_thread));
+                // retry the allocation (our buffer was retired by the collection)
+                ptr = allocateSlow(threadNativePtr, size);
+                if (ptr == null) {
+                    // last resort: collect again, this time clearing every soft reference
+                    clearSoftReferences = true;
+                    allocateFailed(getThreadNativePtr(Gc.gc_thread));
+                    ptr = allocateSlow(threadNativePtr, size);
+                }
+                // now if it's null, we've done all we can
+                if (ptr == null) {
+                    // throw OOME
+                    return null;
+                }
+            }
+        }
+        return reference.of(ptrToRef(ptr));
+    }
+
+    @SafePoint(SafePointBehavior.NONE)
+    @NoThrow
+    private static <P extends ptr<?>> P allocateSlow(ptr<thread_native> threadNativePtr, long size) {
+        if (size > tlabSize >>> 1 || tlab_free(threadNativePtr) > tlabWasteLimit) {
+            // large objects, and objects which do not fit in a mostly-free buffer, go directly to the shared region
+            return region_allocate(addr_of(space), size);
+        }
+        if (tlab_refill(threadNativePtr, addr_of(space), tlabSize)) {
+            return tlab_allocate(threadNativePtr, size);
+        }
+        // not enough space for a whole buffer; maybe there is enough for the object
+        return region_allocate(addr_of(space), size);
+    }
+
+    @SafePoint(value = SafePointBehavior.ENTER, setBits = STATE_SAFEPOINT_REQUEST_GC | STATE_SAFEPOINT_REQUEST)
+    private static void allocateFailed(ptr<thread_native> gcThread) {
+        // signal to the GC thread that we want a GC
+        requestSafePoint(gcThread, STATE_SAFEPOINT_REQUEST_GC);
+    }
+}
@@ -0,0 +1,13 @@
+package jdk.internal.gc;
+
+import static org.qbicc.runtime.CNative.*;
+
+import java.lang.ref.Reference;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(Reference.class)
+final class ReferenceAccess {
+    reference<?> referent;
+    reference<?> discovered;
+}
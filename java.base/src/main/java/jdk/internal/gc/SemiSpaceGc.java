@@ -23,55 +23,51 @@ public final class SemiSpaceGc {
 
     @export(withScope = ExportScope.LOCAL)
     private static void collect() {
-        // mark threads and thread stacks; all objects are in "from" space
-        for (ptr<thread_native> current = thread_list_terminus.next; current != addr_of(thread_list_terminus); current = deref(current).next) {
-            //todo: we could come up with a way for each thread to mark its own stack before entering safepoint
-            //todo: threads must release their TLABs
-            markStack(current);
-            mark(deref(current).ref);
-        }
-
-        // mark all permanent objects
-        markRegion(addr_of(classes));
-        // todo: these will eventually be on the regular heap
-        markRegion(addr_of(strings));
-        markRegion(addr_of(initial));
-
-        // mark all refs
-        for (int i = 0; i < getReferenceTypedVariablesCount(); i ++) {
-            ptr<reference<?>> refPtr = getReferenceTypedVariablesStart().plus(i);
-            Object obj = refPtr.loadPlain();
-            if (obj != null) {
-                mark(obj);
-            }
-        }
-
-        // move live objects to _to_ space
-        relocate_objects();
+        final long start = nanoTime();
 
-        // update all objects in _to_ space
-        update_region(addr_of(to));
+        // release all allocation buffers so that "from" space can be iterated
+        tlab_retire_all();
 
-        // update all permanent objects
-        update_region(addr_of(classes));
-     // update_region(addr_of(strings)); // this region only contains interior pointers!
-        update_region(addr_of(initial));
+        // mark everything reachable; all objects are in "from" space
+        GcWorkers.parallel_mark();
 
-        for (int i = 0; i < getReferenceTypedVariablesCount(); i ++) {
-            update_reference(getReferenceTypedVariablesStart().plus(i));
-        }
+        // move live objects to _to_ space
+        GcWorkers.parallel_relocate(addr_of(from), addr_of(to));
+        GcStats.relocated(to.position);
 
-        // update threads and thread stacks
-        for (ptr<thread_native> current = thread_list_terminus.next; current != addr_of(thread_list_terminus); current = deref(current).next) {
-            //todo: we could come up with a way for each thread to update its own stack before leaving safepoint
-            update_reference(addr_of(deref(current).ref));
-            update_stack(current);
-        }
+        // update all objects in _to_ space, and everything outside the heap
+        GcWorkers.parallel_update(addr_of(to));
 
         // swap spaces
         swap();
 
         clearBitmap();
+
+        final long end = nanoTime();
+        resize(end - start, start - lastCollectionEnd);
+        lastCollectionEnd = end;
+        liveAfterCollection = from.position;
+        heapFree = maxSemiSize - from.position;
+    }
+
+    /**
+     * Determine whether to collect while no collection has been requested, so that a heap which has become mostly
+     * garbage, and then idle, shrinks without waiting for allocations to fill it.
+     * Called from the GC thread, which is the only thread which changes the values used here.
+     *
+     * @return {@code true} to collect now
+     */
+    @export(withScope = ExportScope.LOCAL)
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean idle() {
+        if (nanoTime() - lastCollectionEnd < IDLE_COLLECTION_DELAY || from.limit <= minSemiSize
+            || liveAfterCollection * 100 >= from.limit * SHRINK_OCCUPANCY) {
+            // too soon, or the spaces would not shrink
+            return false;
+        }
+        idleCollection = true;
+        return true;
     }
 
     static {
@@ -87,6 +83,71 @@ public final class SemiSpaceGc {
      */
     private static struct_region to;
 
+    /**
+     * Grow the spaces if more than this percentage of a space is live after collection.
+     */
+    private static final int GROW_OCCUPANCY = 60;
+    /**
+     * Grow the spaces if more than this percentage of time is spent collecting.
+     */
+    private static final int GROW_GC_TIME = 5;
+    /**
+     * Consider shrinking the spaces if less than this percentage of a space is live after collection.
+     */
+    private static final int SHRINK_OCCUPANCY = 20;
+    /**
+     * Shrink the spaces only after this many consecutive collections with low occupancy.
+     */
+    private static final int SHRINK_DELAY = 4;
+    /**
+     * Collect, in order to shrink the spaces, once no collection has happened for this many nanoseconds.
+     */
+    private static final long IDLE_COLLECTION_DELAY = 5_000_000_000L;
+
+    /**
+     * The reserved size of each space; the limit of each region may grow up to this size.
+     */
+    private static long maxSemiSize;
+    /**
+     * The smallest size of each space, from the minimum heap size.
+     */
+    private static long minSemiSize;
+    /**
+     * The number of consecutive collections after which the occupancy was low.
+     */
+    private static int lowOccupancyCount;
+    /**
+     * The time at which the last collection ended.
+     */
+    private static long lastCollectionEnd;
+    /**
+     * The amount of "from" space which was live after the last collection.
+     */
+    private static long liveAfterCollection;
+    /**
+     * {@code true} if the current collection was started by {@link #idle()}, rather than by a request.
+     */
+    private static boolean idleCollection;
+    /**
+     * The largest allocation that failed and caused a collection since the last collection.
+     */
+    private static volatile long failedSize;
+
+    /**
+     * The largest thread-local allocation buffer size.
+     */
+    private static final long TLAB_MAX_SIZE = 256L << 10;
+
+    /**
+     * The size of each thread-local allocation buffer, computed from the heap size.
+     */
+    private static long tlabSize;
+    /**
+     * The amount of free space in an allocation buffer which may be discarded in order to refill it.
+     * If more space than this is free, then allocations which do not fit are made from the shared region instead.
+     */
+    private static long tlabWasteLimit;
+
     public static final struct_gc gc = zero();
 
     static {
@@ -95,6 +156,7 @@ public final class SemiSpaceGc {
         gc.initialize_heap = addr_of(function.of(SemiSpaceGc::initialize_heap));
         gc.collect = addr_of(function.of(SemiSpaceGc::collect));
         gc.allocate = addr_of(function.of(SemiSpaceGc::allocate));
+        gc.idle = addr_of(function.of(SemiSpaceGc::idle));
     }
 
     @export
@@ -105,7 +167,8 @@ public final class SemiSpaceGc {
         heapSize &= ~((pageSize << 1) - 1);
         ptr<?> start;
         if (! Build.Target.isWasm()) {
-            start = mmap(zero(), word(heapSize), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_PRIVATE.longValue() | MAP_ANON.longValue()), word(-1), zero()).cast();
+            // only the parts of each space below its current limit are ever touched, so reserve without committing
+            start = mmap(zero(), word(heapSize), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero()).cast();
         } else {
             // TODO: WASI load region
             start = zero();
@@ -117,12 +180,20 @@ public final class SemiSpaceGc {
         }
         deref(attr_ptr).lowest_heap_addr = start.cast();
         deref(attr_ptr).highest_heap_addr = start.plus(heapSize).cast();
-        // since heapSize is a page * 2 boundary, semiSize is on a page boundary
-        long semiSize = heapSize >>> 1;
-        if (! region_init(addr_of(from), start, semiSize) || ! region_init(addr_of(to), start.plus(semiSize), semiSize)) {
+        // since heapSize is a page * 2 boundary, maxSemiSize is on a page boundary
+        maxSemiSize = heapSize >>> 1;
+        // start at the minimum size; the spaces are reserved at the maximum size, so they can grow in place
+        long semiSize = Math.min(maxSemiSize, Math.max(pageSize, Gc.getMinHeapSize() >>> 1 & ~(pageSize - 1)));
+        minSemiSize = semiSize;
+        if (! region_init(addr_of(from), start, semiSize) || ! region_init(addr_of(to), start.plus(maxSemiSize), semiSize)) {
             // heap failure (should be impossible)
             abort();
         }
+        GcStats.register_pool(utf8z("Semispace"), addr_of(from), maxSemiSize);
+        lastCollectionEnd = nanoTime();
+        // allow a reasonable number of buffers per space without letting tiny heaps waste too much
+        tlabSize = Math.max(pageSize, Math.min(TLAB_MAX_SIZE, semiSize >>> 8 & ~(pageSize - 1)));
+        tlabWasteLimit = tlabSize >>> 6;
         if (Build.Target.isLinux()) {
             // label the heap area (ignore errors, best-effort only)
             prctl_set_vma_anon_name(start, word(heapSize), utf8z("GC heap"));
@@ -141,55 +212,117 @@ public final class SemiSpaceGc {
         from = tmp;
         region_reset(addr_of(to));
         if (! Build.Target.isWasm()) {
-            // give memory back to OS while clearing
-            final ptr<?> res = mmap(to.start.cast(), word(to.limit), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_FIXED.longValue() | MAP_PRIVATE.longValue() | MAP_ANON.longValue()), zero(), zero());
+            // give memory back to OS while clearing (and keep it uncommitted, as it was reserved)
+            final ptr<?> res = mmap(to.start.cast(), word(to.limit), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_FIXED.longValue() | MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero());
             if (res == MAP_FAILED || res != to.start) {
                 abort();
             }
         }
     }
 
+    /**
+     * Resize both spaces according to the occupancy of "from" space after a collection and the time spent collecting.
+     * Growth is immediate; shrinking happens only after a run of collections with low occupancy, or after a
+     * collection which was started because the heap was idle (see {@link #idle()}).
+     *
+     * @param gcTime the duration of the collection, in nanoseconds
+     * @param mutatorTime the time between the end of the previous collection and the start of this one, in nanoseconds
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    private static void resize(long gcTime, long mutatorTime) {
+        final long pageMask = Gc.getPageSize() - 1;
+        final long live = from.position;
+        final long current = from.limit;
+        final long needed = live + failedSize;
+        final boolean idle = idleCollection;
+        failedSize = 0;
+        idleCollection = false;
+        long newSize = current;
+        if (needed * 100 > current * GROW_OCCUPANCY || gcTime * 100 > (gcTime + mutatorTime) * GROW_GC_TIME) {
+            // leave at least as much free space as is live
+            newSize = Math.max(current << 1, (needed << 1) + pageMask & ~pageMask);
+            lowOccupancyCount = 0;
+        } else if (live * 100 < current * SHRINK_OCCUPANCY) {
+            if (idle || ++ lowOccupancyCount >= SHRINK_DELAY) {
+                newSize = Math.max(current >>> 1 & ~pageMask, (live << 1) + pageMask & ~pageMask);
+                lowOccupancyCount = 0;
+            }
+        } else {
+            lowOccupancyCount = 0;
+        }
+        newSize = Math.max(minSemiSize, Math.min(maxSemiSize, newSize));
+        if (newSize < current && ! Build.Target.isWasm()) {
+            // give the memory beyond the new limit back to the OS ("to" space was just released by swap())
+            final ptr<?> tail = from.start.plus(newSize);
+            final ptr<?> res = mmap(tail, word(current - newSize), word(PROT_READ.longValue() | PROT_WRITE.longValue()), word(MAP_FIXED.longValue() | MAP_PRIVATE.longValue() | MAP_ANON.longValue() | MAP_NORESERVE.longValue()), word(-1), zero());
+            if (res == MAP_FAILED || res != tail) {
+                abort();
+            }
+        }
+        from.limit = newSize;
+        to.limit = newSize;
+    }
+
     @SafePoint(SafePointBehavior.NONE)
     @export
     private static reference<?> allocate(long size) {
-        ptr<?> ptr = region_allocate(addr_of(from), size);
+        final ptr<thread_native> threadNativePtr = currentThreadNativePtr();
+        // fast path: bump the pointer in our own buffer
+        ptr<?> ptr = tlab_allocate(threadNativePtr, size);
         if (ptr == null) {
-            // will it *ever* fit?
-            if (size > from.limit) {
-                // throw OOME
-                return null;
-            }
-            // we need to trigger a collection manually
-            allocateFailed(getThreadNativePtr(Gc.gc_thread));
-            // retry the allocation
-            ptr = region_allocate(addr_of(from), size);
-            // now if it's null, we've done all we can
+            ptr = allocateSlow(threadNativePtr, size);
             if (ptr == null) {
-                // throw OOME
-                return null;
+                // will it *ever* fit?
+                if (size > maxSemiSize) {
+                    // throw OOME
+                    return null;
+                }
+                // we need to trigger a collection manually; make sure the spaces grow enough for this object
+                long witness = failedSize;
+                while (witness < size) {
+                    final long observed = addr_of(failedSize).compareAndSwap(word(witness), word(size)).longValue();
+                    if (observed == witness) {
+                        break;
+                    }
+                    witness = observed;
+                }
+                allocateFailed(getThreadNativePtr(Gc.gc_thread));
+                // retry the allocation (our buffer was retired by the collection)
+                ptr = allocateSlow(threadNativePtr, size);
+                if (ptr == null) {
+                    // last resort: collect again, this time clearing every soft reference
+                    clearSoftReferences = true;
+                    allocateFailed(getThreadNativePtr(Gc.gc_thread));
+                    ptr = allocateSlow(threadNativePtr, size);
+                }
+                // now if it's null, we've done all we can
+                if (ptr == null) {
+                    // throw OOME
+                    return null;
+                }
             }
         }
         return reference.of(ptrToRef(ptr));
     }
 
+    @SafePoint(SafePointBehavior.NONE)
+    @NoThrow
+    private static <P extends ptr<?>> P allocateSlow(ptr<thread_native> threadNativePtr, long size) {
+        if (size > tlabSize >>> 1 || tlab_free(threadNativePtr) > tlabWasteLimit) {
+            // large objects, and objects which do not fit in a mostly-free buffer, go directly to the shared region
+            return region_allocate(addr_of(from), size);
+        }
+        if (tlab_refill(threadNativePtr, addr_of(from), tlabSize)) {
+            return tlab_allocate(threadNativePtr, size);
+        }
+        // not enough space for a whole buffer; maybe there is enough for the object
+        return region_allocate(addr_of(from), size);
+    }
+
     @SafePoint(value = SafePointBehavior.ENTER, setBits = STATE_SAFEPOINT_REQUEST_GC | STATE_SAFEPOINT_REQUEST)
     private static void allocateFailed(ptr<thread_native> gcThread) {
         // signal to the GC thread that we want a GC
         requestSafePoint(gcThread, STATE_SAFEPOINT_REQUEST_GC);
     }
-
-    @export
-    private static void relocate_objects() {
-        // move objects from "from" to "to" (we haven't swapped them yet)
-        struct_region_iter sri = auto();
-        region_iter_init(addr_of(sri), addr_of(from));
-
-        ptr<?> ptr;
-        while ((ptr = region_iter_next(addr_of(sri))) != null) {
-            final reference<?> ref = reference.of(ptrToRef(ptr));
-            if (isMarked(ref)) {
-                move_object(ref, addr_of(to));
-            }
-        }
-    }
 }
@@ -0,0 +1,11 @@
+package jdk.internal.gc;
+
+import java.lang.ref.SoftReference;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(SoftReference.class)
+final class SoftReferenceAccess {
+    static long clock;
+    long timestamp;
+}
@@ -9,6 +9,8 @@ import static org.qbicc.runtime.stdc.String.*;
 import java.util.ArrayList;
 
 import jdk.internal.gc.Gc;
+import jdk.internal.gc.GcStats;
+import jdk.internal.thread.CpuAffinity;
 import jdk.internal.thread.ThreadNative;
 import org.qbicc.runtime.Build;
 import org.qbicc.runtime.Hidden;
@@ -95,6 +97,8 @@ public final class Main {
         int userArgc = 0;
         long minHeap = -1;
         long maxHeap = -1;
+        boolean disableExplicitGc = false;
+        boolean explicitGcConcurrent = false;
         for (int i = 1; i < argc.intValue(); i ++) {
             if (strncmp(argv[i], utf8z("-X"), word(2)).isZero()) {
                 // it's a "JVM" option
@@ -110,6 +114,53 @@ public final class Main {
                     if (maxHeap < Gc.getPageSize()) {
                         maxHeap = Gc.getPageSize();
                     }
+                } else if (strncmp(argv[i].plus(2), utf8z("ss"), word(2)).isZero()) {
+                    // default thread stack size
+                    long stackSize = parseMemorySize(argv[i].plus(4));
+                    if (stackSize < ThreadNative.MIN_STACK_SIZE) {
+                        fprintf(stderr, utf8z("Invalid thread stack size (the minimum is %ldK): %s\n"), ThreadNative.MIN_STACK_SIZE >> 10, argv[i]);
+                        exit(word(1));
+                    }
+                    ThreadNative.setDefaultStackSize(stackSize);
+                } else if (strncmp(argv[i].plus(2), utf8z("X:ParallelGCThreads="), word(20)).isZero()) {
+                    // number of GC worker threads
+                    ptr<c_char> endPtr = auto();
+                    long count = strtoll(argv[i].plus(22), addr_of(endPtr), word(10)).longValue();
+                    if (endPtr.loadUnshared(uint8_t.class).intValue() != 0 || count < 1 || count > 1024) {
+                        fprintf(stderr, utf8z("Invalid GC thread count: %s\n"), argv[i]);
+                        exit(word(1));
+                    }
+                    Gc.setWorkerCount((int) count);
+                } else if (strcmp(argv[i].plus(2), utf8z("log:gc")).isZero()) {
+                    // one line on stderr per collection
+                    GcStats.setLogging(true);
+                } else if (strcmp(argv[i].plus(2), utf8z("log:os+thread")).isZero()) {
+                    // one line on stderr with the stack usage of each thread as it exits
+                    ThreadNative.setStackLogging(true);
+                } else if (strncmp(argv[i].plus(2), utf8z("X:SafepointTimeoutDelay="), word(24)).isZero()) {
+                    // report threads which take too long to reach a safepoint
+                    ptr<c_char> endPtr = auto();
+                    long millis = strtoll(argv[i].plus(26), addr_of(endPtr), word(10)).longValue();
+                    if (endPtr.loadUnshared(uint8_t.class).intValue() != 0 || millis < 0) {
+                        fprintf(stderr, utf8z("Invalid safepoint timeout delay: %s\n"), argv[i]);
+                        exit(word(1));
+                    }
+                    GcStats.setSafePointReportTime(millis);
+                } else if (strncmp(argv[i].plus(2), utf8z("X:GCThreadAffinity="), word(19)).isZero()) {
+                    // bind the GC threads to a list of CPUs, such as 0-3,8
+                    if (! CpuAffinity.setGcCpus(argv[i].plus(21))) {
+                        fprintf(stderr, utf8z("Invalid or unsupported GC thread affinity: %s\n"), argv[i]);
+                        exit(word(1));
+                    }
+                } else if (strcmp(argv[i].plus(2), utf8z("X:+DisableExplicitGC")).isZero()) {
+                    disableExplicitGc = true;
+                } else if (strcmp(argv[i].plus(2), utf8z("X:-DisableExplicitGC")).isZero()) {
+                    disableExplicitGc = false;
+                } else if (strcmp(argv[i].plus(2), utf8z("X:+ExplicitGCInvokesConcurrent")).isZero()) {
+                    // System.gc() requests a collection without waiting for it
+                    explicitGcConcurrent = true;
+                } else if (strcmp(argv[i].plus(2), utf8z("X:-ExplicitGCInvokesConcurrent")).isZero()) {
+                    explicitGcConcurrent = false;
                 } else {
                     fprintf(stderr, utf8z("Unknown or unsupported VM argument: %s\n"), argv[i]);
                     exit(word(1));
@@ -167,6 +218,8 @@ public final class Main {
             }
         }
 
+        Gc.setExplicitGcPolicy(disableExplicitGc, explicitGcConcurrent);
+
         Main.argc = word(userArgc);
         Main.argv = userArgv;
         Main.sysArgc = word(sysArgc);
@@ -0,0 +1,240 @@
+package jdk.internal.sys.linux;
+
+import static jdk.internal.sys.linux.Sched.*;
+import static jdk.internal.sys.posix.Stdio.*;
+import static jdk.internal.sys.stdc.Stdio.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stddef.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+/**
+ * The number of CPUs which this process may actually use on Linux.
+ * This is limited by the CPU affinity mask of the process and by the CPU quota or shares of its control group
+ * (version 1 or 2), so that a process in a container with a two-CPU limit does not size its thread pools and
+ * striped counters for every CPU of the host.
+ * <p>
+ * Both limits may change while the process runs, so the count is recomputed once it is older than
+ * {@link #REFRESH_NANOS}.
+ */
+public final class CpuLimits {
+    /**
+     * How long a computed CPU count may be used before it is computed again.
+     */
+    private static final long REFRESH_NANOS = 20_000_000L;
+    /**
+     * The number of control group version 1 CPU shares which stands for one CPU, which is also the default.
+     */
+    private static final long SHARES_PER_CPU = 1024;
+    /**
+     * The default control group version 2 CPU weight.
+     */
+    private static final long DEFAULT_WEIGHT = 100;
+
+    private static volatile int cachedCount;
+    private static volatile long cachedTime;
+
+    private CpuLimits() {}
+
+    /**
+     * Get the number of CPUs which this process may use, computing it again if the last count is too old.
+     *
+     * @param configured the number of CPUs configured on the system
+     * @return the number of CPUs (at least one)
+     */
+    public static int availableProcessors(int configured) {
+        final long now = System.nanoTime();
+        int count = cachedCount;
+        if (count == 0 || now - cachedTime >= REFRESH_NANOS) {
+            count = compute(utf8z("/proc/self/cgroup"), utf8z("/sys/fs/cgroup"), configured);
+            cachedCount = count;
+            cachedTime = now;
+        }
+        return count;
+    }
+
+    /**
+     * Compute the number of CPUs which this process may use.
+     * The control group membership file and file system root are given so that a fake hierarchy may be used instead.
+     *
+     * @param cgroupFile the control group membership file (normally {@code /proc/self/cgroup})
+     * @param root the root of the control group file systems (normally {@code /sys/fs/cgroup})
+     * @param configured the number of CPUs configured on the system
+     * @return the number of CPUs (at least one)
+     */
+    public static int compute(ptr<@c_const c_char> cgroupFile, ptr<@c_const c_char> root, int configured) {
+        int count = affinityCount();
+        if (count <= 0) {
+            count = configured;
+        }
+        final int limit = cgroupLimit(cgroupFile, root);
+        if (limit > 0 && limit < count) {
+            count = limit;
+        }
+        return Math.max(1, count);
+    }
+
+    private static int affinityCount() {
+        cpu_set_t set = auto();
+        // fails if there are more CPUs than a cpu_set_t can hold
+        if (sched_getaffinity(word(0), sizeof(set), addr_of(set)).isNonZero()) {
+            return -1;
+        }
+        return CPU_COUNT(addr_of(set));
+    }
+
+    /**
+     * Get the CPU limit of each control group hierarchy which this process belongs to, and return the lowest.
+     *
+     * @return the lowest limit, or -1 if there is none
+     */
+    private static int cgroupLimit(ptr<@c_const c_char> cgroupFile, ptr<@c_const c_char> root) {
+        final ptr<FILE> fp = fopen(cgroupFile, utf8z("r"));
+        if (fp.isNull()) {
+            return -1;
+        }
+        ptr<c_char> line = auto(zero());
+        size_t len = auto(zero());
+        int limit = -1;
+        // each line is <hierarchy ID>:<controller list>:<path>
+        while (getline(addr_of(line), addr_of(len), fp).longValue() != -1) {
+            final ptr<c_char> colon1 = strchr(line, word(':'));
+            if (colon1.isNull()) {
+                continue;
+            }
+            final ptr<c_char> colon2 = strchr(colon1.plus(1), word(':'));
+            if (colon2.isNull()) {
+                continue;
+            }
+            colon2.storeUnshared(zero());
+            final ptr<c_char> controllers = colon1.plus(1);
+            final ptr<c_char> path = colon2.plus(1);
+            final ptr<c_char> newline = strchr(path, word('\n'));
+            if (newline.isNonNull()) {
+                newline.storeUnshared(zero());
+            }
+            final int found;
+            if (controllers.loadUnshared().isZero()) {
+                // the unified (version 2) hierarchy
+                found = cgroupV2Limit(root, path);
+            } else if (hasCpuController(controllers)) {
+                found = cgroupV1Limit(root, controllers, path);
+            } else {
+                continue;
+            }
+            if (found > 0 && (limit <= 0 || found < limit)) {
+                limit = found;
+            }
+        }
+        free(line);
+        fclose(fp);
+        return limit;
+    }
+
+    private static boolean hasCpuController(ptr<c_char> controllers) {
+        ptr<c_char> name = controllers;
+        for (;;) {
+            final ptr<c_char> comma = strchr(name, word(','));
+            final long len = comma.isNull() ? strlen(name).longValue() : comma.minus(name).longValue();
+            if (len == 3 && memcmp(name.cast(), utf8z("cpu").cast(), word(3)).isZero()) {
+                return true;
+            }
+            if (comma.isNull()) {
+                return false;
+            }
+            name = comma.plus(1);
+        }
+    }
+
+    private static int cgroupV1Limit(ptr<@c_const c_char> root, ptr<c_char> controllers, ptr<c_char> path) {
+        // the hierarchy is mounted in a directory named after its controllers
+        c_char[] mount = new c_char[512];
+        snprintf(addr_of(mount[0]), sizeof(mount), utf8z("%s/%s"), root, controllers);
+        int64_t[] values = new int64_t[2];
+        if (readValues(addr_of(mount[0]), path, utf8z("cpu.cfs_quota_us"), addr_of(values[0])) == 1
+            && readValues(addr_of(mount[0]), path, utf8z("cpu.cfs_period_us"), addr_of(values[1])) == 1) {
+            final int limit = quotaToCpus(values[0].longValue(), values[1].longValue());
+            if (limit > 0) {
+                return limit;
+            }
+        }
+        if (readValues(addr_of(mount[0]), path, utf8z("cpu.shares"), addr_of(values[0])) == 1) {
+            final long shares = values[0].longValue();
+            if (shares > 0 && shares != SHARES_PER_CPU) {
+                return sharesToCpus(shares);
+            }
+        }
+        return -1;
+    }
+
+    private static int cgroupV2Limit(ptr<@c_const c_char> root, ptr<c_char> path) {
+        int64_t[] values = new int64_t[2];
+        if (readValues(root, path, utf8z("cpu.max"), addr_of(values[0])) == 2) {
+            final int limit = quotaToCpus(values[0].longValue(), values[1].longValue());
+            if (limit > 0) {
+                return limit;
+            }
+        }
+        if (readValues(root, path, utf8z("cpu.weight"), addr_of(values[0])) >= 1) {
+            final long weight = values[0].longValue();
+            if (weight > 0 && weight != DEFAULT_WEIGHT) {
+                // map the weight range [1, 10000] on to the shares range [2, 262144]
+                return sharesToCpus((262142 * weight - 1) / 9999 + 2);
+            }
+        }
+        return -1;
+    }
+
+    private static int quotaToCpus(long quota, long period) {
+        // a quota of "max" (or -1) means there is no limit
+        return quota > 0 && period > 0 ? (int) Math.min(Integer.MAX_VALUE, (quota + period - 1) / period) : -1;
+    }
+
+    private static int sharesToCpus(long shares) {
+        return (int) Math.min(Integer.MAX_VALUE, (shares + SHARES_PER_CPU - 1) / SHARES_PER_CPU);
+    }
+
+    /**
+     * Read the first one or two space-separated values of a control group file.
+     * The file is looked for in the directory of the control group of the process, and then in the directory at which
+     * the hierarchy is mounted, which is where the control group of a container appears inside the container.
+     * A value of {@code max} is read as -1.
+     *
+     * @param mount the directory at which the hierarchy is mounted
+     * @param path the path of the control group of the process within the hierarchy
+     * @param name the file name
+     * @param values the place to store the values, which must have room for two
+     * @return the number of values read
+     */
+    private static int readValues(ptr<@c_const c_char> mount, ptr<@c_const c_char> path, ptr<@c_const c_char> name, ptr<int64_t> values) {
+        c_char[] fileName = new c_char[1024];
+        snprintf(addr_of(fileName[0]), sizeof(fileName), utf8z("%s%s/%s"), mount, path, name);
+        ptr<FILE> fp = fopen(addr_of(fileName[0]), utf8z("r"));
+        if (fp.isNull()) {
+            snprintf(addr_of(fileName[0]), sizeof(fileName), utf8z("%s/%s"), mount, name);
+            fp = fopen(addr_of(fileName[0]), utf8z("r"));
+            if (fp.isNull()) {
+                return 0;
+            }
+        }
+        c_char[] first = new c_char[32];
+        c_char[] second = new c_char[32];
+        final int count = fscanf(fp, utf8z("%31s %31s"), addr_of(first[0]), addr_of(second[0])).intValue();
+        fclose(fp);
+        if (count >= 1) {
+            values.storeUnshared(word(parseValue(addr_of(first[0]))));
+        }
+        if (count >= 2) {
+            values.plus(1).storeUnshared(word(parseValue(addr_of(second[0]))));
+        }
+        return Math.max(0, count);
+    }
+
+    private static long parseValue(ptr<c_char> str) {
+        if (strcmp(str, utf8z("max")).isZero()) {
+            return -1;
+        }
+        return strtol(str, zero(), word(10)).longValue();
+    }
+}
@@ -0,0 +1,133 @@
+package jdk.internal.sys.linux;
+
+import static jdk.internal.sys.linux.SysSyscall.*;
+import static jdk.internal.sys.posix.SysTypes.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.InlineCondition.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+
+import org.qbicc.runtime.Inline;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * Support for {@code io_uring(7)} on Linux, which is available since Linux 5.1. See the manpages for more information.
+ * <p>
+ * Only the members of the submission queue entry which are used by the run time are given here; the others stay zero.
+ */
+@include("<linux/io_uring.h>")
+public final class IoUring {
+    private IoUring() {}
+
+    /**
+     * Create a ring with room for at least {@code entries} submission queue entries.
+     *
+     * @param entries the number of submission queue entries
+     * @param p the parameters, which are also filled in with the ring offsets
+     * @return the ring file descriptor, or -1 on error (in {@code errno})
+     */
+    @Inline(ALWAYS)
+    @SafePoint(SafePointBehavior.ENTER)
+    @NoThrow
+    public static c_int io_uring_setup(uint32_t entries, ptr<struct_io_uring_params> p) {
+        // no glibc wrapper!
+        return word(syscall(SYS_io_uring_setup, entries, p).intValue());
+    }
+
+    /**
+     * Submit {@code to_submit} entries from the submission queue, and wait for {@code min_complete} completions
+     * if {@link #IORING_ENTER_GETEVENTS} is given.
+     *
+     * @return the number of entries which were submitted, or -1 on error (in {@code errno})
+     */
+    @Inline(ALWAYS)
+    @SafePoint(SafePointBehavior.ENTER)
+    @NoThrow
+    public static c_int io_uring_enter(c_int fd, uint32_t to_submit, uint32_t min_complete, uint32_t flags) {
+        return word(syscall(SYS_io_uring_enter, fd, to_submit, min_complete, flags, zero(), word(0L)).intValue());
+    }
+
+    /**
+     * Register resources (such as buffers) with a ring.
+     *
+     * @return zero (or a positive value for some opcodes), or -1 on error (in {@code errno})
+     */
+    @Inline(ALWAYS)
+    @SafePoint(SafePointBehavior.ENTER)
+    @NoThrow
+    public static c_int io_uring_register(c_int fd, uint32_t opcode, ptr<?> arg, uint32_t nr_args) {
+        return word(syscall(SYS_io_uring_register, fd, opcode, arg, nr_args).intValue());
+    }
+
+    public static final class struct_io_sqring_offsets extends object {
+        public uint32_t head;
+        public uint32_t tail;
+        public uint32_t ring_mask;
+        public uint32_t ring_entries;
+        public uint32_t flags;
+        public uint32_t dropped;
+        public uint32_t array;
+    }
+
+    public static final class struct_io_cqring_offsets extends object {
+        public uint32_t head;
+        public uint32_t tail;
+        public uint32_t ring_mask;
+        public uint32_t ring_entries;
+        public uint32_t overflow;
+        public uint32_t cqes;
+    }
+
+    public static final class struct_io_uring_params extends object {
+        public uint32_t sq_entries;
+        public uint32_t cq_entries;
+        public uint32_t flags;
+        public uint32_t sq_thread_cpu;
+        public uint32_t sq_thread_idle;
+        public uint32_t features;
+        public uint32_t wq_fd;
+        public struct_io_sqring_offsets sq_off;
+        public struct_io_cqring_offsets cq_off;
+    }
+
+    public static final class struct_io_uring_sqe extends object {
+        public uint8_t opcode;
+        public uint8_t flags;
+        public uint16_t ioprio;
+        public int32_t fd;
+        public uint64_t off;
+        public uint64_t addr;
+        public uint32_t len;
+        public c_int rw_flags;
+        public uint64_t user_data;
+        public uint16_t buf_index;
+    }
+
+    public static final class struct_io_uring_cqe extends object {
+        public uint64_t user_data;
+        public int32_t res;
+        public uint32_t flags;
+    }
+
+    public static final off_t IORING_OFF_SQ_RING = constant();
+    public static final off_t IORING_OFF_CQ_RING = constant();
+    public static final off_t IORING_OFF_SQES = constant();
+
+    public static final uint32_t IORING_FEAT_SINGLE_MMAP = constant();
+    public static final uint32_t IORING_FEAT_NODROP = constant();
+
+    public static final uint32_t IORING_ENTER_GETEVENTS = constant();
+
+    public static final uint8_t IORING_OP_NOP = constant();
+    public static final uint8_t IORING_OP_READV = constant();
+    public static final uint8_t IORING_OP_WRITEV = constant();
+    public static final uint8_t IORING_OP_FSYNC = constant();
+    public static final uint8_t IORING_OP_READ_FIXED = constant();
+    public static final uint8_t IORING_OP_WRITE_FIXED = constant();
+    public static final uint8_t IORING_OP_READ = constant();
+    public static final uint8_t IORING_OP_WRITE = constant();
+
+    public static final uint32_t IORING_REGISTER_BUFFERS = constant();
+    public static final uint32_t IORING_UNREGISTER_BUFFERS = constant();
+}
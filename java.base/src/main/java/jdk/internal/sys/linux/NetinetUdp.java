@@ -0,0 +1,16 @@
+package jdk.internal.sys.linux;
+
+import static org.qbicc.runtime.CNative.*;
+
+/**
+ * Linux UDP socket options.
+ */
+@include("<netinet/udp.h>")
+public final class NetinetUdp {
+    private NetinetUdp() {}
+
+    /**
+     * The segment size for UDP generic segmentation offload (Linux 4.18 and later).
+     */
+    public static final c_int UDP_SEGMENT = constant();
+}
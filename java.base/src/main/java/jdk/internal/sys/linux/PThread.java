@@ -0,0 +1,17 @@
+package jdk.internal.sys.linux;
+
+import static jdk.internal.sys.posix.PThread.*;
+import static org.qbicc.runtime.CNative.*;
+
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * GNU extensions to POSIX threads.
+ */
+@include("<pthread.h>")
+@define(value = "_GNU_SOURCE")
+public final class PThread {
+    @SafePoint(SafePointBehavior.ALLOWED)
+    public static native c_int pthread_getattr_np(pthread_t thread, ptr<pthread_attr_t> attr);
+}
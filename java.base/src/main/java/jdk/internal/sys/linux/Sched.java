@@ -6,12 +6,17 @@ import static org.qbicc.runtime.stdc.Stddef.*;
 import static org.qbicc.runtime.stdc.Stdlib.*;
 import static org.qbicc.runtime.stdc.String.*;
 
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
 @SuppressWarnings("SpellCheckingInspection")
 @include("<sched.h>")
 @define(value = "_GNU_SOURCE")
 public class Sched {
+    @SafePoint(SafePointBehavior.ALLOWED)
     public static native c_int sched_setaffinity(pid_t pid, size_t cpusetsize, ptr<@c_const cpu_set_t> mask);
 
+    @SafePoint(SafePointBehavior.ALLOWED)
     public static native c_int sched_getaffinity(pid_t pid, size_t cpusetsize, ptr<cpu_set_t> mask);
 
     // These methods simulate the behavior of the corresponding glibc macros.
@@ -42,7 +47,7 @@ public class Sched {
     public static void CPU_CLR_S(size_t size, int cpu, ptr<cpu_set_t> set) {
         ptr<__cpu_mask> ptr = getMaskPtr(size, cpu, set);
         if (ptr != null) {
-            ptr.storeUnshared(word(ptr.loadUnshared().longValue() & 1L << getBitIdx(cpu)));
+            ptr.storeUnshared(word(ptr.loadUnshared().longValue() & ~(1L << getBitIdx(cpu))));
         }
     }
 
@@ -62,7 +67,7 @@ public class Sched {
     public static int CPU_COUNT_S(size_t size, ptr<cpu_set_t> set) {
         int total = 0;
         for (int i = 0; i < size.longValue() / sizeof(__cpu_mask.class).longValue(); i ++) {
-            total += Long.bitCount(getMaskPtr(size, i, set).loadUnshared().longValue());
+            total += Long.bitCount(getWordPtr(i, set).loadUnshared().longValue());
         }
         return total;
     }
@@ -72,7 +77,7 @@ public class Sched {
     }
     public static void CPU_AND_S(size_t size, ptr<cpu_set_t> dest, ptr<cpu_set_t> src1, ptr<cpu_set_t> src2) {
         for (int i = 0; i < size.longValue() / sizeof(__cpu_mask.class).longValue(); i ++) {
-            getMaskPtr(size, i, dest).storeUnshared(word(getMaskPtr(size, i, src1).loadUnshared().longValue() & getMaskPtr(size, i, src2).loadUnshared().longValue()));
+            getWordPtr(i, dest).storeUnshared(word(getWordPtr(i, src1).loadUnshared().longValue() & getWordPtr(i, src2).loadUnshared().longValue()));
         }
     }
 
@@ -81,7 +86,7 @@ public class Sched {
     }
     public static void CPU_OS_S(size_t size, ptr<cpu_set_t> dest, ptr<cpu_set_t> src1, ptr<cpu_set_t> src2) {
         for (int i = 0; i < size.longValue() / sizeof(__cpu_mask.class).longValue(); i ++) {
-            getMaskPtr(size, i, dest).storeUnshared(word(getMaskPtr(size, i, src1).loadUnshared().longValue() & getMaskPtr(size, i, src2).loadUnshared().longValue()));
+            getWordPtr(i, dest).storeUnshared(word(getWordPtr(i, src1).loadUnshared().longValue() | getWordPtr(i, src2).loadUnshared().longValue()));
         }
     }
 
@@ -90,7 +95,7 @@ public class Sched {
     }
     public static void CPU_XOR_S(size_t size, ptr<cpu_set_t> dest, ptr<cpu_set_t> src1, ptr<cpu_set_t> src2) {
         for (int i = 0; i < size.longValue() / sizeof(__cpu_mask.class).longValue(); i ++) {
-            getMaskPtr(size, i, dest).storeUnshared(word(getMaskPtr(size, i, src1).loadUnshared().longValue() & getMaskPtr(size, i, src2).loadUnshared().longValue()));
+            getWordPtr(i, dest).storeUnshared(word(getWordPtr(i, src1).loadUnshared().longValue() ^ getWordPtr(i, src2).loadUnshared().longValue()));
         }
     }
 
@@ -102,7 +107,7 @@ public class Sched {
     }
 
     public static size_t CPU_ALLOC_SIZE(int numCpus) {
-        return word(numCpus / sizeof(__cpu_mask.class).intValue());
+        return word((numCpus + BITS_PER_MASK - 1) / BITS_PER_MASK * sizeof(__cpu_mask.class).intValue());
     }
 
     public static ptr<cpu_set_t> CPU_ALLOC(int numCpus) {
@@ -120,20 +125,26 @@ public class Sched {
 
     // private support methods
 
+    private static final int BITS_PER_MASK = sizeof(__cpu_mask.class).intValue() << 3;
+
     private static ptr<__cpu_mask> getMaskPtr(size_t size, int cpu, ptr<cpu_set_t> set) {
         int wordIdx = getWordIdx(cpu);
-        if (wordIdx < size.intValue()) {
-            return addr_of(deref(set).__bits[wordIdx]);
+        if (wordIdx < size.intValue() / sizeof(__cpu_mask.class).intValue()) {
+            return getWordPtr(wordIdx, set);
         } else {
             throw new IllegalArgumentException("Invalid CPU index");
         }
     }
 
+    private static ptr<__cpu_mask> getWordPtr(int wordIdx, ptr<cpu_set_t> set) {
+        return addr_of(deref(set).__bits[wordIdx]);
+    }
+
     private static int getWordIdx(final int cpu) {
-        return cpu / sizeof(__cpu_mask.class).intValue();
+        return cpu / BITS_PER_MASK;
     }
 
     private static int getBitIdx(final int cpu) {
-        return cpu % sizeof(__cpu_mask.class).intValue();
+        return cpu % BITS_PER_MASK;
     }
 }
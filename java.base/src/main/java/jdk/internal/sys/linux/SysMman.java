@@ -0,0 +1,16 @@
+package jdk.internal.sys.linux;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stddef.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+
+/**
+ * Linux extensions to memory management.
+ */
+@include("<sys/mman.h>")
+@define(value = "_DEFAULT_SOURCE")
+public final class SysMman {
+    public static native c_int mincore(ptr<?> addr, size_t length, ptr<uint8_t> vec);
+
+    public static final c_int MAP_POPULATE = constant();
+}
@@ -0,0 +1,27 @@
+package jdk.internal.sys.linux;
+
+import static jdk.internal.sys.posix.SysSocket.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Time.*;
+
+/**
+ * Linux extensions to sockets.
+ */
+@include("<sys/socket.h>")
+@define(value = "_GNU_SOURCE")
+public final class SysSocket {
+    private SysSocket() {}
+
+    public static final class struct_mmsghdr extends object {
+        public struct_msghdr msg_hdr;
+        public unsigned_int msg_len;
+    }
+
+    public static native c_int recvmmsg(c_int fd, ptr<struct_mmsghdr> msgvec, unsigned_int vlen, c_int flags, ptr<struct_timespec> timeout);
+
+    public static native c_int sendmmsg(c_int fd, ptr<struct_mmsghdr> msgvec, unsigned_int vlen, c_int flags);
+
+    public static final c_int MSG_WAITFORONE = constant();
+
+    public static final c_int SO_DOMAIN = constant();
+}
@@ -10,4 +10,9 @@ public class SysSyscall {
     public static native c_long syscall(c_long number, object... args);
 
     public static final c_long SYS_futex = constant();
+    public static final c_long SYS_gettid = constant();
+    public static final c_long SYS_io_uring_setup = constant();
+    public static final c_long SYS_io_uring_enter = constant();
+    public static final c_long SYS_io_uring_register = constant();
+    public static final c_long SYS_userfaultfd = constant();
 }
@@ -4,6 +4,9 @@ import static org.qbicc.runtime.CNative.*;
 import static jdk.internal.sys.posix.SysTypes.*;
 import static jdk.internal.sys.posix.SysUio.*;
 
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
 /**
  *
  */
@@ -15,6 +18,10 @@ public final class SysUio {
 
     public static native ssize_t preadv2(c_int fd, ptr<@c_const struct_iovec> iov, c_int iovCnt, off_t offset, c_int flags);
 
+    @name("preadv2")
+    @SafePoint(SafePointBehavior.ALLOWED)
+    public static native ssize_t preadv2_sp(c_int fd, ptr<@c_const struct_iovec> iov, c_int iovCnt, off_t offset, c_int flags);
+
     public static native ssize_t pwritev2(c_int fd, ptr<@c_const struct_iovec> iov, c_int iovCnt, off_t offset, c_int flags);
 
     public static final c_int RWF_DSYNC = constant();
@@ -0,0 +1,26 @@
+package jdk.internal.sys.linux;
+
+import static jdk.internal.sys.posix.Ucontext.*;
+import static org.qbicc.runtime.CNative.*;
+
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * The context switching functions which were removed in POSIX.1-2008, but which glibc still provides.
+ */
+@include("<ucontext.h>")
+public final class Ucontext {
+    private Ucontext() {}
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    public static native void makecontext(ptr<ucontext_t> ucp, ptr<function<context_start>> func, c_int argc, object... args);
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    public static native c_int swapcontext(@restrict ptr<ucontext_t> oucp, @restrict ptr<@c_const ucontext_t> ucp);
+
+    @FunctionalInterface
+    public interface context_start {
+        void run();
+    }
+}
@@ -1,7 +1,13 @@
 package jdk.internal.sys.linux;
 
+import static jdk.internal.sys.linux.SysSyscall.*;
+import static jdk.internal.sys.posix.SysTypes.*;
 import static org.qbicc.runtime.CNative.*;
 
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
 /**
  *
  */
@@ -13,6 +19,18 @@ public final class Unistd {
 
     public static native c_int dup3(c_int fd1, c_int fd2, c_int flags);
 
+    /**
+     * Get the kernel thread ID of the calling thread.
+     *
+     * @return the thread ID
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static pid_t gettid() {
+        // older versions of glibc have no wrapper
+        return word(syscall(SYS_gettid).intValue());
+    }
+
     public static final c_int _SC_PHYS_PAGES = constant();
     public static final c_int _SC_AVPHYS_PAGES = constant();
     public static final c_int _SC_NPROCESSORS_CONF = constant();
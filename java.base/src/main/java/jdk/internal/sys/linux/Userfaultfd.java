@@ -0,0 +1,70 @@
+package jdk.internal.sys.linux;
+
+import static jdk.internal.sys.linux.SysSyscall.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.InlineCondition.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+
+import org.qbicc.runtime.Inline;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * Support for {@code userfaultfd(2)} on Linux. See the manpages for more information.
+ * <p>
+ * Only write protection is given here, in the asynchronous mode which is available since Linux 6.7: a write to a
+ * protected page does not raise a fault, but only clears the protection of the page, which is reported by
+ * {@code /proc/self/pagemap}. So the pages of a range which have been written since it was last protected can be
+ * found, much like with soft-dirty tracking, but without having to reset the whole process.
+ */
+@include("<linux/userfaultfd.h>")
+public final class Userfaultfd {
+    private Userfaultfd() {}
+
+    /**
+     * Create a userfault file descriptor.
+     *
+     * @param flags the flags ({@code O_CLOEXEC}, {@code O_NONBLOCK}, {@link #UFFD_USER_MODE_ONLY})
+     * @return the file descriptor, or -1 on error (in {@code errno})
+     */
+    @Inline(ALWAYS)
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static c_int userfaultfd(c_int flags) {
+        // no glibc wrapper before 2.36
+        return word(syscall(SYS_userfaultfd, flags).intValue());
+    }
+
+    public static final class struct_uffdio_api extends object {
+        public uint64_t api;
+        public uint64_t features;
+        public uint64_t ioctls;
+    }
+
+    public static final class struct_uffdio_range extends object {
+        public uint64_t start;
+        public uint64_t len;
+    }
+
+    public static final class struct_uffdio_register extends object {
+        public struct_uffdio_range range;
+        public uint64_t mode;
+        public uint64_t ioctls;
+    }
+
+    public static final class struct_uffdio_writeprotect extends object {
+        public struct_uffdio_range range;
+        public uint64_t mode;
+    }
+
+    public static final uint64_t UFFD_API = constant();
+    public static final c_int UFFD_USER_MODE_ONLY = constant();
+    public static final uint64_t UFFD_FEATURE_WP_UNPOPULATED = constant();
+    public static final uint64_t UFFD_FEATURE_WP_ASYNC = constant();
+    public static final unsigned_long UFFDIO_API = constant();
+    public static final unsigned_long UFFDIO_REGISTER = constant();
+    public static final unsigned_long UFFDIO_WRITEPROTECT = constant();
+    public static final uint64_t UFFDIO_REGISTER_MODE_WP = constant();
+    public static final uint64_t UFFDIO_WRITEPROTECT_MODE_WP = constant();
+}
@@ -90,9 +90,9 @@ public final class Signal {
     }
 
     public static final class stack_t extends object {
-        ptr<?> ss_sp;
-        c_int ss_flags;
-        size_t ss_size;
+        public ptr<?> ss_sp;
+        public c_int ss_flags;
+        public size_t ss_size;
     }
 
     // si_code values
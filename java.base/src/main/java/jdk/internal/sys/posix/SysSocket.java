@@ -83,6 +83,8 @@ public final class SysSocket {
     public static final c_int MSG_PEEK = constant();
     public static final c_int MSG_TRUNC = constant();
     public static final c_int MSG_WAITALL = constant();
+    // NOTE: Not POSIX but widely supported
+    public static final c_int MSG_DONTWAIT = constant();
 
     public static final c_int AF_INET = constant();
     public static final c_int AF_INET6 = constant();
@@ -116,4 +118,9 @@ public final class SysSocket {
 
     @define("_GNU_SOURCE")
     public static final c_int SO_REUSEPORT = constant();
+
+    @define("_GNU_SOURCE")
+    public static final c_int SOCK_NONBLOCK = constant();
+    @define("_GNU_SOURCE")
+    public static final c_int SOCK_CLOEXEC = constant();
 }
@@ -87,6 +87,9 @@ public final class Unistd {
     @SafePoint(SafePointBehavior.ALLOWED)
     public static native ssize_t read_sp(c_int fd, ptr<?> buf, size_t count);
 
+    @SafePoint(SafePointBehavior.ALLOWED)
+    public static native ssize_t pread(c_int fd, ptr<?> buf, size_t count, off_t offset);
+
     public static final c_int R_OK = constant();
     public static final c_int W_OK = constant();
     public static final c_int X_OK = constant();
@@ -0,0 +1,191 @@
+package jdk.internal.thread;
+
+import static jdk.internal.sys.linux.Sched.*;
+import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.SysTypes.*;
+import static jdk.internal.thread.ThreadNative.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.errno;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import org.qbicc.runtime.Build;
+
+/**
+ * The CPU affinity of threads, which is only supported on Linux.
+ * <p>
+ * A set of CPUs is given as a bit mask of CPU numbers, laid out like the result of {@link java.util.BitSet#toLongArray()}.
+ * CPU numbers are limited to those which fit in a {@code cpu_set_t}.
+ */
+public final class CpuAffinity {
+    /**
+     * The number of CPU numbers which can be given in a set.
+     */
+    public static final int MAX_CPUS = Build.Target.isLinux() ? sizeof(cpu_set_t.class).intValue() << 3 : 0;
+
+    /**
+     * The CPUs to which the GC threads are bound, if {@link #gcCpusSet} is set.
+     */
+    @SuppressWarnings("unused")
+    private static cpu_set_t gcCpus;
+    private static boolean gcCpusSet;
+
+    private CpuAffinity() {}
+
+    /**
+     * Determine whether thread CPU affinity is supported on this platform.
+     *
+     * @return {@code true} if it is supported
+     */
+    public static boolean isSupported() {
+        return Build.Target.isLinux();
+    }
+
+    /**
+     * Get the set of CPUs on which the given thread may run.
+     *
+     * @param thread the thread (must not be {@code null})
+     * @return the CPU mask (not {@code null})
+     * @throws IllegalThreadStateException if the thread is not running
+     * @throws UnsupportedOperationException if affinity is not supported
+     */
+    public static long[] get(Thread thread) {
+        if (! isSupported()) {
+            throw new UnsupportedOperationException("CPU affinity is not supported on this platform");
+        }
+        cpu_set_t set = auto();
+        if (sched_getaffinity(tidOf(thread), sizeof(set), addr_of(set)).intValue() == -1) {
+            throw error(errno);
+        }
+        final long[] mask = new long[MAX_CPUS >>> 6];
+        for (int cpu = 0; cpu < MAX_CPUS; cpu ++) {
+            if (CPU_ISSET(cpu, addr_of(set))) {
+                mask[cpu >>> 6] |= 1L << cpu;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Restrict the given thread to run only on the given set of CPUs.
+     *
+     * @param thread the thread (must not be {@code null})
+     * @param mask the CPU mask (must not be {@code null})
+     * @throws IllegalArgumentException if the set is empty, names a CPU beyond {@link #MAX_CPUS},
+     *      or contains no CPU which the process may use
+     * @throws IllegalThreadStateException if the thread is not running
+     * @throws UnsupportedOperationException if affinity is not supported
+     */
+    public static void set(Thread thread, long[] mask) {
+        if (! isSupported()) {
+            throw new UnsupportedOperationException("CPU affinity is not supported on this platform");
+        }
+        cpu_set_t set = auto();
+        CPU_ZERO(addr_of(set));
+        boolean empty = true;
+        for (int i = 0; i < mask.length; i ++) {
+            long bits = mask[i];
+            while (bits != 0) {
+                final int cpu = (i << 6) + Long.numberOfTrailingZeros(bits);
+                if (cpu >= MAX_CPUS) {
+                    throw new IllegalArgumentException("CPU " + cpu + " is out of range");
+                }
+                CPU_SET(cpu, addr_of(set));
+                empty = false;
+                bits &= bits - 1;
+            }
+        }
+        if (empty) {
+            throw new IllegalArgumentException("Empty CPU set");
+        }
+        if (sched_setaffinity(tidOf(thread), sizeof(set), addr_of(set)).intValue() == -1) {
+            throw error(errno);
+        }
+    }
+
+    /**
+     * Set the CPUs to which the GC threads are bound, from a list like {@code 0-3,8}.
+     * Must be called before the GC is started.
+     *
+     * @param list the CPU list (must not be {@code null})
+     * @return {@code true} if the list is valid, or {@code false} if it is not, or if affinity is not supported
+     */
+    public static boolean setGcCpus(ptr<@c_const c_char> list) {
+        if (! isSupported() || ! parseCpuList(list, addr_of(gcCpus))) {
+            return false;
+        }
+        gcCpusSet = true;
+        return true;
+    }
+
+    /**
+     * Bind the calling GC thread to the CPUs given by {@link #setGcCpus}, if any.
+     * Failure is not fatal, because the GC still works wherever it runs.
+     */
+    public static void applyGcCpus() {
+        if (isSupported() && gcCpusSet) {
+            // thread ID zero is the calling thread
+            sched_setaffinity(word(0), sizeof(gcCpus), addr_of(gcCpus));
+        }
+    }
+
+    private static boolean parseCpuList(ptr<@c_const c_char> list, ptr<cpu_set_t> set) {
+        CPU_ZERO(set);
+        ptr<c_char> pos = list.cast();
+        ptr<c_char> end = auto();
+        for (;;) {
+            final long first = strtol(pos, addr_of(end), word(10)).longValue();
+            if (end == pos || first < 0 || first >= MAX_CPUS) {
+                return false;
+            }
+            long last = first;
+            pos = end;
+            if (pos.loadUnshared(uint8_t.class).intValue() == '-') {
+                last = strtol(pos.plus(1), addr_of(end), word(10)).longValue();
+                if (end == pos.plus(1) || last < first || last >= MAX_CPUS) {
+                    return false;
+                }
+                pos = end;
+            }
+            for (long cpu = first; cpu <= last; cpu ++) {
+                CPU_SET((int) cpu, set);
+            }
+            final int next = pos.loadUnshared(uint8_t.class).intValue();
+            if (next == 0) {
+                return true;
+            } else if (next != ',') {
+                return false;
+            }
+            pos = pos.plus(1);
+        }
+    }
+
+    /**
+     * Get the kernel thread ID of a running thread.
+     * The thread ID is used instead of the {@code pthread_t}, because the latter may refer to freed memory as soon as
+     * the thread exits, whereas a stale thread ID is only an error ({@code ESRCH}) until the kernel reuses it.
+     */
+    private static pid_t tidOf(Thread thread) {
+        final ptr<thread_native> threadNativePtr = getThreadNativePtr(thread);
+        if (threadNativePtr.isNull()
+            || (addr_of(deref(threadNativePtr).state).loadVolatile().intValue() & (STATE_ALIVE | STATE_EXITED)) != STATE_ALIVE) {
+            throw new IllegalThreadStateException("Thread is not running");
+        }
+        final int tid = addr_of(deref(threadNativePtr).tid).loadAcquire().intValue();
+        if (tid == 0) {
+            throw new IllegalThreadStateException("Thread is not running");
+        }
+        return word(tid);
+    }
+
+    private static RuntimeException error(int res) {
+        if (res == ESRCH.intValue()) {
+            return new IllegalThreadStateException("Thread is not running");
+        } else if (res == EINVAL.intValue()) {
+            return new IllegalArgumentException("No usable CPU in set");
+        } else {
+            return new IllegalStateException(utf8zToJavaString(strerror(word(res)).cast()));
+        }
+    }
+}
@@ -0,0 +1,1028 @@
+package jdk.internal.thread;
+
+import static jdk.internal.sys.linux.EPoll.*;
+import static jdk.internal.sys.linux.EventFD.*;
+import static jdk.internal.sys.linux.Ucontext.*;
+import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.PThread.*;
+import static jdk.internal.sys.posix.Signal.*;
+import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.sys.posix.Ucontext.*;
+import static jdk.internal.sys.posix.Unistd.*;
+import static jdk.internal.thread.ThreadNative.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdio.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.unwind.LibUnwind.*;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jdk.internal.access.JavaIOFileDescriptorAccess;
+import jdk.internal.access.SharedSecrets;
+import jdk.internal.gc.Gc;
+import org.qbicc.runtime.Build;
+import org.qbicc.runtime.Hidden;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * Lightweight threads, which run on a small pool of carrier threads, each on its own stack.
+ * <p>
+ * A fiber runs on the carrier which it was started on for its whole life. While a fiber is parked with {@link #park},
+ * or with {@code LockSupport.park} (see {@link #parkThread}), its carrier runs its other fibers. Blocking socket
+ * operations (reads, writes, accepts, connects and polls with or without a timeout) do so too: the fiber parks until
+ * the socket is ready instead of blocking its carrier (see {@link #awaitReadable} and {@link #awaitWritable}). A
+ * fiber which is waiting for a socket is woken, and its wait fails, when the socket is closed by another thread (see
+ * {@link #cancelAwait}).
+ * <p>
+ * Fibers are not threads: code which runs on a fiber sees its carrier as the current thread. So a lock which is held
+ * by a fiber while it parks may be entered by another fiber of the same carrier, an unpark of the carrier thread
+ * wakes all of its fibers which are parked with {@code LockSupport.park}, and anything else which blocks the current
+ * thread (such as {@code Object.wait}, a contended monitor, or a contended lock of a socket) blocks the carrier
+ * along with all of its fibers. In particular, the locks of a socket do not keep two fibers of the same carrier from
+ * using it at once, so a socket may not be read, or written, by two fibers of the same carrier at the same time (see
+ * {@link #beginIo}).
+ * <p>
+ * Fiber stacks are carved from large reservations of address space, rather than each being a mapping of its own, so
+ * that fibers do not use up the memory mappings which a process may have ({@code vm.max_map_count}, which is 65530 by
+ * default). So there are no guard pages: instead, the lowest {@link #RED_ZONE_SIZE} bytes of each stack are never
+ * used, and each time a fiber stops running, the stack pointer and a canary at the top of the red zone are checked,
+ * and the process is aborted if the stack has overflowed. The kernel only commits the pages of a stack as they are
+ * first touched, so a fiber which only uses a few kilobytes of its stack only costs a few kilobytes of memory. The
+ * stacks of finished fibers are reused; the memory of those beyond the first {@link #STACKS_RETAINED} is given back
+ * to the kernel, but their address space is kept for reuse.
+ * <p>
+ * The stack of each fiber is described by a {@link fiber_native} structure in the list of its carrier, along with
+ * the carrier thread's own stack. The GC walks the stack of each entry which is not running from the context which
+ * was saved when it last stopped running, just as it walks the stack of a thread from the context which was saved
+ * when it entered its safepoint.
+ * <p>
+ * Fibers are only supported on Linux.
+ */
+public final class Fiber {
+    /**
+     * The usable size of each fiber stack.
+     * The build-time value is taken from the {@code qbicc.rt.fiber.stack-size} property of the build (in bytes).
+     */
+    private static final long STACK_SIZE = Math.max(MIN_STACK_SIZE, Long.getLong("qbicc.rt.fiber.stack-size", 256L << 10).longValue());
+    /**
+     * The size of the lowest part of each fiber stack, which is never used unless the stack overflows.
+     */
+    private static final long RED_ZONE_SIZE = 4096;
+    /**
+     * The value at the top of the red zone of each fiber stack, where an overflow of the stack writes first.
+     */
+    private static final long STACK_CANARY = 0x5AFE_F1BE_85AC_CA11L;
+    /**
+     * The number of fiber stacks which are carved from each reservation of address space.
+     */
+    private static final int STACKS_PER_RESERVATION = 256;
+    /**
+     * The most stacks of finished fibers which keep their memory for reuse.
+     */
+    private static final int STACKS_RETAINED = 64;
+    /**
+     * The most fibers which a carrier runs before it checks for I/O readiness again.
+     */
+    private static final int RUN_BUDGET = 256;
+    /**
+     * The most I/O events which a carrier handles at once.
+     */
+    private static final int EVENT_COUNT = 64;
+
+    // fiber states
+
+    /**
+     * The fiber is in its carrier's run queue.
+     */
+    private static final int STATE_READY = 0;
+    /**
+     * The fiber is running on its carrier.
+     */
+    private static final int STATE_RUNNING = 1;
+    /**
+     * The fiber is parking, but its carrier has not yet switched away from it.
+     */
+    private static final int STATE_PARKING = 2;
+    /**
+     * The fiber is parked.
+     */
+    private static final int STATE_PARKED = 3;
+    /**
+     * The fiber has finished.
+     */
+    private static final int STATE_DONE = 4;
+    private static final int STATE_MASK = 0xff;
+    /**
+     * The fiber was unparked while it was not parked, so its next park returns immediately.
+     */
+    private static final int STATE_PERMIT = 0x100;
+
+    private static final JavaIOFileDescriptorAccess fdAccess = SharedSecrets.getJavaIOFileDescriptorAccess();
+
+    // the pool of fiber stacks, which is guarded by pool_mutex
+
+    @SuppressWarnings("unused")
+    private static final pthread_mutex_t pool_mutex = zero();
+    /**
+     * The structures of finished fibers, along with their stacks, linked by their {@code next} fields.
+     */
+    private static ptr<fiber_native> freeFibers;
+    private static int freeCount;
+    /**
+     * The next unused stack of the latest reservation of address space.
+     */
+    private static ptr<c_char> nextStack;
+    private static int unusedStacks;
+
+    private static final Object carrierLock = new Object();
+    private static volatile Carrier[] carriers;
+    @SuppressWarnings("unused")
+    private static volatile int nextCarrier;
+
+    private final Runnable task;
+    private final Carrier carrier;
+    private final AtomicInteger state = new AtomicInteger(STATE_READY);
+    /**
+     * The native state of this fiber, or {@code null} once it has finished. Only accessed by the carrier.
+     */
+    private ptr<fiber_native> fiberNativePtr;
+    /**
+     * Set when the file descriptor which this fiber waits for is closed. Only accessed by the carrier.
+     */
+    private boolean closed;
+    /**
+     * The time ({@link System#nanoTime}) until which this fiber is parked while it is in its carrier's timers, and the
+     * sequence number which orders it among fibers with the same deadline. Only accessed by the carrier.
+     */
+    private long deadline;
+    private long timerSeq;
+    /**
+     * The number of unparks of the carrier thread which this fiber has seen; see {@link #parkThread}.
+     * Only accessed by the carrier.
+     */
+    private int seenUnparks;
+
+    private Fiber(Runnable task, Carrier carrier, ptr<fiber_native> fiberNativePtr) {
+        this.task = task;
+        this.carrier = carrier;
+        this.fiberNativePtr = fiberNativePtr;
+        this.seenUnparks = carrier.threadUnparks.get();
+    }
+
+    @constructor
+    @export
+    public static void init_fiber_pool_mutex() {
+        // initialize the mutex at early run time
+        pthread_mutex_init(addr_of(pool_mutex), zero());
+    }
+
+    /**
+     * Determine whether fibers are supported on this platform.
+     *
+     * @return {@code true} if they are supported
+     */
+    public static boolean isSupported() {
+        return Build.Target.isLinux();
+    }
+
+    /**
+     * Start a fiber which runs the given task on one of the carrier threads.
+     * The carrier threads are started along with the first fiber, one for each available processor.
+     *
+     * @param task the task to run (must not be {@code null})
+     * @return the new fiber (not {@code null})
+     * @throws OutOfMemoryError if the fiber stack could not be allocated
+     * @throws UnsupportedOperationException if fibers are not supported on this platform
+     */
+    public static Fiber start(Runnable task) {
+        Objects.requireNonNull(task, "task");
+        if (! isSupported()) {
+            throw new UnsupportedOperationException("Fibers are not supported on this platform");
+        }
+        final Carrier[] carriers = carriers();
+        final int next = addr_of(nextCarrier).getAndAdd(word(1)).intValue();
+        final Carrier carrier = carriers[Integer.remainderUnsigned(next, carriers.length)];
+        final Fiber fiber = new Fiber(task, carrier, allocate());
+        carrier.submit(fiber);
+        return fiber;
+    }
+
+    /**
+     * Get the fiber which is running on the current thread.
+     *
+     * @return the current fiber, or {@code null} if the current thread is not running a fiber
+     */
+    public static Fiber current() {
+        final ptr<fiber_native> fiberNativePtr = deref(currentThreadNativePtr()).fiber;
+        if (fiberNativePtr.isNull()) {
+            return null;
+        }
+        final reference<Fiber> ref = deref(fiberNativePtr).ref;
+        return ref == null ? null : ref.toObject();
+    }
+
+    /**
+     * Park the current fiber until it is unparked, unless it was unparked since it last parked.
+     * Like {@code LockSupport.park}, this method may return for no reason, so it should be called in a loop.
+     *
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void park() {
+        final Fiber fiber = current();
+        if (fiber == null) {
+            throw new IllegalStateException("Not running on a fiber");
+        }
+        parkFiber(fiber, false, 0);
+    }
+
+    /**
+     * Park the current fiber like {@link #park}, but for no longer than the given time.
+     *
+     * @param nanos the longest time to park for, in nanoseconds; if it is not positive, this method returns at once
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void parkNanos(long nanos) {
+        final Fiber fiber = current();
+        if (fiber == null) {
+            throw new IllegalStateException("Not running on a fiber");
+        }
+        if (nanos > 0) {
+            parkFiber(fiber, true, System.nanoTime() + nanos);
+        }
+    }
+
+    /**
+     * Park the current fiber on behalf of {@code LockSupport.park}, which parks the current thread. The current thread
+     * is the carrier, which all of its fibers share, so an unpark of the carrier thread wakes every fiber of the carrier
+     * which is parked this way, and makes the next such park of each of its other fibers return at once. So no unpark
+     * is lost, but there are spurious wakeups, which {@code LockSupport.park} allows.
+     *
+     * @param isAbsolute {@code true} if {@code time} is a deadline in milliseconds since the epoch, or {@code false} if
+     *      it is a timeout in nanoseconds, where zero means no timeout
+     * @param time the deadline or the timeout
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void parkThread(boolean isAbsolute, long time) {
+        final Fiber fiber = current();
+        if (fiber == null) {
+            throw new IllegalStateException("Not running on a fiber");
+        }
+        final Carrier carrier = fiber.carrier;
+        final int unparks = carrier.threadUnparks.get();
+        if (unparks == fiber.seenUnparks) {
+            final long deadline;
+            if (isAbsolute) {
+                final long millis = time - System.currentTimeMillis();
+                if (millis <= 0) {
+                    return;
+                }
+                deadline = System.nanoTime() + millis * 1_000_000;
+            } else if (time < 0) {
+                return;
+            } else {
+                deadline = System.nanoTime() + time;
+            }
+            carrier.threadParked.add(fiber);
+            // an unpark which came before we were added must not be missed
+            if (carrier.threadUnparks.get() == unparks) {
+                parkFiber(fiber, isAbsolute || time != 0, deadline);
+            }
+            carrier.threadParked.remove(fiber);
+        }
+        fiber.seenUnparks = carrier.threadUnparks.get();
+    }
+
+    /**
+     * Wake the fibers of the given thread which are parked with {@code LockSupport.park}, if it is a carrier.
+     * May be called from any thread.
+     *
+     * @param thread the thread which is unparked (must not be {@code null})
+     * @return {@code true} if the thread is a carrier, or {@code false} if it is not
+     */
+    public static boolean unparkThread(Thread thread) {
+        if (! (thread instanceof Carrier)) {
+            return false;
+        }
+        final Carrier carrier = (Carrier) thread;
+        carrier.threadUnparks.incrementAndGet();
+        for (Fiber fiber : carrier.threadParked) {
+            fiber.unpark();
+        }
+        return true;
+    }
+
+    private static void parkFiber(Fiber fiber, boolean timed, long deadline) {
+        final AtomicInteger state = fiber.state;
+        for (;;) {
+            final int oldVal = state.get();
+            if ((oldVal & STATE_PERMIT) != 0) {
+                // consume the permit and return at once
+                if (state.compareAndSet(oldVal, oldVal & ~STATE_PERMIT)) {
+                    return;
+                }
+            } else if (state.compareAndSet(oldVal, STATE_PARKING)) {
+                break;
+            }
+        }
+        final Carrier carrier = fiber.carrier;
+        if (timed) {
+            fiber.deadline = deadline;
+            fiber.timerSeq = carrier.timerSeq ++;
+            carrier.timers.add(fiber);
+        }
+        // the carrier finishes parking us once we are off of our stack
+        suspend();
+        if (timed) {
+            // we may have been unparked before our time was up
+            carrier.timers.remove(fiber);
+        }
+    }
+
+    private static int compareDeadlines(Fiber a, Fiber b) {
+        final int res = Long.compare(a.deadline - b.deadline, 0);
+        return res != 0 ? res : Long.compare(a.timerSeq, b.timerSeq);
+    }
+
+    /**
+     * Unpark this fiber if it is parked, or else make its next park return immediately.
+     * May be called from any thread.
+     */
+    public void unpark() {
+        final AtomicInteger state = this.state;
+        for (;;) {
+            final int oldVal = state.get();
+            if ((oldVal & STATE_PERMIT) != 0 || (oldVal & STATE_MASK) == STATE_DONE) {
+                return;
+            }
+            if ((oldVal & STATE_MASK) == STATE_PARKED) {
+                if (state.compareAndSet(oldVal, STATE_READY)) {
+                    carrier.submit(this);
+                    return;
+                }
+            } else if (state.compareAndSet(oldVal, oldVal | STATE_PERMIT)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Determine whether this fiber has finished.
+     *
+     * @return {@code true} if it has finished
+     */
+    public boolean isDone() {
+        return (state.get() & STATE_MASK) == STATE_DONE;
+    }
+
+    /**
+     * Park the current fiber until the given file descriptor may be read without blocking, or until the fiber is
+     * unparked.
+     *
+     * @param fd the file descriptor, which must support {@code epoll} (must not be {@code null})
+     * @throws AsynchronousCloseException if the file descriptor was closed while the fiber was waiting
+     * @throws IOException if the file descriptor cannot be polled
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void awaitReadable(FileDescriptor fd) throws IOException {
+        await(fd, false, false, 0);
+    }
+
+    /**
+     * Park the current fiber until the given file descriptor may be read without blocking, until the fiber is
+     * unparked, or until the given time has passed.
+     *
+     * @param fd the file descriptor, which must support {@code epoll} (must not be {@code null})
+     * @param nanos the longest time to wait for, in nanoseconds; if it is not positive, this method returns at once
+     * @throws AsynchronousCloseException if the file descriptor was closed while the fiber was waiting
+     * @throws IOException if the file descriptor cannot be polled
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void awaitReadable(FileDescriptor fd, long nanos) throws IOException {
+        if (nanos > 0) {
+            await(fd, false, true, System.nanoTime() + nanos);
+        }
+    }
+
+    /**
+     * Park the current fiber until the given file descriptor may be written without blocking, or until the fiber is
+     * unparked.
+     *
+     * @param fd the file descriptor, which must support {@code epoll} (must not be {@code null})
+     * @throws AsynchronousCloseException if the file descriptor was closed while the fiber was waiting
+     * @throws IOException if the file descriptor cannot be polled
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void awaitWritable(FileDescriptor fd) throws IOException {
+        await(fd, true, false, 0);
+    }
+
+    /**
+     * Park the current fiber until the given file descriptor may be written without blocking, until the fiber is
+     * unparked, or until the given time has passed.
+     *
+     * @param fd the file descriptor, which must support {@code epoll} (must not be {@code null})
+     * @param nanos the longest time to wait for, in nanoseconds; if it is not positive, this method returns at once
+     * @throws AsynchronousCloseException if the file descriptor was closed while the fiber was waiting
+     * @throws IOException if the file descriptor cannot be polled
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static void awaitWritable(FileDescriptor fd, long nanos) throws IOException {
+        if (nanos > 0) {
+            await(fd, true, true, System.nanoTime() + nanos);
+        }
+    }
+
+    private static void await(FileDescriptor fd, boolean write, boolean timed, long deadline) throws IOException {
+        final Fiber fiber = current();
+        if (fiber == null) {
+            throw new IllegalStateException("Not running on a fiber");
+        }
+        final Carrier carrier = fiber.carrier;
+        // the number is lost if the file descriptor is closed
+        final int fdVal = fdAccess.get(fd);
+        carrier.register(fdVal, fd, write, fiber);
+        parkFiber(fiber, timed, deadline);
+        // we may have been unparked for another reason
+        carrier.deregister(fdVal, fd, write, fiber);
+        if (fiber.closed) {
+            fiber.closed = false;
+            throw new AsynchronousCloseException();
+        }
+    }
+
+    /**
+     * Wake every fiber which is waiting for the given file descriptor, on any carrier, and make its wait fail.
+     * Must be called before a file descriptor which fibers may be waiting for is closed, and after it has been made to
+     * refer to another file when it is closed in two steps. Otherwise the waiters would never be woken, because the
+     * kernel drops the {@code epoll} registrations of a file silently when it is closed.
+     * May be called from any thread.
+     *
+     * @param fd the file descriptor (must not be {@code null})
+     */
+    public static void cancelAwait(FileDescriptor fd) {
+        final Carrier[] carriers = Fiber.carriers;
+        if (carriers != null) {
+            final Closing closing = new Closing(fdAccess.get(fd), fd);
+            for (Carrier carrier : carriers) {
+                carrier.cancel(closing);
+            }
+        }
+    }
+
+    /**
+     * Claim a file descriptor for reading or for writing by the current fiber, for the length of one operation.
+     * Fibers run as their carrier thread, so the locks of a socket, which exclude other threads, do not exclude the
+     * other fibers of the same carrier; this check fails instead of letting their operations interleave.
+     * Each successful call must be followed by a call to {@link #endIo}.
+     *
+     * @param fd the file descriptor (must not be {@code null})
+     * @param write {@code true} to claim the file descriptor for writing, or {@code false} to claim it for reading
+     * @return the number of the file descriptor, to be given to {@link #endIo}
+     * @throws IOException if another fiber of the same carrier has claimed the file descriptor in the same direction
+     * @throws IllegalStateException if the current thread is not running a fiber
+     */
+    public static int beginIo(FileDescriptor fd, boolean write) throws IOException {
+        final Fiber fiber = current();
+        if (fiber == null) {
+            throw new IllegalStateException("Not running on a fiber");
+        }
+        final HashMap<Integer, Fiber> users = write ? fiber.carrier.writers : fiber.carrier.readers;
+        final int fdVal = fdAccess.get(fd);
+        final Fiber user = users.putIfAbsent(Integer.valueOf(fdVal), fiber);
+        if (user != null && user != fiber) {
+            throw new IOException(write ? "Socket is being written by another fiber" : "Socket is being read by another fiber");
+        }
+        return fdVal;
+    }
+
+    /**
+     * Release a file descriptor which was claimed by {@link #beginIo}.
+     *
+     * @param fdVal the number of the file descriptor, which was returned by {@link #beginIo}
+     * @param write {@code true} if the file descriptor was claimed for writing, or {@code false} if it was claimed for
+     *      reading
+     */
+    public static void endIo(int fdVal, boolean write) {
+        final Fiber fiber = current();
+        if (fiber != null) {
+            final HashMap<Integer, Fiber> users = write ? fiber.carrier.writers : fiber.carrier.readers;
+            users.remove(Integer.valueOf(fdVal), fiber);
+        }
+    }
+
+    private static Carrier[] carriers() {
+        Carrier[] carriers = Fiber.carriers;
+        if (carriers == null) {
+            synchronized (carrierLock) {
+                carriers = Fiber.carriers;
+                if (carriers == null) {
+                    final int count = Runtime.getRuntime().availableProcessors();
+                    carriers = new Carrier[count];
+                    for (int i = 0; i < count; i ++) {
+                        final Carrier carrier = new Carrier("Fiber carrier " + i);
+                        carrier.setDaemon(true);
+                        carrier.start();
+                        carriers[i] = carrier;
+                    }
+                    Fiber.carriers = carriers;
+                }
+            }
+        }
+        return carriers;
+    }
+
+    private static ptr<fiber_native> allocate() {
+        final long pageSize = Gc.getPageSize();
+        final long size = STACK_SIZE + RED_ZONE_SIZE + pageSize - 1 & ~(pageSize - 1);
+        ptr<fiber_native> fiberNativePtr = takeFree();
+        ptr<c_char> stack;
+        if (fiberNativePtr.isNonNull()) {
+            stack = deref(fiberNativePtr).stack;
+        } else {
+            fiberNativePtr = malloc(sizeof(fiber_native.class));
+            if (fiberNativePtr.isNull()) {
+                throw new OutOfMemoryError("Cannot allocate fiber");
+            }
+            stack = takeStack(size);
+            if (stack.isNull()) {
+                free(fiberNativePtr);
+                throw new OutOfMemoryError("Cannot allocate fiber stack");
+            }
+        }
+        fiberNativePtr.storeUnshared(zero());
+        deref(fiberNativePtr).stack = stack;
+        deref(fiberNativePtr).stack_size = size;
+        // the stack grows down towards its red zone
+        final ptr<int64_t> canaryPtr = stack.plus(RED_ZONE_SIZE - Long.BYTES).cast();
+        canaryPtr.storePlain(word(STACK_CANARY));
+        final ptr<ucontext_t> contextPtr = addr_of(deref(fiberNativePtr).context);
+        if (getcontext(contextPtr).isNonZero()) {
+            abort();
+        }
+        deref(contextPtr).uc_link = zero();
+        final ptr<stack_t> stackPtr = addr_of(deref(contextPtr).uc_stack);
+        deref(stackPtr).ss_sp = stack.plus(RED_ZONE_SIZE);
+        deref(stackPtr).ss_size = word(size - RED_ZONE_SIZE);
+        makecontext(contextPtr, addr_of(function.of(Fiber::runFiberBody)), zero());
+        return fiberNativePtr;
+    }
+
+    /**
+     * Take the structure of a finished fiber, along with its stack, from the pool.
+     *
+     * @return the structure, or {@code null} if there are none
+     */
+    private static ptr<fiber_native> takeFree() {
+        pthread_mutex_lock(addr_of(pool_mutex));
+        final ptr<fiber_native> fiberNativePtr = freeFibers;
+        if (fiberNativePtr.isNonNull()) {
+            freeFibers = deref(fiberNativePtr).next;
+            freeCount --;
+        }
+        pthread_mutex_unlock(addr_of(pool_mutex));
+        return fiberNativePtr;
+    }
+
+    /**
+     * Carve a new stack from the latest reservation of address space, making a new reservation if it is used up.
+     *
+     * @param size the size of the stack, which is a multiple of the page size
+     * @return the lowest address of the stack, or {@code null} if no address space could be reserved
+     */
+    private static ptr<c_char> takeStack(long size) {
+        pthread_mutex_lock(addr_of(pool_mutex));
+        if (unusedStacks == 0) {
+            final ptr<c_char> reservation = mmap(zero(), word(size * STACKS_PER_RESERVATION), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_PRIVATE.intValue() | MAP_ANON.intValue() | MAP_NORESERVE.intValue()), word(- 1), zero());
+            if (reservation == MAP_FAILED) {
+                pthread_mutex_unlock(addr_of(pool_mutex));
+                return zero();
+            }
+            nextStack = reservation;
+            unusedStacks = STACKS_PER_RESERVATION;
+        }
+        final ptr<c_char> stack = nextStack;
+        nextStack = stack.plus(size);
+        unusedStacks --;
+        pthread_mutex_unlock(addr_of(pool_mutex));
+        return stack;
+    }
+
+    /**
+     * Return the structure of a finished fiber, along with its stack, to the pool.
+     *
+     * @param fiberNativePtr the structure, which has been removed from the list of its carrier
+     */
+    private static void release(ptr<fiber_native> fiberNativePtr) {
+        pthread_mutex_lock(addr_of(pool_mutex));
+        final boolean retain = freeCount < STACKS_RETAINED;
+        pthread_mutex_unlock(addr_of(pool_mutex));
+        if (! retain) {
+            // give the memory of the stack back; mapping over it keeps the reservation in one piece, unlike munmap
+            // (if this fails, the memory is just kept)
+            mmap(deref(fiberNativePtr).stack, word(deref(fiberNativePtr).stack_size), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_PRIVATE.intValue() | MAP_ANON.intValue() | MAP_NORESERVE.intValue() | MAP_FIXED.intValue()), word(- 1), zero());
+        }
+        pthread_mutex_lock(addr_of(pool_mutex));
+        deref(fiberNativePtr).next = freeFibers;
+        freeFibers = fiberNativePtr;
+        freeCount ++;
+        pthread_mutex_unlock(addr_of(pool_mutex));
+    }
+
+    /**
+     * The entry point of each fiber stack, where its carrier first switches to it.
+     * This function never returns; instead, the fiber switches back to its carrier for the last time.
+     */
+    @export(withScope = ExportScope.LOCAL)
+    @Hidden
+    public static void runFiberBody() {
+        final Fiber fiber = current();
+        try {
+            fiber.task.run();
+        } catch (Throwable t) {
+            final Thread carrier = Thread.currentThread();
+            try {
+                carrier.getUncaughtExceptionHandler().uncaughtException(carrier, t);
+            } catch (Throwable ignored) {
+            }
+        }
+        fiber.state.set(STATE_DONE);
+        suspend();
+        // not reachable
+        abort();
+    }
+
+    /**
+     * Switch from the current fiber back to its carrier.
+     */
+    private static void suspend() {
+        final ptr<thread_native> threadNativePtr = currentThreadNativePtr();
+        // the carrier's own stack is always first in its list
+        switchTo(deref(threadNativePtr).fiber, deref(threadNativePtr).fibers);
+    }
+
+    /**
+     * Switch from the current carrier to one of its fibers.
+     * Like {@link #suspend()}, this method holds no references across the switch, so that its callers' references
+     * are always found by the GC.
+     *
+     * @param self the carrier's own continuation
+     * @param fiberNativePtr the fiber's continuation
+     */
+    private static void resume(ptr<fiber_native> self, ptr<fiber_native> fiberNativePtr) {
+        switchTo(self, fiberNativePtr);
+    }
+
+    /**
+     * Switch this thread from one stack to another.
+     * The GC may not run while the stacks are being switched, so that it always finds exactly one of them running.
+     *
+     * @param from the continuation which is running
+     * @param to the continuation to resume
+     */
+    @SafePoint(SafePointBehavior.NONE)
+    @NoThrow
+    private static void switchTo(ptr<fiber_native> from, ptr<fiber_native> to) {
+        final ptr<c_char> stack = deref(from).stack;
+        if (stack.isNonNull()) {
+            // fiber stacks have no guard pages, so check that this one has stayed within its stack
+            final c_char marker = auto();
+            final ptr<int64_t> canaryPtr = stack.plus(RED_ZONE_SIZE - Long.BYTES).cast();
+            if (addr_of(marker).longValue() < stack.plus(RED_ZONE_SIZE).longValue() || canaryPtr.loadPlain().longValue() != STACK_CANARY) {
+                fprintf(stderr, utf8z("Fiber stack overflow\n"));
+                abort();
+            }
+        }
+        // the GC walks the stack of a suspended continuation from here
+        if (unw_getcontext(addr_of(deref(from).saved_context)).isNonZero()) abort();
+        deref(from).suspended = 1;
+        deref(to).suspended = 0;
+        deref(currentThreadNativePtr()).fiber = to;
+        if (swapcontext(addr_of(deref(from).context), addr_of(deref(to).context)).isNonZero()) abort();
+    }
+
+    /**
+     * The readers and writers which are waiting on a file descriptor, in the order in which they began to wait.
+     */
+    static final class Waiters {
+        /**
+         * The file which is waited for, which tells it apart from a later file with the same descriptor number.
+         */
+        final FileDescriptor fd;
+        final ArrayDeque<Fiber> readers = new ArrayDeque<>();
+        final ArrayDeque<Fiber> writers = new ArrayDeque<>();
+
+        Waiters(FileDescriptor fd) {
+            this.fd = fd;
+        }
+
+        boolean isEmpty() {
+            return readers.isEmpty() && writers.isEmpty();
+        }
+
+        /**
+         * Wake every waiter.
+         *
+         * @param closed {@code true} to make the wait of each waiter fail
+         */
+        void wakeAll(boolean closed) {
+            Fiber fiber;
+            while ((fiber = readers.poll()) != null) {
+                fiber.closed |= closed;
+                fiber.unpark();
+            }
+            while ((fiber = writers.poll()) != null) {
+                fiber.closed |= closed;
+                fiber.unpark();
+            }
+        }
+    }
+
+    /**
+     * A file descriptor which is being closed, along with its number, which it loses when it is closed.
+     */
+    static final class Closing {
+        final int fdVal;
+        final FileDescriptor fd;
+
+        Closing(int fdVal, FileDescriptor fd) {
+            this.fdVal = fdVal;
+            this.fd = fd;
+        }
+    }
+
+    /**
+     * A carrier thread, which runs its fibers until they park, and waits for I/O readiness when they are all parked.
+     */
+    static final class Carrier extends Thread {
+        private final ConcurrentLinkedQueue<Fiber> ready = new ConcurrentLinkedQueue<>();
+        /**
+         * The file descriptors which are being closed, whose waiters must be woken.
+         */
+        private final ConcurrentLinkedQueue<Closing> closing = new ConcurrentLinkedQueue<>();
+        /**
+         * The fibers which are waiting for I/O readiness, by file descriptor. Only accessed by this carrier.
+         */
+        private final HashMap<Integer, Waiters> waiters = new HashMap<>();
+        /**
+         * The fibers which are reading from and writing to each file descriptor; see {@link #beginIo}.
+         * Only accessed by this carrier.
+         */
+        final HashMap<Integer, Fiber> readers = new HashMap<>();
+        final HashMap<Integer, Fiber> writers = new HashMap<>();
+        /**
+         * The fibers which are parked until a deadline, in the order of their deadlines. Only accessed by this carrier.
+         */
+        final TreeSet<Fiber> timers = new TreeSet<>(Fiber::compareDeadlines);
+        long timerSeq;
+        /**
+         * The number of times which this carrier thread has been unparked, and the fibers which are parked with
+         * {@code LockSupport.park}; see {@link #parkThread}.
+         */
+        final AtomicInteger threadUnparks = new AtomicInteger();
+        final Set<Fiber> threadParked = ConcurrentHashMap.newKeySet();
+        private final int epfd;
+        private final int wakefd;
+        /**
+         * Set while this carrier may be waiting for I/O readiness, so that new work must wake it.
+         */
+        private volatile boolean sleeping;
+
+        Carrier(String name) {
+            super(ThreadNative.getSystemThreadGroup(), name);
+            epfd = epoll_create1(EPOLL_CLOEXEC).intValue();
+            if (epfd == -1) {
+                throw new InternalError("Cannot create fiber carrier");
+            }
+            wakefd = eventfd(zero(), word(EFD_NONBLOCK.intValue() | EFD_CLOEXEC.intValue())).intValue();
+            struct_epoll_event event = auto();
+            event.events = EPOLLIN;
+            event.data.fd = word(wakefd);
+            if (wakefd == -1 || epoll_ctl(word(epfd), EPOLL_CTL_ADD, word(wakefd), addr_of(event)).isNonZero()) {
+                throw new InternalError("Cannot create fiber carrier");
+            }
+        }
+
+        public void run() {
+            final ptr<fiber_native> self = attach();
+            for (;;) {
+                Fiber fiber;
+                int budget = RUN_BUDGET;
+                while (budget > 0 && (fiber = ready.poll()) != null) {
+                    runFiber(self, fiber);
+                    budget --;
+                }
+                poll(budget > 0);
+            }
+        }
+
+        void submit(Fiber fiber) {
+            ready.add(fiber);
+            wake();
+        }
+
+        void cancel(Closing c) {
+            closing.add(c);
+            wake();
+        }
+
+        private void wake() {
+            if (sleeping && Thread.currentThread() != this) {
+                uint64_t one = word(1);
+                write(word(wakefd), addr_of(one).cast(), sizeof(one));
+            }
+        }
+
+        void register(int fdVal, FileDescriptor fd, boolean write, Fiber fiber) throws IOException {
+            // a closing file descriptor may be reused, so its old waiters must be gone before any new ones are added
+            wakeClosing();
+            final Integer key = Integer.valueOf(fdVal);
+            Waiters w = waiters.get(key);
+            if (w != null && w.fd != fd) {
+                // the old file was closed without its waiters being cancelled; let them look again
+                waiters.remove(key);
+                w.wakeAll(false);
+                w = null;
+            }
+            if (w == null) {
+                w = new Waiters(fd);
+                waiters.put(key, w);
+            }
+            final ArrayDeque<Fiber> queue = write ? w.writers : w.readers;
+            if (! queue.contains(fiber)) {
+                queue.add(fiber);
+            }
+            struct_epoll_event event = auto();
+            event.events = word((w.readers.isEmpty() ? 0 : EPOLLIN.intValue()) | (w.writers.isEmpty() ? 0 : EPOLLOUT.intValue()) | EPOLLONESHOT.intValue());
+            event.data.fd = word(fdVal);
+            // a one-shot registration stays in the set after it fires, until the file descriptor is closed
+            if (epoll_ctl(word(epfd), EPOLL_CTL_MOD, word(fdVal), addr_of(event)).isNonZero()) {
+                if (errno != ENOENT.intValue() || epoll_ctl(word(epfd), EPOLL_CTL_ADD, word(fdVal), addr_of(event)).isNonZero()) {
+                    // the other waiters keep the registration they had
+                    deregister(fdVal, fd, write, fiber);
+                    throw new IOException("Cannot poll file descriptor " + fdVal);
+                }
+            }
+        }
+
+        void deregister(int fdVal, FileDescriptor fd, boolean write, Fiber fiber) {
+            final Integer key = Integer.valueOf(fdVal);
+            final Waiters w = waiters.get(key);
+            if (w != null && w.fd == fd) {
+                (write ? w.writers : w.readers).remove(fiber);
+                if (w.isEmpty()) {
+                    // a registration which is still armed only causes a wakeup which is ignored
+                    waiters.remove(key);
+                }
+            }
+        }
+
+        /**
+         * Wake the waiters of the file descriptors which are being closed, and make their waits fail.
+         */
+        private void wakeClosing() {
+            Closing c;
+            while ((c = closing.poll()) != null) {
+                final Integer key = Integer.valueOf(c.fdVal);
+                final Waiters w = waiters.get(key);
+                if (w != null && w.fd == c.fd) {
+                    waiters.remove(key);
+                    // this fails once the file is gone, which also removes its registration
+                    epoll_ctl(word(epfd), EPOLL_CTL_DEL, word(c.fdVal), zero());
+                    w.wakeAll(true);
+                }
+            }
+        }
+
+        private void runFiber(ptr<fiber_native> self, Fiber fiber) {
+            final ptr<fiber_native> fiberNativePtr = fiber.fiberNativePtr;
+            if (deref(fiberNativePtr).ref == null) {
+                link(self, fiberNativePtr, fiber);
+            }
+            final AtomicInteger state = fiber.state;
+            int oldVal;
+            do {
+                oldVal = state.get();
+            } while (! state.compareAndSet(oldVal, oldVal & STATE_PERMIT | STATE_RUNNING));
+            resume(self, fiberNativePtr);
+            // the fiber has stopped running
+            for (;;) {
+                oldVal = state.get();
+                if ((oldVal & STATE_MASK) == STATE_DONE) {
+                    fiber.fiberNativePtr = zero();
+                    unlink(fiberNativePtr);
+                    release(fiberNativePtr);
+                    return;
+                }
+                // assert (oldVal & STATE_MASK) == STATE_PARKING;
+                if ((oldVal & STATE_PERMIT) != 0) {
+                    // unparked while it was parking
+                    if (state.compareAndSet(oldVal, STATE_READY)) {
+                        ready.add(fiber);
+                        return;
+                    }
+                } else if (state.compareAndSet(oldVal, STATE_PARKED)) {
+                    return;
+                }
+            }
+        }
+
+        private void poll(boolean block) {
+            wakeClosing();
+            if (block) {
+                sleeping = true;
+                if (! ready.isEmpty() || ! closing.isEmpty()) {
+                    sleeping = false;
+                    return;
+                }
+            }
+            int timeout = block ? -1 : 0;
+            if (block && ! timers.isEmpty()) {
+                // round up, so that the earliest timer is due when we wake
+                final long nanos = timers.first().deadline - System.nanoTime();
+                timeout = nanos <= 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, (nanos + 999_999) / 1_000_000);
+            }
+            struct_epoll_event[] events = new struct_epoll_event[EVENT_COUNT];
+            final int count = epollWait(epfd, addr_of(events[0]), timeout);
+            sleeping = false;
+            // a closing file descriptor may have become ready; its waiters must see that it was closed
+            wakeClosing();
+            for (int i = 0; i < count; i ++) {
+                final int fd = events[i].data.fd.intValue();
+                if (fd == wakefd) {
+                    uint64_t value = auto();
+                    read(word(wakefd), addr_of(value), sizeof(value));
+                } else {
+                    // the registration is disarmed, so wake everyone; each one registers again if it must
+                    final Waiters w = waiters.remove(Integer.valueOf(fd));
+                    if (w != null) {
+                        w.wakeAll(false);
+                    }
+                }
+            }
+            final long now = System.nanoTime();
+            while (! timers.isEmpty() && timers.first().deadline - now <= 0) {
+                timers.pollFirst().unpark();
+            }
+        }
+
+        @SafePoint(SafePointBehavior.ENTER)
+        private static int epollWait(int epfd, ptr<struct_epoll_event> events, int timeout) {
+            final int count = epoll_wait(word(epfd), events, word(EVENT_COUNT), word(timeout)).intValue();
+            // EINTR is the only error which can happen here
+            return Math.max(0, count);
+        }
+
+        /**
+         * Make the current thread a carrier by giving it a continuation for its own stack.
+         */
+        @SafePoint(SafePointBehavior.NONE)
+        private static ptr<fiber_native> attach() {
+            final ptr<thread_native> threadNativePtr = currentThreadNativePtr();
+            final ptr<fiber_native> self = malloc(sizeof(fiber_native.class));
+            if (self.isNull()) {
+                abort();
+            }
+            self.storeUnshared(zero());
+            deref(threadNativePtr).fibers = self;
+            deref(threadNativePtr).fiber = self;
+            return self;
+        }
+
+        @SafePoint(SafePointBehavior.NONE)
+        private static void link(ptr<fiber_native> self, ptr<fiber_native> fiberNativePtr, Fiber fiber) {
+            deref(fiberNativePtr).ref = reference.of(fiber);
+            // the carrier's own continuation stays first
+            final ptr<fiber_native> next = deref(self).next;
+            deref(fiberNativePtr).prev = self;
+            deref(fiberNativePtr).next = next;
+            if (next.isNonNull()) {
+                deref(next).prev = fiberNativePtr;
+            }
+            deref(self).next = fiberNativePtr;
+        }
+
+        @SafePoint(SafePointBehavior.NONE)
+        private static void unlink(ptr<fiber_native> fiberNativePtr) {
+            final ptr<fiber_native> prev = deref(fiberNativePtr).prev;
+            final ptr<fiber_native> next = deref(fiberNativePtr).next;
+            deref(prev).next = next;
+            if (next.isNonNull()) {
+                deref(next).prev = prev;
+            }
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package jdk.internal.thread;
 
+import static org.qbicc.runtime.CNative.*;
+
 import org.qbicc.runtime.patcher.PatchClass;
 
 @PatchClass(Object.class)
 final class ObjectAccess {
-    native void monitorEnter();
-    native void monitorExit();
+    header_type header;
 }
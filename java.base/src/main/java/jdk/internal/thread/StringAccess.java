@@ -0,0 +1,9 @@
+package jdk.internal.thread;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(String.class)
+final class StringAccess {
+    byte[] value;
+    byte coder;
+}
@@ -0,0 +1,766 @@
+package jdk.internal.thread;
+
+import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.PThread.*;
+import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.thread.ThreadNative.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+
+import jdk.internal.gc.Gc;
+import org.qbicc.runtime.Hidden;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+import org.qbicc.runtime.main.Monitor;
+
+/**
+ * Object monitors which are stored in the object header word.
+ * <p>
+ * An object which is locked by one thread at a time is "thin" locked: the header holds the lock ID of the owning
+ * thread and the recursion count, so entering and exiting the lock is a single compare-and-swap which does not allocate.
+ * The lock is "inflated" to a {@link Monitor} the first time that it is waited on, that it is contended, or that its
+ * recursion count overflows; from then on the header holds the index of the monitor in the monitor table.
+ * Inflated monitors are freed by the GC along with their objects.
+ * <p>
+ * A thread which finds a lock thinly held by another thread first spins briefly, in case the owner is about to
+ * release it. If it is still held, the thread sets the contended bit and waits; the owner sees the bit when it
+ * releases the lock and wakes the waiting threads. The first of them to find the lock free inflates it, so that they
+ * then queue on the monitor. Releasing a lock never inflates it, so that exiting a monitor never allocates, and never
+ * waits for the monitor table.
+ * <p>
+ * A thread which finds an inflated monitor held by another thread also spins before it blocks, watching the hold count
+ * which the owner keeps in the monitor table. The length of the spin is tuned for each monitor: it grows each time
+ * that the monitor is released while a thread spins, and shrinks each time that the spinning thread has to block.
+ * <p>
+ * The lock uses the low 32 bits of the header word, so that it fits headers of either width (the low byte is reserved
+ * for the GC, and any higher bits are left alone):
+ * <pre>
+ *  31  30 29                                   8 7     0
+ * +------+--------------------------------------+-------+
+ * | 0  0 | 0                                    | GC    |  unlocked
+ * | 0  1 | owner (15) | C | recursion (6)       | GC    |  thin
+ * | 1  0 | monitor index (22)                   | GC    |  inflated
+ * +------+--------------------------------------+-------+
+ * </pre>
+ * The identity hash code is kept in its own field, so assigning one never disturbs the lock, and one which is assigned
+ * at build time is kept in the initial heap like any other field.
+ */
+public final class ThinLocks {
+    private ThinLocks() {}
+
+    private static final long STATE_MASK = 3L << 30;
+    private static final long STATE_THIN = 1L << 30;
+    private static final long STATE_INFLATED = 2L << 30;
+
+    private static final int OWNER_SHIFT = 15;
+    private static final long OWNER_MASK = 0x7fffL << OWNER_SHIFT;
+    private static final long CONTENDED = 1L << 14;
+    private static final int COUNT_SHIFT = 8;
+    private static final long COUNT_ONE = 1L << COUNT_SHIFT;
+    private static final long COUNT_MASK = 0x3fL << COUNT_SHIFT;
+
+    private static final int MONITOR_SHIFT = 8;
+    private static final long MONITOR_MASK = 0x3f_ffffL << MONITOR_SHIFT;
+
+    private static final long LOCK_BITS = STATE_MASK | MONITOR_MASK;
+
+    /**
+     * All of the header bits which are used for locking. The GC must not use any of them.
+     */
+    public static final long HEADER_BITS = LOCK_BITS;
+
+    /**
+     * The largest thread lock ID. Lock ID zero means "none", and is never assigned.
+     */
+    public static final int MAX_LOCK_ID = (int) (OWNER_MASK >>> OWNER_SHIFT);
+
+    private static final int MAX_MONITORS = (int) (MONITOR_MASK >>> MONITOR_SHIFT) + 1;
+
+    /**
+     * The number of spins before a thread gives up on a thin lock, or on a new inflated monitor.
+     */
+    private static final int SPIN_INITIAL = 1 << 8;
+    /**
+     * The fewest spins for an inflated monitor, so that a monitor whose spins never succeed can still recover.
+     */
+    private static final int SPIN_MIN = 1 << 4;
+    private static final int SPIN_MAX = 1 << 13;
+
+    /**
+     * The mutex which guards the monitor table. Threads only hold it in code which cannot reach a safepoint, so the GC,
+     * which only takes it while every other thread is stopped, never waits for it.
+     */
+    @SuppressWarnings("unused")
+    private static final pthread_mutex_t monitor_table_mutex = zero();
+    private static final int TABLE_BUSY = -1;
+    private static final int TABLE_FULL = -2;
+    private static final int TABLE_UNMAPPED = -3;
+
+    /**
+     * The inflated monitors, by index. Only written while the monitor table is locked, so that the GC never
+     * sees a partial update.
+     */
+    private static volatile Monitor[] monitors;
+    /**
+     * The object of each inflated monitor, by index. These references are weak; the GC frees the monitor when the
+     * object dies, and updates the reference when the object moves. Monitors of stack-allocated objects are not
+     * recorded here, and are never freed. This table and the ones below are mapped once, and never move.
+     */
+    private static ptr<reference<?>> monitorObjects;
+    /**
+     * The number of times that each inflated monitor is held, by index. Only written by the owner of the monitor,
+     * so that other threads can see when it is released without blocking on it.
+     */
+    private static ptr<int32_t> monitorHolds;
+    /**
+     * The number of spins for each inflated monitor, by index.
+     */
+    private static ptr<int32_t> monitorSpins;
+    /**
+     * The index to start looking for a free monitor slot at.
+     */
+    private static int monitorCursor;
+    /**
+     * Threads which are waiting for a thin lock to be inflated.
+     */
+    private static volatile Monitor contention;
+    /**
+     * The number of CPUs, or zero if it is not yet known. Spinning is pointless on a single CPU.
+     */
+    private static int cpus;
+
+    /**
+     * Enter the monitor of the given object.
+     *
+     * @param obj the object (must not be {@code null})
+     */
+    @Hidden
+    public static void enter(Object obj) {
+        final ptr<header_type> headerPtr = header(obj);
+        final long id = lockId();
+        final long oldVal = headerPtr.loadVolatile().longValue();
+        if ((oldVal & STATE_MASK) == 0 && id != 0) {
+            final long newVal = oldVal | STATE_THIN | id << OWNER_SHIFT;
+            if (headerPtr.compareAndSwap(word(oldVal), word(newVal)).longValue() == oldVal) {
+                // uncontended
+                return;
+            }
+        }
+        enterSlow(obj, headerPtr, id);
+    }
+
+    @Hidden
+    private static void enterSlow(Object obj, ptr<header_type> headerPtr, long id) {
+        boolean interrupted = false;
+        boolean spun = false;
+        boolean waited = false;
+        long oldVal = headerPtr.loadVolatile().longValue();
+        for (;;) {
+            final long state = oldVal & STATE_MASK;
+            final long newVal;
+            if (state == STATE_INFLATED) {
+                enterMonitor(monitorIndex(oldVal));
+                break;
+            } else if (state == 0) {
+                if (id == 0 || waited) {
+                    // this thread has no lock ID, so it can only use a monitor; or the lock was just released to
+                    // threads which were waiting for it, which should now queue on a monitor
+                    waited = false;
+                    inflate(obj, headerPtr);
+                    oldVal = headerPtr.loadVolatile().longValue();
+                    continue;
+                }
+                newVal = oldVal | STATE_THIN | id << OWNER_SHIFT;
+            } else if ((oldVal & OWNER_MASK) == id << OWNER_SHIFT) {
+                if ((oldVal & COUNT_MASK) == COUNT_MASK) {
+                    // too deep to count in the header
+                    inflate(obj, headerPtr);
+                    oldVal = headerPtr.loadVolatile().longValue();
+                    continue;
+                }
+                newVal = oldVal + COUNT_ONE;
+            } else if (! spun) {
+                // the owner may be about to release it
+                spun = true;
+                oldVal = spinThin(headerPtr, oldVal);
+                continue;
+            } else if ((oldVal & CONTENDED) == 0) {
+                // ask the owner to wake us when it releases the lock; the owner must not have to create the monitor
+                getContention();
+                final long witness = headerPtr.compareAndSwap(word(oldVal), word(oldVal | CONTENDED)).longValue();
+                oldVal = witness == oldVal ? oldVal | CONTENDED : witness;
+                continue;
+            } else {
+                interrupted |= awaitRelease(headerPtr);
+                waited = true;
+                oldVal = headerPtr.loadVolatile().longValue();
+                continue;
+            }
+            final long witness = headerPtr.compareAndSwap(word(oldVal), word(newVal)).longValue();
+            if (witness == oldVal) {
+                break;
+            }
+            oldVal = witness;
+        }
+        if (interrupted) {
+            // entering a monitor is not interruptible
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Exit the monitor of the given object.
+     *
+     * @param obj the object (must not be {@code null})
+     * @throws IllegalMonitorStateException if the current thread does not hold the monitor
+     */
+    @Hidden
+    public static void exit(Object obj) {
+        final ptr<header_type> headerPtr = header(obj);
+        final long id = lockId();
+        long oldVal = headerPtr.loadVolatile().longValue();
+        for (;;) {
+            final long state = oldVal & STATE_MASK;
+            if (state == STATE_INFLATED) {
+                final int index = monitorIndex(oldVal);
+                final Monitor monitor = monitors[index];
+                if (! monitor.isHeldByCurrentThread()) {
+                    throw new IllegalMonitorStateException();
+                }
+                final ptr<int32_t> holdsPtr = monitorHolds.plus(index);
+                holdsPtr.storeRelease(word(holdsPtr.loadPlain().intValue() - 1));
+                monitor.exit();
+                return;
+            }
+            if (state != STATE_THIN || (oldVal & OWNER_MASK) != id << OWNER_SHIFT) {
+                throw new IllegalMonitorStateException();
+            }
+            final long newVal;
+            if ((oldVal & COUNT_MASK) != 0) {
+                newVal = oldVal - COUNT_ONE;
+            } else {
+                newVal = oldVal & ~LOCK_BITS;
+            }
+            final long witness = headerPtr.compareAndSwap(word(oldVal), word(newVal)).longValue();
+            if (witness == oldVal) {
+                if ((newVal & STATE_MASK) == 0 && (oldVal & CONTENDED) != 0) {
+                    // the waiting threads inflate the lock, because that may allocate
+                    wakeContenders();
+                }
+                return;
+            }
+            oldVal = witness;
+        }
+    }
+
+    /**
+     * Determine whether the current thread holds the monitor of the given object.
+     *
+     * @param obj the object (must not be {@code null})
+     * @return {@code true} if the current thread holds the monitor, or {@code false} if it does not
+     */
+    @Hidden
+    public static boolean holdsLock(Object obj) {
+        final long val = header(obj).loadVolatile().longValue();
+        final long state = val & STATE_MASK;
+        if (state == STATE_THIN) {
+            return (val & OWNER_MASK) == lockId() << OWNER_SHIFT;
+        }
+        return state == STATE_INFLATED && monitorAt(val).isHeldByCurrentThread();
+    }
+
+    /**
+     * Wait on the monitor of the given object, which must be held by the current thread.
+     *
+     * @param obj the object (must not be {@code null})
+     * @throws IllegalMonitorStateException if the current thread does not hold the monitor
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public static void await(Object obj) throws InterruptedException {
+        await0(obj, false, 0, 0);
+    }
+
+    /**
+     * Wait on the monitor of the given object for up to the given time.
+     *
+     * @param obj the object (must not be {@code null})
+     * @param millis the number of milliseconds to wait, or zero to wait forever
+     * @param nanos the additional number of nanoseconds to wait
+     * @throws IllegalMonitorStateException if the current thread does not hold the monitor
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public static void await(Object obj, long millis, int nanos) throws InterruptedException {
+        await0(obj, true, millis, nanos);
+    }
+
+    private static void await0(Object obj, boolean timed, long millis, int nanos) throws InterruptedException {
+        final int index = ownedMonitorIndex(obj);
+        final Monitor monitor = monitors[index];
+        // the monitor is released completely while waiting, so spinning threads must not see it as held
+        final ptr<int32_t> holdsPtr = monitorHolds.plus(index);
+        final int holds = holdsPtr.loadPlain().intValue();
+        holdsPtr.storeRelease(word(0));
+        try {
+            if (timed) {
+                monitor.await(millis, nanos);
+            } else {
+                monitor.await();
+            }
+        } finally {
+            holdsPtr.storeRelease(word(holds));
+        }
+    }
+
+    private static int ownedMonitorIndex(Object obj) {
+        final ptr<header_type> headerPtr = header(obj);
+        long val = headerPtr.loadVolatile().longValue();
+        if ((val & STATE_MASK) == STATE_THIN && (val & OWNER_MASK) == lockId() << OWNER_SHIFT) {
+            inflate(obj, headerPtr);
+            val = headerPtr.loadVolatile().longValue();
+        }
+        if ((val & STATE_MASK) != STATE_INFLATED || ! monitorAt(val).isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException();
+        }
+        return monitorIndex(val);
+    }
+
+    /**
+     * Wake one or all of the threads which are waiting on the monitor of the given object.
+     *
+     * @param obj the object (must not be {@code null})
+     * @param all {@code true} to wake all waiting threads, or {@code false} to wake one
+     * @throws IllegalMonitorStateException if the current thread does not hold the monitor
+     */
+    public static void signal(Object obj, boolean all) {
+        final long val = header(obj).loadVolatile().longValue();
+        final long state = val & STATE_MASK;
+        if (state == STATE_THIN && (val & OWNER_MASK) == lockId() << OWNER_SHIFT) {
+            // waiting inflates the lock, so nobody can be waiting on a thin lock
+            return;
+        }
+        if (state != STATE_INFLATED) {
+            throw new IllegalMonitorStateException();
+        }
+        if (all) {
+            monitorAt(val).signalAll();
+        } else {
+            monitorAt(val).signal();
+        }
+    }
+
+    /**
+     * Clear the lock state of a newly cloned object, which must not yet be visible to
+     * any other thread.
+     *
+     * @param obj the object (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static void reset(Object obj) {
+        final ptr<header_type> headerPtr = header(obj);
+        headerPtr.storePlain(word(headerPtr.loadPlain().longValue() & ~HEADER_BITS));
+    }
+
+    /**
+     * Replace the lock state of the given object with a monitor.
+     * The lock must either be thinly held by the current thread, in which case the monitor is entered as many times,
+     * or be unlocked, in which case nothing is done if another thread gets there first.
+     *
+     * @param obj the object (must not be {@code null})
+     * @param headerPtr the pointer to the object header (must not be {@code null})
+     */
+    private static void inflate(Object obj, ptr<header_type> headerPtr) {
+        final Monitor monitor = new Monitor();
+        final int index = register(obj, monitor);
+        long entered = 0;
+        long oldVal = headerPtr.loadVolatile().longValue();
+        for (;;) {
+            final long state = oldVal & STATE_MASK;
+            if (state == STATE_INFLATED || state == STATE_THIN && (oldVal & OWNER_MASK) != lockId() << OWNER_SHIFT) {
+                // lost a race to lock an unlocked object
+                while (entered -- > 0) {
+                    monitor.exit();
+                }
+                unregister(index);
+                return;
+            }
+            // the recursion count cannot change under us, because we are the owner
+            final long holds = state == STATE_THIN ? ((oldVal & COUNT_MASK) >>> COUNT_SHIFT) + 1 : 0;
+            while (entered < holds) {
+                monitor.enter();
+                entered ++;
+            }
+            monitorHolds.plus(index).storeRelease(word((int) holds));
+            final long newVal = oldVal & ~LOCK_BITS | STATE_INFLATED | (long) index << MONITOR_SHIFT;
+            final long witness = headerPtr.compareAndSwap(word(oldVal), word(newVal)).longValue();
+            if (witness == oldVal) {
+                if ((oldVal & CONTENDED) != 0) {
+                    wakeContenders();
+                }
+                return;
+            }
+            oldVal = witness;
+        }
+    }
+
+    /**
+     * Wake the threads which are waiting for a contended thin lock to be released or inflated.
+     * The contention monitor was created by the thread which set the contended bit, so this does not allocate.
+     */
+    private static void wakeContenders() {
+        final Monitor contention = ThinLocks.contention;
+        contention.enter();
+        try {
+            contention.signalAll();
+        } finally {
+            contention.exit();
+        }
+    }
+
+    /**
+     * Wait for the owner of a contended thin lock to release it (or for another thread to inflate it).
+     *
+     * @param headerPtr the pointer to the object header (must not be {@code null})
+     * @return {@code true} if the thread was interrupted while waiting
+     */
+    private static boolean awaitRelease(ptr<header_type> headerPtr) {
+        final Monitor contention = getContention();
+        boolean interrupted = false;
+        contention.enter();
+        try {
+            // the owner releases the lock before it takes the contention monitor, so the wake-up cannot be missed
+            while ((headerPtr.loadVolatile().longValue() & (STATE_MASK | CONTENDED)) == (STATE_THIN | CONTENDED)) {
+                try {
+                    contention.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            contention.exit();
+        }
+        return interrupted;
+    }
+
+    /**
+     * Enter an inflated monitor, spinning first if another thread holds it.
+     *
+     * @param index the monitor index
+     */
+    private static void enterMonitor(int index) {
+        final Monitor monitor = monitors[index];
+        final ptr<int32_t> holdsPtr = monitorHolds.plus(index);
+        if (holdsPtr.loadVolatile().intValue() != 0 && canSpin() && ! monitor.isHeldByCurrentThread()) {
+            final ptr<int32_t> spinsPtr = monitorSpins.plus(index);
+            // races between spinning threads only make the tuning less precise
+            final int spins = spinsPtr.loadPlain().intValue();
+            int i = 0;
+            while (i < spins && holdsPtr.loadVolatile().intValue() != 0) {
+                Thread.onSpinWait();
+                i ++;
+            }
+            spinsPtr.storePlain(word(i < spins ? Math.min(SPIN_MAX, spins << 1) : Math.max(SPIN_MIN, spins >>> 1)));
+        }
+        monitor.enter();
+        holdsPtr.storeRelease(word(holdsPtr.loadPlain().intValue() + 1));
+    }
+
+    /**
+     * Spin while a thin lock is held by another thread.
+     *
+     * @param headerPtr the pointer to the object header (must not be {@code null})
+     * @param oldVal the last header value that was seen
+     * @return the new header value
+     */
+    private static long spinThin(ptr<header_type> headerPtr, long oldVal) {
+        if (canSpin()) {
+            for (int i = 0; i < SPIN_INITIAL && (oldVal & (STATE_MASK | CONTENDED)) == STATE_THIN; i ++) {
+                Thread.onSpinWait();
+                oldVal = headerPtr.loadVolatile().longValue();
+            }
+        }
+        return oldVal;
+    }
+
+    private static boolean canSpin() {
+        int cpus = ThinLocks.cpus;
+        if (cpus == 0) {
+            ThinLocks.cpus = cpus = Runtime.getRuntime().availableProcessors();
+        }
+        return cpus > 1;
+    }
+
+    private static Monitor getContention() {
+        Monitor contention = ThinLocks.contention;
+        if (contention == null) {
+            contention = new Monitor();
+            Monitor appearing = addr_of(ThinLocks.contention).compareAndSwapRelease(null, contention);
+            if (appearing != null) {
+                contention = appearing;
+            }
+        }
+        return contention;
+    }
+
+    // monitor table
+
+    /**
+     * Store a new monitor in a free slot of the monitor table.
+     *
+     * @param obj the object which the monitor belongs to (must not be {@code null})
+     * @param monitor the monitor (must not be {@code null})
+     * @return the index of the monitor
+     */
+    private static int register(Object obj, Monitor monitor) {
+        final boolean onStack = Gc.isStackAllocated(reference.of(obj));
+        Monitor[] grown = null;
+        for (;;) {
+            final int index = install(obj, monitor, onStack, grown);
+            if (index >= 0) {
+                return index;
+            } else if (index == TABLE_BUSY) {
+                // another thread is changing the table; let it finish
+                Thread.yield();
+            } else if (index == TABLE_UNMAPPED) {
+                throw new OutOfMemoryError("Cannot map the monitor table");
+            } else {
+                // the table is full; allocating may need a GC, so grow it outside of the lock
+                final Monitor[] monitors = ThinLocks.monitors;
+                final int capacity = monitors == null ? 64 : monitors.length << 1;
+                if (capacity > MAX_MONITORS) {
+                    throw new OutOfMemoryError("Too many inflated monitors");
+                }
+                grown = new Monitor[capacity];
+            }
+        }
+    }
+
+    /**
+     * Try to store a new monitor in a free slot of the monitor table, first replacing the table with the given larger
+     * one. The table is locked without blocking, and no safepoint can be reached while it is locked, so that a GC can
+     * never find it locked.
+     *
+     * @param obj the object which the monitor belongs to (must not be {@code null})
+     * @param monitor the monitor (must not be {@code null})
+     * @param onStack {@code true} if the object is stack-allocated
+     * @param grown the larger table, or {@code null} if there is none
+     * @return the index of the monitor, or one of {@code TABLE_BUSY}, {@code TABLE_FULL} or {@code TABLE_UNMAPPED}
+     */
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    private static int install(Object obj, Monitor monitor, boolean onStack, Monitor[] grown) {
+        if (! tryLockTable()) {
+            return TABLE_BUSY;
+        }
+        try {
+            if (monitorHolds.isNull() && ! mapTables()) {
+                return TABLE_UNMAPPED;
+            }
+            final Monitor[] monitors = ThinLocks.monitors;
+            if (grown != null && (monitors == null || grown.length > monitors.length)) {
+                if (monitors != null) {
+                    System.arraycopy(monitors, 0, grown, 0, monitors.length);
+                }
+                ThinLocks.monitors = grown;
+            }
+            final int index = findFreeSlot();
+            if (index < 0) {
+                return TABLE_FULL;
+            }
+            monitorHolds.plus(index).storePlain(word(0));
+            monitorSpins.plus(index).storePlain(word(SPIN_INITIAL));
+            ThinLocks.monitors[index] = monitor;
+            if (! onStack) {
+                monitorObjects.plus(index).storePlain(reference.of(obj));
+            }
+            return index;
+        } finally {
+            unlockTable();
+        }
+    }
+
+    /**
+     * Map the side tables of the monitor table at their largest size, so that they never move: the hold counts and
+     * spins are read and written without any lock. The pages are only backed once they are touched.
+     * Must be called while the monitor table is locked.
+     *
+     * @return {@code true} if the tables were mapped, or {@code false} if there is not enough address space
+     */
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    private static boolean mapTables() {
+        final long objectsSize = MAX_MONITORS * sizeof(reference.class).longValue();
+        final long countsSize = MAX_MONITORS * sizeof(int32_t.class).longValue();
+        final ptr<c_char> tables = mmap(zero(), word(objectsSize + 2 * countsSize), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_PRIVATE.intValue() | MAP_ANON.intValue() | MAP_NORESERVE.intValue()), word(- 1), zero());
+        if (tables == MAP_FAILED) {
+            return false;
+        }
+        // anonymous pages are zeroed, so every object reference starts out null
+        monitorObjects = tables.cast();
+        monitorSpins = tables.plus(objectsSize).cast();
+        monitorHolds = tables.plus(objectsSize + countsSize).cast();
+        return true;
+    }
+
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    private static int findFreeSlot() {
+        final Monitor[] monitors = ThinLocks.monitors;
+        if (monitors == null) {
+            return -1;
+        }
+        final int length = monitors.length;
+        final int start = monitorCursor;
+        for (int i = 0; i < length; i ++) {
+            final int index = (start + i) % length;
+            if (monitors[index] == null) {
+                monitorCursor = index + 1;
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static void unregister(int index) {
+        while (! tryUnregister(index)) {
+            // another thread is changing the table; let it finish
+            Thread.yield();
+        }
+    }
+
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    @NoThrow
+    private static boolean tryUnregister(int index) {
+        if (! tryLockTable()) {
+            return false;
+        }
+        try {
+            free_monitor(index);
+        } finally {
+            unlockTable();
+        }
+        return true;
+    }
+
+    /**
+     * Lock the monitor table if no other thread holds it.
+     * A thread must never block for the table outside of a safepoint, because the holder may be the GC, and must never
+     * hold it in a safepoint, because the GC would then wait for it forever.
+     *
+     * @return {@code true} if the table was locked, or {@code false} if another thread holds it
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static boolean tryLockTable() {
+        final c_int result = pthread_mutex_trylock(addr_of(monitor_table_mutex));
+        if (result == EBUSY) {
+            return false;
+        } else if (result.isNonZero()) {
+            abort();
+        }
+        return true;
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void unlockTable() {
+        if (pthread_mutex_unlock(addr_of(monitor_table_mutex)).isNonZero()) {
+            abort();
+        }
+    }
+
+    @constructor
+    @export
+    public static void init_monitor_table_mutex() {
+        // initialize the mutex at early run time
+        pthread_mutex_init(addr_of(monitor_table_mutex), zero());
+    }
+
+    // GC interface
+
+    /**
+     * Lock the monitor table for the GC. Must be called from the GC thread while all other threads are in a safepoint,
+     * so the table is never locked by another thread, and the GC does not wait.
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @NoThrow
+    public static void lock_monitor_table() {
+        if (pthread_mutex_lock(addr_of(monitor_table_mutex)).isNonZero()) {
+            abort();
+        }
+    }
+
+    /**
+     * Unlock the monitor table for the GC.
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static void unlock_monitor_table() {
+        unlockTable();
+    }
+
+    /**
+     * Get the object reference table of the inflated monitors. An entry is {@code null} if the slot is free,
+     * or if the monitor belongs to a stack-allocated object.
+     * Must be called while the monitor table is locked.
+     *
+     * @return the table, or {@code null} if no monitor was ever inflated
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static ptr<reference<?>> monitor_objects() {
+        return monitorObjects;
+    }
+
+    /**
+     * Get the number of entries in the object reference table of the inflated monitors.
+     * Must be called while the monitor table is locked.
+     *
+     * @return the number of entries
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static int monitor_capacity() {
+        final Monitor[] monitors = ThinLocks.monitors;
+        return monitors == null ? 0 : monitors.length;
+    }
+
+    /**
+     * Free the inflated monitor with the given index, because its object is no longer reachable.
+     * Must be called while the monitor table is locked.
+     *
+     * @param index the monitor index
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static void free_monitor(int index) {
+        monitors[index] = null;
+        monitorObjects.plus(index).storePlain(null);
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static Monitor monitorAt(long header) {
+        return monitors[monitorIndex(header)];
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static int monitorIndex(long header) {
+        return (int) ((header & MONITOR_MASK) >>> MONITOR_SHIFT);
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static long lockId() {
+        return deref(currentThreadNativePtr()).lock_id;
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static ptr<header_type> header(Object obj) {
+        return addr_of(deref(refToPtr((ObjectAccess) obj)).header);
+    }
+}
@@ -10,5 +10,6 @@ final class ThreadAccess {
     static int CONFIG_LOCKED;
     static int CONFIG_DAEMON;
     ptr<thread_native> threadNativePtr;
+    volatile String name;
     volatile int config;
 }
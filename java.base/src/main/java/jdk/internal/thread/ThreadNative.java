@@ -1,12 +1,19 @@
 package jdk.internal.thread;
 
 import static java.lang.Math.abs;
+import static jdk.internal.sys.linux.Futex.*;
+import static jdk.internal.sys.linux.PThread.*;
+import static jdk.internal.sys.linux.SysMman.*;
+import static jdk.internal.sys.linux.Unistd.gettid;
 import static jdk.internal.sys.posix.Errno.*;
 import static jdk.internal.sys.posix.PThread.*;
 import static jdk.internal.sys.posix.Time.*;
+import static jdk.internal.sys.posix.Ucontext.*;
 import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.errno;
+import static org.qbicc.runtime.stdc.Stddef.*;
 import static org.qbicc.runtime.stdc.Stdint.*;
-import static org.qbicc.runtime.stdc.Stdio.printf;
+import static org.qbicc.runtime.stdc.Stdio.*;
 import static org.qbicc.runtime.stdc.Stdlib.*;
 import static org.qbicc.runtime.stdc.Time.*;
 import static org.qbicc.runtime.unwind.LibUnwind.*;
@@ -14,6 +21,7 @@ import static org.qbicc.runtime.unwind.Unwind.*;
 
 import java.util.concurrent.locks.LockSupport;
 
+import jdk.internal.gc.Gc;
 import org.qbicc.runtime.AutoQueued;
 import org.qbicc.runtime.Build;
 import org.qbicc.runtime.Hidden;
@@ -37,14 +45,11 @@ public final class ThreadNative {
     public static native ThreadGroup getSystemThreadGroup();
 
     /**
-     * Mutex that protects the running thread doubly-linked list.
+     * Mutex which is held by the GC for the whole of each collection.
+     * Threads are added to and removed from the thread registry without it; see {@link #registerThread}.
      */
     @SuppressWarnings("unused")
     public static final pthread_mutex_t thread_list_mutex = zero();
-    /**
-     * The special thread list terminus node.
-     */
-    public static final thread_native thread_list_terminus = zero();
     // JVMTI flag definitions; this is our thread state. Here are the constraints:
     // - no more than one of STATE_WAITING, STATE_BLOCKED_ON_MONITOR_ENTER, or STATE_RUNNABLE may be set at once
     // - no more than one of STATE_WAITING_INDEFINITELY or STATE_WAITING_WITH_TIMEOUT may be set at once
@@ -256,6 +261,16 @@ public final class ThreadNative {
      * This bit is unused by JVMTI.
      */
     public static final int STATE_SAFEPOINT_REQUEST = 1 << 31;
+
+    /**
+     * The fix-up state of a thread which is waiting to exit a safepoint, and is able to fix up its own stack.
+     */
+    public static final int GC_FIXUP_WAITING = 1;
+    /**
+     * The fix-up state of a thread which has been asked by the GC to fix up its own stack before it exits a safepoint.
+     * The thread resets the state to {@link #GC_FIXUP_WAITING} and notifies outbound when it is done.
+     */
+    public static final int GC_FIXUP_REQUESTED = 2;
     /**
      * Thread number counter for generation of thread names.
      */
@@ -271,6 +286,42 @@ public final class ThreadNative {
     public static volatile int nonDaemonThreadCount;
     @SuppressWarnings("unused")
     public static volatile int shutdownInitiated;
+    /**
+     * The smallest stack size which is given to a thread.
+     */
+    public static final long MIN_STACK_SIZE = 64L << 10;
+    /**
+     * The stack size of threads which do not ask for a size, or zero to use the platform default.
+     * The build-time value is taken from the {@code qbicc.rt.thread.stack-size} property of the build (in bytes),
+     * and it may be overridden at run time with {@code -Xss}.
+     */
+    private static long defaultStackSize = Math.max(0, Long.getLong("qbicc.rt.thread.stack-size", 0).longValue());
+    /**
+     * Set if the stack usage of each thread is logged when it exits.
+     */
+    private static boolean stackLogging;
+    /**
+     * The number of thread registry slots. This does not depend on the number of thin lock IDs: a thread whose slot
+     * is beyond {@link ThinLocks#MAX_LOCK_ID} has no lock ID, and always inflates the locks which it takes.
+     * The registry is never touched beyond the highest slot which has been used, so its pages are not backed until then.
+     */
+    private static final int REGISTRY_SIZE = 1 << 20;
+    private static final int SLOT_WORDS = REGISTRY_SIZE >>> 6;
+    /**
+     * The registry slots which are in use, one bit per slot. Updated atomically.
+     */
+    @SuppressWarnings("unused")
+    private static uint64_t @array_size(SLOT_WORDS) [] usedSlots;
+    /**
+     * The registry of running threads, indexed by slot. Unused slots are {@code null}.
+     */
+    @SuppressWarnings("unused")
+    private static ptr<thread_native> @array_size(REGISTRY_SIZE) [] threadRegistry;
+    /**
+     * One more than the highest registry slot which has ever been used.
+     */
+    @SuppressWarnings("unused")
+    private static volatile int threadRegistryLimit = 1;
     /**
      * Internal holder for the current thread.
      */
@@ -280,11 +331,6 @@ public final class ThreadNative {
 
     private ThreadNative() {}
 
-    static {
-        thread_list_terminus.next = addr_of(thread_list_terminus);
-        thread_list_terminus.prev = addr_of(thread_list_terminus);
-    }
-
     @SafePoint(SafePointBehavior.ALLOWED)
     @NoSideEffects
     @NoThrow
@@ -300,18 +346,14 @@ public final class ThreadNative {
         if (obj == null) {
             throw new NullPointerException();
         }
-        // todo: stack-locking or similar
-        ObjectAccess oa = cast(obj);
-        oa.monitorEnter();
+        ThinLocks.enter(obj);
     }
 
     public static void monitorExit(Object obj) {
         if (obj == null) {
             throw new NullPointerException();
         }
-        // todo: stack-locking or similar
-        ObjectAccess oa = cast(obj);
-        oa.monitorExit();
+        ThinLocks.exit(obj);
     }
 
     /**
@@ -327,6 +369,9 @@ public final class ThreadNative {
         pthread_detach(pthread_self());
         ptr<thread_native> threadNativePtr = threadParam.cast();
         _qbicc_bound_java_thread = threadNativePtr;
+        if (Build.Target.isLinux()) {
+            addr_of(deref(threadNativePtr).tid).storeRelease(word(gettid().intValue()));
+        }
         bind(threadNativePtr);
         // not reachable
         abort();
@@ -386,6 +431,9 @@ public final class ThreadNative {
             abort();
         }
         _qbicc_bound_java_thread = threadNativePtr;
+        if (Build.Target.isLinux()) {
+            deref(threadNativePtr).tid = gettid().intValue();
+        }
 
         // initialize status
         deref(threadNativePtr).state = word(STATE_ALIVE);
@@ -416,17 +464,9 @@ public final class ThreadNative {
         // manually register the thread count
         addr_of(nonDaemonThreadCount).getAndAdd(word(1));
 
-        // acquire lock
-        lockThreadList_sp();
-        try {
-            // we hold the big list lock; do ye olde linked list insertion
-            deref(thread_list_terminus.prev).next = threadNativePtr;
-            deref(threadNativePtr).prev = thread_list_terminus.prev;
-            thread_list_terminus.prev = threadNativePtr;
-            deref(threadNativePtr).next = addr_of(thread_list_terminus);
-        } finally {
-            // release lock
-            unlockThreadList();
+        // add it to the registry (the GC thread cannot be running yet)
+        if (! registerThread(threadNativePtr)) {
+            abort();
         }
 
         // The thread is now alive; use the normal execution methodology from now on
@@ -465,6 +505,7 @@ public final class ThreadNative {
             pthread_mutex_destroy(addr_of(deref(threadNativePtr).mutex));
         }
         // release the memory
+        free(deref(threadNativePtr).gc_roots);
         free(threadNativePtr);
     }
 
@@ -484,6 +525,11 @@ public final class ThreadNative {
         if ((state & (STATE_UNPARK | STATE_INTERRUPTED)) != 0) {
             return;
         }
+        if (Build.Target.isLinux() && Fiber.current() != null) {
+            // park the fiber rather than its carrier, which runs its other fibers meanwhile
+            Fiber.parkThread(isAbsolute, time);
+            return;
+        }
         if (isAbsolute) {
             // absolute timeout in milliseconds
             long millis = time - System.currentTimeMillis();
@@ -506,34 +552,19 @@ public final class ThreadNative {
 
     @SafePoint(setBits = STATE_PARKED | STATE_WAITING | STATE_WAITING_WITH_TIMEOUT, clearBits = STATE_RUNNABLE)
     private static void park0(long time) {
-        lockThread_sp();
-        try {
-            awaitThreadInboundTimed(Long.divideUnsigned(time, 1_000), (int) abs(time % 1_000) * 1_000, STATE_INTERRUPTED | STATE_UNPARK);
-        } finally {
-            unlockThread();
-        }
+        awaitStateTimed(Long.divideUnsigned(time, 1_000), (int) abs(time % 1_000) * 1_000_000, STATE_INTERRUPTED | STATE_UNPARK);
         addr_of(deref(currentThreadNativePtr()).state).getAndBitwiseAnd(word(~STATE_UNPARK));
     }
 
     @SafePoint(setBits = STATE_PARKED | STATE_WAITING | STATE_WAITING_INDEFINITELY, clearBits = STATE_RUNNABLE)
     private static void park1() {
-        lockThread_sp();
-        try {
-            awaitThreadInbound(STATE_INTERRUPTED | STATE_UNPARK);
-        } finally {
-            unlockThread();
-        }
+        awaitState(STATE_INTERRUPTED | STATE_UNPARK);
         addr_of(deref(currentThreadNativePtr()).state).getAndBitwiseAnd(word(~STATE_UNPARK));
     }
 
     @SafePoint(setBits = STATE_PARKED | STATE_WAITING | STATE_WAITING_WITH_TIMEOUT, clearBits = STATE_RUNNABLE)
     private static void park2(long seconds, int nanos) {
-        lockThread_sp();
-        try {
-            awaitThreadInboundTimed(seconds, nanos, STATE_INTERRUPTED | STATE_UNPARK);
-        } finally {
-            unlockThread();
-        }
+        awaitStateTimed(seconds, nanos, STATE_INTERRUPTED | STATE_UNPARK);
         addr_of(deref(currentThreadNativePtr()).state).getAndBitwiseAnd(word(~STATE_UNPARK));
     }
 
@@ -541,6 +572,11 @@ public final class ThreadNative {
         if (threadNativePtr.isNull()) {
             return;
         }
+        if (Build.Target.isLinux() && deref(threadNativePtr).fibers.isNonNull()) {
+            // the fibers of a carrier park in its place, so wake them instead (see Fiber.parkThread)
+            Fiber.unparkThread(deref(threadNativePtr).ref.toObject());
+            return;
+        }
         final ptr<uint32_t> statePtr = addr_of(deref(threadNativePtr).state);
         int oldVal, newVal, witness;
         oldVal = statePtr.loadSingleAcquire().intValue();
@@ -559,8 +595,99 @@ public final class ThreadNative {
             oldVal = witness;
         }
         // signal the waiter
-        notifyThreadInbound(threadNativePtr);
-        return;
+        notifyState(threadNativePtr, oldVal);
+    }
+
+    /**
+     * Wait until one of the bits in {@code wakeOn} is set in the current thread's state.
+     * On Linux, the thread waits directly on its state word using a futex; elsewhere, it waits on its inbound
+     * condition. The thread's mutex must not be held.
+     * Threads which set a wake-on bit must call {@link #notifyState} afterwards.
+     *
+     * @param wakeOn the bits to wake on
+     */
+    @SafePoint
+    public static void awaitState(int wakeOn) {
+        if (Build.Target.isLinux()) {
+            awaitStateFutex(wakeOn, zero());
+        } else {
+            lockThread_sp();
+            try {
+                awaitThreadInbound(wakeOn);
+            } finally {
+                unlockThread();
+            }
+        }
+    }
+
+    /**
+     * Wait for up to the given duration until one of the bits in {@code wakeOn} is set in the current thread's state.
+     * See {@link #awaitState(int)}.
+     *
+     * @param seconds the number of seconds to wait
+     * @param nanos the number of nanos to wait
+     * @param wakeOn the bits to wake on
+     * @return {@code true} if one or more of the wake-on bits was set, or {@code false} if the timeout occurred
+     */
+    @SafePoint
+    public static boolean awaitStateTimed(long seconds, int nanos, int wakeOn) {
+        if (Build.Target.isLinux()) {
+            struct_timespec ts = auto();
+            deadline(seconds, nanos, addr_of(ts));
+            return awaitStateFutex(wakeOn, addr_of(ts));
+        } else {
+            lockThread_sp();
+            try {
+                return awaitThreadInboundTimed(seconds, nanos, wakeOn);
+            } finally {
+                unlockThread();
+            }
+        }
+    }
+
+    @SafePoint
+    private static boolean awaitStateFutex(int wakeOn, ptr<struct_timespec> deadline) {
+        final ptr<uint32_t> statePtr = addr_of(deref(currentThreadNativePtr()).state);
+        int state = statePtr.loadAcquire().intValue();
+        while ((state & wakeOn) == 0) {
+            // the state word may change for other reasons, in which case the wait returns at once and we look again
+            if (! futex_wait_absolute(statePtr, word(state), deadline)) {
+                final int error = errno;
+                if (error == ETIMEDOUT.intValue()) {
+                    return false;
+                } else if (error != EINTR.intValue() && error != EAGAIN.intValue()) {
+                    // any other error means the wait is broken, and retrying would only spin
+                    abort();
+                }
+            }
+            state = statePtr.loadAcquire().intValue();
+        }
+        return true;
+    }
+
+    /**
+     * Wake a thread which may be in {@link #awaitState} or {@link #awaitStateTimed}, after setting one of the bits
+     * that it waits for.
+     * On Linux, nothing is done unless the thread was parked or sleeping, so this costs at most one system call.
+     *
+     * @param threadNativePtr the thread to wake (must not be {@code null})
+     * @param oldState the state of the thread before the bit was set
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    public static void notifyState(ptr<thread_native> threadNativePtr, int oldState) {
+        if (Build.Target.isLinux()) {
+            if ((oldState & (STATE_PARKED | STATE_SLEEPING)) != 0) {
+                futex_wake_single(addr_of(deref(threadNativePtr).state));
+            }
+        } else {
+            // take the lock so that the waiter cannot miss the signal between checking the state and waiting
+            lockThread_sp(threadNativePtr);
+            try {
+                notifyThreadInbound(threadNativePtr);
+            } finally {
+                unlockThread(threadNativePtr);
+            }
+        }
     }
 
     /**
@@ -641,23 +768,7 @@ public final class ThreadNative {
     @SafePoint
     public static boolean awaitThreadInboundTimed(long seconds, int nanos, int wakeOn) {
         struct_timespec ts = auto();
-        // get the start time
-        if (Build.Target.isMacOs()) {
-            // less accurate in the face of time changes...
-            clock_gettime(CLOCK_REALTIME, addr_of(ts));
-        } else {
-            clock_gettime(CLOCK_MONOTONIC, addr_of(ts));
-        }
-        // add the base time to the duration
-        nanos += ts.tv_nsec.intValue();
-        if (nanos > 1_000_000_000) {
-            // carry the one
-            seconds ++;
-            nanos -= 1_000_000_000;
-        }
-        seconds += ts.tv_sec.longValue();
-        ts.tv_sec = word(seconds);
-        ts.tv_nsec = word(nanos);
+        deadline(seconds, nanos, addr_of(ts));
         ptr<thread_native> threadNativePtr = currentThreadNativePtr();
         int state = addr_of(deref(threadNativePtr).state).loadAcquire().intValue();
         while ((state & wakeOn) == 0) {
@@ -673,6 +784,38 @@ public final class ThreadNative {
         return true;
     }
 
+    /**
+     * Compute the absolute time at which a wait of the given duration which starts now ends,
+     * on the clock used by the thread conditions and futexes.
+     *
+     * @param seconds the number of seconds to wait
+     * @param nanos the number of nanos to wait
+     * @param ts_ptr the time structure to fill in (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void deadline(long seconds, int nanos, ptr<struct_timespec> ts_ptr) {
+        // get the start time
+        if (Build.Target.isMacOs()) {
+            // less accurate in the face of time changes...
+            clock_gettime(CLOCK_REALTIME, ts_ptr);
+        } else {
+            clock_gettime(CLOCK_MONOTONIC, ts_ptr);
+        }
+        // add the base time to the duration
+        nanos += deref(ts_ptr).tv_nsec.intValue();
+        if (nanos >= 1_000_000_000) {
+            // carry the one
+            seconds ++;
+            nanos -= 1_000_000_000;
+        }
+        final long base = deref(ts_ptr).tv_sec.longValue();
+        // very long waits are as good as forever
+        seconds = seconds > Long.MAX_VALUE - base ? Long.MAX_VALUE : seconds + base;
+        deref(ts_ptr).tv_sec = word(seconds);
+        deref(ts_ptr).tv_nsec = word(nanos);
+    }
+
     @SafePoint(SafePointBehavior.ALLOWED)
     public static void notifyThreadInbound(final ptr<thread_native> threadNativePtr) {
         if (pthread_cond_broadcast(addr_of(deref(threadNativePtr).inbound_cond)).isNonZero()) abort();
@@ -691,7 +834,28 @@ public final class ThreadNative {
     }
 
     /**
-     * Lock the thread list.
+     * Wait for the outbound condition of the given thread for up to the given duration.
+     * The thread's mutex must be held.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     * @param nanos the number of nanoseconds to wait
+     * @return {@code true} if the condition was signalled (or the wait woke spuriously), or {@code false} if the timeout occurred
+     */
+    @SafePoint
+    public static boolean awaitThreadOutboundTimed(final ptr<thread_native> threadNativePtr, long nanos) {
+        struct_timespec ts = auto();
+        deadline(nanos / 1_000_000_000, (int) (nanos % 1_000_000_000), addr_of(ts));
+        c_int res = pthread_cond_timedwait(addr_of(deref(threadNativePtr).outbound_cond), addr_of(deref(threadNativePtr).mutex), addr_of(ts));
+        if (res == ETIMEDOUT) {
+            return false;
+        } else if (res.isNonZero()) {
+            abort();
+        }
+        return true;
+    }
+
+    /**
+     * Lock the thread list mutex, which excludes the GC.
      * May only be called from outside a safepoint.
      * Enters a safepoint for the duration of the lock operation, if the operation would block.
      */
@@ -699,7 +863,8 @@ public final class ThreadNative {
     public static void lockThreadList() {
         c_int result = pthread_mutex_trylock(addr_of(thread_list_mutex));
         if (result == EBUSY) {
-            lockThread_sp();
+            // held by another thread (the GC holds it for a whole collection), so block for it in a safepoint
+            lockThreadList_sp();
         } else if (result.isNonZero()) {
             abort();
         }
@@ -718,7 +883,7 @@ public final class ThreadNative {
     }
 
     /**
-     * Unlock the current thread's mutex.
+     * Unlock the thread list mutex.
      * May be called from within or without a safepoint.
      */
     @SafePoint(SafePointBehavior.ALLOWED)
@@ -728,6 +893,200 @@ public final class ThreadNative {
         }
     }
 
+    /**
+     * Get the stack size of threads which do not ask for a size.
+     *
+     * @return the default stack size in bytes, or zero to use the platform default
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static long getDefaultStackSize() {
+        return defaultStackSize;
+    }
+
+    /**
+     * Set the stack size of threads which do not ask for a size.
+     * Must be called before any thread is started.
+     *
+     * @param size the default stack size in bytes, or zero to use the platform default
+     */
+    public static void setDefaultStackSize(long size) {
+        defaultStackSize = size;
+    }
+
+    /**
+     * Determine whether the stack usage of each thread is logged when it exits.
+     *
+     * @return {@code true} if stack usage is logged
+     */
+    public static boolean isStackLogging() {
+        return stackLogging;
+    }
+
+    /**
+     * Establish whether the stack usage of each thread is logged when it exits.
+     *
+     * @param logging {@code true} to log stack usage
+     */
+    public static void setStackLogging(boolean logging) {
+        stackLogging = logging;
+    }
+
+    /**
+     * Log the stack usage of the current thread on {@code stderr}, if it is available.
+     * Nothing is printed through {@code System.err}, because this is called while the thread is exiting.
+     *
+     * @param threadNativePtr the current thread (must not be {@code null})
+     */
+    public static void logStackUsage(ptr<thread_native> threadNativePtr) {
+        final long[] sizes = new long[2];
+        if (getStackUsage(sizes)) {
+            fprintf(stderr, utf8z("[os,thread] Thread \""));
+            print_thread_name(stderr, threadNativePtr);
+            fprintf(stderr, utf8z("\" exiting: stack size %ldK, committed %ldK\n"), sizes[0] >> 10, sizes[1] >> 10);
+            fflush(stderr);
+        }
+    }
+
+    /**
+     * Get the stack size of the current thread, and how much of it is committed.
+     * Stack pages are committed when they are first touched and stay committed, so the committed size is
+     * the most stack that the thread has used so far.
+     * Only supported on Linux.
+     *
+     * @param sizes the array in which to store the reserved size and then the committed size, in bytes
+     * @return {@code true} if the sizes were found, or {@code false} if they are not available
+     */
+    public static boolean getStackUsage(long[] sizes) {
+        if (! Build.Target.isLinux()) {
+            return false;
+        }
+        pthread_attr_t attr = auto();
+        if (pthread_getattr_np(pthread_self(), addr_of(attr)).isNonZero()) {
+            return false;
+        }
+        ptr<?> stackAddr = auto();
+        size_t stackSize = auto();
+        final c_int res = pthread_attr_getstack(addr_of(attr), addr_of(stackAddr), addr_of(stackSize));
+        pthread_attr_destroy(addr_of(attr));
+        if (res.isNonZero()) {
+            return false;
+        }
+        final long pageSize = Gc.getPageSize();
+        final ptr<c_char> start = word(stackAddr.longValue() + pageSize - 1 & ~(pageSize - 1));
+        final long size = stackAddr.longValue() + stackSize.longValue() - start.longValue() & ~(pageSize - 1);
+        // ask for the residency of up to 256 pages at a time
+        uint8_t[] pages = new uint8_t[256];
+        long committed = 0;
+        for (long offset = 0; offset < size; ) {
+            final long chunk = Math.min(size - offset, pages.length * pageSize);
+            // fails if part of the range is not mapped, such as the unused end of a growable stack
+            if (mincore(start.plus(offset), word(chunk), addr_of(pages[0])).isZero()) {
+                for (int i = 0; i < chunk / pageSize; i ++) {
+                    if ((pages[i].intValue() & 1) != 0) {
+                        committed += pageSize;
+                    }
+                }
+            }
+            offset += chunk;
+        }
+        sizes[0] = stackSize.longValue();
+        sizes[1] = committed;
+        return true;
+    }
+
+    /**
+     * Add a thread to the thread registry, giving it the lowest free slot. The slot number is also the thread's lock ID
+     * (see {@link ThinLocks}), if it is not beyond the largest ID.
+     * This never blocks, so it may be called while a collection is being started.
+     * The GC can only miss a thread which is added concurrently if the caller is not in a safepoint,
+     * in which case the GC waits for the caller and then looks for new threads again.
+     * Thus the caller must either be outside a safepoint for the whole call, or be certain that no GC is running.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     * @return {@code true} if the thread was added, or {@code false} if every slot is in use
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static boolean registerThread(ptr<thread_native> threadNativePtr) {
+        for (int i = 0; i < SLOT_WORDS; i ++) {
+            final ptr<uint64_t> wordPtr = addr_of(usedSlots[i]);
+            long oldVal = wordPtr.loadVolatile().longValue();
+            for (;;) {
+                // slot zero is never assigned
+                final long used = oldVal | (i == 0 ? 1 : 0);
+                if (used == -1L) {
+                    break;
+                }
+                final int bit = Long.numberOfTrailingZeros(~used);
+                final long witness = wordPtr.compareAndSwap(word(oldVal), word(oldVal | 1L << bit)).longValue();
+                if (witness == oldVal) {
+                    final int slot = (i << 6) + bit;
+                    deref(threadNativePtr).registry_slot = slot;
+                    deref(threadNativePtr).lock_id = slot <= ThinLocks.MAX_LOCK_ID ? slot : 0;
+                    addr_of(threadRegistry[slot]).storeRelease(threadNativePtr);
+                    int limit = threadRegistryLimit;
+                    while (limit <= slot) {
+                        final int limitWitness = addr_of(threadRegistryLimit).compareAndSwap(word(limit), word(slot + 1)).intValue();
+                        if (limitWitness == limit) {
+                            break;
+                        }
+                        limit = limitWitness;
+                    }
+                    return true;
+                }
+                oldVal = witness;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove a thread from the thread registry, and release its slot and lock ID.
+     * This never blocks. If the caller is the thread being removed, then it must not be in a safepoint,
+     * so that the GC either sees it before it is removed and waits for it, or does not see it at all.
+     *
+     * @param threadNativePtr the thread native pointer (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static void unregisterThread(ptr<thread_native> threadNativePtr) {
+        final int slot = deref(threadNativePtr).registry_slot;
+        if (slot != 0) {
+            // empty the slot before it can be reused
+            addr_of(threadRegistry[slot]).storeRelease(zero());
+            deref(threadNativePtr).registry_slot = 0;
+            deref(threadNativePtr).lock_id = 0;
+            addr_of(usedSlots[slot >>> 6]).getAndBitwiseAnd(word(~(1L << (slot & 63))));
+        }
+    }
+
+    /**
+     * Get the upper bound (exclusive) of the thread registry slots which may be in use.
+     * Slots are numbered from one.
+     *
+     * @return the registry slot limit
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static int registeredThreadLimit() {
+        return threadRegistryLimit;
+    }
+
+    /**
+     * Get the thread in a thread registry slot.
+     * The thread may be removed from the registry at any time, but its structure is not freed until its thread object
+     * is found to be unreachable, which cannot happen while the caller stays out of a safepoint.
+     *
+     * @param slot the slot number, from one to {@link #registeredThreadLimit()} (exclusive)
+     * @return the thread native pointer, or {@code null} if the slot is empty
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    public static ptr<thread_native> registeredThread(int slot) {
+        return addr_of(threadRegistry[slot]).loadSingleAcquire();
+    }
+
     /**
      * Request that a thread enter into a safepoint.
      * Within a safepoint, a thread may not access the VM heap in any way (including allocation).
@@ -810,6 +1169,44 @@ public final class ThreadNative {
         awaitStatusWord(threadNative, STATE_IN_SAFEPOINT);
     }
 
+    /**
+     * Wait until the given thread is in a safepoint, reporting it on {@code stderr} each time that the given time passes
+     * without it getting there.
+     * Must not be called from within the same thread.
+     * May only be called within a safepoint.
+     *
+     * @param threadNative the thread to wait for (must not be {@code null})
+     * @param reportNanos the time after which to report the thread, in nanoseconds, or zero to never report it
+     */
+    @SafePoint(SafePointBehavior.REQUIRED)
+    @Hidden
+    @NoThrow
+    public static void awaitSafePoint(ptr<thread_native> threadNative, long reportNanos) {
+        if (reportNanos <= 0) {
+            awaitSafePoint(threadNative);
+            return;
+        }
+        final ptr<uint32_t> statusPtr = addr_of(deref(threadNative).state);
+        int state = statusPtr.loadVolatile().intValue();
+        if ((state & STATE_IN_SAFEPOINT) == 0) {
+            long waited = 0;
+            lockThread_sp(threadNative);
+            state = statusPtr.loadVolatile().intValue();
+            while ((state & STATE_IN_SAFEPOINT) == 0) {
+                if (! awaitThreadOutboundTimed(threadNative, reportNanos)) {
+                    waited += reportNanos;
+                    fprintf(stderr, utf8z("Thread \""));
+                    print_thread_name(stderr, threadNative);
+                    fprintf(stderr, utf8z("\" has not reached a safepoint after %ld ms\n"), waited / 1_000_000);
+                    dump_thread_state(stderr, threadNative);
+                    fflush(stderr);
+                }
+                state = statusPtr.loadVolatile().intValue();
+            }
+            unlockThread(threadNative);
+        }
+    }
+
     @SafePoint(SafePointBehavior.REQUIRED)
     @Hidden
     @NoThrow
@@ -888,8 +1285,13 @@ public final class ThreadNative {
         // todo: if (Build.Target.isUnwContext) ...
         if (unw_getcontext(addr_of(deref(threadNativePtr).saved_context)).isNonZero()) abort();
 
-        // now, indicate that we are in a safepoint
         int witness = statusPtr.loadVolatile().intValue();
+        if (((witness | setBits) & STATE_SAFEPOINT_REQUEST_GC) != 0) {
+            // a GC is coming; find our own roots so that the GC thread does not have to walk our stack
+            Gc.capture_roots(threadNativePtr);
+        }
+
+        // now, indicate that we are in a safepoint
         int oldVal, newVal;
         do {
             oldVal = witness;
@@ -918,11 +1320,18 @@ public final class ThreadNative {
         // wait until it's OK to exit the safepoint
         lockThread_sp();
         try {
+            // while we wait, the GC may ask us to fix up our own stack
+            deref(threadNativePtr).gc_fixup = GC_FIXUP_WAITING;
             int witness = statusPtr.loadVolatile().intValue();
             int oldVal;
             do {
                 oldVal = witness;
                 while ((oldVal & STATE_SAFEPOINT_REQUEST) != 0) {
+                    if (deref(threadNativePtr).gc_fixup == GC_FIXUP_REQUESTED) {
+                        Gc.update_stack(threadNativePtr);
+                        deref(threadNativePtr).gc_fixup = GC_FIXUP_WAITING;
+                        notifyThreadOutbound();
+                    }
                     awaitThreadInbound();
                     oldVal = statusPtr.loadVolatile().intValue();
                 }
@@ -930,9 +1339,12 @@ public final class ThreadNative {
                 witness = statusPtr.compareAndSwap(word(oldVal), word(oldVal & ~STATE_IN_SAFEPOINT & ~clearBits | setBits)).intValue();
             } while (witness != oldVal);
             // success!
+            deref(threadNativePtr).gc_fixup = 0;
         } finally {
             unlockThread();
         }
+        // our stack is about to change
+        deref(threadNativePtr).gc_roots_captured = 0;
         // (at this point we're actually not in safepoint anymore)
         // done! notify waiters
         notifyThreadOutbound();
@@ -950,35 +1362,73 @@ public final class ThreadNative {
     @export
     @SafePoint(SafePointBehavior.ALLOWED)
     public static void dump_thread_native(ptr<thread_native> threadNativePtr) {
-        printf(utf8z("Thread at address %p\n"), threadNativePtr);
-        printf(utf8z("  Status:\n"));
+        dump_thread_state(stdout, threadNativePtr);
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void dump_thread_state(ptr<FILE> stream, ptr<thread_native> threadNativePtr) {
+        fprintf(stream, utf8z("Thread at address %p\n"), threadNativePtr);
+        fprintf(stream, utf8z("  Status:\n"));
         int state = deref(threadNativePtr).state.intValue();
-        if ((state & STATE_ALIVE) != 0) printf(utf8z("    %s\n"), utf8z("Alive"));
-        if ((state & STATE_TERMINATED) != 0) printf(utf8z("    %s\n"), utf8z("Terminated"));
-        if ((state & STATE_RUNNABLE) != 0) printf(utf8z("    %s\n"), utf8z("Runnable"));
-        if ((state & STATE_WAITING_INDEFINITELY) != 0) printf(utf8z("    %s\n"), utf8z("Waiting indefinitely"));
-        if ((state & STATE_WAITING_WITH_TIMEOUT) != 0) printf(utf8z("    %s\n"), utf8z("Waiting with timeout"));
-        if ((state & STATE_SLEEPING) != 0) printf(utf8z("    %s\n"), utf8z("Sleeping"));
-        if ((state & STATE_WAITING) != 0) printf(utf8z("    %s\n"), utf8z("Waiting"));
-        if ((state & STATE_PARKED) != 0) printf(utf8z("    %s\n"), utf8z("Parking"));
-        if ((state & STATE_BLOCKED_ON_MONITOR_ENTER) != 0) printf(utf8z("    %s\n"), utf8z("Blocked on monitor"));
-        if ((state & STATE_UNPARK) != 0) printf(utf8z("    %s\n"), utf8z("Unparked"));
-        if ((state & STATE_INTERRUPTED) != 0) printf(utf8z("    %s\n"), utf8z("Interrupted"));
-        if ((state & STATE_IN_NATIVE) != 0) printf(utf8z("    %s\n"), utf8z("In native"));
-        if ((state & STATE_EXITED) != 0) printf(utf8z("    %s\n"), utf8z("Exited"));
-        if ((state & STATE_IN_SAFEPOINT) != 0) printf(utf8z("    %s\n"), utf8z("In safepoint"));
-        if ((state & STATE_SAFEPOINT_REQUEST_GC) != 0) printf(utf8z("    %s\n"), utf8z("GC requested"));
-        if ((state & STATE_SAFEPOINT_REQUEST_STACK) != 0) printf(utf8z("    %s\n"), utf8z("Stack requested"));
-        if ((state & STATE_SAFEPOINT_REQUEST) != 0) printf(utf8z("    %s\n"), utf8z("Safepoint requested"));
+        if ((state & STATE_ALIVE) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Alive"));
+        if ((state & STATE_TERMINATED) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Terminated"));
+        if ((state & STATE_RUNNABLE) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Runnable"));
+        if ((state & STATE_WAITING_INDEFINITELY) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Waiting indefinitely"));
+        if ((state & STATE_WAITING_WITH_TIMEOUT) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Waiting with timeout"));
+        if ((state & STATE_SLEEPING) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Sleeping"));
+        if ((state & STATE_WAITING) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Waiting"));
+        if ((state & STATE_PARKED) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Parking"));
+        if ((state & STATE_BLOCKED_ON_MONITOR_ENTER) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Blocked on monitor"));
+        if ((state & STATE_UNPARK) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Unparked"));
+        if ((state & STATE_INTERRUPTED) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Interrupted"));
+        if ((state & STATE_IN_NATIVE) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("In native"));
+        if ((state & STATE_EXITED) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Exited"));
+        if ((state & STATE_IN_SAFEPOINT) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("In safepoint"));
+        if ((state & STATE_SAFEPOINT_REQUEST_GC) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("GC requested"));
+        if ((state & STATE_SAFEPOINT_REQUEST_STACK) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Stack requested"));
+        if ((state & STATE_SAFEPOINT_REQUEST) != 0) fprintf(stream, utf8z("    %s\n"), utf8z("Safepoint requested"));
+    }
+
+    /**
+     * Print the name of a thread without allocating, so that it can be done from within a safepoint.
+     * Characters outside of ASCII are printed as {@code ?}.
+     *
+     * @param stream the stream to print to (must not be {@code null})
+     * @param threadNativePtr the thread whose name to print (must not be {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static void print_thread_name(ptr<FILE> stream, ptr<thread_native> threadNativePtr) {
+        final reference<Thread> ref = deref(threadNativePtr).ref;
+        final Thread thread = ref == null ? null : ref.toObject();
+        final ThreadAccess ta = cast(thread);
+        final String name = thread == null ? null : ta.name;
+        if (name == null) {
+            fprintf(stream, utf8z("%p"), threadNativePtr);
+            return;
+        }
+        final StringAccess sa = cast(name);
+        final byte[] value = sa.value;
+        // the coder of a Latin-1 string is zero; otherwise each character takes two bytes in native order
+        final boolean latin1 = sa.coder == 0;
+        final int length = latin1 ? value.length : value.length >> 1;
+        for (int i = 0; i < length; i ++) {
+            final int ch;
+            if (latin1) {
+                ch = value[i] & 0xff;
+            } else {
+                final ptr<uint16_t> charPtr = addr_of(value[i << 1]).cast();
+                ch = charPtr.loadUnshared().intValue();
+            }
+            fprintf(stream, utf8z("%c"), word(ch < 0x80 ? ch : '?'));
+        }
     }
 
     /**
      * Structure containing thread-specific items which cannot be moved in memory.
-     * A doubly-linked list, protected by {@link ThreadNative#thread_list_mutex}, is maintained by
-     * the {@code next} and {@code prev} pointers, which are always non-{@code null}.
-     * The list link pointers may only be accessed (for read or write) under the mutex.
-     * The special node {@link ThreadNative#thread_list_terminus} indicates the start and end of the list.
-     * The {@code next} and {@code prev} pointers of that node contain the actual ends of the list.
+     * Running threads are found through the thread registry, in the slot given by {@link #registry_slot};
+     * see {@link ThreadNative#registerThread}.
      * <p>
      * This structure is allocated on thread start and freed some time after termination.
      * Thus, it should normally only be accessed from the same thread or when thread state {@code STATE_ACTIVE} is set.
@@ -987,23 +1437,16 @@ public final class ThreadNative {
     public static class thread_native extends object {
         // TODO
         // ptr<?> top_of_stack; // basis for compressed stack refs
-        /**
-         * The next (newer) thread link.
-         * On the terminus node, this is the <em>first (least recent)</em> node in the list.
-         */
-        public ptr<thread_native> next;
-        /**
-         * The previous (older) thread link.
-         * On the terminus node, this is the <em>last (most recent)</em> node in the list.
-         * New threads are added here.
-         */
-        public ptr<thread_native> prev;
 
         /**
          * The POSIX thread identifier.
          */
         @incomplete(unless = Build.Target.IsPThreads.class)
         public pthread_t thread;
+        /**
+         * The kernel thread ID on Linux, which is set by the thread itself when it starts running, or zero.
+         */
+        public int tid;
 
         /**
          * Reference to the actual Java thread. Must be updated during GC.
@@ -1032,14 +1475,124 @@ public final class ThreadNative {
          * The thread state.
          */
         public uint32_t state;
+        /**
+         * The ID which identifies this thread as the owner of a thin lock, or zero if it has none because it is not
+         * registered, or because its registry slot is beyond the largest lock ID.
+         */
+        public int lock_id;
+        /**
+         * This thread's thread registry slot, or zero if it is not registered.
+         */
+        public int registry_slot;
+        /**
+         * The number of the last collection which stopped this thread. Only accessed by the GC thread.
+         */
+        public int gc_epoch;
+
+        // thread-local allocation buffer
+
+        /**
+         * The next free byte of this thread's allocation buffer, or {@code null} if the thread has no buffer.
+         * Only accessed by this thread, or by the GC while this thread is in a safepoint.
+         */
+        public ptr<c_char> tlab_top;
+        /**
+         * The end of the usable part of this thread's allocation buffer, or {@code null} if the thread has no buffer.
+         * A GC-defined reserve follows this address so that the remainder of the buffer can always be filled.
+         */
+        public ptr<c_char> tlab_end;
+
+        // GC root capture
+
+        /**
+         * The references which were on this thread's stack when it entered its current safepoint on behalf of the GC.
+         * Only valid while {@link #gc_roots_captured} is set.
+         */
+        public ptr<reference<?>> gc_roots;
+        /**
+         * The number of entries in {@link #gc_roots}.
+         */
+        public int gc_root_count;
+        /**
+         * The allocated size of {@link #gc_roots}, in entries.
+         */
+        public int gc_root_capacity;
+        /**
+         * Nonzero if {@link #gc_roots} holds the roots of this thread's stack for its current safepoint.
+         * Set by this thread as it enters a safepoint and cleared as it leaves.
+         */
+        public int gc_roots_captured;
+        /**
+         * The stack fix-up handshake state: zero, {@link #GC_FIXUP_WAITING}, or {@link #GC_FIXUP_REQUESTED}.
+         * Protected by {@link #mutex}.
+         */
+        public int gc_fixup;
 
         // safepoint state
         @incomplete(when = Build.Target.IsWasi.class)
         public unw_context_t saved_context;
 
+        // fibers
+
+        /**
+         * The first entry of the list of continuations which run on this thread, if it is a fiber carrier, or
+         * {@code null} if it is not. Only changed by this thread, and only outside of safepoints.
+         */
+        public ptr<fiber_native> fibers;
+        /**
+         * The continuation which is running on this thread, if it is a fiber carrier.
+         */
+        public ptr<fiber_native> fiber;
+
         // exception info
         // @incomplete(unless = Build.Target.IsUnwind.class)
         @incomplete(when = Build.Target.IsWasi.class)
         public struct__Unwind_Exception unwindException;
     }
+
+    /**
+     * Structure containing the state of a continuation which runs on a fiber carrier thread: either a fiber, or the
+     * carrier thread's own stack. A continuation which is not running on its carrier has its stack walked by the GC
+     * from {@link #saved_context}; see {@link Fiber}.
+     * <p>
+     * This structure is allocated along with its stack when a fiber is started, and is kept for reuse by a later fiber
+     * once it has finished and has been removed from the list of its carrier.
+     */
+    @internal
+    public static class fiber_native extends object {
+        /**
+         * Reference to the fiber, or {@code null} for the carrier thread's own stack. Must be updated during GC.
+         */
+        public reference<Fiber> ref;
+        /**
+         * The next continuation in the list of the carrier.
+         */
+        public ptr<fiber_native> next;
+        /**
+         * The previous continuation in the list of the carrier.
+         */
+        public ptr<fiber_native> prev;
+        /**
+         * Nonzero if {@link #saved_context} holds the context of this continuation's stack, which is not running.
+         */
+        public int suspended;
+        /**
+         * The lowest address of the stack, including its red zone, or {@code null} for the carrier thread's own stack.
+         */
+        public ptr<c_char> stack;
+        /**
+         * The size of the stack, including its red zone.
+         */
+        public long stack_size;
+        /**
+         * The machine context to resume this continuation with.
+         */
+        @incomplete(unless = Build.Target.IsLinux.class)
+        public ucontext_t context;
+        /**
+         * The context from which the GC walks this continuation's stack while it is suspended.
+         */
+        @incomplete(when = Build.Target.IsWasi.class)
+        public unw_context_t saved_context;
+    }
 }
@@ -170,6 +170,7 @@ module java.base {
 //        jdk.incubator.foreign,
 //        jdk.internal.vm.ci,
         jdk.unsupported;
+    exports jdk.internal.thread to jdk.net;
 //    exports jdk.internal.util to jdk.incubator.foreign;
 //    exports jdk.internal.util.jar to jdk.jartool;
 //    exports jdk.internal.util.random to jdk.random;
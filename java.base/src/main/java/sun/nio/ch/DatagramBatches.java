@@ -0,0 +1,269 @@
+package sun.nio.ch;
+
+import static jdk.internal.sys.linux.NetinetUdp.*;
+import static jdk.internal.sys.linux.SysSocket.*;
+import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.NetinetIn.*;
+import static jdk.internal.sys.posix.SysSocket.*;
+import static jdk.internal.sys.posix.SysUio.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.channels.UnsupportedAddressTypeException;
+
+import jdk.internal.access.JavaNioAccess;
+import jdk.internal.access.SharedSecrets;
+import jdk.internal.sys.linux.Linux;
+import org.qbicc.runtime.Build;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * Receiving and sending batches of datagrams with one system call each, using {@code recvmmsg} and {@code sendmmsg}.
+ * <p>
+ * The calls never block, so the buffers of the datagrams (including heap buffers) are given to the kernel directly
+ * while safepoints are forbidden, with no copying. At most {@link #MAX_BATCH} datagrams are moved by each call.
+ * <p>
+ * The channel must be in non-blocking mode. Each call holds the read or write lock of the channel and goes through its
+ * begin/end protocol, as {@code DatagramChannelImpl.receive} and {@code send} do, so that the channel cannot be closed
+ * (or have its blocking mode changed) while the call is in progress.
+ */
+public final class DatagramBatches {
+    /**
+     * The most datagrams which are moved by one call.
+     */
+    public static final int MAX_BATCH = 64;
+
+    private static final JavaNioAccess NIO_ACCESS = SharedSecrets.getJavaNioAccess();
+
+    private DatagramBatches() {}
+
+    /**
+     * Determine whether batched datagram I/O is supported, which needs Linux 3.0 or later.
+     *
+     * @return {@code true} if it is supported
+     */
+    public static boolean isSupported() {
+        return Build.Target.isLinux() && Linux.kernelAtLeast(3, 0);
+    }
+
+    /**
+     * Receive the datagrams which are waiting on a socket, up to one for each buffer. Each datagram is stored at the
+     * position of its buffer, which is advanced past it; any part of a datagram which does not fit is discarded.
+     *
+     * @param channel the channel, which was created by the default provider (must not be {@code null})
+     * @param dsts the buffers (must not be {@code null} and must not contain {@code null} or read-only buffers)
+     * @param sources an array to store the sender address of each datagram in, or {@code null} to discard them
+     * @return the number of datagrams received, which is zero if none were waiting
+     * @throws IllegalBlockingModeException if the channel is in blocking mode
+     * @throws IOException if the channel is closed, or receiving fails
+     */
+    public static int receive(DatagramChannel channel, ByteBuffer[] dsts, SocketAddress[] sources) throws IOException {
+        final int count = Math.min(dsts.length, MAX_BATCH);
+        for (int i = 0; i < count; i ++) {
+            if (dsts[i].isReadOnly()) {
+                throw new IllegalArgumentException("Read-only buffer");
+            }
+        }
+        struct_mmsghdr[] msgs = new struct_mmsghdr[MAX_BATCH];
+        struct_iovec[] iovs = new struct_iovec[MAX_BATCH];
+        struct_sockaddr_in6[] names = new struct_sockaddr_in6[MAX_BATCH];
+        memset(addr_of(msgs[0]).cast(), word(0), sizeof(msgs));
+        for (int i = 0; i < count; i ++) {
+            msgs[i].msg_hdr.msg_name = addr_of(names[i]);
+            msgs[i].msg_hdr.msg_namelen = word(sizeof(names[i]).intValue());
+        }
+        final DatagramChannelImpl$_aliases dc = (DatagramChannelImpl$_aliases) (Object) channel;
+        final int res;
+        dc.readLock.lock();
+        try {
+            if (channel.isBlocking()) {
+                throw new IllegalBlockingModeException();
+            }
+            boolean completed = false;
+            try {
+                dc.beginRead(false, false);
+                final int n = receiveBatch(fdVal(channel), dsts, count, addr_of(msgs[0]), addr_of(iovs[0]));
+                res = n < 0 ? checkError(- n) : n;
+                completed = res > 0;
+            } finally {
+                dc.endRead(false, completed);
+            }
+        } finally {
+            dc.readLock.unlock();
+        }
+        for (int i = 0; i < res; i ++) {
+            final ByteBuffer dst = dsts[i];
+            dst.position(dst.position() + msgs[i].msg_len.intValue());
+            if (sources != null) {
+                c_int port = auto();
+                sources[i] = new InetSocketAddress(NetUtil$_aliases.sockaddrToInetAddress(addr_of(names[i]), addr_of(port)), port.intValue());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Send one datagram from each of the given buffers, from its position to its limit. The position of the buffer of
+     * each datagram which is sent is advanced to its limit.
+     *
+     * @param channel the channel, which was created by the default provider (must not be {@code null})
+     * @param srcs the buffers (must not be {@code null} and must not contain {@code null})
+     * @param targets the address to send each datagram to, or {@code null} to send them all to the connected address
+     * @return the number of datagrams sent, which is zero if the socket send buffer is full
+     * @throws IllegalBlockingModeException if the channel is in blocking mode
+     * @throws java.nio.channels.NotYetConnectedException if {@code targets} is {@code null} and the channel is not
+     *      connected
+     * @throws AlreadyConnectedException if the channel is connected and a target is not the connected address
+     * @throws IOException if the channel is closed, or sending fails
+     */
+    public static int send(DatagramChannel channel, ByteBuffer[] srcs, SocketAddress[] targets) throws IOException {
+        final int count = Math.min(srcs.length, MAX_BATCH);
+        struct_mmsghdr[] msgs = new struct_mmsghdr[MAX_BATCH];
+        struct_iovec[] iovs = new struct_iovec[MAX_BATCH];
+        struct_sockaddr_in6[] names = new struct_sockaddr_in6[MAX_BATCH];
+        memset(addr_of(msgs[0]).cast(), word(0), sizeof(msgs));
+        final DatagramChannelImpl$_aliases dc = (DatagramChannelImpl$_aliases) (Object) channel;
+        final int res;
+        dc.writeLock.lock();
+        try {
+            if (channel.isBlocking()) {
+                throw new IllegalBlockingModeException();
+            }
+            boolean completed = false;
+            try {
+                final SocketAddress remote = dc.beginWrite(false, targets == null);
+                final int fd = fdVal(channel);
+                if (targets != null) {
+                    final boolean preferIPv6 = isIPv6(fd);
+                    for (int i = 0; i < count; i ++) {
+                        if (! (targets[i] instanceof InetSocketAddress)) {
+                            throw new UnsupportedAddressTypeException();
+                        }
+                        final InetSocketAddress isa = (InetSocketAddress) targets[i];
+                        if (isa.isUnresolved()) {
+                            throw new UnresolvedAddressException();
+                        }
+                        if (remote != null && ! remote.equals(isa)) {
+                            // a connected socket would send anywhere it is told to, but the channel only sends to its peer
+                            throw new AlreadyConnectedException();
+                        }
+                        c_int len = auto(word(sizeof(names[i]).intValue()));
+                        if (NetUtil$_aliases.inetAddressToSockaddr(isa.getAddress(), isa.getPort(), addr_of(names[i]), addr_of(len), preferIPv6).isNonZero()) {
+                            throw new SocketException("Cannot convert address " + isa);
+                        }
+                        msgs[i].msg_hdr.msg_name = addr_of(names[i]);
+                        msgs[i].msg_hdr.msg_namelen = word(len.intValue());
+                    }
+                }
+                final int n = sendBatch(fd, srcs, count, addr_of(msgs[0]), addr_of(iovs[0]));
+                res = n < 0 ? checkError(- n) : n;
+                completed = res > 0;
+            } finally {
+                dc.endWrite(false, completed);
+            }
+        } finally {
+            dc.writeLock.unlock();
+        }
+        for (int i = 0; i < res; i ++) {
+            final ByteBuffer src = srcs[i];
+            src.position(src.position() + msgs[i].msg_len.intValue());
+        }
+        return res;
+    }
+
+    /**
+     * Set the segment size for UDP generic segmentation offload, so that a datagram which is sent is split by the
+     * kernel (or the network card) into datagrams of this size. This needs Linux 4.18 or later.
+     *
+     * @param fdObj the socket (must not be {@code null})
+     * @param size the segment size, or zero to turn segmentation off
+     * @throws IOException if the option cannot be set
+     */
+    public static void setSegmentSize(FileDescriptor fdObj, int size) throws IOException {
+        c_int value = auto(word(size));
+        if (setsockopt(word(fdVal(fdObj)), IPPROTO_UDP, UDP_SEGMENT, addr_of(value), word(sizeof(value).intValue())).isNonZero()) {
+            throw new SocketException(utf8zToJavaString(strerror(word(errno)).cast()));
+        }
+    }
+
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    private static int receiveBatch(int fd, ByteBuffer[] dsts, int count, ptr<struct_mmsghdr> msgs, ptr<struct_iovec> iovs) {
+        fill(dsts, count, msgs, iovs);
+        final int res = recvmmsg(word(fd), msgs, word(count), MSG_DONTWAIT, zero()).intValue();
+        return res == -1 ? - errno : res;
+    }
+
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    private static int sendBatch(int fd, ByteBuffer[] srcs, int count, ptr<struct_mmsghdr> msgs, ptr<struct_iovec> iovs) {
+        fill(srcs, count, msgs, iovs);
+        final int res = sendmmsg(word(fd), msgs, word(count), MSG_DONTWAIT).intValue();
+        return res == -1 ? - errno : res;
+    }
+
+    /**
+     * Point each message at the remaining part of its buffer. Heap buffers may only be given to the kernel like this
+     * because no safepoint (and so no GC) can happen until the call has returned.
+     */
+    @SafePoint(SafePointBehavior.FORBIDDEN)
+    private static void fill(ByteBuffer[] bufs, int count, ptr<struct_mmsghdr> msgs, ptr<struct_iovec> iovs) {
+        for (int i = 0; i < count; i ++) {
+            final ByteBuffer buf = bufs[i];
+            final int pos = buf.position();
+            final int lim = buf.limit();
+            final int rem = pos <= lim ? lim - pos : 0;
+            final ptr<struct_iovec> iov = iovs.plus(i);
+            if (rem == 0) {
+                deref(iov).iov_base = zero();
+            } else if (buf instanceof DirectBuffer) {
+                // todo: scope?
+                deref(iov).iov_base = word(((DirectBuffer) buf).address() + pos);
+            } else {
+                final byte[] array = (byte[]) NIO_ACCESS.getBufferBase(buf);
+                deref(iov).iov_base = addr_of(array[((ByteBuffer$_aliases) (Object) buf).offset + pos]);
+            }
+            deref(iov).iov_len = word(rem);
+            deref(msgs.plus(i)).msg_hdr.msg_iov = iov;
+            deref(msgs.plus(i)).msg_hdr.msg_iovlen = word(1);
+        }
+    }
+
+    private static boolean isIPv6(int fd) throws IOException {
+        c_int domain = auto();
+        socklen_t len = auto(word(sizeof(domain).intValue()));
+        if (getsockopt(word(fd), SOL_SOCKET, SO_DOMAIN, addr_of(domain), addr_of(len)).isNonZero()) {
+            throw new SocketException(utf8zToJavaString(strerror(word(errno)).cast()));
+        }
+        return domain == AF_INET6;
+    }
+
+    private static int checkError(int error) throws IOException {
+        if (error == EAGAIN.intValue() || error == EWOULDBLOCK.intValue() || error == EINTR.intValue()) {
+            return 0;
+        } else if (error == ECONNREFUSED.intValue()) {
+            throw new PortUnreachableException();
+        } else {
+            throw new SocketException(utf8zToJavaString(strerror(word(error)).cast()));
+        }
+    }
+
+    private static int fdVal(FileDescriptor fdObj) {
+        return ((FileDescriptor$_aliases) (Object) fdObj).fd;
+    }
+
+    private static int fdVal(DatagramChannel channel) {
+        return fdVal(((SelChImpl) channel).getFD());
+    }
+}
@@ -0,0 +1,20 @@
+package sun.nio.ch;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(DatagramChannelImpl.class)
+// aliases to make the locks and the begin/end protocol of DatagramChannelImpl accessible to DatagramBatches
+abstract class DatagramChannelImpl$_aliases {
+    ReentrantLock readLock;
+    ReentrantLock writeLock;
+
+    native SocketAddress beginRead(boolean blocking, boolean mustBeConnected) throws IOException;
+    native void endRead(boolean blocking, boolean completed) throws AsynchronousCloseException;
+    native SocketAddress beginWrite(boolean blocking, boolean mustBeConnected) throws IOException;
+    native void endWrite(boolean blocking, boolean completed) throws AsynchronousCloseException;
+}
@@ -73,6 +73,23 @@ class EPoll$_native {
         event.events = word(events);
         event.data.fd = word(fd);
 
+        if (opcode != EPOLL_CTL_DEL.intValue() && (events & EPOLLONESHOT.intValue()) == 0 && ExclusiveWakeup.isExclusive(fd)) {
+            event.events = word(events | EPOLLEXCLUSIVE.intValue());
+            if (opcode == EPOLL_CTL_MOD.intValue()) {
+                // an exclusive registration cannot be modified, so replace it
+                if (epoll_ctl(word(epfd), EPOLL_CTL_DEL, word(fd), addr_of(event)).intValue() != 0) {
+                    // still registered as before (or never was)
+                    return errno;
+                }
+            }
+            if (epoll_ctl(word(epfd), EPOLL_CTL_ADD, word(fd), addr_of(event)).intValue() == 0) {
+                return 0;
+            }
+            final int err = errno;
+            // the kernel refuses the flag with some events; register without it rather than leave the fd unregistered
+            event.events = word(events);
+            return epoll_ctl(word(epfd), EPOLL_CTL_ADD, word(fd), addr_of(event)).intValue() == 0 ? 0 : err;
+        }
         c_int res = epoll_ctl(word(epfd), word(opcode), word(fd), addr_of(event));
         return (res.intValue() == 0) ? 0 : errno;
     }
@@ -0,0 +1,79 @@
+package sun.nio.ch;
+
+import java.io.FileDescriptor;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.internal.sys.linux.Linux;
+import org.qbicc.runtime.Build;
+
+/**
+ * The file descriptors which are registered with {@code EPOLLEXCLUSIVE}, so that when several selectors watch the same
+ * listening socket, each connection wakes only one of them instead of all of them.
+ * <p>
+ * The flag must be set before the file descriptor is registered with a selector, because {@code EPOLLEXCLUSIVE} may
+ * only be given when a file descriptor is added to an epoll set. A registration which is modified is removed and added
+ * again. The flag is not applied to one-shot registrations (such as those of the asynchronous channels), with which the
+ * kernel does not allow it.
+ * <p>
+ * The flag is cleared when the socket is closed (see {@link SocketDispatcher}), before its file descriptor number can
+ * be reused by another socket.
+ */
+public final class ExclusiveWakeup {
+    private static final Set<Integer> exclusive = ConcurrentHashMap.newKeySet();
+
+    private ExclusiveWakeup() {}
+
+    /**
+     * Determine whether exclusive wakeups are supported, which needs Linux 4.5 or later.
+     *
+     * @return {@code true} if they are supported
+     */
+    public static boolean isSupported() {
+        return Build.Target.isLinux() && Linux.kernelAtLeast(4, 5);
+    }
+
+    /**
+     * Set or clear the exclusive wakeup flag of a file descriptor.
+     *
+     * @param fdObj the file descriptor (must not be {@code null})
+     * @param on {@code true} to set the flag, or {@code false} to clear it
+     * @throws UnsupportedOperationException if exclusive wakeups are not supported
+     */
+    public static void set(FileDescriptor fdObj, boolean on) {
+        if (! isSupported()) {
+            throw new UnsupportedOperationException("Exclusive wakeups are not supported on this platform");
+        }
+        final int fd = ((FileDescriptor$_aliases) (Object) fdObj).fd;
+        if (on) {
+            exclusive.add(Integer.valueOf(fd));
+        } else {
+            exclusive.remove(Integer.valueOf(fd));
+        }
+    }
+
+    /**
+     * Get the exclusive wakeup flag of a file descriptor.
+     *
+     * @param fdObj the file descriptor (must not be {@code null})
+     * @return {@code true} if the flag is set
+     */
+    public static boolean get(FileDescriptor fdObj) {
+        return isSupported() && isExclusive(((FileDescriptor$_aliases) (Object) fdObj).fd);
+    }
+
+    static boolean isExclusive(int fd) {
+        return ! exclusive.isEmpty() && exclusive.contains(Integer.valueOf(fd));
+    }
+
+    /**
+     * Clear the flag of a file descriptor which is being closed.
+     *
+     * @param fdObj the file descriptor (must not be {@code null})
+     */
+    static void closing(FileDescriptor fdObj) {
+        if (! exclusive.isEmpty()) {
+            exclusive.remove(Integer.valueOf(((FileDescriptor$_aliases) (Object) fdObj).fd));
+        }
+    }
+}
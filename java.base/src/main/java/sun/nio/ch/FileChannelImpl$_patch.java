@@ -0,0 +1,113 @@
+/*
+ * This code is based on OpenJDK source file(s) which contain the following copyright notice:
+ *
+ * ------
+ * Copyright (c) 2000, 2021, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ * ------
+ *
+ * This file may contain additional modifications which are Copyright (c) Red Hat and other
+ * contributors.
+ */
+
+package sun.nio.ch;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import org.qbicc.rt.annotation.Tracking;
+import org.qbicc.runtime.patcher.PatchClass;
+import org.qbicc.runtime.patcher.Replace;
+
+/**
+ * Splice bytes from non-blocking sockets to files instead of copying them through a buffer.
+ */
+@PatchClass(FileChannelImpl.class)
+@Tracking("src/java.base/share/classes/sun/nio/ch/FileChannelImpl.java")
+class FileChannelImpl$_patch {
+    // alias
+    private FileDescriptor fd;
+    private boolean writable;
+    private NativeThreadSet threads;
+
+    // alias
+    private native void ensureOpen() throws IOException;
+
+    // alias
+    private native long transferFromFileChannel(FileChannelImpl src, long position, long count) throws IOException;
+
+    // alias
+    private native long transferFromArbitraryChannel(ReadableByteChannel src, long position, long count) throws IOException;
+
+    @Replace
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ensureOpen();
+        if (!src.isOpen())
+            throw new ClosedChannelException();
+        if (!writable)
+            throw new NonWritableChannelException();
+        if ((position < 0) || (count < 0))
+            throw new IllegalArgumentException();
+        final FileChannel self = (FileChannel) (Object) this;
+        if (position > self.size())
+            return 0;
+        if (src instanceof FileChannelImpl)
+            return transferFromFileChannel((FileChannelImpl)src, position, count);
+        if (src instanceof SocketChannelImpl && SpliceTransfer.isSupported()) {
+            final SocketChannelImpl sc = (SocketChannelImpl) src;
+            if (! sc.isBlocking() && sc.isConnected() && SpliceTransfer.isSpliceableFile(fd)) {
+                // read from the socket as SocketChannelImpl.read does, so that it is not closed meanwhile
+                final SocketChannelImpl$_aliases sca = (SocketChannelImpl$_aliases) (Object) sc;
+                sca.readLock.lock();
+                try {
+                    // a blocking socket could leave the thread stuck in splice when the channel is closed
+                    if (! sc.isBlocking()) {
+                        int ti = threads.add();
+                        try {
+                            if (!self.isOpen())
+                                return 0;
+                            boolean completed = false;
+                            try {
+                                sca.beginRead(false);
+                                final long n = SpliceTransfer.socketToFile(sc.getFD(), fd, position, count);
+                                completed = n > 0;
+                                return n;
+                            } finally {
+                                sca.endRead(false, completed);
+                            }
+                        } finally {
+                            threads.remove(ti);
+                        }
+                    }
+                } finally {
+                    sca.readLock.unlock();
+                }
+            }
+        }
+        return transferFromArbitraryChannel(src, position, count);
+    }
+}
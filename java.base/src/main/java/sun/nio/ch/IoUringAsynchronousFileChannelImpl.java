@@ -0,0 +1,185 @@
+package sun.nio.ch;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jdk.internal.access.JavaNioAccess;
+import jdk.internal.access.SharedSecrets;
+import jdk.internal.misc.Unsafe;
+
+/**
+ * An asynchronous file channel which reads and writes through the {@link IoUringEngine}, so that no thread is
+ * blocked for each operation in progress. Completion handlers are still run by the executor of the channel.
+ * <p>
+ * Everything other than reading and writing (locking, size, truncation and forcing) is done by the thread pool based
+ * implementation which this one extends.
+ */
+final class IoUringAsynchronousFileChannelImpl extends SimpleAsynchronousFileChannelImpl {
+    private static final JavaNioAccess NIO_ACCESS = SharedSecrets.getJavaNioAccess();
+    private static final Unsafe UNSAFE = Unsafe.getUnsafe();
+
+    private final IoUringEngine engine;
+    private final int fdVal;
+
+    IoUringAsynchronousFileChannelImpl(FileDescriptor fdObj, boolean reading, boolean writing, ExecutorService executor, IoUringEngine engine) {
+        super(fdObj, reading, writing, executor);
+        this.engine = engine;
+        this.fdVal = ((FileDescriptor$_aliases) (Object) fdObj).fd;
+    }
+
+    @Override
+    <A> Future<Integer> implRead(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (! reading) {
+            throw new NonReadableChannelException();
+        }
+        if (dst.isReadOnly()) {
+            throw new IllegalArgumentException("Read-only buffer");
+        }
+        return start(dst, position, false, attachment, handler);
+    }
+
+    @Override
+    <A> Future<Integer> implWrite(ByteBuffer src, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        if (! writing) {
+            throw new NonWritableChannelException();
+        }
+        return start(src, position, true, attachment, handler);
+    }
+
+    private <A> Future<Integer> start(ByteBuffer buf, long position, boolean write, A attachment, CompletionHandler<Integer, ? super A> handler) {
+        final int pos = buf.position();
+        final int lim = buf.limit();
+        final int rem = pos <= lim ? lim - pos : 0;
+        // complete immediately if channel closed or no bytes remaining
+        if (! isOpen() || rem == 0) {
+            final Throwable exc = isOpen() ? null : new ClosedChannelException();
+            if (handler == null) {
+                return CompletedFuture.withResult(0, exc);
+            }
+            Invoker.invokeIndirectly(handler, attachment, 0, exc, executor);
+            return null;
+        }
+        final PendingFuture<Integer, A> result = handler == null ? new PendingFuture<>(this) : null;
+        final Transfer<A> transfer = new Transfer<>(buf, pos, rem, write, result, handler, attachment);
+        try {
+            begin();
+            transfer.prepare();
+            if (write) {
+                engine.write(fdVal, transfer.address, transfer.len, position, transfer.fixedBuffer, transfer);
+            } else {
+                engine.read(fdVal, transfer.address, transfer.len, position, transfer.fixedBuffer, transfer);
+            }
+        } catch (IOException x) {
+            // closed before it was submitted
+            if (handler == null) {
+                return CompletedFuture.withFailure(x);
+            }
+            Invoker.invokeIndirectly(handler, attachment, null, x, executor);
+        } finally {
+            end();
+        }
+        return result;
+    }
+
+    /**
+     * A read or write which is in progress. A heap buffer is transferred through native memory: a registered buffer
+     * if the transfer fits in one and one is free, or else a temporary direct buffer.
+     */
+    private final class Transfer<A> extends IoUringEngine.Operation {
+        private final ByteBuffer buf;
+        private final int pos;
+        private final boolean write;
+        private final PendingFuture<Integer, A> result;
+        private final CompletionHandler<Integer, ? super A> handler;
+        private final A attachment;
+        final int len;
+        long address;
+        int fixedBuffer = -1;
+        private ByteBuffer temp;
+
+        Transfer(ByteBuffer buf, int pos, int len, boolean write, PendingFuture<Integer, A> result, CompletionHandler<Integer, ? super A> handler, A attachment) {
+            this.buf = buf;
+            this.pos = pos;
+            this.len = len;
+            this.write = write;
+            this.result = result;
+            this.handler = handler;
+            this.attachment = attachment;
+        }
+
+        void prepare() {
+            if (buf instanceof DirectBuffer) {
+                // todo: scope?
+                address = ((DirectBuffer) buf).address() + pos;
+                return;
+            }
+            // a larger transfer is not cut short to fit a registered buffer
+            fixedBuffer = len <= IoUringEngine.FIXED_BUFFER_SIZE ? engine.acquireFixedBuffer() : -1;
+            if (fixedBuffer != -1) {
+                address = engine.fixedBufferAddress(fixedBuffer);
+            } else {
+                temp = Util.getTemporaryDirectBuffer(len);
+                address = ((DirectBuffer) temp).address();
+            }
+            if (write) {
+                UNSAFE.copyMemory(NIO_ACCESS.getBufferBase(buf), arrayOffset(), null, address, len);
+            }
+        }
+
+        void release() {
+            if (fixedBuffer != -1) {
+                engine.releaseFixedBuffer(fixedBuffer);
+                fixedBuffer = -1;
+            } else if (temp != null) {
+                Util.releaseTemporaryDirectBuffer(temp);
+                temp = null;
+            }
+        }
+
+        void complete(int res) {
+            Integer n = null;
+            Throwable exc = null;
+            if (res >= 0) {
+                if (res > 0 && ! write && ! (buf instanceof DirectBuffer)) {
+                    UNSAFE.copyMemory(null, address, NIO_ACCESS.getBufferBase(buf), arrayOffset(), res);
+                }
+                if (res > 0) {
+                    buf.position(pos + res);
+                }
+                // reading nothing means that the position is at or past the end of the file
+                n = Integer.valueOf(res == 0 && ! write ? IOStatus.EOF : res);
+            } else if (! isOpen()) {
+                exc = new AsynchronousCloseException();
+            } else {
+                exc = new IOException(utf8zToJavaString(strerror(word(- res)).cast()));
+            }
+            release();
+            if (handler == null) {
+                result.setResult(n, exc);
+            } else {
+                Invoker.invokeIndirectly(handler, attachment, n, exc, executor);
+            }
+        }
+
+        private long arrayOffset() {
+            return Unsafe.ARRAY_BYTE_BASE_OFFSET + ((ByteBuffer$_aliases) (Object) buf).offset + pos;
+        }
+    }
+}
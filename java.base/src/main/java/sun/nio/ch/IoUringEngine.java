@@ -0,0 +1,452 @@
+package sun.nio.ch;
+
+import static jdk.internal.sys.linux.IoUring.*;
+import static jdk.internal.sys.linux.SysMman.*;
+import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.SysMman.*;
+import static jdk.internal.sys.posix.SysUio.*;
+import static jdk.internal.sys.posix.Unistd.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import jdk.internal.misc.InnocuousThread;
+import jdk.internal.sys.linux.Linux;
+import org.qbicc.runtime.Build;
+
+/**
+ * An {@code io_uring} submission and completion queue pair, which performs positional reads and writes of files
+ * without blocking the threads which start them.
+ * <p>
+ * Submissions from several threads are combined: a thread which adds an entry to the submission queue while another
+ * thread is in {@code io_uring_enter} leaves the entry for that thread to submit, so that a burst of operations is
+ * submitted with one system call. It still waits until its entry has been submitted, because the kernel only looks up
+ * the file descriptor then; otherwise the channel could be closed, and the descriptor reused for another file,
+ * before the kernel reads or writes it. A single daemon thread waits for completions and completes the operations.
+ * <p>
+ * The kernel may read or write the memory of an operation at any time until its completion is posted, so only native
+ * memory may be given to it. A set of buffers is registered with the ring so that the kernel need not map and pin
+ * their pages for each operation; users copy heap data through them (see {@link #acquireFixedBuffer()}).
+ * <p>
+ * There are never more operations in progress than the submission queue has entries, and the completion queue has
+ * twice as many entries, so neither queue can overflow.
+ * <p>
+ * The plain read and write operations were added in Linux 5.6; {@link #get()} returns {@code null} on older kernels,
+ * and when {@code io_uring} is disabled (for example, by a seccomp filter or by the
+ * {@code sun.nio.ch.disableIoUring} system property), so that the thread pool based file channel is used instead.
+ */
+final class IoUringEngine {
+    /**
+     * The number of submission queue entries, which is also the most operations which may be in progress at once.
+     * The build-time value is taken from the {@code qbicc.rt.io-uring.entries} property of the build, and must be
+     * a power of two.
+     */
+    private static final int ENTRIES = Integer.getInteger("qbicc.rt.io-uring.entries", 256).intValue();
+    /**
+     * The number of registered buffers.
+     */
+    private static final int FIXED_BUFFER_COUNT = 32;
+    /**
+     * The size of each registered buffer; a heap buffer transfer which is larger than this goes through a temporary
+     * direct buffer instead.
+     */
+    static final int FIXED_BUFFER_SIZE = 64 << 10;
+
+    private static final Object instanceLock = new Object();
+    private static volatile IoUringEngine instance;
+    private static volatile boolean unavailable;
+
+    private final int ringFd;
+    private final ptr<uint32_t> sqHead;
+    private final ptr<uint32_t> sqTail;
+    private final int sqMask;
+    private final ptr<uint32_t> sqArray;
+    private final ptr<struct_io_uring_sqe> sqes;
+    private final ptr<uint32_t> cqHead;
+    private final ptr<uint32_t> cqTail;
+    private final int cqMask;
+    private final ptr<struct_io_uring_cqe> cqes;
+    /**
+     * The registered buffers, or {@code null} if they could not be registered.
+     */
+    private final ptr<uint8_t> fixedBuffers;
+
+    // all of the following are guarded by lock
+
+    private final Object lock = new Object();
+    private final Operation[] operations = new Operation[ENTRIES];
+    private final int[] freeSlots = new int[ENTRIES];
+    private int freeSlotCount;
+    private final int[] freeFixed = new int[FIXED_BUFFER_COUNT];
+    private int freeFixedCount;
+    /**
+     * The number of entries which have been added to the submission queue but not yet submitted.
+     */
+    private int unsubmitted;
+    /**
+     * The number of entries which have ever been added to the submission queue.
+     */
+    private long queued;
+    /**
+     * The number of entries which have ever been submitted, or dropped because submitting failed.
+     */
+    private long submitted;
+    /**
+     * Set while some thread is submitting entries.
+     */
+    private boolean submitting;
+
+    private IoUringEngine(int ringFd, ptr<uint8_t> sqRing, ptr<uint8_t> cqRing, ptr<struct_io_uring_sqe> sqes, ptr<struct_io_uring_params> params, ptr<uint8_t> fixedBuffers) {
+        this.ringFd = ringFd;
+        this.sqHead = sqRing.plus(deref(params).sq_off.head.intValue()).cast();
+        this.sqTail = sqRing.plus(deref(params).sq_off.tail.intValue()).cast();
+        this.sqMask = sqRing.plus(deref(params).sq_off.ring_mask.intValue()).<ptr<uint32_t>>cast().loadUnshared().intValue();
+        this.sqArray = sqRing.plus(deref(params).sq_off.array.intValue()).cast();
+        this.sqes = sqes;
+        this.cqHead = cqRing.plus(deref(params).cq_off.head.intValue()).cast();
+        this.cqTail = cqRing.plus(deref(params).cq_off.tail.intValue()).cast();
+        this.cqMask = cqRing.plus(deref(params).cq_off.ring_mask.intValue()).<ptr<uint32_t>>cast().loadUnshared().intValue();
+        this.cqes = cqRing.plus(deref(params).cq_off.cqes.intValue()).cast();
+        this.fixedBuffers = fixedBuffers;
+        for (int i = 0; i < ENTRIES; i ++) {
+            freeSlots[i] = ENTRIES - 1 - i;
+        }
+        freeSlotCount = ENTRIES;
+        if (fixedBuffers.isNonNull()) {
+            for (int i = 0; i < FIXED_BUFFER_COUNT; i ++) {
+                freeFixed[i] = FIXED_BUFFER_COUNT - 1 - i;
+            }
+            freeFixedCount = FIXED_BUFFER_COUNT;
+        }
+    }
+
+    /**
+     * Get the engine, creating it on first use.
+     *
+     * @return the engine, or {@code null} if {@code io_uring} cannot be used
+     */
+    static IoUringEngine get() {
+        if (! Build.Target.isLinux()) {
+            return null;
+        }
+        IoUringEngine engine = instance;
+        if (engine == null && ! unavailable) {
+            synchronized (instanceLock) {
+                engine = instance;
+                if (engine == null && ! unavailable) {
+                    if (Boolean.getBoolean("sun.nio.ch.disableIoUring") || ! Linux.kernelAtLeast(5, 6)) {
+                        unavailable = true;
+                    } else {
+                        engine = create();
+                        if (engine == null) {
+                            unavailable = true;
+                        } else {
+                            final Thread thread = InnocuousThread.newSystemThread("io_uring completion", engine::run);
+                            thread.setDaemon(true);
+                            thread.start();
+                            instance = engine;
+                        }
+                    }
+                }
+            }
+        }
+        return engine;
+    }
+
+    private static IoUringEngine create() {
+        struct_io_uring_params params = auto();
+        memset(addr_of(params).cast(), word(0), sizeof(params));
+        final c_int fd = io_uring_setup(word(ENTRIES), addr_of(params));
+        if (fd.intValue() == -1) {
+            // ENOSYS, or EPERM if it is disabled
+            return null;
+        }
+        long sqSize = params.sq_off.array.longValue() + params.sq_entries.longValue() * sizeof(uint32_t.class).longValue();
+        long cqSize = params.cq_off.cqes.longValue() + params.cq_entries.longValue() * sizeof(struct_io_uring_cqe.class).longValue();
+        final boolean singleMmap = (params.features.intValue() & IORING_FEAT_SINGLE_MMAP.intValue()) != 0;
+        if (singleMmap) {
+            sqSize = cqSize = Math.max(sqSize, cqSize);
+        }
+        final c_int prot = word(PROT_READ.intValue() | PROT_WRITE.intValue());
+        final c_int flags = word(MAP_SHARED.intValue() | MAP_POPULATE.intValue());
+        final ptr<uint8_t> sqRing = mmap(zero(), word(sqSize), prot, flags, fd, IORING_OFF_SQ_RING);
+        if (sqRing == MAP_FAILED) {
+            close(fd);
+            return null;
+        }
+        final ptr<uint8_t> cqRing = singleMmap ? sqRing : mmap(zero(), word(cqSize), prot, flags, fd, IORING_OFF_CQ_RING);
+        if (cqRing == MAP_FAILED) {
+            munmap(sqRing, word(sqSize));
+            close(fd);
+            return null;
+        }
+        final long sqesSize = params.sq_entries.longValue() * sizeof(struct_io_uring_sqe.class).longValue();
+        final ptr<struct_io_uring_sqe> sqes = mmap(zero(), word(sqesSize), prot, flags, fd, IORING_OFF_SQES);
+        if (sqes == MAP_FAILED) {
+            if (! singleMmap) {
+                munmap(cqRing, word(cqSize));
+            }
+            munmap(sqRing, word(sqSize));
+            close(fd);
+            return null;
+        }
+        return new IoUringEngine(fd.intValue(), sqRing, cqRing, sqes, addr_of(params), registerFixedBuffers(fd));
+    }
+
+    /**
+     * Allocate and register the fixed buffers. This fails if their size is over the locked memory limit of the process
+     * (before Linux 5.12), in which case the engine works without them.
+     *
+     * @return the buffers, or {@code null} if they could not be registered
+     */
+    private static ptr<uint8_t> registerFixedBuffers(c_int fd) {
+        final long size = (long) FIXED_BUFFER_COUNT * FIXED_BUFFER_SIZE;
+        final ptr<uint8_t> buffers = mmap(zero(), word(size), word(PROT_READ.intValue() | PROT_WRITE.intValue()), word(MAP_PRIVATE.intValue() | MAP_ANON.intValue()), word(- 1), zero());
+        if (buffers == MAP_FAILED) {
+            return zero();
+        }
+        struct_iovec[] iov = new struct_iovec[FIXED_BUFFER_COUNT];
+        for (int i = 0; i < FIXED_BUFFER_COUNT; i ++) {
+            iov[i].iov_base = buffers.plus((long) i * FIXED_BUFFER_SIZE);
+            iov[i].iov_len = word(FIXED_BUFFER_SIZE);
+        }
+        if (io_uring_register(fd, IORING_REGISTER_BUFFERS, addr_of(iov[0]), word(FIXED_BUFFER_COUNT)).isNonZero()) {
+            munmap(buffers, word(size));
+            return zero();
+        }
+        return buffers;
+    }
+
+    /**
+     * Take one of the registered buffers, which must be given back with {@link #releaseFixedBuffer} once the
+     * operation which uses it has completed.
+     *
+     * @return the buffer index, or -1 if none is free
+     */
+    int acquireFixedBuffer() {
+        synchronized (lock) {
+            return freeFixedCount == 0 ? -1 : freeFixed[-- freeFixedCount];
+        }
+    }
+
+    void releaseFixedBuffer(int index) {
+        synchronized (lock) {
+            freeFixed[freeFixedCount ++] = index;
+        }
+    }
+
+    /**
+     * Get the address of a registered buffer, which has room for {@link #FIXED_BUFFER_SIZE} bytes.
+     *
+     * @param index the buffer index
+     * @return the address
+     */
+    long fixedBufferAddress(int index) {
+        return fixedBuffers.plus((long) index * FIXED_BUFFER_SIZE).longValue();
+    }
+
+    /**
+     * Start reading from a file at the given position into native memory.
+     *
+     * @param fd the file descriptor
+     * @param address the address of the memory
+     * @param len the number of bytes to read
+     * @param position the file position
+     * @param fixedBuffer the index of the registered buffer which holds the memory, or -1 if there is none
+     * @param op the operation to complete with the result (must not be {@code null})
+     */
+    void read(int fd, long address, int len, long position, int fixedBuffer, Operation op) {
+        submit(fixedBuffer == -1 ? IORING_OP_READ : IORING_OP_READ_FIXED, fd, address, len, position, fixedBuffer, op);
+    }
+
+    /**
+     * Start writing to a file at the given position from native memory.
+     *
+     * @param fd the file descriptor
+     * @param address the address of the memory
+     * @param len the number of bytes to write
+     * @param position the file position
+     * @param fixedBuffer the index of the registered buffer which holds the memory, or -1 if there is none
+     * @param op the operation to complete with the result (must not be {@code null})
+     */
+    void write(int fd, long address, int len, long position, int fixedBuffer, Operation op) {
+        submit(fixedBuffer == -1 ? IORING_OP_WRITE : IORING_OP_WRITE_FIXED, fd, address, len, position, fixedBuffer, op);
+    }
+
+    private void submit(uint8_t opcode, int fd, long address, int len, long position, int fixedBuffer, Operation op) {
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (freeSlotCount == 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            final int slot = freeSlots[-- freeSlotCount];
+            operations[slot] = op;
+            // only written while holding the lock, and there is always a free entry because there is a free slot
+            final int tail = sqTail.loadUnshared().intValue();
+            final int index = tail & sqMask;
+            final ptr<struct_io_uring_sqe> sqe = sqes.plus(index);
+            memset(sqe.cast(), word(0), sizeof(struct_io_uring_sqe.class));
+            deref(sqe).opcode = opcode;
+            deref(sqe).fd = word(fd);
+            deref(sqe).off = word(position);
+            deref(sqe).addr = word(address);
+            deref(sqe).len = word(len);
+            deref(sqe).user_data = word((long) slot);
+            if (fixedBuffer != -1) {
+                deref(sqe).buf_index = word((short) fixedBuffer);
+            }
+            sqArray.plus(index).storeUnshared(word(index));
+            // the kernel must see the entry before the new tail
+            sqTail.storeRelease(word(tail + 1));
+            unsubmitted ++;
+            final long seq = ++ queued;
+            if (submitting) {
+                // the submitting thread picks it up; the caller must not return (and let the file be closed) before
+                while (submitted < seq) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            submitting = true;
+        }
+        flush();
+    }
+
+    /**
+     * Submit entries until there are none left, including those which are added by other threads meanwhile.
+     * If submitting fails with an error which is not transient, the entries which are left are dropped and their
+     * operations are failed with that error.
+     */
+    private void flush() {
+        boolean done = false;
+        try {
+            for (;;) {
+                final int count;
+                synchronized (lock) {
+                    count = unsubmitted;
+                    if (count == 0) {
+                        submitting = false;
+                        done = true;
+                        return;
+                    }
+                }
+                final int res = io_uring_enter(word(ringFd), word(count), word(0), word(0)).intValue();
+                if (res > 0) {
+                    synchronized (lock) {
+                        unsubmitted -= res;
+                        submitted += res;
+                        lock.notifyAll();
+                    }
+                } else if (res == -1 && errno != EINTR.intValue() && errno != EAGAIN.intValue() && errno != EBUSY.intValue()) {
+                    drop(errno);
+                } else if (res == -1 && errno != EINTR.intValue()) {
+                    // out of kernel resources for now
+                    Thread.yield();
+                }
+            }
+        } finally {
+            if (! done) {
+                synchronized (lock) {
+                    submitting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the unsubmitted entries back out of the submission queue, and fail their operations. The kernel only reads
+     * the queue in {@code io_uring_enter}, and only this (submitting) thread calls it, so the tail can be moved back.
+     *
+     * @param error the error number to fail the operations with
+     */
+    private void drop(int error) {
+        final Operation[] dropped;
+        synchronized (lock) {
+            final int head = sqHead.loadAcquire().intValue();
+            final int tail = sqTail.loadUnshared().intValue();
+            dropped = new Operation[tail - head];
+            for (int i = 0; i < dropped.length; i ++) {
+                final int index = sqArray.plus((head + i) & sqMask).loadUnshared().intValue();
+                final int slot = (int) deref(sqes.plus(index)).user_data.longValue();
+                dropped[i] = operations[slot];
+                operations[slot] = null;
+                freeSlots[freeSlotCount ++] = slot;
+            }
+            sqTail.storeRelease(word(head));
+            submitted += unsubmitted;
+            unsubmitted = 0;
+            lock.notifyAll();
+        }
+        for (Operation op : dropped) {
+            try {
+                op.complete(- error);
+            } catch (Throwable ignored) {
+                // keep failing the others
+            }
+        }
+    }
+
+    /**
+     * The body of the completion thread.
+     */
+    private void run() {
+        for (;;) {
+            int head = cqHead.loadUnshared().intValue();
+            // the kernel writes the entries before the new tail
+            final int tail = cqTail.loadAcquire().intValue();
+            if (head == tail) {
+                io_uring_enter(word(ringFd), word(0), word(1), IORING_ENTER_GETEVENTS);
+                continue;
+            }
+            while (head != tail) {
+                final ptr<struct_io_uring_cqe> cqe = cqes.plus(head & cqMask);
+                final int slot = (int) deref(cqe).user_data.longValue();
+                final int res = deref(cqe).res.intValue();
+                head ++;
+                // let the kernel reuse the entry
+                cqHead.storeRelease(word(head));
+                final Operation op;
+                synchronized (lock) {
+                    op = operations[slot];
+                    operations[slot] = null;
+                    freeSlots[freeSlotCount ++] = slot;
+                    if (freeSlotCount == 1) {
+                        lock.notifyAll();
+                    }
+                }
+                try {
+                    op.complete(res);
+                } catch (Throwable ignored) {
+                    // keep completing the others
+                }
+            }
+        }
+    }
+
+    /**
+     * An operation which is in progress.
+     */
+    abstract static class Operation {
+        /**
+         * Complete the operation. Called on the completion thread, so it must not block.
+         *
+         * @param res the number of bytes transferred, or the negated error number
+         */
+        abstract void complete(int res);
+    }
+}
@@ -34,6 +34,7 @@ package sun.nio.ch;
 
 import static org.qbicc.runtime.CNative.*;
 import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.Fcntl.*;
 import static jdk.internal.sys.posix.NetinetIn.*;
 import static jdk.internal.sys.posix.Poll.*;
 import static jdk.internal.sys.posix.SysSocket.*;
@@ -52,6 +53,7 @@ import org.qbicc.rt.annotation.Tracking;
 import org.qbicc.runtime.Build;
 import jdk.internal.sys.posix.Poll;
 import jdk.internal.sys.posix.SysSocket;
+import jdk.internal.thread.Fiber;
 
 @Tracking("src/java.base/unix/native/libnio/ch/Net.c")
 class Net$_native {
@@ -242,9 +244,22 @@ class Net$_native {
 
         int newfdInt;
 
+        if (Build.Target.isLinux() && isBlockingOnFiber(cfd)) {
+            // park the fiber rather than its carrier until a connection comes; if another thread takes it first, the
+            // accept blocks the carrier until the next one, as it would have anyway
+            while (poll0(fd, POLLIN.intValue(), 0) == 0) {
+                Fiber.awaitReadable(fd);
+            }
+        }
+
         /* accept connection but ignore ECONNABORTED */
         for (;;) {
-            newfdInt = SysSocket.accept(cfd, addr_of(sa).cast(), addr_of(sa_len)).intValue();
+            if (Build.Target.isLinux()) {
+                // set close-on-exec atomically, so that a child process which is started meanwhile cannot inherit it
+                newfdInt = SysSocket.accept4(cfd, addr_of(sa).cast(), addr_of(sa_len), SOCK_CLOEXEC).intValue();
+            } else {
+                newfdInt = SysSocket.accept(cfd, addr_of(sa).cast(), addr_of(sa_len)).intValue();
+            }
             if (newfdInt >= 0) {
                 break;
             }
@@ -297,26 +312,67 @@ class Net$_native {
             throw new SocketException("connect0");
         }
 
+        if (Build.Target.isLinux() && isBlockingOnFiber(cfd)) {
+            return connectOnFiber(fd, cfd, addr_of(sa).cast(), sa_len);
+        }
+
         c_int rv = SysSocket.connect(cfd, addr_of(sa).cast(), sa_len);
         if (rv.isNonZero()) {
-            if (errno == EINPROGRESS.intValue()) {
-                return IOStatus.UNAVAILABLE;
-            } else if (errno == EINTR.intValue()) {
-                return IOStatus.INTERRUPTED;
-            } else if (errno == ECONNREFUSED.intValue() || errno == ETIMEDOUT.intValue() || errno == ENOTCONN.intValue()) {
-                throw new ConnectException();
-            } else if (errno == EHOSTUNREACH.intValue()) {
-                throw new NoRouteToHostException();
-            } else if (errno == EADDRINUSE.intValue() || errno == EADDRNOTAVAIL.intValue() || errno == EACCES.intValue()) {
-                throw new BindException();
-            } else {
-                throw new SocketException();
-            }
+            return connectError(errno);
         }
 
         return 1;
     }
 
+    /**
+     * Connect a socket in blocking mode from a fiber, which parks rather than its carrier until the connection is made.
+     * Only this thread may use the socket until it is connected, so it is in non-blocking mode meanwhile.
+     */
+    private static int connectOnFiber(FileDescriptor fd, c_int cfd, ptr<struct_sockaddr> sa, socklen_t sa_len) throws IOException {
+        final c_int flags = fcntl(cfd, F_GETFL);
+        fcntl(cfd, F_SETFL, word(flags.intValue() | O_NONBLOCK.intValue()));
+        int error = 0;
+        try {
+            if (SysSocket.connect(cfd, sa, sa_len).isNonZero()) {
+                error = errno;
+                if (error == EINPROGRESS.intValue()) {
+                    while (poll0(fd, POLLOUT.intValue(), 0) == 0) {
+                        Fiber.awaitWritable(fd);
+                    }
+                    c_int result = auto();
+                    socklen_t arglen = auto(sizeof(result).cast());
+                    error = getsockopt(cfd, SOL_SOCKET, SO_ERROR, addr_of(result).cast(), addr_of(arglen)).intValue() < 0 ? errno : result.intValue();
+                }
+            }
+        } finally {
+            fcntl(cfd, F_SETFL, flags);
+        }
+        return error == 0 ? 1 : connectError(error);
+    }
+
+    private static int connectError(int error) throws IOException {
+        if (error == EINPROGRESS.intValue()) {
+            return IOStatus.UNAVAILABLE;
+        } else if (error == EINTR.intValue()) {
+            return IOStatus.INTERRUPTED;
+        } else if (error == ECONNREFUSED.intValue() || error == ETIMEDOUT.intValue() || error == ENOTCONN.intValue()) {
+            throw new ConnectException();
+        } else if (error == EHOSTUNREACH.intValue()) {
+            throw new NoRouteToHostException();
+        } else if (error == EADDRINUSE.intValue() || error == EADDRNOTAVAIL.intValue() || error == EACCES.intValue()) {
+            throw new BindException();
+        } else {
+            throw new SocketException();
+        }
+    }
+
+    /**
+     * Determine whether a blocking operation on the given socket would block a fiber's carrier.
+     */
+    private static boolean isBlockingOnFiber(c_int cfd) {
+        return Fiber.current() != null && (fcntl(cfd, F_GETFL).intValue() & O_NONBLOCK.intValue()) == 0;
+    }
+
     private static int localPort(FileDescriptor fd) throws IOException {
         struct_sockaddr_in6 sa = auto(); // in OpenJDK, this local is a union of sockaddr, sockaddr_in, and sockaddr_in6.  Pick the biggest....
         socklen_t sa_len = auto(sizeof(sa).cast());
@@ -432,6 +488,38 @@ class Net$_native {
     }
 
     static int poll(FileDescriptor fd, int events, long timeout) throws IOException {
+        if (Build.Target.isLinux() && timeout != 0 && Fiber.current() != null) {
+            // park the fiber rather than its carrier until the socket is ready or the time is up
+            final long deadline = System.nanoTime() + timeout * 1_000_000;
+            final boolean write = (events & POLLIN.intValue()) == 0;
+            for (;;) {
+                final int revents = poll0(fd, events, 0);
+                if (revents != 0) {
+                    return revents;
+                }
+                if (timeout < 0) {
+                    if (write) {
+                        Fiber.awaitWritable(fd);
+                    } else {
+                        Fiber.awaitReadable(fd);
+                    }
+                } else {
+                    final long nanos = deadline - System.nanoTime();
+                    if (nanos <= 0) {
+                        return 0;
+                    }
+                    if (write) {
+                        Fiber.awaitWritable(fd, nanos);
+                    } else {
+                        Fiber.awaitReadable(fd, nanos);
+                    }
+                }
+            }
+        }
+        return poll0(fd, events, timeout);
+    }
+
+    private static int poll0(FileDescriptor fd, int events, long timeout) throws IOException {
         struct_pollfd pfd = auto();
         pfd.fd = word(((FileDescriptor$_aliases) (Object) fd).fd);
         pfd.events = word(events);
@@ -0,0 +1,61 @@
+/*
+ * This code is based on OpenJDK source file(s) which contain the following copyright notice:
+ *
+ * ------
+ * Copyright (c) 2008, 2021, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ * ------
+ *
+ * This file may contain additional modifications which are Copyright (c) Red Hat and other
+ * contributors.
+ */
+
+package sun.nio.ch;
+
+import java.io.FileDescriptor;
+import java.nio.channels.AsynchronousFileChannel;
+import java.util.concurrent.ExecutorService;
+
+import org.qbicc.rt.annotation.Tracking;
+import org.qbicc.runtime.patcher.PatchClass;
+import org.qbicc.runtime.patcher.Replace;
+
+/**
+ * Use the {@code io_uring} file channel where it is available.
+ */
+@PatchClass(SimpleAsynchronousFileChannelImpl.class)
+@Tracking("src/java.base/share/classes/sun/nio/ch/SimpleAsynchronousFileChannelImpl.java")
+class SimpleAsynchronousFileChannelImpl$_patch {
+
+    @Replace
+    public static AsynchronousFileChannel open(FileDescriptor fdo, boolean reading, boolean writing, ThreadPool pool) {
+        // Executor is either default or based on pool parameters
+        ExecutorService executor = (pool == null) ?
+            SimpleAsynchronousFileChannelImpl$DefaultExecutorHolder$_aliases.defaultExecutor : pool.executor();
+        IoUringEngine engine = IoUringEngine.get();
+        if (engine != null) {
+            return new IoUringAsynchronousFileChannelImpl(fdo, reading, writing, executor, engine);
+        }
+        return new SimpleAsynchronousFileChannelImpl(fdo, reading, writing, executor);
+    }
+}
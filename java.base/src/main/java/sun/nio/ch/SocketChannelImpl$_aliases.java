@@ -0,0 +1,19 @@
+package sun.nio.ch;
+
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(SocketChannelImpl.class)
+// aliases to make the locks and the begin/end protocol of SocketChannelImpl accessible to splice transfers
+abstract class SocketChannelImpl$_aliases {
+    ReentrantLock readLock;
+    ReentrantLock writeLock;
+
+    native void beginRead(boolean blocking) throws ClosedChannelException;
+    native void endRead(boolean blocking, boolean completed) throws AsynchronousCloseException;
+    native void beginWrite(boolean blocking) throws ClosedChannelException;
+    native void endWrite(boolean blocking, boolean completed) throws AsynchronousCloseException;
+}
@@ -34,6 +34,8 @@ package sun.nio.ch;
 
 import static org.qbicc.runtime.CNative.*;
 import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.Fcntl.*;
+import static jdk.internal.sys.posix.SysSocket.*;
 import static jdk.internal.sys.posix.SysUio.*;
 import static jdk.internal.sys.posix.Unistd.*;
 import static org.qbicc.runtime.stdc.Errno.*;
@@ -43,6 +45,7 @@ import java.io.IOException;
 
 import jdk.internal.access.JavaIOFileDescriptorAccess;
 import jdk.internal.access.SharedSecrets;
+import jdk.internal.thread.Fiber;
 import sun.net.ConnectionResetException;
 
 import org.qbicc.rt.annotation.Tracking;
@@ -71,6 +74,18 @@ class SocketDispatcher extends NativeDispatcher {
      * @throws IOException if another I/O error occurs
      */
     int read(FileDescriptor fd, long address, int len) throws IOException {
+        if (Build.Target.isLinux() && isBlockingOnFiber(fd)) {
+            final int fdVal = Fiber.beginIo(fd, false);
+            try {
+                int n;
+                while ((n = recv0(fd, address, len)) == IOStatus.UNAVAILABLE) {
+                    Fiber.awaitReadable(fd);
+                }
+                return n;
+            } finally {
+                Fiber.endIo(fdVal, false);
+            }
+        }
         return read0(fd, address, len);
     }
 
@@ -82,10 +97,34 @@ class SocketDispatcher extends NativeDispatcher {
      * @throws IOException if another I/O error occurs
      */
     long readv(FileDescriptor fd, long address, int len) throws IOException {
+        if (Build.Target.isLinux() && isBlockingOnFiber(fd)) {
+            final int fdVal = Fiber.beginIo(fd, false);
+            try {
+                long n;
+                while ((n = recvmsg0(fd, address, len)) == IOStatus.UNAVAILABLE) {
+                    Fiber.awaitReadable(fd);
+                }
+                return n;
+            } finally {
+                Fiber.endIo(fdVal, false);
+            }
+        }
         return readv0(fd, address, len);
     }
 
     int write(FileDescriptor fd, long address, int len) throws IOException {
+        if (Build.Target.isLinux() && isBlockingOnFiber(fd)) {
+            final int fdVal = Fiber.beginIo(fd, true);
+            try {
+                int n;
+                while ((n = send0(fd, address, len)) == IOStatus.UNAVAILABLE) {
+                    Fiber.awaitWritable(fd);
+                }
+                return n;
+            } finally {
+                Fiber.endIo(fdVal, true);
+            }
+        }
         if (Build.Target.isUnix()) {
             return FileDispatcherImpl.write0(fd, address, len);
         } else {
@@ -94,6 +133,18 @@ class SocketDispatcher extends NativeDispatcher {
     }
 
     long writev(FileDescriptor fd, long address, int len) throws IOException {
+        if (Build.Target.isLinux() && isBlockingOnFiber(fd)) {
+            final int fdVal = Fiber.beginIo(fd, true);
+            try {
+                long n;
+                while ((n = sendmsg0(fd, address, len)) == IOStatus.UNAVAILABLE) {
+                    Fiber.awaitWritable(fd);
+                }
+                return n;
+            } finally {
+                Fiber.endIo(fdVal, true);
+            }
+        }
         if (Build.Target.isUnix()) {
             return FileDispatcherImpl.writev0(fd, address, len);
         } else {
@@ -103,6 +154,12 @@ class SocketDispatcher extends NativeDispatcher {
 
     void close(FileDescriptor fd) throws IOException {
         if (Build.Target.isUnix()) {
+            if (Build.Target.isLinux()) {
+                // fibers may still wait for the socket if it was closed without being pre-closed
+                Fiber.cancelAwait(fd);
+                // the number may be reused by another socket as soon as it is closed
+                ExclusiveWakeup.closing(fd);
+            }
             FileDispatcherImpl.close0(fd);
         } else {
             invalidateAndClose(fd);
@@ -123,30 +180,30 @@ class SocketDispatcher extends NativeDispatcher {
     void preClose(FileDescriptor fd) throws IOException {
         if (Build.Target.isUnix()) {
             FileDispatcherImpl.preClose0(fd);
+            if (Build.Target.isLinux()) {
+                // the socket is gone from the epoll sets of the carriers now, so its waiting fibers must be woken here
+                Fiber.cancelAwait(fd);
+            }
         } else {
             throw new UnsupportedOperationException();
         }
     }
 
+    /**
+     * Determine whether an operation on the given socket would block a fiber's carrier.
+     * Such operations are done without blocking instead, and the fiber parks until the socket is ready.
+     */
+    private static boolean isBlockingOnFiber(FileDescriptor fd) {
+        return Fiber.current() != null && (fcntl(word(fdAccess.get(fd)), F_GETFL).intValue() & O_NONBLOCK.intValue()) == 0;
+    }
+
     // -- Native methods --
 
     private static int read0(FileDescriptor fdo, long address, int len) throws IOException {
         if (Build.Target.isUnix()) {
             c_int fd = word(((FileDescriptor$_aliases)(Object)fdo).fd);
             int n = Unistd.read(fd, word(address), word(len)).intValue();
-            if ((n == -1) && (errno == ECONNRESET.intValue() || errno == EPIPE.intValue())) {
-                throw new ConnectionResetException("Connection reset");
-            } else if (n > 0) {
-                return n;
-            } else if (n == 0) {
-                return IOStatus.EOF;
-            } else if (errno == EAGAIN.intValue() || errno == EWOULDBLOCK.intValue()) {
-                return IOStatus.UNAVAILABLE;
-            } else if (errno == EINTR.intValue()) {
-                return IOStatus.INTERRUPTED;
-            } else {
-                throw new IOException("Read failed");
-            }
+            return convertReadResult(n);
         } else {
             throw new UnsupportedOperationException();
         }
@@ -156,24 +213,74 @@ class SocketDispatcher extends NativeDispatcher {
         if (Build.Target.isUnix()) {
             c_int fd = word(((FileDescriptor$_aliases)(Object)fdo).fd);
             int n = SysUio.readv(fd, word(address), word(len)).intValue();
-            if ((n == -1) && (errno == ECONNRESET.intValue() || errno == EPIPE.intValue())) {
-                throw new ConnectionResetException("Connection reset");
-            } else if (n > 0) {
-                return n;
-            } else if (n == 0) {
-                return IOStatus.EOF;
-            } else if (errno == EAGAIN.intValue() || errno == EWOULDBLOCK.intValue()) {
-                return IOStatus.UNAVAILABLE;
-            } else if (errno == EINTR.intValue()) {
-                return IOStatus.INTERRUPTED;
-            } else {
-                throw new IOException("Read failed");
-            }
+            return convertReadResult(n);
         } else {
             throw new UnsupportedOperationException();
         }
     }
 
+    private static int convertReadResult(int n) throws IOException {
+        if ((n == -1) && (errno == ECONNRESET.intValue() || errno == EPIPE.intValue())) {
+            throw new ConnectionResetException("Connection reset");
+        } else if (n > 0) {
+            return n;
+        } else if (n == 0) {
+            return IOStatus.EOF;
+        } else if (errno == EAGAIN.intValue() || errno == EWOULDBLOCK.intValue()) {
+            return IOStatus.UNAVAILABLE;
+        } else if (errno == EINTR.intValue()) {
+            return IOStatus.INTERRUPTED;
+        } else {
+            throw new IOException("Read failed");
+        }
+    }
+
+    private static int convertWriteResult(int n) throws IOException {
+        if (n >= 0) {
+            return n;
+        } else if (errno == EAGAIN.intValue() || errno == EWOULDBLOCK.intValue()) {
+            return IOStatus.UNAVAILABLE;
+        } else if (errno == EINTR.intValue()) {
+            return IOStatus.INTERRUPTED;
+        } else {
+            throw new IOException("Write failed");
+        }
+    }
+
+    // the non-blocking operations of a fiber on a blocking socket
+
+    private static int recv0(FileDescriptor fd, long address, int len) throws IOException {
+        return convertReadResult(recv(word(fdAccess.get(fd)), word(address), word(len), MSG_DONTWAIT).intValue());
+    }
+
+    private static long recvmsg0(FileDescriptor fd, long address, int len) throws IOException {
+        struct_msghdr msg = auto();
+        msg.msg_name = zero();
+        msg.msg_namelen = zero();
+        msg.msg_iov = word(address);
+        msg.msg_iovlen = word(len);
+        msg.msg_control = zero();
+        msg.msg_controllen = zero();
+        msg.msg_flags = zero();
+        return convertReadResult(recvmsg(word(fdAccess.get(fd)), addr_of(msg), MSG_DONTWAIT).intValue());
+    }
+
+    private static int send0(FileDescriptor fd, long address, int len) throws IOException {
+        return convertWriteResult(send(word(fdAccess.get(fd)), word(address), word(len), MSG_DONTWAIT).intValue());
+    }
+
+    private static long sendmsg0(FileDescriptor fd, long address, int len) throws IOException {
+        struct_msghdr msg = auto();
+        msg.msg_name = zero();
+        msg.msg_namelen = zero();
+        msg.msg_iov = word(address);
+        msg.msg_iovlen = word(len);
+        msg.msg_control = zero();
+        msg.msg_controllen = zero();
+        msg.msg_flags = zero();
+        return convertWriteResult(sendmsg(word(fdAccess.get(fd)), addr_of(msg), MSG_DONTWAIT).intValue());
+    }
+
     private static native int write0(FileDescriptor fd, long address, int len)
             throws IOException;
 
@@ -0,0 +1,351 @@
+package sun.nio.ch;
+
+import static jdk.internal.sys.linux.Fcntl.*;
+import static jdk.internal.sys.linux.Unistd.*;
+import static jdk.internal.sys.posix.Errno.*;
+import static jdk.internal.sys.posix.Fcntl.*;
+import static jdk.internal.sys.posix.SysStat.*;
+import static jdk.internal.sys.posix.SysTypes.*;
+import static jdk.internal.sys.posix.Unistd.*;
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Errno.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SocketChannel;
+
+import jdk.internal.misc.TerminatingThreadLocal;
+import jdk.internal.sys.posix.Unistd;
+import org.qbicc.runtime.Build;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * Moving bytes out of a socket with {@code splice}, so that they go from the socket buffer to a file or to another
+ * socket without being copied through user space.
+ * <p>
+ * {@code splice} needs a pipe on one side of each call, so the bytes are spliced from the socket into a pipe and then
+ * from the pipe to their destination. Transfers to a file always empty the pipe again, so each thread keeps one pipe
+ * for them, which is closed when the thread ends. A socket may not be able to take everything which is in the pipe, so
+ * a {@link Relay} between two sockets has a pipe of its own which holds the bytes which are still to be sent.
+ * <p>
+ * The sockets must be in non-blocking mode, because a thread which is blocked in {@code splice} cannot be woken when
+ * the channel is closed. The read lock of a source channel (and the write lock of a target channel) is held, and its
+ * begin/end protocol followed, for the whole of a transfer, as {@code SocketChannelImpl} does for a read (or write), so
+ * that the channel cannot be closed and its file descriptor reused meanwhile.
+ */
+public final class SpliceTransfer {
+    /**
+     * The most bytes which are spliced into a pipe at once, which is the default capacity of a pipe.
+     */
+    private static final int PIPE_CHUNK = 0x10000;
+
+    private static final int FLAGS_IN = SPLICE_F_MOVE.intValue() | SPLICE_F_NONBLOCK.intValue();
+
+    private static final TerminatingThreadLocal<Pipe> PIPES = new TerminatingThreadLocal<Pipe>() {
+        @Override
+        protected void threadTerminated(Pipe pipe) {
+            if (pipe != null) {
+                pipe.close();
+            }
+        }
+    };
+
+    private SpliceTransfer() {}
+
+    /**
+     * Determine whether splice transfers are supported.
+     *
+     * @return {@code true} if they are supported
+     */
+    public static boolean isSupported() {
+        return Build.Target.isLinux();
+    }
+
+    /**
+     * Determine whether bytes can be spliced to the given file at any position. This is so for regular files which are
+     * not open for appending.
+     *
+     * @param fdObj the file (must not be {@code null})
+     * @return {@code true} if the file can be spliced to
+     */
+    static boolean isSpliceableFile(FileDescriptor fdObj) {
+        final c_int fd = word(fdVal(fdObj));
+        struct_stat buf = auto();
+        if (fstat(fd, addr_of(buf)).isNonZero() || (buf.st_mode.intValue() & S_IFMT.intValue()) != S_IFREG.intValue()) {
+            return false;
+        }
+        final int flags = fcntl(fd, F_GETFL).intValue();
+        return flags != -1 && (flags & O_APPEND.intValue()) == 0;
+    }
+
+    /**
+     * Move the bytes which are waiting on a socket to a file, up to the given count, without changing the position of
+     * the file. Bytes are moved until the count is reached, no more are waiting, or the end of the stream is reached.
+     * If an error happens after some bytes were written, the number written is returned, and the error is left to
+     * happen again on the next transfer; any bytes which were taken from the socket but not written are lost.
+     *
+     * @param srcObj the socket, which must be in non-blocking mode, and whose channel's read lock must be held
+     *      (must not be {@code null})
+     * @param dstObj the file, which must be {@linkplain #isSpliceableFile spliceable} (must not be {@code null})
+     * @param position the file position to write at
+     * @param count the most bytes to move
+     * @return the number of bytes moved
+     * @throws IOException if reading or writing fails before any bytes were moved
+     */
+    static long socketToFile(FileDescriptor srcObj, FileDescriptor dstObj, long position, long count) throws IOException {
+        final int src = fdVal(srcObj);
+        final int dst = fdVal(dstObj);
+        Pipe pipe = PIPES.get();
+        if (pipe == null) {
+            pipe = Pipe.open();
+            PIPES.set(pipe);
+        }
+        long total = 0;
+        while (total < count) {
+            final long n;
+            try {
+                n = fill(src, pipe, Math.min(count - total, PIPE_CHUNK));
+            } catch (IOException e) {
+                if (total > 0) {
+                    return total;
+                }
+                throw e;
+            }
+            if (n <= 0) {
+                break;
+            }
+            long off = position + total;
+            long rem = n;
+            while (rem > 0) {
+                final long res = drainToFile(pipe.readFd, dst, off, rem);
+                if (res == - EINTR.intValue()) {
+                    continue;
+                }
+                if (res <= 0) {
+                    // the bytes which are left in the pipe belong to nobody now
+                    PIPES.set(null);
+                    pipe.close();
+                    final long written = total + n - rem;
+                    if (written > 0) {
+                        return written;
+                    }
+                    if (res == 0) {
+                        // the pipe still holds bytes, so the file took none; trying again would never end
+                        throw new IOException("No bytes could be written to the file");
+                    }
+                    throw new IOException(utf8zToJavaString(strerror(word((int) - res)).cast()));
+                }
+                off += res;
+                rem -= res;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Splice up to {@code len} waiting bytes from a socket into the write end of a pipe.
+     *
+     * @return the number of bytes spliced, zero if none were waiting, or -1 at the end of the stream
+     */
+    private static long fill(int src, Pipe pipe, long len) throws IOException {
+        for (;;) {
+            final long res = splice(word(src), zero(), word(pipe.writeFd), zero(), word(len), word(FLAGS_IN)).longValue();
+            if (res > 0) {
+                return res;
+            } else if (res == 0) {
+                return -1;
+            } else if (errno == EAGAIN.intValue() || errno == EWOULDBLOCK.intValue()) {
+                return 0;
+            } else if (errno != EINTR.intValue()) {
+                throw new IOException(utf8zToJavaString(strerror(word(errno)).cast()));
+            }
+        }
+    }
+
+    @SafePoint(SafePointBehavior.ENTER)
+    private static long drainToFile(int pipeFd, int dst, long position, long len) {
+        loff_t off = auto(word(position));
+        final long res = splice(word(pipeFd), zero(), word(dst), addr_of(off), word(len), word(SPLICE_F_MOVE.intValue())).longValue();
+        return res == -1 ? - errno : res;
+    }
+
+    private static int fdVal(FileDescriptor fdObj) {
+        return ((FileDescriptor$_aliases) (Object) fdObj).fd;
+    }
+
+    /**
+     * A non-blocking pipe which bytes are spliced through.
+     */
+    static final class Pipe {
+        final int readFd;
+        final int writeFd;
+
+        private Pipe(int readFd, int writeFd) {
+            this.readFd = readFd;
+            this.writeFd = writeFd;
+        }
+
+        static Pipe open() throws IOException {
+            c_int[] fds = new c_int[2];
+            if (pipe2(addr_of(fds[0]).asArray(), word(O_NONBLOCK.intValue() | O_CLOEXEC.intValue())).intValue() < 0) {
+                throw new IOException(utf8zToJavaString(strerror(word(errno)).cast()));
+            }
+            return new Pipe(addr_of(fds[0]).loadUnshared().intValue(), addr_of(fds[1]).loadUnshared().intValue());
+        }
+
+        void close() {
+            Unistd.close(word(readFd));
+            Unistd.close(word(writeFd));
+        }
+    }
+
+    /**
+     * A one-way relay of bytes from one socket to another, through a pipe of its own. The bytes which the target
+     * socket cannot take yet stay in the pipe until the next transfer.
+     * <p>
+     * A relay is not safe for use by more than one thread at a time.
+     */
+    public static final class Relay {
+        private final SocketChannelImpl source;
+        private final SocketChannelImpl target;
+        private Pipe pipe;
+        private long pending;
+        private boolean eof;
+
+        private Relay(SocketChannelImpl source, SocketChannelImpl target, Pipe pipe) {
+            this.source = source;
+            this.target = target;
+            this.pipe = pipe;
+        }
+
+        /**
+         * Open a relay between two sockets.
+         *
+         * @param source the channel to read from, which was created by the default provider (must not be
+         *      {@code null})
+         * @param target the channel to write to, which was created by the default provider (must not be
+         *      {@code null})
+         * @return the relay (not {@code null})
+         * @throws IOException if the pipe could not be created
+         */
+        public static Relay open(SocketChannel source, SocketChannel target) throws IOException {
+            return new Relay((SocketChannelImpl) source, (SocketChannelImpl) target, Pipe.open());
+        }
+
+        /**
+         * Move bytes from the source socket into the relay, up to the given count, and then as many as possible of
+         * the bytes in the relay to the target socket. Nothing is read from the source while the relay still holds
+         * bytes which the target would not take.
+         *
+         * @param count the most bytes to read from the source
+         * @return the number of bytes written to the target, or -1 if the end of the source stream was reached and
+         *      every byte has been written
+         * @throws ClosedChannelException if the relay or either channel is closed
+         * @throws IllegalBlockingModeException if either channel is in blocking mode
+         * @throws IOException if reading or writing fails
+         */
+        public long transfer(long count) throws IOException {
+            if (pipe == null) {
+                throw new ClosedChannelException();
+            }
+            final SocketChannelImpl$_aliases src = (SocketChannelImpl$_aliases) (Object) source;
+            final SocketChannelImpl$_aliases dst = (SocketChannelImpl$_aliases) (Object) target;
+            // always in this order, so relays in opposite directions between the same channels cannot deadlock
+            src.readLock.lock();
+            try {
+                dst.writeLock.lock();
+                try {
+                    if (source.isBlocking() || target.isBlocking()) {
+                        throw new IllegalBlockingModeException();
+                    }
+                    boolean completed = false;
+                    try {
+                        src.beginRead(false);
+                        try {
+                            dst.beginWrite(false);
+                            // the file descriptors cannot change while the locks are held
+                            final long n = transfer(fdVal(source.getFD()), fdVal(target.getFD()), count);
+                            completed = n != 0;
+                            return n;
+                        } finally {
+                            dst.endWrite(false, completed);
+                        }
+                    } finally {
+                        src.endRead(false, completed);
+                    }
+                } finally {
+                    dst.writeLock.unlock();
+                }
+            } finally {
+                src.readLock.unlock();
+            }
+        }
+
+        private long transfer(int src, int dst, long count) throws IOException {
+            long written = 0;
+            long read = 0;
+            for (;;) {
+                if (pending > 0) {
+                    final long n = drain(dst);
+                    if (n == 0) {
+                        return written;
+                    }
+                    written += n;
+                } else if (eof) {
+                    return written == 0 ? -1 : written;
+                } else if (read < count) {
+                    final long n = fill(src, pipe, Math.min(count - read, PIPE_CHUNK));
+                    if (n == 0) {
+                        return written;
+                    } else if (n < 0) {
+                        eof = true;
+                    } else {
+                        read += n;
+                        pending += n;
+                    }
+                } else {
+                    return written;
+                }
+            }
+        }
+
+        /**
+         * Get the number of bytes which are held by the relay because the target socket would not take them yet.
+         *
+         * @return the number of bytes held
+         */
+        public long pending() {
+            return pending;
+        }
+
+        /**
+         * Close the pipe of the relay, discarding any bytes which it holds. The sockets are not closed.
+         */
+        public void close() {
+            final Pipe pipe = this.pipe;
+            if (pipe != null) {
+                this.pipe = null;
+                pipe.close();
+            }
+        }
+
+        private long drain(int dst) throws IOException {
+            for (;;) {
+                final long res = splice(word(pipe.readFd), zero(), word(dst), zero(), word(pending), word(FLAGS_IN)).longValue();
+                if (res >= 0) {
+                    pending -= res;
+                    return res;
+                } else if (errno == EAGAIN.intValue() || errno == EWOULDBLOCK.intValue()) {
+                    return 0;
+                } else if (errno != EINTR.intValue()) {
+                    throw new IOException(utf8zToJavaString(strerror(word(errno)).cast()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package sun.management;
+
+import java.lang.management.MemoryUsage;
+
+import jdk.internal.gc.GcStats;
+
+/**
+ * The memory pool and memory manager beans which describe the garbage collected heap.
+ * There is one pool for each region registered by the GC algorithm, all of which are managed by a single collector.
+ */
+final class GcMemoryBeans {
+    private GcMemoryBeans() {}
+
+    private static MemoryPoolImpl[] pools;
+    private static GarbageCollectorImpl collector;
+
+    static synchronized MemoryPoolImpl[] getPools() {
+        MemoryPoolImpl[] pools = GcMemoryBeans.pools;
+        if (pools == null) {
+            pools = new MemoryPoolImpl[GcStats.getPoolCount()];
+            for (int i = 0; i < pools.length; i ++) {
+                // usage thresholds are not supported
+                pools[i] = new MemoryPoolImpl(GcStats.getPoolName(i), true, -1, -1);
+            }
+            GcMemoryBeans.pools = pools;
+        }
+        return pools;
+    }
+
+    static synchronized GarbageCollectorImpl getCollector() {
+        GarbageCollectorImpl collector = GcMemoryBeans.collector;
+        if (collector == null) {
+            collector = GcMemoryBeans.collector = new GarbageCollectorImpl(GcStats.getCollectorName());
+        }
+        return collector;
+    }
+
+    static int indexOf(MemoryPoolImpl pool) {
+        MemoryPoolImpl[] pools = getPools();
+        for (int i = 0; i < pools.length; i ++) {
+            if (pools[i] == pool) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown memory pool");
+    }
+
+    static MemoryUsage getHeapUsage() {
+        long used = 0;
+        long committed = 0;
+        long max = 0;
+        for (int i = 0; i < GcStats.getPoolCount(); i ++) {
+            used += GcStats.getPoolUsed(i);
+            committed += GcStats.getPoolCommitted(i);
+            max += GcStats.getPoolMax(i);
+        }
+        return new MemoryUsage(-1, used, Math.max(used, committed), Math.max(used, Math.max(committed, max)));
+    }
+
+    static MemoryUsage getUsage(int index) {
+        long used = GcStats.getPoolUsed(index);
+        return usage(used, GcStats.getPoolCommitted(index), GcStats.getPoolMax(index));
+    }
+
+    static MemoryUsage getPeakUsage(int index) {
+        long peak = GcStats.getPoolPeakUsed(index);
+        return usage(peak, GcStats.getPoolCommitted(index), GcStats.getPoolMax(index));
+    }
+
+    static MemoryUsage getCollectionUsage(int index) {
+        return usage(GcStats.getPoolUsedAfterGc(index), GcStats.getPoolCommittedAfterGc(index), GcStats.getPoolMax(index));
+    }
+
+    private static MemoryUsage usage(long used, long committed, long max) {
+        // the values are read without synchronization, so make sure that they are consistent
+        committed = Math.max(used, committed);
+        return new MemoryUsage(-1, used, committed, Math.max(committed, max));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This code is based on OpenJDK source file(s) which contain the following copyright notice:
+ *
+ * ------
+ * Copyright (c) 2003, 2021, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ * ------
+ *
+ * This file may contain additional modifications which are Copyright (c) Red Hat and other
+ * contributors.
+ */
+package sun.management;
+
+import java.lang.management.MemoryManagerMXBean;
+import java.lang.management.MemoryUsage;
+
+import jdk.internal.gc.GcStats;
+
+import org.qbicc.rt.annotation.Tracking;
+
+@Tracking("src/java.management/share/native/libmanagement/MemoryPoolImpl.c")
+final class MemoryPoolImpl$_native {
+
+    private MemoryUsage getUsage0() {
+        return GcMemoryBeans.getUsage(GcMemoryBeans.indexOf((MemoryPoolImpl) (Object) this));
+    }
+
+    private MemoryUsage getPeakUsage0() {
+        return GcMemoryBeans.getPeakUsage(GcMemoryBeans.indexOf((MemoryPoolImpl) (Object) this));
+    }
+
+    private MemoryUsage getCollectionUsage0() {
+        return GcMemoryBeans.getCollectionUsage(GcMemoryBeans.indexOf((MemoryPoolImpl) (Object) this));
+    }
+
+    private void setUsageThreshold0(long current, long newThreshold) {
+        // not supported (unreachable)
+    }
+
+    private void setCollectionThreshold0(long current, long newThreshold) {
+        // not supported (unreachable)
+    }
+
+    private void resetPeakUsage0() {
+        GcStats.resetPoolPeakUsed(GcMemoryBeans.indexOf((MemoryPoolImpl) (Object) this));
+    }
+
+    private MemoryManagerMXBean[] getMemoryManagers0() {
+        return new MemoryManagerMXBean[] { GcMemoryBeans.getCollector() };
+    }
+
+    private void setPoolUsageSensor(Sensor s) {
+        // thresholds are not supported
+    }
+
+    private void setPoolCollectionSensor(Sensor s) {
+        // thresholds are not supported
+    }
+}
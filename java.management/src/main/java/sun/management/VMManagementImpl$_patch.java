@@ -31,6 +31,7 @@
  */
 package sun.management;
 
+import jdk.internal.gc.GcStats;
 import jdk.internal.main.FlightRecorder;
 
 import org.qbicc.rt.annotation.Tracking;
@@ -70,10 +71,33 @@ public class VMManagementImpl$_patch {
         objectMonitorUsageSupport = false;
         synchronizerUsageSupport = false;
         threadAllocatedMemorySupport = false;
+        // GarbageCollectionNotificationInfo lives in jdk.management, which is not part of this runtime;
+        // also GcStats.collection_end runs on the GC thread, where no Java notification can be built
         gcNotificationSupport = false;
         remoteDiagnosticCommandsSupport = false;
     }
 
+    @Replace
+    public boolean getVerboseGC() {
+        return GcStats.isLogging();
+    }
+
+    @Replace
+    public long getSafepointCount() {
+        // only collections bring every thread to a safepoint
+        return GcStats.getCollectionCount();
+    }
+
+    @Replace
+    public long getTotalSafepointTime() {
+        return GcStats.getCollectionTime() / 1_000_000;
+    }
+
+    @Replace
+    public long getSafepointSyncTime() {
+        return GcStats.getTotalSafePointTime() / 1_000_000;
+    }
+
     @Replace
     public long getStartupTime() {
         return FlightRecorder.initDoneTime;
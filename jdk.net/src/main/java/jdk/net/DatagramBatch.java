@@ -0,0 +1,146 @@
+package jdk.net;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.NotYetConnectedException;
+import java.util.Objects;
+
+import sun.nio.ch.DatagramBatches;
+import sun.nio.ch.SelChImpl;
+
+/**
+ * Receiving and sending many datagrams with one system call.
+ * <p>
+ * A datagram channel moves one datagram per system call, which limits the rate at which a thread can move small
+ * datagrams. The methods of this class move up to {@link #maxBatchSize()} datagrams per call instead. They are meant
+ * for non-blocking channels which are driven by a selector, and return zero when no datagram can be moved.
+ * <p>
+ * A batched operation holds the read or write lock of the channel, as {@link DatagramChannel#receive} and
+ * {@link DatagramChannel#send} do, so it does not run at the same time as other reads or writes on the channel, and the
+ * channel may be closed by another thread at any time.
+ * <p>
+ * Batched datagram I/O is only supported on Linux.
+ */
+public final class DatagramBatch {
+    private DatagramBatch() {}
+
+    /**
+     * Determine whether batched datagram I/O is supported on this platform.
+     *
+     * @return {@code true} if it is supported, or {@code false} if it is not
+     */
+    public static boolean isSupported() {
+        return DatagramBatches.isSupported();
+    }
+
+    /**
+     * Get the most datagrams which are moved by one call.
+     *
+     * @return the batch size limit
+     */
+    public static int maxBatchSize() {
+        return DatagramBatches.MAX_BATCH;
+    }
+
+    /**
+     * Receive the datagrams which are waiting on a channel, up to one for each buffer (and at most
+     * {@link #maxBatchSize()}). Each datagram is stored at the position of its buffer, which is advanced past it;
+     * as with {@link DatagramChannel#receive}, any part of a datagram which does not fit is discarded.
+     *
+     * @param channel the channel, which must be in non-blocking mode (must not be {@code null})
+     * @param dsts the buffers (must not be {@code null} and must not contain {@code null} or read-only buffers)
+     * @param sources an array at least as long as {@code dsts} to store the sender address of each datagram in, or
+     *      {@code null} to discard them
+     * @return the number of datagrams received, which is zero if none were waiting
+     * @throws ClosedChannelException if the channel is closed
+     * @throws IllegalBlockingModeException if the channel is in blocking mode
+     * @throws IllegalArgumentException if a buffer is read-only, or the channel was not created by the default provider
+     * @throws UnsupportedOperationException if batched datagram I/O is not supported on this platform
+     * @throws IOException if some other I/O error occurs
+     */
+    public static int receive(DatagramChannel channel, ByteBuffer[] dsts, SocketAddress[] sources) throws IOException {
+        Objects.requireNonNull(dsts, "dsts");
+        if (sources != null && sources.length < Math.min(dsts.length, maxBatchSize())) {
+            throw new IllegalArgumentException("Source address array is too short");
+        }
+        checkBuffers(dsts);
+        return DatagramBatches.receive(fdChannel(channel, true), dsts, sources);
+    }
+
+    /**
+     * Send one datagram from each of the given buffers (at most {@link #maxBatchSize()}), from its position to its
+     * limit. The position of the buffer of each datagram which is sent is advanced to its limit.
+     *
+     * @param channel the channel, which must be in non-blocking mode (must not be {@code null})
+     * @param srcs the buffers (must not be {@code null} and must not contain {@code null})
+     * @param targets an array at least as long as {@code srcs} with the address to send each datagram to, or
+     *      {@code null} to send them all to the address which the channel is connected to
+     * @return the number of datagrams sent, which is zero if the socket send buffer is full
+     * @throws ClosedChannelException if the channel is closed
+     * @throws IllegalBlockingModeException if the channel is in blocking mode
+     * @throws NotYetConnectedException if {@code targets} is {@code null} and the channel is not connected
+     * @throws AlreadyConnectedException if the channel is connected and a target is not the address which it is
+     *      connected to
+     * @throws IllegalArgumentException if the channel was not created by the default provider
+     * @throws UnsupportedOperationException if batched datagram I/O is not supported on this platform
+     * @throws IOException if some other I/O error occurs
+     */
+    public static int send(DatagramChannel channel, ByteBuffer[] srcs, SocketAddress[] targets) throws IOException {
+        Objects.requireNonNull(srcs, "srcs");
+        if (targets != null && targets.length < Math.min(srcs.length, maxBatchSize())) {
+            throw new IllegalArgumentException("Target address array is too short");
+        }
+        checkBuffers(srcs);
+        return DatagramBatches.send(fdChannel(channel, true), srcs, targets);
+    }
+
+    /**
+     * Set the segment size for UDP generic segmentation offload on a channel. Each datagram which is sent on the channel
+     * is then split into datagrams of this size (the last of which may be shorter) by the kernel, or by the network
+     * card if it can, so that a large batch of equally sized datagrams costs one pass through the network stack.
+     * This needs Linux 4.18 or later.
+     *
+     * @param channel the channel (must not be {@code null})
+     * @param size the segment size, or zero to turn segmentation off
+     * @throws ClosedChannelException if the channel is closed
+     * @throws IllegalArgumentException if the size is negative or over 65535, or the channel was not created by the
+     *      default provider
+     * @throws UnsupportedOperationException if batched datagram I/O is not supported on this platform
+     * @throws IOException if the kernel does not support segmentation offload, or some other I/O error occurs
+     */
+    public static void setSegmentSize(DatagramChannel channel, int size) throws IOException {
+        if (size < 0 || size > 0xffff) {
+            throw new IllegalArgumentException("Invalid segment size " + size);
+        }
+        DatagramBatches.setSegmentSize(((SelChImpl) fdChannel(channel, false)).getFD(), size);
+    }
+
+    private static void checkBuffers(ByteBuffer[] bufs) {
+        final int count = Math.min(bufs.length, maxBatchSize());
+        for (int i = 0; i < count; i ++) {
+            Objects.requireNonNull(bufs[i], "buffer");
+        }
+    }
+
+    private static DatagramChannel fdChannel(DatagramChannel channel, boolean nonBlocking) throws ClosedChannelException {
+        Objects.requireNonNull(channel, "channel");
+        if (! isSupported()) {
+            throw new UnsupportedOperationException("Batched datagram I/O is not supported on this platform");
+        }
+        if (! (channel instanceof SelChImpl)) {
+            throw new IllegalArgumentException("Channel was not created by the default provider");
+        }
+        if (! channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (nonBlocking && channel.isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+        return channel;
+    }
+}
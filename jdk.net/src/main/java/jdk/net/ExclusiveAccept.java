@@ -0,0 +1,69 @@
+package jdk.net;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Objects;
+
+import sun.nio.ch.ExclusiveWakeup;
+import sun.nio.ch.SelChImpl;
+
+/**
+ * Control over how the selectors which watch a listening socket are woken.
+ * <p>
+ * When several threads each have a selector which watches the same server socket channel for {@code OP_ACCEPT}, every
+ * one of them is woken for each new connection, and all but one find nothing to accept. With exclusive accept set on
+ * the channel, each connection wakes only one of them. (Another way to spread connections over threads is to give each
+ * thread a listener of its own; see {@link ShardedAcceptor}.)
+ * <p>
+ * Exclusive accept must be set before the channel is registered with the selectors, because it only applies to
+ * registrations which are made afterwards. It is only supported on Linux 4.5 and later.
+ */
+public final class ExclusiveAccept {
+    private ExclusiveAccept() {}
+
+    /**
+     * Determine whether exclusive accept is supported on this platform.
+     *
+     * @return {@code true} if it is supported, or {@code false} if it is not
+     */
+    public static boolean isSupported() {
+        return ExclusiveWakeup.isSupported();
+    }
+
+    /**
+     * Determine whether exclusive accept is set on the given channel.
+     *
+     * @param channel the channel (must not be {@code null})
+     * @return {@code true} if it is set
+     * @throws ClosedChannelException if the channel is closed
+     * @throws IllegalArgumentException if the channel was not created by the default provider
+     */
+    public static boolean get(ServerSocketChannel channel) throws ClosedChannelException {
+        return ExclusiveWakeup.get(fdChannel(channel).getFD());
+    }
+
+    /**
+     * Set or clear exclusive accept on the given channel. Registrations of the channel which already exist are not
+     * affected.
+     *
+     * @param channel the channel (must not be {@code null})
+     * @param on {@code true} to set exclusive accept, or {@code false} to clear it
+     * @throws ClosedChannelException if the channel is closed
+     * @throws IllegalArgumentException if the channel was not created by the default provider
+     * @throws UnsupportedOperationException if exclusive accept is not supported on this platform
+     */
+    public static void set(ServerSocketChannel channel, boolean on) throws ClosedChannelException {
+        ExclusiveWakeup.set(fdChannel(channel).getFD(), on);
+    }
+
+    private static SelChImpl fdChannel(ServerSocketChannel channel) throws ClosedChannelException {
+        Objects.requireNonNull(channel, "channel");
+        if (! (channel instanceof SelChImpl)) {
+            throw new IllegalArgumentException("Channel was not created by the default provider");
+        }
+        if (! channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return (SelChImpl) channel;
+    }
+}
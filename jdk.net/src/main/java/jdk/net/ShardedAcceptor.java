@@ -0,0 +1,196 @@
+package jdk.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * A set of listening sockets which are all bound to the same address with {@code SO_REUSEPORT}, each of which is
+ * accepted from by a thread with a selector of its own.
+ * <p>
+ * The kernel spreads the incoming connections over the listeners, so the threads do not contend for one accept queue,
+ * and each connection wakes only the thread whose listener it was given to. The accepted channels are passed to a
+ * handler on the thread which accepted them, in blocking mode.
+ * <p>
+ * {@code SO_REUSEPORT} is supported on Linux 3.9 and later, and on the BSDs and macOS (which do not spread connections
+ * over the listeners).
+ */
+public final class ShardedAcceptor implements Closeable {
+    /**
+     * How long a shard waits after an error (such as running out of file descriptors) before it accepts again.
+     */
+    private static final long ERROR_DELAY_MILLIS = 10;
+
+    private final Shard[] shards;
+    private final SocketAddress localAddress;
+    private volatile boolean closed;
+
+    private ShardedAcceptor(Shard[] shards, SocketAddress localAddress) {
+        this.shards = shards;
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * Open the listeners and start their threads.
+     * If the port of the given address is zero, all the listeners are bound to the port which the first one is given.
+     *
+     * @param local the address to bind to, or {@code null} for an automatically assigned address
+     * @param count the number of listeners and threads (must be positive)
+     * @param backlog the accept queue length of each listener, or zero for the default
+     * @param handler the handler for accepted channels (must not be {@code null}), which must not throw; if it does,
+     *      the channel is closed
+     * @return the acceptor (not {@code null})
+     * @throws IOException if a listener could not be opened or bound
+     * @throws UnsupportedOperationException if {@code SO_REUSEPORT} is not supported on this platform
+     */
+    public static ShardedAcceptor open(SocketAddress local, int count, int backlog, Consumer<? super SocketChannel> handler) throws IOException {
+        Objects.requireNonNull(handler, "handler");
+        if (count <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        final Shard[] shards = new Shard[count];
+        SocketAddress address = local;
+        try {
+            for (int i = 0; i < count; i ++) {
+                final ServerSocketChannel channel = ServerSocketChannel.open();
+                Selector selector = null;
+                try {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+                    channel.bind(address, backlog);
+                    channel.configureBlocking(false);
+                    selector = Selector.open();
+                    channel.register(selector, SelectionKey.OP_ACCEPT);
+                } catch (IOException | RuntimeException e) {
+                    if (selector != null) {
+                        selector.close();
+                    }
+                    channel.close();
+                    throw e;
+                }
+                address = channel.getLocalAddress();
+                shards[i] = new Shard(channel, selector);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Shard shard : shards) {
+                if (shard != null) {
+                    try {
+                        shard.close();
+                    } catch (IOException e2) {
+                        e.addSuppressed(e2);
+                    }
+                }
+            }
+            throw e;
+        }
+        final ShardedAcceptor acceptor = new ShardedAcceptor(shards, address);
+        for (int i = 0; i < count; i ++) {
+            final Shard shard = shards[i];
+            final Thread thread = new Thread(() -> acceptor.run(shard, handler), "Acceptor " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return acceptor;
+    }
+
+    /**
+     * Get the address which the listeners are bound to.
+     *
+     * @return the address (not {@code null})
+     */
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Get the number of listeners.
+     *
+     * @return the number of listeners
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Close the listeners, which stops their threads. Channels which were already accepted are not affected.
+     *
+     * @throws IOException if a listener could not be closed
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (Shard shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void run(Shard shard, Consumer<? super SocketChannel> handler) {
+        final Selector selector = shard.selector;
+        final ServerSocketChannel channel = shard.channel;
+        while (! closed) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                SocketChannel accepted;
+                while ((accepted = channel.accept()) != null) {
+                    try {
+                        handler.accept(accepted);
+                    } catch (Throwable t) {
+                        accepted.close();
+                    }
+                }
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    Thread.sleep(ERROR_DELAY_MILLIS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    static final class Shard {
+        final ServerSocketChannel channel;
+        final Selector selector;
+
+        Shard(ServerSocketChannel channel, Selector selector) {
+            this.channel = channel;
+            this.selector = selector;
+        }
+
+        void close() throws IOException {
+            // closing the selector wakes the thread and deregisters the channel
+            try {
+                selector.close();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
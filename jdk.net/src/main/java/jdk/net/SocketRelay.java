@@ -0,0 +1,128 @@
+package jdk.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.NotYetConnectedException;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+
+import sun.nio.ch.SelChImpl;
+import sun.nio.ch.SpliceTransfer;
+
+/**
+ * A one-way relay of bytes from one socket channel to another which does not copy them through user space, for
+ * proxies and tunnels.
+ * <p>
+ * The bytes are spliced from the source socket into a pipe which belongs to the relay, and from the pipe to the target
+ * socket. Both channels must be in non-blocking mode, and are meant to be driven by a selector: when
+ * {@link #transfer} returns with bytes {@linkplain #pending() pending}, the target could not take them, and the caller
+ * should wait for the target to become writable before transferring again; otherwise it should wait for the source to
+ * become readable.
+ * <p>
+ * A relay is not safe for use by more than one thread at a time. A transfer holds the read lock of the source channel
+ * and the write lock of the target channel, as reading from and writing to them does, so either channel may be closed
+ * by another thread at any time; closing the relay does not close them.
+ * <p>
+ * Socket relays are only supported on Linux. (For moving bytes from a socket channel to a file, use
+ * {@link java.nio.channels.FileChannel#transferFrom}, which splices them when the channel is in non-blocking mode.)
+ */
+public final class SocketRelay implements Closeable {
+    private final SocketChannel source;
+    private final SocketChannel target;
+    private final SpliceTransfer.Relay relay;
+
+    private SocketRelay(SocketChannel source, SocketChannel target, SpliceTransfer.Relay relay) {
+        this.source = source;
+        this.target = target;
+        this.relay = relay;
+    }
+
+    /**
+     * Determine whether socket relays are supported on this platform.
+     *
+     * @return {@code true} if they are supported, or {@code false} if they are not
+     */
+    public static boolean isSupported() {
+        return SpliceTransfer.isSupported();
+    }
+
+    /**
+     * Open a relay from one channel to another.
+     *
+     * @param source the channel to read from, which must be connected and in non-blocking mode (must not be
+     *      {@code null})
+     * @param target the channel to write to, which must be connected and in non-blocking mode (must not be
+     *      {@code null})
+     * @return the relay (not {@code null})
+     * @throws ClosedChannelException if either channel is closed
+     * @throws NotYetConnectedException if either channel is not connected
+     * @throws IllegalBlockingModeException if either channel is in blocking mode
+     * @throws IllegalArgumentException if either channel was not created by the default provider
+     * @throws UnsupportedOperationException if socket relays are not supported on this platform
+     * @throws IOException if the pipe of the relay could not be created
+     */
+    public static SocketRelay open(SocketChannel source, SocketChannel target) throws IOException {
+        Objects.requireNonNull(source, "source");
+        Objects.requireNonNull(target, "target");
+        if (! isSupported()) {
+            throw new UnsupportedOperationException("Socket relays are not supported on this platform");
+        }
+        check(source);
+        check(target);
+        return new SocketRelay(source, target, SpliceTransfer.Relay.open(source, target));
+    }
+
+    /**
+     * Read up to {@code count} bytes from the source channel into the relay, and write as many of the bytes in the
+     * relay as the target channel will take. Nothing is read while bytes which the target would not take are still
+     * pending.
+     *
+     * @param count the most bytes to read from the source (must not be negative)
+     * @return the number of bytes written to the target, or -1 if the source has reached the end of its stream and
+     *      every byte has been written
+     * @throws ClosedChannelException if the relay or either channel is closed
+     * @throws IllegalBlockingModeException if either channel is in blocking mode
+     * @throws IOException if some other I/O error occurs
+     */
+    public long transfer(long count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count");
+        }
+        check(source);
+        check(target);
+        return relay.transfer(count);
+    }
+
+    /**
+     * Get the number of bytes which the relay holds because the target channel would not take them yet.
+     *
+     * @return the number of bytes pending
+     */
+    public long pending() {
+        return relay.pending();
+    }
+
+    /**
+     * Close the relay, discarding any pending bytes. The channels are not closed.
+     */
+    public void close() {
+        relay.close();
+    }
+
+    private static void check(SocketChannel channel) throws ClosedChannelException {
+        if (! (channel instanceof SelChImpl)) {
+            throw new IllegalArgumentException("Channel was not created by the default provider");
+        }
+        if (! channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (! channel.isConnected()) {
+            throw new NotYetConnectedException();
+        }
+        if (channel.isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package jdk.net;
+
+import java.util.BitSet;
+import java.util.Objects;
+
+import jdk.internal.thread.CpuAffinity;
+
+/**
+ * Control over the set of CPUs on which a thread may run.
+ * <p>
+ * This may be used to pin latency-sensitive threads, such as network event loops, to CPUs which are kept free
+ * of other work. The GC threads may be kept off of those CPUs with the {@code -XX:GCThreadAffinity=<cpu list>}
+ * launch option.
+ * <p>
+ * CPU affinity is only supported on Linux.
+ */
+public final class ThreadAffinity {
+    private ThreadAffinity() {}
+
+    /**
+     * Determine whether thread CPU affinity is supported on this platform.
+     *
+     * @return {@code true} if affinity is supported, or {@code false} if it is not
+     */
+    public static boolean isSupported() {
+        return CpuAffinity.isSupported();
+    }
+
+    /**
+     * Get the set of CPUs on which the given thread may run.
+     *
+     * @param thread the thread (must not be {@code null})
+     * @return the set of CPU numbers (not {@code null})
+     * @throws IllegalThreadStateException if the thread has not been started or has terminated
+     * @throws UnsupportedOperationException if affinity is not supported on this platform
+     */
+    public static BitSet get(Thread thread) {
+        Objects.requireNonNull(thread, "thread");
+        return BitSet.valueOf(CpuAffinity.get(thread));
+    }
+
+    /**
+     * Restrict the given thread to run only on the given set of CPUs.
+     *
+     * @param thread the thread (must not be {@code null})
+     * @param cpus the set of CPU numbers (must not be {@code null})
+     * @throws IllegalArgumentException if the set is empty, or contains no CPU which this process may use,
+     *      or contains a CPU number which is too large for this platform
+     * @throws IllegalThreadStateException if the thread has not been started or has terminated
+     * @throws UnsupportedOperationException if affinity is not supported on this platform
+     */
+    public static void set(Thread thread, BitSet cpus) {
+        Objects.requireNonNull(thread, "thread");
+        Objects.requireNonNull(cpus, "cpus");
+        CpuAffinity.set(thread, cpus.toLongArray());
+    }
+
+    /**
+     * Restrict the given thread to run only on a single CPU.
+     *
+     * @param thread the thread (must not be {@code null})
+     * @param cpu the CPU number
+     * @throws IllegalArgumentException if the CPU number is negative, or too large for this platform,
+     *      or is not a CPU which this process may use
+     * @throws IllegalThreadStateException if the thread has not been started or has terminated
+     * @throws UnsupportedOperationException if affinity is not supported on this platform
+     */
+    public static void pin(Thread thread, int cpu) {
+        if (cpu < 0) {
+            throw new IllegalArgumentException("Negative CPU number");
+        }
+        BitSet cpus = new BitSet();
+        cpus.set(cpu);
+        set(thread, cpus);
+    }
+}